@@ -0,0 +1,45 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Set;
+
+/**
+ * In-memory OAuthService with one confidential client for the benchmarks.
+ * 
+ * @author zqxu
+ */
+final class BenchmarkOAuthService extends MemoryOAuthService {
+  static final String CLIENT_ID = "bench-client";
+  static final String CLIENT_SECRET = "bench-secret";
+  static final String REDIRECT_URI = "http://localhost/callback";
+
+  BenchmarkOAuthService() {
+    setAuthCodeExpireIn(10000L);
+    setAccessTokenExpireIn(10000L);
+    setRefreshTokenExpireIn(10000L);
+  }
+
+  @Override
+  public boolean checkClient(String clientId) {
+    return CLIENT_ID.equals(clientId);
+  }
+
+  @Override
+  public boolean checkClient(String clientId, String secret) {
+    return CLIENT_ID.equals(clientId) && CLIENT_SECRET.equals(secret);
+  }
+
+  @Override
+  public boolean scopeRequired(String clientId) {
+    return false;
+  }
+
+  @Override
+  public boolean checkScope(String clientId, String scope) {
+    return true;
+  }
+
+  @Override
+  public String confirmationURI(String clientId, Set<String> scopes) {
+    return null;
+  }
+}
@@ -0,0 +1,102 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * OAuthService stand-in for the load test, each call of the backing service
+ * is delayed by latency plus a random jitter, and fails with an
+ * IllegalStateException at the failure rate.
+ * 
+ * @author zqxu
+ */
+final class FaultInjector implements InvocationHandler {
+  private final Object delegate;
+  private final long latencyNanos;
+  private final long jitterNanos;
+  private final double failureRate;
+  private final LongAdder failures = new LongAdder();
+
+  private FaultInjector(Object delegate, double latencyMillis, double jitterMillis,
+      double failureRate) {
+    this.delegate = delegate;
+    this.latencyNanos = (long) (latencyMillis * 1000000);
+    this.jitterNanos = (long) (jitterMillis * 1000000);
+    this.failureRate = failureRate;
+  }
+
+  /**
+   * wrap the OAuthService, the returned service also implements
+   * OAuthGrantService if the backing service does
+   * 
+   * @param oAuthService
+   *          the backing service
+   * @param latencyMillis
+   *          fixed latency of each call in milliseconds
+   * @param jitterMillis
+   *          maximum random latency added to each call in milliseconds
+   * @param failureRate
+   *          rate of failed calls, between 0 and 1
+   * @return the wrapped service
+   */
+  static OAuthService wrap(OAuthService oAuthService, double latencyMillis, double jitterMillis,
+      double failureRate) {
+    Class<?>[] interfaces = oAuthService instanceof OAuthGrantService
+        ? new Class<?>[] { OAuthService.class, OAuthGrantService.class }
+        : new Class<?>[] { OAuthService.class };
+    return (OAuthService) Proxy.newProxyInstance(FaultInjector.class.getClassLoader(), interfaces,
+        new FaultInjector(oAuthService, latencyMillis, jitterMillis, failureRate));
+  }
+
+  /**
+   * get count of injected failures of the wrapped service
+   * 
+   * @param oAuthService
+   *          service returned by wrap
+   * @return injected failure count
+   */
+  static long getFailureCount(OAuthService oAuthService) {
+    return ((FaultInjector) Proxy.getInvocationHandler(oAuthService)).failures.sum();
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class)
+      return method.invoke(this, args);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long delay = latencyNanos + (jitterNanos > 0 ? random.nextLong(jitterNanos + 1) : 0);
+    if (delay > 0)
+      pause(delay);
+    if (failureRate > 0 && random.nextDouble() < failureRate) {
+      failures.increment();
+      throw new IllegalStateException("injected failure in " + method.getName());
+    }
+    try {
+      return method.invoke(delegate, args);
+    } catch (InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  private static void pause(long nanos) {
+    long deadline = System.nanoTime() + nanos;
+    long remaining = nanos;
+    while (remaining > 0) {
+      LockSupport.parkNanos(remaining);
+      remaining = deadline - System.nanoTime();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FaultInjector[" + delegate + ", latency " + TimeUnit.NANOSECONDS.toMicros(latencyNanos)
+        + "us, jitter " + TimeUnit.NANOSECONDS.toMicros(jitterNanos) + "us, failure rate "
+        + failureRate + "]";
+  }
+}
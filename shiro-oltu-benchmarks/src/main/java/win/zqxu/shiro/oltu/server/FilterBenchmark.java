@@ -0,0 +1,208 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.oltu.oauth2.common.OAuth;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drives the token, resource and authorize filters through doFilter with mock
+ * requests and an in-memory OAuthService. The mocks are dynamic proxies, so
+ * the absolute numbers include some reflection cost, compare the results of
+ * the same benchmark between versions.
+ * 
+ * @author zqxu
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+  private static final String SIGNING_KEY = "k1:" + Base64.getEncoder().encodeToString(
+      "benchmark-signing-key-0123456789".getBytes());
+  private static final Set<String> SCOPES = Collections
+      .unmodifiableSet(new HashSet<String>(Arrays.asList("read", "write")));
+
+  /**
+   * Token filter exchanging a fresh authorization code each invocation.
+   */
+  @State(Scope.Thread)
+  public static class TokenState {
+    @Param({ "opaque", "signed" })
+    public String tokenType;
+    BenchmarkOAuthService service;
+    TokenFilter filter;
+    Map<String, String[]> parameters = new HashMap<String, String[]>();
+    HttpServletRequest request;
+    ServletMocks.ResponseHolder holder = new ServletMocks.ResponseHolder();
+    HttpServletResponse response = ServletMocks.response(holder);
+    long sequence;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      service = new BenchmarkOAuthService();
+      filter = new TokenFilter();
+      filter.setoAuthService(service);
+      if ("signed".equals(tokenType))
+        filter.setTokenSigner(signer());
+      parameters.put(OAuth.OAUTH_GRANT_TYPE, new String[] { "authorization_code" });
+      parameters.put(OAuth.OAUTH_CLIENT_ID, new String[] { BenchmarkOAuthService.CLIENT_ID });
+      parameters.put(OAuth.OAUTH_CLIENT_SECRET,
+          new String[] { BenchmarkOAuthService.CLIENT_SECRET });
+      parameters.put(OAuth.OAUTH_REDIRECT_URI, new String[] { BenchmarkOAuthService.REDIRECT_URI });
+      request = ServletMocks.request("POST", "/oauth/token", parameters,
+          Collections.singletonMap(OAuth.HeaderType.CONTENT_TYPE, OAuth.ContentType.URL_ENCODED));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      filter.destroy();
+      service.destroy();
+    }
+  }
+
+  /**
+   * Resource filter checking a valid access token each invocation.
+   */
+  @State(Scope.Thread)
+  public static class ResourceState {
+    @Param({ "opaque", "signed" })
+    public String tokenType;
+    BenchmarkOAuthService service;
+    ResourceFilter filter;
+    HttpServletRequest request;
+    ServletMocks.ResponseHolder holder = new ServletMocks.ResponseHolder();
+    HttpServletResponse response = ServletMocks.response(holder);
+
+    @Setup(Level.Trial)
+    public void setup() {
+      service = new BenchmarkOAuthService();
+      service.setAccessTokenExpireIn(24 * 60 * 60 * 1000L);
+      filter = new ResourceFilter();
+      filter.setoAuthService(service);
+      String accessToken = new SecureTokenGenerator().generate();
+      if ("signed".equals(tokenType)) {
+        TokenSigner signer = signer();
+        filter.setTokenSigner(signer);
+        accessToken = signer.sign(BenchmarkOAuthService.CLIENT_ID, SCOPES,
+            System.currentTimeMillis() + 24 * 60 * 60 * 1000L);
+      }
+      service.addAuthCode("setup-code", BenchmarkOAuthService.CLIENT_ID, SCOPES);
+      service.exchangeAuthCode(BenchmarkOAuthService.CLIENT_ID, "setup-code", accessToken,
+          "setup-refresh");
+      request = ServletMocks.request("GET", "/api/resource",
+          Collections.<String, String[]> emptyMap(),
+          Collections.singletonMap(OAuth.HeaderType.AUTHORIZATION, "Bearer " + accessToken));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      filter.destroy();
+      service.destroy();
+    }
+  }
+
+  /**
+   * Authorize filter issuing an authorization code without confirmation each
+   * invocation, in stateless mode so the Shiro session is not touched.
+   */
+  @State(Scope.Thread)
+  public static class AuthorizeState {
+    BenchmarkOAuthService service;
+    AuthorizeFilter filter;
+    HttpServletRequest request;
+    ServletMocks.ResponseHolder holder = new ServletMocks.ResponseHolder();
+    HttpServletResponse response = ServletMocks.response(holder);
+
+    @Setup(Level.Trial)
+    public void setup() {
+      DefaultSecurityManager securityManager = new DefaultSecurityManager();
+      Subject subject = new Subject.Builder(securityManager)
+          .principals(new SimplePrincipalCollection("bench-user", "bench"))
+          .authenticated(true).buildSubject();
+      ThreadContext.bind(securityManager);
+      ThreadContext.bind(subject);
+      service = new BenchmarkOAuthService();
+      filter = new AuthorizeFilter();
+      filter.setoAuthService(service);
+      filter.setConfirmKeySecret(SIGNING_KEY.substring(3));
+      Map<String, String[]> parameters = new HashMap<String, String[]>();
+      parameters.put(OAuth.OAUTH_RESPONSE_TYPE, new String[] { "code" });
+      parameters.put(OAuth.OAUTH_CLIENT_ID, new String[] { BenchmarkOAuthService.CLIENT_ID });
+      parameters.put(OAuth.OAUTH_REDIRECT_URI, new String[] { BenchmarkOAuthService.REDIRECT_URI });
+      parameters.put(OAuth.OAUTH_SCOPE, new String[] { "read write" });
+      parameters.put(OAuth.OAUTH_STATE, new String[] { "xyz" });
+      request = ServletMocks.request("GET", "/oauth/authorize", parameters,
+          Collections.<String, String> emptyMap());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      ThreadContext.remove();
+      service.destroy();
+    }
+  }
+
+  @Benchmark
+  public int tokenFilter(TokenState state) throws Exception {
+    String code = "code-" + state.sequence++;
+    state.service.addAuthCode(code, BenchmarkOAuthService.CLIENT_ID, SCOPES);
+    state.parameters.put(OAuth.OAUTH_CODE, new String[] { code });
+    state.holder.reset();
+    state.filter.doFilter(state.request, state.response, ServletMocks.NO_CHAIN);
+    return check(state.holder, HttpServletResponse.SC_OK);
+  }
+
+  @Benchmark
+  public int resourceFilter(ResourceState state) throws Exception {
+    state.holder.reset();
+    state.filter.doFilter(state.request, state.response, ServletMocks.NO_CHAIN);
+    return check(state.holder, 0);
+  }
+
+  @Benchmark
+  public int authorizeFilter(AuthorizeState state) throws Exception {
+    state.holder.reset();
+    state.filter.doFilter(state.request, state.response, ServletMocks.NO_CHAIN);
+    return check(state.holder, HttpServletResponse.SC_FOUND);
+  }
+
+  private static int check(ServletMocks.ResponseHolder holder, int expected) {
+    if (holder.status != expected)
+      throw new IllegalStateException("unexpected status " + holder.status);
+    return holder.status;
+  }
+
+  static TokenSigner signer() {
+    TokenSigner signer = new TokenSigner();
+    signer.setKeys(SIGNING_KEY);
+    return signer;
+  }
+}
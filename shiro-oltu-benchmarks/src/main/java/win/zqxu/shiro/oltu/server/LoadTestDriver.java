@@ -0,0 +1,290 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Multi-threaded client driving the full authorize, token and resource flow
+ * against {@link LoadTestServer}. Each worker repeats the flow until the
+ * deadline, a failed stage ends the current flow, the latency of every
+ * request is recorded so the percentiles are exact.
+ * 
+ * @author zqxu
+ */
+final class LoadTestDriver {
+  static final String[] STAGES = { "authorize", "token", "resource" };
+  private static final String USER = LoadTestServer.USER_SCHEME + " "
+      + Base64.getEncoder().encodeToString((LoadTestServer.USERNAME + ":"
+          + LoadTestServer.PASSWORD).getBytes(StandardCharsets.UTF_8));
+  private final String baseURL;
+  private final int threads;
+  private final int resourceCalls;
+
+  /**
+   * Constructor
+   * 
+   * @param port
+   *          port of the load test server
+   * @param threads
+   *          count of concurrent workers
+   * @param resourceCalls
+   *          resource requests with each access token
+   */
+  LoadTestDriver(int port, int threads, int resourceCalls) {
+    this.baseURL = "http://127.0.0.1:" + port;
+    this.threads = threads;
+    this.resourceCalls = resourceCalls;
+  }
+
+  /**
+   * run the workers for the duration
+   * 
+   * @param durationMillis
+   *          duration in milliseconds
+   * @return statistics of each stage
+   * @throws InterruptedException
+   *           if interrupted while waiting the workers
+   */
+  Result run(long durationMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + durationMillis * 1000000;
+    CountDownLatch done = new CountDownLatch(threads);
+    Worker[] workers = new Worker[threads];
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker(deadline, done);
+      Thread thread = new Thread(workers[i], "LoadTestWorker-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    done.await();
+    return new Result(workers, System.nanoTime() - start);
+  }
+
+  private final class Worker implements Runnable {
+    private final long deadline;
+    private final CountDownLatch done;
+    private final Recorder[] recorders = new Recorder[STAGES.length];
+    private long flows;
+
+    Worker(long deadline, CountDownLatch done) {
+      this.deadline = deadline;
+      this.done = done;
+      for (int i = 0; i < recorders.length; i++)
+        recorders[i] = new Recorder();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (System.nanoTime() - deadline < 0)
+          if (flow())
+            flows++;
+      } finally {
+        done.countDown();
+      }
+    }
+
+    private boolean flow() {
+      String state = Long.toString(flows);
+      String query = "response_type=code&client_id=" + BenchmarkOAuthService.CLIENT_ID
+          + "&redirect_uri=" + encode(BenchmarkOAuthService.REDIRECT_URI)
+          + "&scope=read%20write&state=" + state;
+      Response response = send(0, "GET", "/oauth/authorize?" + query, USER, null);
+      String code = response == null || response.status != HttpURLConnection.HTTP_MOVED_TEMP
+          ? null : queryValue(response.location, "code");
+      if (!recorders[0].complete(response, code != null))
+        return false;
+      String form = "grant_type=authorization_code&client_id=" + BenchmarkOAuthService.CLIENT_ID
+          + "&client_secret=" + BenchmarkOAuthService.CLIENT_SECRET + "&redirect_uri="
+          + encode(BenchmarkOAuthService.REDIRECT_URI) + "&code=" + encode(code);
+      response = send(1, "POST", "/oauth/token", null, form);
+      String accessToken = response == null || response.status != HttpURLConnection.HTTP_OK
+          ? null : jsonValue(response.body, "access_token");
+      if (!recorders[1].complete(response, accessToken != null))
+        return false;
+      for (int i = 0; i < resourceCalls; i++) {
+        response = send(2, "GET", "/api/resource", "Bearer " + accessToken, null);
+        if (!recorders[2].complete(response,
+            response != null && response.status == HttpURLConnection.HTTP_OK))
+          return false;
+      }
+      return true;
+    }
+
+    private Response send(int stage, String method, String path, String authorization,
+        String form) {
+      recorders[stage].start = System.nanoTime();
+      HttpURLConnection connection = null;
+      try {
+        connection = (HttpURLConnection) new URL(baseURL + path).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod(method);
+        if (authorization != null)
+          connection.setRequestProperty("Authorization", authorization);
+        if (form != null) {
+          byte[] bytes = form.getBytes(StandardCharsets.UTF_8);
+          connection.setDoOutput(true);
+          connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+          connection.setFixedLengthStreamingMode(bytes.length);
+          OutputStream out = connection.getOutputStream();
+          out.write(bytes);
+          out.close();
+        }
+        Response response = new Response();
+        response.status = connection.getResponseCode();
+        response.location = connection.getHeaderField("Location");
+        InputStream in = response.status >= 400 ? connection.getErrorStream()
+            : connection.getInputStream();
+        response.body = in == null ? "" : read(in);
+        return response;
+      } catch (IOException ex) {
+        if (connection != null)
+          connection.disconnect();
+        return null;
+      }
+    }
+  }
+
+  /**
+   * latencies and errors of one stage in one worker
+   */
+  private static final class Recorder {
+    private long start;
+    private long[] latencies = new long[4096];
+    private int count;
+    private long errors;
+
+    boolean complete(Response response, boolean success) {
+      long latency = System.nanoTime() - start;
+      if (count == latencies.length)
+        latencies = Arrays.copyOf(latencies, count * 2);
+      latencies[count++] = latency;
+      if (!success)
+        errors++;
+      return success;
+    }
+  }
+
+  private static final class Response {
+    private int status;
+    private String location;
+    private String body;
+  }
+
+  /**
+   * statistics of all workers
+   */
+  static final class Result {
+    private final long elapsedNanos;
+    private final long flows;
+    private final long[][] latencies = new long[STAGES.length][];
+    private final long[] errors = new long[STAGES.length];
+
+    Result(Worker[] workers, long elapsedNanos) {
+      this.elapsedNanos = elapsedNanos;
+      long flows = 0;
+      for (Worker worker : workers)
+        flows += worker.flows;
+      this.flows = flows;
+      for (int stage = 0; stage < STAGES.length; stage++) {
+        int total = 0;
+        for (Worker worker : workers)
+          total += worker.recorders[stage].count;
+        long[] merged = new long[total];
+        int offset = 0;
+        for (Worker worker : workers) {
+          Recorder recorder = worker.recorders[stage];
+          System.arraycopy(recorder.latencies, 0, merged, offset, recorder.count);
+          offset += recorder.count;
+          errors[stage] += recorder.errors;
+        }
+        Arrays.sort(merged);
+        latencies[stage] = merged;
+      }
+    }
+
+    /**
+     * format the statistics as a table
+     * 
+     * @return the report
+     */
+    String report() {
+      double seconds = elapsedNanos / 1e9;
+      StringBuilder builder = new StringBuilder();
+      builder.append(String.format(Locale.ROOT, "%-10s %10s %8s %8s %10s %9s %9s %9s%n",
+          "stage", "requests", "errors", "error%", "req/s", "p50 ms", "p99 ms", "p999 ms"));
+      for (int stage = 0; stage < STAGES.length; stage++) {
+        long[] values = latencies[stage];
+        builder.append(String.format(Locale.ROOT,
+            "%-10s %10d %8d %8.3f %10.1f %9.3f %9.3f %9.3f%n", STAGES[stage], values.length,
+            errors[stage], values.length == 0 ? 0 : errors[stage] * 100.0 / values.length,
+            values.length / seconds, percentile(values, 0.5), percentile(values, 0.99),
+            percentile(values, 0.999)));
+      }
+      builder.append(String.format(Locale.ROOT, "flows %d in %.1f s, %.1f flows/s%n", flows,
+          seconds, flows / seconds));
+      return builder.toString();
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+      if (sorted.length == 0)
+        return 0;
+      int index = (int) Math.ceil(quantile * sorted.length) - 1;
+      return sorted[Math.max(0, index)] / 1e6;
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int count;
+      while ((count = in.read(buffer)) > 0)
+        out.write(buffer, 0, count);
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static String queryValue(String uri, String name) {
+    if (uri == null)
+      return null;
+    int index = uri.indexOf("?" + name + "=");
+    if (index < 0)
+      index = uri.indexOf("&" + name + "=");
+    if (index < 0)
+      return null;
+    int start = index + name.length() + 2;
+    int end = uri.indexOf('&', start);
+    return uri.substring(start, end < 0 ? uri.length() : end);
+  }
+
+  private static String jsonValue(String json, String name) {
+    String key = "\"" + name + "\":\"";
+    int start = json.indexOf(key);
+    if (start < 0)
+      return null;
+    start += key.length();
+    int end = json.indexOf('"', start);
+    return end < 0 ? null : json.substring(start, end);
+  }
+}
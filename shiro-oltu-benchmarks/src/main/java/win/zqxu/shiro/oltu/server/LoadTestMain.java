@@ -0,0 +1,70 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs the end-to-end load test, the arguments are name=value pairs:<br>
+ * threads: concurrent clients, default 16<br>
+ * duration: measured seconds, default 30<br>
+ * warmup: warmup seconds not measured, default 5<br>
+ * resourceCalls: resource requests with each access token, default 1<br>
+ * latency: latency of each OAuthService call in milliseconds, default 0<br>
+ * jitter: maximum random latency added to each call in milliseconds, default
+ * 0<br>
+ * failureRate: rate of failed OAuthService calls, default 0<br>
+ * async: process token requests asynchronously, default false<br>
+ * for example:<br>
+ * java -cp benchmarks.jar win.zqxu.shiro.oltu.server.LoadTestMain threads=64
+ * latency=2 failureRate=0.001
+ * 
+ * @author zqxu
+ */
+public class LoadTestMain {
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : args) {
+      int index = arg.indexOf('=');
+      if (index <= 0)
+        throw new IllegalArgumentException("argument must be in format name=value: " + arg);
+      options.put(arg.substring(0, index), arg.substring(index + 1));
+    }
+    int threads = Integer.parseInt(option(options, "threads", "16"));
+    long duration = Long.parseLong(option(options, "duration", "30"));
+    long warmup = Long.parseLong(option(options, "warmup", "5"));
+    int resourceCalls = Integer.parseInt(option(options, "resourceCalls", "1"));
+    double latency = Double.parseDouble(option(options, "latency", "0"));
+    double jitter = Double.parseDouble(option(options, "jitter", "0"));
+    double failureRate = Double.parseDouble(option(options, "failureRate", "0"));
+    boolean async = Boolean.parseBoolean(option(options, "async", "false"));
+    if (!options.isEmpty())
+      throw new IllegalArgumentException("unknown arguments " + options.keySet());
+
+    System.setProperty("http.maxConnections", Integer.toString(threads));
+    BenchmarkOAuthService backing = new BenchmarkOAuthService();
+    OAuthService oAuthService = FaultInjector.wrap(backing, latency, jitter, failureRate);
+    LoadTestServer server = new LoadTestServer(oAuthService, async);
+    try {
+      LoadTestDriver driver = new LoadTestDriver(server.start(), threads, resourceCalls);
+      System.out.println(oAuthService + ", " + threads + " threads, async " + async);
+      if (warmup > 0) {
+        System.out.println("warmup " + warmup + " s");
+        driver.run(warmup * 1000);
+      }
+      long failures = FaultInjector.getFailureCount(oAuthService);
+      System.out.println("measure " + duration + " s");
+      LoadTestDriver.Result result = driver.run(duration * 1000);
+      System.out.print(result.report());
+      System.out.println("injected failures "
+          + (FaultInjector.getFailureCount(oAuthService) - failures));
+    } finally {
+      server.stop();
+      backing.destroy();
+    }
+  }
+
+  private static String option(Map<String, String> options, String name, String defaultValue) {
+    String value = options.remove(name);
+    return value == null ? defaultValue : value;
+  }
+}
@@ -0,0 +1,121 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.EnumSet;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.mgt.DefaultSessionStorageEvaluator;
+import org.apache.shiro.mgt.DefaultSubjectDAO;
+import org.apache.shiro.realm.SimpleAccountRealm;
+import org.apache.shiro.web.filter.authc.BasicHttpAuthenticationFilter;
+import org.apache.shiro.web.filter.mgt.DefaultFilterChainManager;
+import org.apache.shiro.web.filter.mgt.PathMatchingFilterChainResolver;
+import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
+import org.apache.shiro.web.servlet.AbstractShiroFilter;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Embedded Jetty server on loopback with the authorize, token and resource
+ * filters behind one shiro filter, same as configured by shiro.ini:<br>
+ * /oauth/authorize = authcUser, oAuthorize<br>
+ * /oauth/token = oToken<br>
+ * /api/** = oResource<br>
+ * The resource owner logs in on each request by basic authentication with the
+ * User scheme, OLTU takes the Basic scheme as client credentials. Sessions are
+ * not stored, the authorize filter runs in stateless mode.
+ * 
+ * @author zqxu
+ */
+final class LoadTestServer {
+  static final String USERNAME = "load-user";
+  static final String PASSWORD = "load-password";
+  static final String USER_SCHEME = "User";
+  private final OAuthService oAuthService;
+  private final boolean async;
+  private Server server;
+  private TokenFilter tokenFilter;
+
+  LoadTestServer(OAuthService oAuthService, boolean async) {
+    this.oAuthService = oAuthService;
+    this.async = async;
+  }
+
+  /**
+   * start the server on a free loopback port
+   * 
+   * @return the port
+   * @throws Exception
+   *           if the server can not start
+   */
+  int start() throws Exception {
+    SimpleAccountRealm realm = new SimpleAccountRealm("load");
+    realm.addAccount(USERNAME, PASSWORD);
+    DefaultWebSecurityManager securityManager = new DefaultWebSecurityManager(realm);
+    ((DefaultSessionStorageEvaluator) ((DefaultSubjectDAO) securityManager.getSubjectDAO())
+        .getSessionStorageEvaluator()).setSessionStorageEnabled(false);
+
+    AuthorizeFilter authorizeFilter = new AuthorizeFilter();
+    authorizeFilter.setoAuthService(oAuthService);
+    authorizeFilter.setConfirmKeySecret("bG9hZC10ZXN0LWNvbmZpcm0ta2V5LXNlY3JldC0wMTIzNDU2Nzg5");
+    tokenFilter = new TokenFilter();
+    tokenFilter.setoAuthService(oAuthService);
+    tokenFilter.setAsync(async);
+    ResourceFilter resourceFilter = new ResourceFilter();
+    resourceFilter.setoAuthService(oAuthService);
+    DefaultFilterChainManager chainManager = new DefaultFilterChainManager();
+    BasicHttpAuthenticationFilter userFilter = new BasicHttpAuthenticationFilter();
+    userFilter.setAuthzScheme(USER_SCHEME);
+    userFilter.setAuthcScheme(USER_SCHEME);
+    chainManager.addFilter("authcUser", userFilter);
+    chainManager.addFilter("oAuthorize", authorizeFilter);
+    chainManager.addFilter("oToken", tokenFilter);
+    chainManager.addFilter("oResource", resourceFilter);
+    chainManager.createChain("/oauth/authorize", "authcUser, oAuthorize");
+    chainManager.createChain("/oauth/token", "oToken");
+    chainManager.createChain("/api/**", "oResource");
+    PathMatchingFilterChainResolver resolver = new PathMatchingFilterChainResolver();
+    resolver.setFilterChainManager(chainManager);
+    AbstractShiroFilter shiroFilter = new AbstractShiroFilter() {
+    };
+    shiroFilter.setSecurityManager(securityManager);
+    shiroFilter.setFilterChainResolver(resolver);
+
+    ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+    FilterHolder filterHolder = new FilterHolder(shiroFilter);
+    filterHolder.setAsyncSupported(true);
+    context.addFilter(filterHolder, "/*",
+        EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC));
+    context.addServlet(new ServletHolder(new ResourceServlet()), "/api/*");
+    server = new Server(new InetSocketAddress("127.0.0.1", 0));
+    server.setHandler(context);
+    server.start();
+    return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+  }
+
+  void stop() throws Exception {
+    if (server != null)
+      server.stop();
+    if (tokenFilter != null)
+      tokenFilter.destroy();
+  }
+
+  private static final class ResourceServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      response.setContentType("text/plain");
+      response.getWriter().write("ok");
+    }
+  }
+}
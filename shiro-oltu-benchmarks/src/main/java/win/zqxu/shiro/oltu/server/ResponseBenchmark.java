@@ -0,0 +1,77 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.oltu.oauth2.common.OAuth;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Response writing through the OLTU builders and the direct writers of
+ * {@link ResponseUtils}.
+ * 
+ * @author zqxu
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+  private final ServletMocks.ResponseHolder holder = new ServletMocks.ResponseHolder();
+  private final HttpServletResponse response = ServletMocks.response(holder);
+  private final HttpServletRequest request;
+  private final String accessToken = new SecureTokenGenerator().generate();
+  private final String refreshToken = new SecureTokenGenerator().generate();
+
+  public ResponseBenchmark() {
+    Map<String, String[]> parameters = new HashMap<String, String[]>();
+    parameters.put(OAuth.OAUTH_REDIRECT_URI, new String[] { BenchmarkOAuthService.REDIRECT_URI });
+    request = ServletMocks.request("GET", "/oauth/authorize", parameters,
+        Collections.<String, String> emptyMap());
+  }
+
+  @Benchmark
+  public long processResponseRedirect() throws Exception {
+    holder.reset();
+    ResponseUtils.processResponse(response, BenchmarkOAuthService.REDIRECT_URI,
+        ResponseUtils.responseAuthCode(request, accessToken, "read write", "xyz"));
+    return holder.location.length();
+  }
+
+  @Benchmark
+  public long processResponseJson() throws Exception {
+    holder.reset();
+    ResponseUtils.processResponse(response, null,
+        ResponseUtils.responseAccessCode(accessToken, 3600000L, refreshToken));
+    return holder.bodyLength;
+  }
+
+  @Benchmark
+  public long writeAccessToken() throws Exception {
+    holder.reset();
+    ResponseUtils.writeAccessToken(response, accessToken, 3600000L, refreshToken);
+    return holder.bodyLength;
+  }
+
+  @Benchmark
+  public long writeError() throws Exception {
+    holder.reset();
+    ResponseUtils.writeInvalidGrant(response, "invalid authorization code");
+    return holder.bodyLength;
+  }
+}
@@ -0,0 +1,190 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal servlet request and response mocks built on dynamic proxies, only
+ * the methods used by the filters are implemented, other methods return null,
+ * false or 0.
+ * 
+ * @author zqxu
+ */
+final class ServletMocks {
+  static final FilterChain NO_CHAIN = new FilterChain() {
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) {
+    }
+  };
+
+  private ServletMocks() {
+  }
+
+  /**
+   * create a request, the parameters and headers maps are read on each call,
+   * so they can be changed between invocations
+   */
+  static HttpServletRequest request(final String method, final String uri,
+      final Map<String, String[]> parameters, Map<String, String> headers) {
+    final Map<String, String> headerMap = new TreeMap<String, String>(
+        String.CASE_INSENSITIVE_ORDER);
+    headerMap.putAll(headers);
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    return proxy(HttpServletRequest.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) {
+        switch (m.getName()) {
+        case "getMethod":
+          return method;
+        case "getParameter":
+          String[] values = parameters.get(args[0]);
+          return values == null ? null : values[0];
+        case "getParameterValues":
+          return parameters.get(args[0]);
+        case "getParameterMap":
+          return parameters;
+        case "getParameterNames":
+          return Collections.enumeration(parameters.keySet());
+        case "getHeader":
+          return headerMap.get(args[0]);
+        case "getHeaders":
+          String header = headerMap.get(args[0]);
+          return Collections.enumeration(header == null ? Collections.<String> emptyList()
+              : Collections.singletonList(header));
+        case "getContentType":
+          return headerMap.get("Content-Type");
+        case "getAttribute":
+          return attributes.get(args[0]);
+        case "setAttribute":
+          attributes.put((String) args[0], args[1]);
+          return null;
+        case "removeAttribute":
+          attributes.remove(args[0]);
+          return null;
+        case "getLocale":
+          return Locale.ENGLISH;
+        case "getCharacterEncoding":
+          return "UTF-8";
+        case "getRequestURI":
+          return uri;
+        case "getRequestURL":
+          return new StringBuffer("http://localhost").append(uri);
+        case "getScheme":
+          return "http";
+        case "getServerName":
+          return "localhost";
+        case "getServerPort":
+          return 80;
+        case "getContextPath":
+          return "";
+        case "getServletPath":
+          return uri;
+        default:
+          return defaultValue(proxy, m, args);
+        }
+      }
+    });
+  }
+
+  /**
+   * create a response writes into the holder
+   */
+  static HttpServletResponse response(final ResponseHolder holder) {
+    return proxy(HttpServletResponse.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) {
+        switch (m.getName()) {
+        case "setStatus":
+          holder.status = (Integer) args[0];
+          return null;
+        case "getStatus":
+          return holder.status;
+        case "sendRedirect":
+          holder.status = HttpServletResponse.SC_FOUND;
+          holder.location = (String) args[0];
+          return null;
+        case "getOutputStream":
+          return holder.output;
+        case "encodeRedirectURL":
+        case "encodeURL":
+          return args[0];
+        default:
+          return defaultValue(proxy, m, args);
+        }
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[] { type },
+        handler);
+  }
+
+  private static Object defaultValue(Object proxy, Method m, Object[] args) {
+    if (m.getName().equals("equals"))
+      return proxy == args[0];
+    if (m.getName().equals("hashCode"))
+      return System.identityHashCode(proxy);
+    if (m.getName().equals("toString"))
+      return "mock " + m.getDeclaringClass().getSimpleName();
+    Class<?> type = m.getReturnType();
+    if (type == boolean.class)
+      return false;
+    if (type == int.class)
+      return 0;
+    if (type == long.class)
+      return 0L;
+    return null;
+  }
+
+  /**
+   * Response state of the mock response, the body is counted and dropped.
+   */
+  static final class ResponseHolder {
+    int status;
+    String location;
+    long bodyLength;
+    final ServletOutputStream output = new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        bodyLength++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        bodyLength += len;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+      }
+    };
+
+    void reset() {
+      status = 0;
+      location = null;
+      bodyLength = 0;
+    }
+  }
+}
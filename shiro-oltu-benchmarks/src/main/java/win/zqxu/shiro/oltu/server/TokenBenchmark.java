@@ -0,0 +1,72 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Token generation and signed token creation and verification.
+ * 
+ * @author zqxu
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenBenchmark {
+  private final Set<String> scopes = new HashSet<String>(Arrays.asList("read", "write"));
+  private SecureTokenGenerator secureGenerator;
+  private BufferedTokenGenerator bufferedGenerator;
+  private TokenSigner signer;
+  private String signedToken;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    secureGenerator = new SecureTokenGenerator();
+    bufferedGenerator = new BufferedTokenGenerator();
+    signer = FilterBenchmark.signer();
+    signedToken = signer.sign(BenchmarkOAuthService.CLIENT_ID, scopes,
+        System.currentTimeMillis() + 24 * 60 * 60 * 1000L);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    bufferedGenerator.destroy();
+  }
+
+  @Benchmark
+  public String secureGenerate() {
+    return secureGenerator.generate();
+  }
+
+  @Benchmark
+  public String bufferedGenerate() {
+    return bufferedGenerator.generate();
+  }
+
+  @Benchmark
+  public String signToken() {
+    return signer.sign(BenchmarkOAuthService.CLIENT_ID, scopes);
+  }
+
+  @Benchmark
+  public SignedToken verifyToken() {
+    return signer.verify(signedToken);
+  }
+}
@@ -0,0 +1,207 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.subject.Subject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs filter work on an executor inside a servlet AsyncContext, so the
+ * container request thread is released while OAuthService is working, for
+ * internal use. After the work the request is either completed, or dispatched
+ * back to the container so the rest of the filter chain and the application
+ * run on a container thread, never on the executor.
+ * 
+ * @author zqxu
+ */
+final class AsyncProcessor {
+  private static final Logger log = LoggerFactory.getLogger(AsyncProcessor.class);
+  private boolean enabled;
+  private int threads = Runtime.getRuntime().availableProcessors() * 8;
+  private int queueSize = 1024;
+  private boolean virtualThreads;
+  private long timeout;
+  private volatile Executor executor;
+  private volatile ExecutorService ownedExecutor;
+
+  /**
+   * Work executed in the async context
+   */
+  interface Work {
+    /**
+     * @return true to dispatch the request back to the container, false to
+     *         complete the response
+     */
+    boolean run(ServletRequest request, ServletResponse response) throws Exception;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public void setTimeout(long timeout) {
+    this.timeout = timeout;
+  }
+
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Determine whether the request should be processed asynchronously
+   */
+  public boolean accept(ServletRequest request) {
+    return enabled && request.isAsyncSupported();
+  }
+
+  /**
+   * start async context and submit the work to executor, the current Subject
+   * is bound to the executing thread, the response status is 503 if the
+   * executor is saturated
+   */
+  public void execute(ServletRequest request, ServletResponse response, final Work work) {
+    final AsyncContext context = request.startAsync(request, response);
+    if (timeout > 0)
+      context.setTimeout(timeout);
+    Subject subject = SecurityUtils.getSubject();
+    Runnable task = subject.associateWith(new Runnable() {
+      @Override
+      public void run() {
+        boolean dispatch = false;
+        try {
+          dispatch = work.run(context.getRequest(), context.getResponse());
+        } catch (Exception ex) {
+          log.error("OAuth async processing failed", ex);
+          sendError(context.getResponse(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+          if (dispatch)
+            context.dispatch();
+          else
+            context.complete();
+        }
+      }
+    });
+    try {
+      resolveExecutor().execute(task);
+    } catch (RejectedExecutionException ex) {
+      sendError(context.getResponse(), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      context.complete();
+    }
+  }
+
+  /**
+   * shutdown the executor created by this processor
+   */
+  public synchronized void shutdown() {
+    if (ownedExecutor != null)
+      ownedExecutor.shutdown();
+    ownedExecutor = null;
+  }
+
+  private Executor resolveExecutor() {
+    Executor current = executor;
+    if (current != null)
+      return current;
+    current = ownedExecutor;
+    if (current != null)
+      return current;
+    synchronized (this) {
+      if (ownedExecutor == null)
+        ownedExecutor = newExecutor();
+      return ownedExecutor;
+    }
+  }
+
+  /**
+   * create thread pool with bounded queue, so the saturated pool rejects tasks
+   * instead of queuing them without limit
+   */
+  private ExecutorService newExecutor() {
+    ExecutorService created = virtualThreads ? newVirtualThreadExecutor() : null;
+    if (created != null)
+      return created;
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "OAuthAsync-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * create virtual thread per task executor on JDK 21 or later
+   */
+  private ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException ex) {
+      log.warn("virtual threads not available, using platform threads");
+      return null;
+    }
+  }
+
+  private static void sendError(ServletResponse response, int status) {
+    if (!response.isCommitted() && response instanceof HttpServletResponse)
+      ((HttpServletResponse) response).setStatus(status);
+  }
+}
@@ -0,0 +1,46 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Set;
+
+/**
+ * <p>
+ * Keeps short-lived authorization codes apart from OAuthService. If set,
+ * {@link AuthorizeFilter} puts new authorization codes into the store instead
+ * of calling {@link OAuthService#addAuthCode}, and {@link TokenFilter}
+ * consumes them from the store and issues the tokens by
+ * {@link OAuthGrantService#issueTokens}.
+ * </p>
+ * <p>
+ * Note that the implementation is shared by all requests, so it must be
+ * thread safe, and an authorization code must be consumed at most once.
+ * </p>
+ * 
+ * @author zqxu
+ *
+ */
+public interface AuthCodeStore {
+  /**
+   * add a new authorization code
+   * 
+   * @param authCode
+   *          authorization code
+   * @param clientId
+   *          client id
+   * @param scopes
+   *          scopes, can be null
+   */
+  void put(String authCode, String clientId, Set<String> scopes);
+
+  /**
+   * check and remove the authorization code in one atomic operation
+   * 
+   * @param authCode
+   *          authorization code
+   * @param clientId
+   *          client id
+   * @return scopes of the authorization code, empty if no scopes, or null if
+   *         the authorization code is invalid, expired, already used or not
+   *         issued to the client
+   */
+  Set<String> consume(String authCode, String clientId);
+}
@@ -1,6 +1,7 @@
 package win.zqxu.shiro.oltu.server;
 
 import java.io.IOException;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -11,8 +12,6 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.oltu.oauth2.as.issuer.MD5Generator;
-import org.apache.oltu.oauth2.as.issuer.OAuthIssuerImpl;
 import org.apache.oltu.oauth2.as.request.OAuthAuthzRequest;
 import org.apache.oltu.oauth2.common.OAuth;
 import org.apache.oltu.oauth2.common.exception.OAuthProblemException;
@@ -46,6 +45,21 @@ public class AuthorizeFilter extends AdviceFilter {
   private static final String SAVED_OAUTH_REQUEST_KEY = AuthorizeFilter.class.getName()
       + "_SAVED_OAUTH_REQUEST";
   private OAuthService oAuthService;
+  private String locales;
+  private int warmupIterations;
+  private long warmupTime;
+  private TokenGenerator tokenGenerator = new SecureTokenGenerator();
+  private RateLimiter rateLimiter;
+  private ScopeRegistry scopeRegistry;
+  private AuthCodeStore authCodeStore;
+  private OAuthMetrics metrics;
+  private LatencyHistogram totalTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram parseTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram checkTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram issueTime = LatencyHistogram.DISABLED;
+  private ConfirmKeyCodec confirmKeyCodec;
+  private String confirmKeySecret;
+  private long confirmKeyExpireIn = 10 * 60 * 1000L;
 
   /**
    * get OAuth2 Service Object
@@ -66,28 +80,267 @@ public class AuthorizeFilter extends AdviceFilter {
     this.oAuthService = oAuthService;
   }
 
+  /**
+   * get authorization code generator
+   * 
+   * @return authorization code generator
+   */
+  public TokenGenerator getTokenGenerator() {
+    return tokenGenerator;
+  }
+
+  /**
+   * set authorization code generator, default is {@link SecureTokenGenerator}
+   * 
+   * @param tokenGenerator
+   *          authorization code generator
+   */
+  public void setTokenGenerator(TokenGenerator tokenGenerator) {
+    this.tokenGenerator = tokenGenerator;
+  }
+
+  /**
+   * get request rate limiter
+   * 
+   * @return request rate limiter
+   */
+  public RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * set request rate limiter, if set, requests over the limit of the checked
+   * client, or from a source address with too many failed requests, are
+   * rejected with HTTP 429
+   * 
+   * @param rateLimiter
+   *          request rate limiter
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * get scope registry
+   * 
+   * @return scope registry
+   */
+  public ScopeRegistry getScopeRegistry() {
+    return scopeRegistry;
+  }
+
+  /**
+   * set scope registry, if set, the requested scopes are checked by the
+   * registry instead of OAuthService
+   * 
+   * @param scopeRegistry
+   *          scope registry
+   */
+  public void setScopeRegistry(ScopeRegistry scopeRegistry) {
+    this.scopeRegistry = scopeRegistry;
+  }
+
+  /**
+   * set secret of signed confirm key, at least 32 bytes in base64. If set, the
+   * filter works in stateless mode, the OAuth request is carried by a signed
+   * and time-limited confirm key through the confirmation page instead of
+   * saved in SHIRO session, so the session is never changed by the filter.
+   * The secret must be same in all nodes of a cluster. Each confirm key is
+   * accepted once by a server, the used keys are kept in memory until they
+   * expire, so in a cluster the confirmation should be routed back to the same
+   * node, otherwise a key may be used once on each node.
+   * 
+   * @param confirmKeySecret
+   *          base64 secret, null to save OAuth request in session
+   */
+  public synchronized void setConfirmKeySecret(String confirmKeySecret) {
+    if (OAuthUtils.isEmpty(confirmKeySecret))
+      confirmKeyCodec = null;
+    else
+      confirmKeyCodec = new ConfirmKeyCodec(Base64.getDecoder().decode(confirmKeySecret.trim()),
+          confirmKeyExpireIn);
+    this.confirmKeySecret = confirmKeySecret;
+  }
+
+  /**
+   * get expire time of signed confirm key
+   * 
+   * @return expire time in millisecond
+   */
+  public long getConfirmKeyExpireIn() {
+    return confirmKeyExpireIn;
+  }
+
+  /**
+   * set expire time of signed confirm key, default is 10 minutes, the user
+   * must finish the confirmation page in this time
+   * 
+   * @param confirmKeyExpireIn
+   *          expire time in millisecond
+   */
+  public synchronized void setConfirmKeyExpireIn(long confirmKeyExpireIn) {
+    this.confirmKeyExpireIn = confirmKeyExpireIn;
+    setConfirmKeySecret(confirmKeySecret);
+  }
+
+  /**
+   * whether the filter works in stateless mode
+   * 
+   * @return true if confirm key secret set
+   */
+  public boolean isStateless() {
+    return confirmKeyCodec != null;
+  }
+
+  /**
+   * get authorization code store
+   * 
+   * @return authorization code store
+   */
+  public AuthCodeStore getAuthCodeStore() {
+    return authCodeStore;
+  }
+
+  /**
+   * set authorization code store, if set, authorization codes are put into
+   * the store instead of OAuthService, the token filter must use the same
+   * store and the OAuthService must implement
+   * {@link OAuthGrantService#issueTokens}
+   * 
+   * @param authCodeStore
+   *          authorization code store
+   */
+  public void setAuthCodeStore(AuthCodeStore authCodeStore) {
+    this.authCodeStore = authCodeStore;
+  }
+
+  /**
+   * get metrics
+   * 
+   * @return metrics
+   */
+  public OAuthMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * set metrics to record latency of the filter phases: parse, check and
+   * issue, and count error responses
+   * 
+   * @param metrics
+   *          metrics
+   */
+  public void setMetrics(OAuthMetrics metrics) {
+    this.metrics = metrics;
+    totalTime = LatencyHistogram.phase(metrics, "authorize", "total");
+    parseTime = LatencyHistogram.phase(metrics, "authorize", "parse");
+    checkTime = LatencyHistogram.phase(metrics, "authorize", "check");
+    issueTime = LatencyHistogram.phase(metrics, "authorize", "issue");
+  }
+
+  /**
+   * get locales of messages preloaded at filter init
+   * 
+   * @return locales separated by comma
+   */
+  public String getLocales() {
+    return locales;
+  }
+
+  /**
+   * set locales of messages preloaded at filter init, so the first request in
+   * these locales does not need to resolve resource bundle
+   * 
+   * @param locales
+   *          locales separated by comma, such as en,zh_CN
+   */
+  public void setLocales(String locales) {
+    this.locales = locales;
+  }
+
+  /**
+   * get times of sending the synthetic requests at filter init
+   * 
+   * @return warm up iterations
+   */
+  public int getWarmupIterations() {
+    return warmupIterations;
+  }
+
+  /**
+   * set times of sending the synthetic requests at filter init, default is 0
+   * means no warm up. If set, a copy of this filter with a no-op OAuthService
+   * processes synthetic success and error authorize requests at filter init, so
+   * class loading, resource bundles and JIT compilation are done before the
+   * first real request, and the shiro filter is not ready until warmed up.
+   * Hundreds of iterations are usually enough.
+   * 
+   * @param warmupIterations
+   *          warm up iterations
+   */
+  public void setWarmupIterations(int warmupIterations) {
+    this.warmupIterations = warmupIterations;
+  }
+
+  /**
+   * get elapsed time of the warm up at filter init
+   * 
+   * @return elapsed time in millisecond, 0 if not warmed up
+   */
+  public long getWarmupTime() {
+    return warmupTime;
+  }
+
+  /**
+   * preload messages of the configured locales and warm up the filter
+   */
+  @Override
+  protected void onFilterConfigSet() throws Exception {
+    if (!OAuthUtils.isEmpty(locales))
+      I18N.preload(locales);
+    if (warmupIterations > 0)
+      warmupTime = FilterWarmer.warmUp(this, warmupIterations);
+  }
+
   /**
    * check client and redirect back with OAuth authorization code
    */
   @Override
   protected boolean preHandle(ServletRequest request, ServletResponse response) throws Exception {
-    I18N i18n = new I18N(request.getLocale());
     if (!SecurityUtils.getSubject().isAuthenticated()) {
+      I18N i18n = I18N.of(request.getLocale());
       throw new IllegalStateException(i18n.getString("NOT_AUTHENTICATED"));
     }
+    long start = System.nanoTime();
     HttpServletRequest httpRequest = (HttpServletRequest) request;
     HttpServletResponse httpResponse = (HttpServletResponse) response;
+    boolean newRequest;
+    if (confirmKeyCodec != null)
+      newRequest = OAuthUtils.isEmpty(request.getParameter(OAuthService.CONFIRM_KEY));
+    else
+      newRequest = noSavedRequest();
+    OAuthMetrics previous = ResponseUtils.bindMetrics(metrics);
     try {
-      if (noSavedRequest())
+      if (rateLimiter != null && newRequest && rateLimiter.isBlocked(request.getRemoteAddr())) {
+        I18N i18n = I18N.of(request.getLocale());
+        return ResponseUtils.writeTooManyRequests(httpResponse,
+            i18n.getString("TOO_MANY_REQUESTS"));
+      }
+      if (newRequest)
         return processOAuthRequest(httpRequest, httpResponse);
       else
         return processSavedRequest(httpRequest, httpResponse);
     } catch (OAuthProblemException ex) {
+      if (rateLimiter != null && newRequest)
+        rateLimiter.recordFailure(request.getRemoteAddr());
       if (OAuthUtils.isEmpty(ex.getError()))
         return ResponseUtils.processResponse(httpResponse, ex.getRedirectUri(),
             ResponseUtils.responseInvalidRequest(ex.getDescription()));
       return ResponseUtils.processResponse(httpResponse, ex.getRedirectUri(),
           ResponseUtils.responseBadRequest(ex));
+    } finally {
+      ResponseUtils.bindMetrics(previous);
+      totalTime.lap(start);
     }
   }
 
@@ -108,14 +361,21 @@ public class AuthorizeFilter extends AdviceFilter {
    */
   protected boolean processOAuthRequest(HttpServletRequest request, HttpServletResponse response)
       throws IOException, OAuthProblemException, OAuthSystemException {
-    I18N i18n = new I18N(request.getLocale());
+    long start = System.nanoTime();
+    I18N i18n = I18N.of(request.getLocale());
     OAuthAuthzRequest oAuthRequest = new OAuthAuthzRequest(request);
+    long mark = parseTime.lap(start);
     String clientId = oAuthRequest.getClientId();
     String redirectURI = oAuthRequest.getRedirectURI();
     // check client id
-    if (!oAuthService.checkClient(clientId))
+    if (!oAuthService.checkClient(clientId)) {
+      if (rateLimiter != null)
+        rateLimiter.recordFailure(request.getRemoteAddr());
       return ResponseUtils.processResponse(response, redirectURI,
           ResponseUtils.responseInvalidClient(i18n.getString("INVALID_CLIENT_ID")));
+    }
+    if (rateLimiter != null && !rateLimiter.tryAcquire(clientId))
+      return ResponseUtils.writeTooManyRequests(response, i18n.getString("TOO_MANY_REQUESTS"));
     // check response type
     String responseType = oAuthRequest.getResponseType();
     if (!ResponseType.CODE.toString().equals(responseType))
@@ -126,13 +386,14 @@ public class AuthorizeFilter extends AdviceFilter {
     if (scopes.isEmpty() && oAuthService.scopeRequired(clientId))
       return ResponseUtils.processResponse(response, redirectURI,
           ResponseUtils.responseInvalidScope(i18n.getString("SCOPE_REQUIRED")));
-    for (String scope : scopes) {
-      if (!oAuthService.checkScope(clientId, scope))
-        return ResponseUtils.processResponse(response, redirectURI,
-            ResponseUtils.responseInvalidScope(i18n.getString("INVALID_SCOPE") + " " + scope));
-    }
+    String invalidScope = scopeRegistry != null ? scopeRegistry.checkScopes(clientId, scopes)
+        : oAuthService.checkScopes(clientId, scopes);
+    if (invalidScope != null)
+      return ResponseUtils.processResponse(response, redirectURI,
+          ResponseUtils.responseInvalidScope(i18n.getString("INVALID_SCOPE") + " " + invalidScope));
     // determine whether need confirmation or not
     String confirmationURI = oAuthService.confirmationURI(clientId, scopes);
+    checkTime.lap(mark);
     if (!OAuthUtils.isEmpty(confirmationURI))
       return redirectToConfirmation(request, response, oAuthRequest, confirmationURI);
     // generate authorization code and redirect back
@@ -156,10 +417,15 @@ public class AuthorizeFilter extends AdviceFilter {
    */
   protected boolean redirectToConfirmation(HttpServletRequest request, HttpServletResponse response,
       OAuthAuthzRequest oAuthRequest, String confirmURI) throws IOException {
-    saveOAuthRequest(oAuthRequest);
-    SavedOAuthRequest savedRequest = readSavedRequest();
+    String confirmKey;
+    if (confirmKeyCodec != null) {
+      confirmKey = confirmKeyCodec.encode(currentPrincipal(), new SavedOAuthRequest(oAuthRequest));
+    } else {
+      saveOAuthRequest(oAuthRequest);
+      confirmKey = readSavedRequest().confirmKey;
+    }
     Map<String, String> parameters = new HashMap<String, String>();
-    parameters.put(OAuthService.CONFIRM_KEY, savedRequest.confirmKey);
+    parameters.put(OAuthService.CONFIRM_KEY, confirmKey);
     parameters.put(OAuth.OAUTH_CLIENT_ID, oAuthRequest.getClientId());
     parameters.put(OAuth.OAUTH_SCOPE, oAuthRequest.getParam(OAuth.OAUTH_SCOPE));
     parameters.put(OAuth.OAUTH_REDIRECT_URI, request.getRequestURI());
@@ -184,7 +450,7 @@ public class AuthorizeFilter extends AdviceFilter {
    */
   protected boolean processSavedRequest(HttpServletRequest request, HttpServletResponse response)
       throws IOException, OAuthProblemException, OAuthSystemException {
-    I18N i18n = new I18N(request.getLocale());
+    I18N i18n = I18N.of(request.getLocale());
     // Check new OAuth request
     String confirmKey = request.getParameter(OAuthService.CONFIRM_KEY);
     if (OAuthUtils.isEmpty(confirmKey)) {
@@ -192,8 +458,12 @@ public class AuthorizeFilter extends AdviceFilter {
       return processOAuthRequest(request, response);
     }
     // Check saved request expired
-    SavedOAuthRequest savedRequest = readSavedRequest();
-    if (!savedRequest.confirmKey.equals(confirmKey)) {
+    SavedOAuthRequest savedRequest;
+    if (confirmKeyCodec != null)
+      savedRequest = confirmKeyCodec.decode(currentPrincipal(), confirmKey);
+    else
+      savedRequest = readSavedRequest();
+    if (savedRequest == null || !savedRequest.confirmKey.equals(confirmKey)) {
       return ResponseUtils.processResponse(response, null,
           ResponseUtils.responseInvalidRequest(i18n.getString("REQUEST_EXPIRED")));
     }
@@ -227,12 +497,18 @@ public class AuthorizeFilter extends AdviceFilter {
   protected boolean generateAuthorizationCode(HttpServletRequest request,
       HttpServletResponse response, SavedOAuthRequest savedRequest)
       throws IOException, OAuthSystemException {
-    String authCode = new OAuthIssuerImpl(new MD5Generator()).authorizationCode();
+    long start = System.nanoTime();
+    String authCode = tokenGenerator.generate();
     String scope = null;
     if (savedRequest.scopes != null)
       scope = OAuthUtils.encodeScopes(savedRequest.scopes);
-    oAuthService.addAuthCode(authCode, savedRequest.clientId, savedRequest.scopes);
-    clearSavedRequest(); // Clear saved request before redirect back
+    if (authCodeStore != null)
+      authCodeStore.put(authCode, savedRequest.clientId, savedRequest.scopes);
+    else
+      oAuthService.addAuthCode(authCode, savedRequest.clientId, savedRequest.scopes);
+    issueTime.lap(start);
+    if (confirmKeyCodec == null)
+      clearSavedRequest(); // Clear saved request before redirect back
     return ResponseUtils.processResponse(response, savedRequest.redirectURI,
         ResponseUtils.responseAuthCode(request, authCode, scope, savedRequest.state));
   }
@@ -247,6 +523,15 @@ public class AuthorizeFilter extends AdviceFilter {
     return session.getAttribute(SAVED_OAUTH_REQUEST_KEY) == null;
   }
 
+  /**
+   * principal of current user, the signed confirm key is bound to it
+   * 
+   * @return principal of current user
+   */
+  protected String currentPrincipal() {
+    return String.valueOf(SecurityUtils.getSubject().getPrincipal());
+  }
+
   /**
    * Save OAuth request
    * 
@@ -296,5 +581,14 @@ public class AuthorizeFilter extends AdviceFilter {
       scopes = oAuthRequest.getScopes();
       redirectURI = oAuthRequest.getRedirectURI();
     }
+
+    public SavedOAuthRequest(String confirmKey, String clientId, String state,
+        Set<String> scopes, String redirectURI) {
+      this.confirmKey = confirmKey;
+      this.clientId = clientId;
+      this.state = state;
+      this.scopes = scopes;
+      this.redirectURI = redirectURI;
+    }
   }
 }
@@ -0,0 +1,71 @@
+package win.zqxu.shiro.oltu.server;
+
+import org.apache.shiro.authc.HostAuthenticationToken;
+
+/**
+ * OAuth2 bearer access token presented to a resource, authenticated by
+ * {@link BearerTokenRealm}. Both the principal and the credentials are the
+ * access token.
+ * 
+ * @author zqxu
+ */
+public class BearerToken implements HostAuthenticationToken {
+  private static final long serialVersionUID = 1L;
+  private final String accessToken;
+  private final String host;
+  private final transient SignedToken signedToken;
+
+  /**
+   * Constructor
+   * 
+   * @param accessToken
+   *          access token
+   * @param host
+   *          host of the client, can be null
+   */
+  public BearerToken(String accessToken, String host) {
+    this(accessToken, host, null);
+  }
+
+  /**
+   * Constructor with signed token already verified by the resource filter
+   */
+  BearerToken(String accessToken, String host, SignedToken signedToken) {
+    this.accessToken = accessToken;
+    this.host = host;
+    this.signedToken = signedToken;
+  }
+
+  /**
+   * get access token
+   * 
+   * @return access token
+   */
+  public String getAccessToken() {
+    return accessToken;
+  }
+
+  /**
+   * get verified signed token
+   * 
+   * @return the signed token verified by the resource filter, or null
+   */
+  SignedToken getSignedToken() {
+    return signedToken;
+  }
+
+  @Override
+  public Object getPrincipal() {
+    return accessToken;
+  }
+
+  @Override
+  public Object getCredentials() {
+    return accessToken;
+  }
+
+  @Override
+  public String getHost() {
+    return host;
+  }
+}
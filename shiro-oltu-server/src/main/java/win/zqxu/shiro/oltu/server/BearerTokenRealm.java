@@ -0,0 +1,265 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.IncorrectCredentialsException;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.authz.permission.PermissionResolver;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheManager;
+import org.apache.shiro.realm.AuthorizingRealm;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+
+/**
+ * <p>
+ * SHIRO realm for {@link BearerToken}, the subject of a bearer request has the
+ * client id as primary principal and the access token as second principal,
+ * each scope of the access token is a permission of the subject, so the
+ * resource code can call SecurityUtils.getSubject().isPermitted(scope).
+ * </p>
+ * <p>
+ * The client id and scopes are taken from the verified signed token, or
+ * {@link OAuthService#getClientId(String)} and
+ * {@link OAuthService#getScopes(String)}. If a cache manager is set, they are
+ * cached by access token until the access token expires according to
+ * {@link OAuthService#getExpireIn(String)}, or at most time to live.
+ * </p>
+ * <p>
+ * add this realm in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthService = &lt;custom oAuthService class&gt;<br>
+ * cacheManager = org.apache.shiro.cache.MemoryConstrainedCacheManager<br>
+ * bearerRealm = win.zqxu.shiro.oltu.server.BearerTokenRealm<br>
+ * bearerRealm.oAuthService = $oAuthService<br>
+ * securityManager.realms = $bearerRealm, $otherRealm<br>
+ * securityManager.cacheManager = $cacheManager<br>
+ * oResourceFilter.bindSubject = true<br>
+ * </p>
+ * 
+ * @author zqxu
+ */
+public class BearerTokenRealm extends AuthorizingRealm {
+  private static final String TOKEN_CACHE_SUFFIX = ".tokens";
+  private OAuthService oAuthService;
+  private TokenSigner tokenSigner;
+  private long timeToLive = 60 * 1000L;
+  private volatile Cache<String, BearerInfo> tokenCache;
+
+  /**
+   * Constructor
+   */
+  public BearerTokenRealm() {
+    setAuthenticationTokenClass(BearerToken.class);
+  }
+
+  /**
+   * get OAuthService to check access tokens
+   * 
+   * @return OAuthService
+   */
+  public OAuthService getoAuthService() {
+    return oAuthService;
+  }
+
+  /**
+   * set OAuthService to check access tokens not signed, required unless all
+   * access tokens are signed
+   * 
+   * @param oAuthService
+   *          OAuthService
+   */
+  public void setoAuthService(OAuthService oAuthService) {
+    this.oAuthService = oAuthService;
+  }
+
+  /**
+   * get access token signer
+   * 
+   * @return access token signer
+   */
+  public TokenSigner getTokenSigner() {
+    return tokenSigner;
+  }
+
+  /**
+   * set access token signer, if set, signed access tokens not verified by the
+   * resource filter are verified by the realm
+   * 
+   * @param tokenSigner
+   *          access token signer
+   */
+  public void setTokenSigner(TokenSigner tokenSigner) {
+    this.tokenSigner = tokenSigner;
+  }
+
+  /**
+   * get maximum time an access token stays in cache
+   * 
+   * @return time to live in millisecond
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * set maximum time an access token stays in cache, default is 1 minute, the
+   * access token is removed from cache when it expires even if time to live
+   * not reached
+   * 
+   * @param timeToLive
+   *          time to live in millisecond
+   */
+  public void setTimeToLive(long timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  /**
+   * remove the cached client id and scopes of the access token, should be
+   * called when the access token revoked
+   * 
+   * @param accessToken
+   *          access token
+   */
+  public void invalidate(String accessToken) {
+    Cache<String, BearerInfo> cache = tokenCache();
+    if (cache != null)
+      cache.remove(accessToken);
+  }
+
+  @Override
+  protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token)
+      throws AuthenticationException {
+    BearerToken bearerToken = (BearerToken) token;
+    String accessToken = bearerToken.getAccessToken();
+    BearerInfo info = bearerInfo(accessToken, bearerToken.getSignedToken());
+    if (info == null)
+      throw new IncorrectCredentialsException("invalid or expired access token");
+    SimplePrincipalCollection principals = new SimplePrincipalCollection();
+    principals.add(info.clientId, getName());
+    principals.add(accessToken, getName());
+    return new SimpleAuthenticationInfo(principals, accessToken);
+  }
+
+  /**
+   * the authorization info is cached in the token cache, not in the
+   * authorization cache of AuthorizingRealm, which has no expiry
+   */
+  @Override
+  protected AuthorizationInfo getAuthorizationInfo(PrincipalCollection principals) {
+    return principals == null ? null : doGetAuthorizationInfo(principals);
+  }
+
+  @Override
+  protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
+    String accessToken = accessToken(principals);
+    return accessToken == null ? null : bearerInfo(accessToken, null);
+  }
+
+  @Override
+  protected void afterCacheManagerSet() {
+    tokenCache = null;
+  }
+
+  @Override
+  protected void doClearCache(PrincipalCollection principals) {
+    String accessToken = accessToken(principals);
+    if (accessToken != null)
+      invalidate(accessToken);
+  }
+
+  /**
+   * the access token is the last principal from this realm
+   */
+  private String accessToken(PrincipalCollection principals) {
+    Collection<?> values = principals.fromRealm(getName());
+    Object accessToken = null;
+    for (Object value : values)
+      accessToken = value;
+    return values.size() < 2 ? null : (String) accessToken;
+  }
+
+  private BearerInfo bearerInfo(String accessToken, SignedToken signedToken) {
+    Cache<String, BearerInfo> cache = tokenCache();
+    long now = System.currentTimeMillis();
+    if (cache != null) {
+      BearerInfo info = cache.get(accessToken);
+      if (info != null) {
+        if (now < info.expireAt)
+          return info;
+        cache.remove(accessToken);
+      }
+    }
+    BearerInfo info = loadBearerInfo(accessToken, signedToken, now);
+    if (info != null && cache != null)
+      cache.put(accessToken, info);
+    return info;
+  }
+
+  private BearerInfo loadBearerInfo(String accessToken, SignedToken signedToken, long now) {
+    if (signedToken == null && tokenSigner != null && tokenSigner.isSigned(accessToken)) {
+      signedToken = tokenSigner.verify(accessToken);
+      if (signedToken == null)
+        return null;
+    }
+    if (signedToken != null) {
+      long expireAt = Math.min(signedToken.getExpireAt(), now + timeToLive);
+      return new BearerInfo(signedToken.getClientId(), resolve(signedToken.getScopes()), expireAt);
+    }
+    long expireIn = Math.min(timeToLive, oAuthService.getExpireIn(accessToken));
+    String clientId = oAuthService.getClientId(accessToken);
+    if (expireIn <= 0 || clientId == null)
+      return null;
+    return new BearerInfo(clientId, resolve(oAuthService.getScopes(accessToken)), now + expireIn);
+  }
+
+  /**
+   * resolve the scopes into permissions once, so they are not parsed again on
+   * each permission check
+   */
+  private Set<Permission> resolve(Set<String> scopes) {
+    if (scopes == null || scopes.isEmpty())
+      return Collections.emptySet();
+    PermissionResolver resolver = getPermissionResolver();
+    Set<Permission> permissions = new HashSet<Permission>();
+    for (String scope : scopes)
+      permissions.add(resolver.resolvePermission(scope));
+    return permissions;
+  }
+
+  private Cache<String, BearerInfo> tokenCache() {
+    Cache<String, BearerInfo> cache = tokenCache;
+    if (cache == null) {
+      CacheManager cacheManager = getCacheManager();
+      if (cacheManager == null || !isCachingEnabled())
+        return null;
+      cache = cacheManager.getCache(getName() + TOKEN_CACHE_SUFFIX);
+      tokenCache = cache;
+    }
+    return cache;
+  }
+
+  /**
+   * client id and permissions of an access token
+   */
+  private static final class BearerInfo extends SimpleAuthorizationInfo {
+    private static final long serialVersionUID = 1L;
+    private final String clientId;
+    private final long expireAt;
+
+    BearerInfo(String clientId, Set<Permission> permissions, long expireAt) {
+      this.clientId = clientId;
+      this.expireAt = expireAt;
+      setObjectPermissions(permissions);
+    }
+  }
+}
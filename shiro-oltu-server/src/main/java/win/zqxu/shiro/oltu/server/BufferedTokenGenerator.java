@@ -0,0 +1,111 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.shiro.util.Destroyable;
+
+/**
+ * <p>
+ * Token generator decorator which pre-generates tokens in a background thread,
+ * so the request thread only takes a ready token from the buffer. If the
+ * buffer is empty, the token is generated in the request thread.
+ * </p>
+ * <p>
+ * add this generator in shiro.ini file like this:<br>
+ * [main]<br>
+ * tokenGenerator = win.zqxu.shiro.oltu.server.BufferedTokenGenerator<br>
+ * tokenGenerator.capacity = 1024<br>
+ * oTokenFilter.tokenGenerator = $tokenGenerator<br>
+ * oAuthorizeFilter.tokenGenerator = $tokenGenerator<br>
+ * </p>
+ * 
+ * @author zqxu
+ */
+public class BufferedTokenGenerator implements TokenGenerator, Destroyable {
+  private TokenGenerator tokenGenerator = new SecureTokenGenerator();
+  private int capacity = 1024;
+  private volatile BlockingQueue<String> buffer;
+  private Thread filler;
+
+  /**
+   * get the token generator used to fill the buffer
+   * 
+   * @return the token generator
+   */
+  public TokenGenerator getTokenGenerator() {
+    return tokenGenerator;
+  }
+
+  /**
+   * set the token generator used to fill the buffer, default is
+   * {@link SecureTokenGenerator}
+   * 
+   * @param tokenGenerator
+   *          the token generator
+   */
+  public void setTokenGenerator(TokenGenerator tokenGenerator) {
+    this.tokenGenerator = tokenGenerator;
+  }
+
+  /**
+   * get buffer capacity
+   * 
+   * @return buffer capacity
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * set buffer capacity, default is 1024
+   * 
+   * @param capacity
+   *          buffer capacity
+   */
+  public void setCapacity(int capacity) {
+    this.capacity = capacity;
+  }
+
+  @Override
+  public String generate() {
+    BlockingQueue<String> queue = buffer;
+    if (queue == null)
+      queue = start();
+    String token = queue.poll();
+    return token != null ? token : tokenGenerator.generate();
+  }
+
+  /**
+   * stop the background thread
+   */
+  @Override
+  public synchronized void destroy() {
+    if (filler != null)
+      filler.interrupt();
+    filler = null;
+    buffer = null;
+  }
+
+  private synchronized BlockingQueue<String> start() {
+    if (buffer != null)
+      return buffer;
+    final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(capacity);
+    final TokenGenerator generator = tokenGenerator;
+    filler = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (!Thread.currentThread().isInterrupted())
+            queue.put(generator.generate());
+        } catch (InterruptedException ex) {
+          // destroyed
+        }
+      }
+    }, "BufferedTokenGenerator");
+    filler.setDaemon(true);
+    filler.start();
+    buffer = queue;
+    return queue;
+  }
+}
@@ -0,0 +1,409 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>
+ * OAuthService decorator which caches positive
+ * {@link OAuthService#checkAccessToken(String, HttpServletRequest)} results,
+ * so the resource server does not hit the backing OAuthService for every
+ * protected request. All other methods are passed through to the backing
+ * OAuthService, the composite operations of {@link OAuthGrantService} are
+ * passed to the backing OAuthService if it implements OAuthGrantService,
+ * otherwise to the {@link OAuthGrantServiceAdapter}.
+ * </p>
+ * <p>
+ * The cache is bounded and evicts the least recently used entries, each entry
+ * lives no longer than {@link #getTimeToLive()} and no longer than the
+ * remaining time returned by {@link OAuthService#getExpireIn(String)}. The
+ * access token replaced by {@link #refreshAccessToken(String, String)} or
+ * {@link #exchangeRefreshToken(String, String, String, String)} is removed
+ * from the cache if the refresh token was issued through this service and is
+ * still remembered, the refresh tokens are kept in a cache of the same maximum
+ * size. Otherwise, e.g. the refresh token was issued by another server or
+ * evicted, the replaced access token stays valid in cache for no longer than
+ * {@link #getTimeToLive()}, set a short time to live if that is not acceptable.
+ * The result checked by the backing OAuthService is not cached if the access
+ * token was invalidated during the check.
+ * </p>
+ * <p>
+ * Note that the cached result does not depend on the HTTP request, do not use
+ * this decorator if the backing OAuthService checks access token against the
+ * request.
+ * </p>
+ * <p>
+ * add this service in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthService = &lt;custom oAuthService class&gt;<br>
+ * cachingService = win.zqxu.shiro.oltu.server.CachingOAuthService<br>
+ * cachingService.oAuthService = $oAuthService<br>
+ * cachingService.maxSize = 10000<br>
+ * oResourceFilter.oAuthService = $cachingService<br>
+ * </p>
+ *
+ * @author zqxu
+ */
+public class CachingOAuthService implements OAuthService, OAuthGrantService {
+  private OAuthService oAuthService;
+  private OAuthGrantService grantService;
+  private int maxSize = 10000;
+  private long timeToLive = 60 * 1000L;
+  private volatile LruCache<Long> accessTokens;
+  private volatile LruCache<String> refreshTokens;
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+
+  /**
+   * Constructor, the backing OAuthService must be set before use
+   */
+  public CachingOAuthService() {
+  }
+
+  /**
+   * Constructor with the backing OAuthService
+   *
+   * @param oAuthService
+   *          the backing OAuthService
+   */
+  public CachingOAuthService(OAuthService oAuthService) {
+    setoAuthService(oAuthService);
+  }
+
+  /**
+   * get the backing OAuthService
+   *
+   * @return the backing OAuthService
+   */
+  public OAuthService getoAuthService() {
+    return oAuthService;
+  }
+
+  /**
+   * set the backing OAuthService
+   *
+   * @param oAuthService
+   *          the backing OAuthService
+   */
+  public void setoAuthService(OAuthService oAuthService) {
+    this.oAuthService = oAuthService;
+    this.grantService = OAuthGrantServiceAdapter.adapt(oAuthService);
+  }
+
+  /**
+   * get maximum cached access tokens
+   *
+   * @return maximum cached access tokens
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * set maximum cached access tokens, default is 10000, changing this value
+   * clears the cache
+   *
+   * @param maxSize
+   *          maximum cached access tokens
+   */
+  public synchronized void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+    accessTokens = null;
+    refreshTokens = null;
+  }
+
+  /**
+   * get maximum time an access token stays in cache
+   *
+   * @return time to live in millisecond
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * set maximum time an access token stays in cache, default is 1 minute
+   *
+   * @param timeToLive
+   *          time to live in millisecond
+   */
+  public void setTimeToLive(long timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  /**
+   * get cache hit count
+   *
+   * @return cache hit count
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * get cache miss count
+   *
+   * @return cache miss count
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /**
+   * get cache hit ratio
+   *
+   * @return cache hit ratio between 0 and 1
+   */
+  public double getHitRatio() {
+    long hits = hitCount.sum();
+    long total = hits + missCount.sum();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * get count of access tokens evicted because the cache is full
+   *
+   * @return eviction count
+   */
+  public long getEvictionCount() {
+    return accessTokenCache().getEvictionCount();
+  }
+
+  /**
+   * get count of access tokens in cache, including expired ones not removed yet
+   *
+   * @return cached access token count
+   */
+  public int getSize() {
+    return accessTokenCache().size();
+  }
+
+  /**
+   * remove the access token from cache
+   *
+   * @param accessToken
+   *          access token
+   */
+  public void invalidate(String accessToken) {
+    if (accessToken != null)
+      accessTokenCache().remove(accessToken);
+  }
+
+  /**
+   * remove all access tokens from cache and reset statistics
+   */
+  public void invalidateAll() {
+    accessTokenCache().clear();
+    refreshTokenCache().clear();
+    hitCount.reset();
+    missCount.reset();
+  }
+
+  @Override
+  public boolean checkAccessToken(String accessToken, HttpServletRequest request) {
+    if (accessToken == null)
+      return oAuthService.checkAccessToken(accessToken, request);
+    LruCache<Long> cache = accessTokenCache();
+    Long expireAt = cache.get(accessToken);
+    if (expireAt != null) {
+      if (System.currentTimeMillis() < expireAt) {
+        hitCount.increment();
+        return true;
+      }
+      cache.remove(accessToken, expireAt);
+    }
+    missCount.increment();
+    long version = cache.version(accessToken);
+    if (!oAuthService.checkAccessToken(accessToken, request))
+      return false;
+    long expireIn = Math.min(timeToLive, oAuthService.getExpireIn(accessToken));
+    if (expireIn > 0)
+      cache.put(accessToken, System.currentTimeMillis() + expireIn, version);
+    return true;
+  }
+
+  @Override
+  public void addRefreshToken(String refreshToken, String accessToken) {
+    oAuthService.addRefreshToken(refreshToken, accessToken);
+    refreshTokenCache().put(refreshToken, accessToken);
+  }
+
+  @Override
+  public void refreshAccessToken(String accessToken, String refreshToken) {
+    oAuthService.refreshAccessToken(accessToken, refreshToken);
+    invalidateReplaced(refreshToken);
+  }
+
+  @Override
+  public ClientStatus authenticateClient(String clientId, String secret) {
+    return grantService.authenticateClient(clientId, secret);
+  }
+
+  @Override
+  public OAuthGrant exchangeAuthCode(String clientId, String authCode, String accessToken,
+      String refreshToken) {
+    return remember(grantService.exchangeAuthCode(clientId, authCode, accessToken,
+        refreshToken));
+  }
+
+  @Override
+  public OAuthGrant exchangeRefreshToken(String clientId, String refreshToken,
+      String accessToken, String newRefreshToken) {
+    OAuthGrant grant = grantService.exchangeRefreshToken(clientId, refreshToken, accessToken,
+        newRefreshToken);
+    if (grant != null)
+      invalidateReplaced(refreshToken);
+    return remember(grant);
+  }
+
+  @Override
+  public OAuthGrant issueTokens(String authCode, String clientId, Set<String> scopes,
+      String accessToken, String refreshToken) {
+    return remember(grantService.issueTokens(authCode, clientId, scopes, accessToken,
+        refreshToken));
+  }
+
+  @Override
+  public OAuthGrant issueClientToken(String clientId, Set<String> scopes, String accessToken) {
+    return grantService.issueClientToken(clientId, scopes, accessToken);
+  }
+
+  @Override
+  public String checkClientScopes(String clientId, Set<String> scopes) {
+    return grantService.checkClientScopes(clientId, scopes);
+  }
+
+  @Override
+  public boolean checkClient(String clientId) {
+    return oAuthService.checkClient(clientId);
+  }
+
+  @Override
+  public boolean checkClient(String clientId, String secret) {
+    return oAuthService.checkClient(clientId, secret);
+  }
+
+  @Override
+  public boolean scopeRequired(String clientId) {
+    return oAuthService.scopeRequired(clientId);
+  }
+
+  @Override
+  public boolean checkScope(String clientId, String scope) {
+    return oAuthService.checkScope(clientId, scope);
+  }
+
+  @Override
+  public String checkScopes(String clientId, Set<String> scopes) {
+    return oAuthService.checkScopes(clientId, scopes);
+  }
+
+  @Override
+  public String confirmationURI(String clientId, Set<String> scopes) {
+    return oAuthService.confirmationURI(clientId, scopes);
+  }
+
+  @Override
+  public void addAuthCode(String authCode, String clientId, Set<String> scopes) {
+    oAuthService.addAuthCode(authCode, clientId, scopes);
+  }
+
+  @Override
+  public boolean checkAuthCode(String authCode, String clientId) {
+    return oAuthService.checkAuthCode(authCode, clientId);
+  }
+
+  @Override
+  public void addAcessToken(String accessToken, String authCode) {
+    oAuthService.addAcessToken(accessToken, authCode);
+  }
+
+  @Override
+  public String getClientId(String accessToken) {
+    return oAuthService.getClientId(accessToken);
+  }
+
+  @Override
+  public Set<String> getScopes(String accessToken) {
+    return oAuthService.getScopes(accessToken);
+  }
+
+  @Override
+  public Set<String> getAuthCodeScopes(String authCode, String clientId) {
+    return grantService.getAuthCodeScopes(authCode, clientId);
+  }
+
+  @Override
+  public Set<String> getRefreshTokenScopes(String refreshToken, String clientId) {
+    return grantService.getRefreshTokenScopes(refreshToken, clientId);
+  }
+
+  @Override
+  public boolean clientTokenSupported() {
+    return oAuthService.clientTokenSupported();
+  }
+
+  @Override
+  public void addClientToken(String accessToken, String clientId, Set<String> scopes) {
+    oAuthService.addClientToken(accessToken, clientId, scopes);
+  }
+
+  @Override
+  public long getExpireIn(String accessToken) {
+    return oAuthService.getExpireIn(accessToken);
+  }
+
+  @Override
+  public boolean refreshTokenSupported() {
+    return oAuthService.refreshTokenSupported();
+  }
+
+  @Override
+  public boolean checkRefreshToken(String refreshToken, String clientId) {
+    return oAuthService.checkRefreshToken(refreshToken, clientId);
+  }
+
+  /**
+   * remember the access token of the refresh token in grant
+   */
+  private OAuthGrant remember(OAuthGrant grant) {
+    if (grant != null && grant.getRefreshToken() != null)
+      refreshTokenCache().put(grant.getRefreshToken(), grant.getAccessToken());
+    return grant;
+  }
+
+  /**
+   * remove the access token replaced by refreshing from cache
+   */
+  private void invalidateReplaced(String refreshToken) {
+    String replaced = refreshTokenCache().remove(refreshToken);
+    if (replaced != null)
+      accessTokenCache().remove(replaced);
+  }
+
+  private LruCache<Long> accessTokenCache() {
+    LruCache<Long> cache = accessTokens;
+    if (cache == null) {
+      synchronized (this) {
+        if (accessTokens == null)
+          accessTokens = new LruCache<Long>(maxSize);
+        cache = accessTokens;
+      }
+    }
+    return cache;
+  }
+
+  private LruCache<String> refreshTokenCache() {
+    LruCache<String> cache = refreshTokens;
+    if (cache == null) {
+      synchronized (this) {
+        if (refreshTokens == null)
+          refreshTokens = new LruCache<String>(maxSize);
+        cache = refreshTokens;
+      }
+    }
+    return cache;
+  }
+}
@@ -0,0 +1,190 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Cache of verified client secrets for {@link TokenFilter}, so the repeat token
+ * requests of the same client skip the expensive secret hashing of
+ * OAuthService. Only successful authentications are cached, each entry holds a
+ * salted SHA-256 digest of the secret instead of the secret itself, the digest
+ * of the request is compared in constant time, and the entry expires after
+ * {@link #getTimeToLive()}.
+ * </p>
+ * <p>
+ * add the cache in shiro.ini file like this:<br>
+ * [main]<br>
+ * clientAuthCache = win.zqxu.shiro.oltu.server.ClientAuthCache<br>
+ * clientAuthCache.timeToLive = 300000<br>
+ * oTokenFilter.clientAuthCache = $clientAuthCache<br>
+ * </p>
+ * Note that the application should call {@link #invalidate(String)} when the
+ * secret of a client changed or the client removed, otherwise the old secret
+ * is accepted until the entry expires.
+ * 
+ * @author zqxu
+ */
+public class ClientAuthCache {
+  private final byte[] salt = new byte[32];
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private volatile LruCache<Entry> cache;
+  private long timeToLive = 300000L;
+  private int maxSize = 1000;
+
+  public ClientAuthCache() {
+    new SecureRandom().nextBytes(salt);
+  }
+
+  /**
+   * get time to live of cached authentication
+   * 
+   * @return time to live in millisecond
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * set time to live of cached authentication, default is 5 minutes
+   * 
+   * @param timeToLive
+   *          time to live in millisecond
+   */
+  public void setTimeToLive(long timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  /**
+   * get maximum cached clients
+   * 
+   * @return maximum cached clients
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * set maximum cached clients, least recently used clients are evicted,
+   * default is 1000
+   * 
+   * @param maxSize
+   *          maximum cached clients
+   */
+  public synchronized void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+    this.cache = null;
+  }
+
+  /**
+   * get count of authentications answered by the cache
+   * 
+   * @return hit count
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * get count of authentications passed to the grant service
+   * 
+   * @return miss count
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /**
+   * authenticate client by the cache, or by the grant service if not cached
+   * or the secret not matched, cache the result if the client is valid. A
+   * failed authentication does not remove the cached entry, so wrong secrets
+   * can not force the valid client back to the slow path.
+   * 
+   * @param grantService
+   *          grant service to authenticate uncached client
+   * @param clientId
+   *          client id
+   * @param secret
+   *          client secret
+   * @return client authentication result
+   */
+  public OAuthGrantService.ClientStatus authenticate(OAuthGrantService grantService,
+      String clientId, String secret) {
+    if (clientId == null || secret == null)
+      return grantService.authenticateClient(clientId, secret);
+    LruCache<Entry> cache = cache();
+    byte[] digest = digest(clientId, secret);
+    Entry entry = cache.get(clientId);
+    if (entry != null && entry.expireAt > System.currentTimeMillis()
+        && MessageDigest.isEqual(entry.digest, digest)) {
+      hitCount.increment();
+      return OAuthGrantService.ClientStatus.VALID;
+    }
+    missCount.increment();
+    OAuthGrantService.ClientStatus status = //
+        grantService.authenticateClient(clientId, secret);
+    if (status == OAuthGrantService.ClientStatus.VALID)
+      cache.put(clientId, new Entry(digest, System.currentTimeMillis() + timeToLive));
+    return status;
+  }
+
+  /**
+   * remove cached authentication of the client, should be called when the
+   * secret of the client changed or the client removed
+   * 
+   * @param clientId
+   *          client id
+   */
+  public void invalidate(String clientId) {
+    LruCache<Entry> cache = this.cache;
+    if (cache != null)
+      cache.remove(clientId);
+  }
+
+  /**
+   * remove all cached authentications
+   */
+  public void clear() {
+    LruCache<Entry> cache = this.cache;
+    if (cache != null)
+      cache.clear();
+  }
+
+  private LruCache<Entry> cache() {
+    LruCache<Entry> cache = this.cache;
+    if (cache == null) {
+      synchronized (this) {
+        if (this.cache == null)
+          this.cache = new LruCache<Entry>(maxSize);
+        cache = this.cache;
+      }
+    }
+    return cache;
+  }
+
+  private byte[] digest(String clientId, String secret) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(salt);
+      md.update(clientId.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+      return md.digest(secret.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static final class Entry {
+    private final byte[] digest;
+    private final long expireAt;
+
+    Entry(byte[] digest, long expireAt) {
+      this.digest = digest;
+      this.expireAt = expireAt;
+    }
+  }
+}
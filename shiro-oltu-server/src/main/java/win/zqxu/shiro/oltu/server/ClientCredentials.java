@@ -0,0 +1,64 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.oltu.oauth2.common.OAuth;
+import org.apache.oltu.oauth2.common.utils.OAuthUtils;
+
+/**
+ * Client id and secret from HTTP basic authorization header or request
+ * parameters, for internal use.
+ * 
+ * @author zqxu
+ */
+final class ClientCredentials {
+  private static final String BASIC_PREFIX = "Basic ";
+  public final String clientId;
+  public final String secret;
+
+  private ClientCredentials(String clientId, String secret) {
+    this.clientId = clientId;
+    this.secret = secret;
+  }
+
+  /**
+   * read client credentials from request
+   * 
+   * @param request
+   *          HTTP request
+   * @return client credentials, or null if no client id in request
+   */
+  public static ClientCredentials from(HttpServletRequest request) {
+    String header = request.getHeader(OAuth.HeaderType.AUTHORIZATION);
+    if (header != null && header.regionMatches(true, 0, BASIC_PREFIX, 0, BASIC_PREFIX.length())) {
+      try {
+        String decoded = new String(
+            Base64.getDecoder().decode(header.substring(BASIC_PREFIX.length()).trim()),
+            StandardCharsets.UTF_8);
+        int index = decoded.indexOf(':');
+        if (index > 0)
+          return new ClientCredentials(urlDecode(decoded.substring(0, index)),
+              urlDecode(decoded.substring(index + 1)));
+      } catch (IllegalArgumentException ex) {
+        return null; // malformed header
+      }
+    }
+    String clientId = request.getParameter(OAuth.OAUTH_CLIENT_ID);
+    if (OAuthUtils.isEmpty(clientId))
+      return null;
+    return new ClientCredentials(clientId, request.getParameter(OAuth.OAUTH_CLIENT_SECRET));
+  }
+
+  private static String urlDecode(String value) {
+    try {
+      return URLDecoder.decode(value, "UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.oltu.oauth2.common.utils.OAuthUtils;
+
+/**
+ * Encode saved authorization request into a signed, time-limited confirm key,
+ * for internal use. The key carries client id, state, redirect URI and scopes
+ * under a HMAC-SHA256 signature which also covers the user principal, so the
+ * key can not be used by other users. Each key is accepted once, the decoded
+ * keys are kept until they expire, so a key can not be replayed to the same
+ * server.
+ * 
+ * @author zqxu
+ */
+final class ConfirmKeyCodec {
+  private static final byte VERSION = 2;
+  private final HmacKey key;
+  private final long expireIn;
+  private final RevocationList usedKeys = new RevocationList();
+
+  ConfirmKeyCodec(byte[] secret, long expireIn) {
+    if (secret.length < HmacKey.MIN_SECRET_LENGTH)
+      throw new IllegalArgumentException("confirm key secret must be at least 32 bytes");
+    this.key = new HmacKey(secret);
+    this.expireIn = expireIn;
+    usedKeys.setDefaultExpireIn(expireIn);
+    usedKeys.setGenerationSpan(Math.max(1000L, expireIn / 8));
+  }
+
+  String encode(String principal, AuthorizeFilter.SavedOAuthRequest request) {
+    byte[][] fields = { bytes(request.clientId), bytes(request.state),
+        bytes(request.redirectURI),
+        bytes(request.scopes == null ? null : OAuthUtils.encodeScopes(request.scopes)) };
+    int length = 1 + 16;
+    for (byte[] field : fields)
+      length += 2 + (field == null ? 0 : field.length);
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    payload.put(VERSION).putLong(System.currentTimeMillis() + expireIn);
+    payload.putLong(ThreadLocalRandom.current().nextLong());
+    for (byte[] field : fields) {
+      if (field == null) {
+        payload.putShort((short) -1);
+      } else {
+        if (field.length >= 0xFFFF)
+          throw new IllegalArgumentException("authorization request too long");
+        payload.putShort((short) field.length).put(field);
+      }
+    }
+    byte[] content = payload.array();
+    return HmacKey.encode(content) + '.' + HmacKey.encode(sign(content, principal));
+  }
+
+  /**
+   * @return the saved request, or null if the key is invalid, expired, not
+   *         issued to the principal or already used
+   */
+  AuthorizeFilter.SavedOAuthRequest decode(String principal, String confirmKey) {
+    int index = confirmKey.indexOf('.');
+    if (index <= 0)
+      return null;
+    try {
+      byte[] content = HmacKey.decode(confirmKey.substring(0, index));
+      byte[] signature = HmacKey.decode(confirmKey.substring(index + 1));
+      if (!MessageDigest.isEqual(signature, sign(content, principal)))
+        return null;
+      ByteBuffer payload = ByteBuffer.wrap(content);
+      if (payload.get() != VERSION)
+        return null;
+      long expireAt = payload.getLong();
+      if (!usedKeys.revokeOnce(confirmKey, expireAt))
+        return null; // expired or replayed
+      payload.getLong(); // skip nonce
+      String clientId = string(payload);
+      String state = string(payload);
+      String redirectURI = string(payload);
+      String scope = string(payload);
+      if (payload.hasRemaining())
+        return null; // trailing bytes not written by encode
+      return new AuthorizeFilter.SavedOAuthRequest(confirmKey, clientId, state,
+          scope == null ? null : OAuthUtils.decodeScopes(scope), redirectURI);
+    } catch (IllegalArgumentException | BufferUnderflowException ex) {
+      return null; // malformed key
+    }
+  }
+
+  /**
+   * MAC of the length prefixed principal followed by the content, the prefix
+   * keeps the boundary between them fixed
+   */
+  private byte[] sign(byte[] content, String principal) {
+    byte[] name = principal.getBytes(StandardCharsets.UTF_8);
+    byte[] length = ByteBuffer.allocate(4).putInt(name.length).array();
+    return key.sign(length, name, content);
+  }
+
+  private static byte[] bytes(String value) {
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(ByteBuffer payload) {
+    int length = payload.getShort() & 0xFFFF;
+    if (length == 0xFFFF)
+      return null;
+    byte[] value = new byte[length];
+    payload.get(value);
+    return new String(value, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,405 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.oltu.oauth2.common.OAuth;
+import org.apache.oltu.oauth2.common.message.types.GrantType;
+import org.apache.oltu.oauth2.common.message.types.ResponseType;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.subject.support.DelegatingSubject;
+import org.apache.shiro.web.servlet.AdviceFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up the server filters at init, for internal use. A fresh filter of the
+ * same type is configured like the source filter but with a no-op
+ * OAuthService, then synthetic requests of the issuance, validation and error
+ * paths are sent through it, so class loading, resource bundles, digests,
+ * secure random seeding and JIT compilation happen before the first real
+ * request. The shared OAuthService, rate limiter, revocation list, code store
+ * and metrics of the source filter are never touched.
+ * 
+ * @author zqxu
+ */
+final class FilterWarmer {
+  static final String CLIENT_ID = "warmup-client";
+  static final String CLIENT_SECRET = "warmup-secret";
+  static final String REDIRECT_URI = "http://localhost/warmup";
+  static final String AUTH_CODE = "warmup-code";
+  static final String REFRESH_TOKEN = "warmup-refresh";
+  static final String ACCESS_TOKEN = "warmup-token";
+  static final String INVALID_SCOPE = "warmup-invalid";
+  private static final Logger log = LoggerFactory.getLogger(FilterWarmer.class);
+  private static final String FORM = "application/x-www-form-urlencoded";
+  private static final FilterChain NO_CHAIN = new FilterChain() {
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) {
+    }
+  };
+
+  private FilterWarmer() {
+  }
+
+  /**
+   * warm up the token filter, the token signer and token generator of the
+   * source filter are used, client credentials grant is always enabled
+   * 
+   * @param source
+   *          the filter to warm up
+   * @param iterations
+   *          times of sending the synthetic requests
+   * @return elapsed time in millisecond
+   */
+  static long warmUp(TokenFilter source, int iterations) {
+    TokenFilter filter = new TokenFilter();
+    filter.setoAuthService(new NoopOAuthService());
+    filter.setTokenSigner(source.getTokenSigner());
+    filter.setTokenGenerator(source.getTokenGenerator());
+    filter.setClientAuthCache(new ClientAuthCache());
+    filter.setClientCredentials(true);
+    String authCode = GrantType.AUTHORIZATION_CODE.toString();
+    String refresh = GrantType.REFRESH_TOKEN.toString();
+    String client = GrantType.CLIENT_CREDENTIALS.toString();
+    String basic = "Basic " + Base64.getEncoder()
+        .encodeToString((CLIENT_ID + ":" + CLIENT_SECRET).getBytes(StandardCharsets.UTF_8));
+    List<HttpServletRequest> requests = new ArrayList<HttpServletRequest>();
+    requests.add(tokenRequest(null, OAuth.OAUTH_GRANT_TYPE, authCode, OAuth.OAUTH_CODE,
+        AUTH_CODE, OAuth.OAUTH_REDIRECT_URI, REDIRECT_URI, OAuth.OAUTH_CLIENT_ID, CLIENT_ID,
+        OAuth.OAUTH_CLIENT_SECRET, CLIENT_SECRET));
+    requests.add(tokenRequest(basic, OAuth.OAUTH_GRANT_TYPE, refresh, OAuth.OAUTH_REFRESH_TOKEN,
+        REFRESH_TOKEN));
+    requests.add(tokenRequest(basic, OAuth.OAUTH_GRANT_TYPE, client, OAuth.OAUTH_SCOPE, "read"));
+    // error responses
+    requests.add(tokenRequest(basic, OAuth.OAUTH_GRANT_TYPE, authCode, OAuth.OAUTH_CODE,
+        "invalid", OAuth.OAUTH_REDIRECT_URI, REDIRECT_URI));
+    requests.add(tokenRequest(basic, OAuth.OAUTH_GRANT_TYPE, client, OAuth.OAUTH_SCOPE,
+        INVALID_SCOPE));
+    requests.add(tokenRequest(basic, OAuth.OAUTH_GRANT_TYPE, GrantType.PASSWORD.toString(),
+        OAuth.OAUTH_USERNAME, "user", OAuth.OAUTH_PASSWORD, "password"));
+    requests.add(tokenRequest(null, OAuth.OAUTH_GRANT_TYPE, refresh, OAuth.OAUTH_REFRESH_TOKEN,
+        REFRESH_TOKEN, OAuth.OAUTH_CLIENT_ID, CLIENT_ID, OAuth.OAUTH_CLIENT_SECRET, "invalid"));
+    requests.add(tokenRequest(null, OAuth.OAUTH_GRANT_TYPE, refresh, OAuth.OAUTH_REFRESH_TOKEN,
+        REFRESH_TOKEN, OAuth.OAUTH_CLIENT_ID, "invalid", OAuth.OAUTH_CLIENT_SECRET, "invalid"));
+    requests.add(tokenRequest(basic, OAuth.OAUTH_CODE, AUTH_CODE));
+    return run("token", filter, requests, iterations);
+  }
+
+  /**
+   * warm up the authorize filter, the token generator of the source filter is
+   * used, the filter works in stateless mode with a random confirm key secret,
+   * so no session is needed
+   * 
+   * @param source
+   *          the filter to warm up
+   * @param iterations
+   *          times of sending the synthetic requests
+   * @return elapsed time in millisecond
+   */
+  static long warmUp(AuthorizeFilter source, int iterations) {
+    AuthorizeFilter filter = new AuthorizeFilter();
+    filter.setoAuthService(new NoopOAuthService());
+    filter.setTokenGenerator(source.getTokenGenerator());
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    filter.setConfirmKeySecret(Base64.getEncoder().encodeToString(secret));
+    String code = ResponseType.CODE.toString();
+    List<HttpServletRequest> requests = new ArrayList<HttpServletRequest>();
+    requests.add(request("GET", "/oauth/authorize", null, OAuth.OAUTH_RESPONSE_TYPE, code,
+        OAuth.OAUTH_CLIENT_ID, CLIENT_ID, OAuth.OAUTH_REDIRECT_URI, REDIRECT_URI,
+        OAuth.OAUTH_SCOPE, "read", OAuth.OAUTH_STATE, "state"));
+    // error responses
+    requests.add(request("GET", "/oauth/authorize", null, OAuth.OAUTH_RESPONSE_TYPE, code,
+        OAuth.OAUTH_CLIENT_ID, "invalid", OAuth.OAUTH_REDIRECT_URI, REDIRECT_URI));
+    requests.add(request("GET", "/oauth/authorize", null, OAuth.OAUTH_RESPONSE_TYPE, code,
+        OAuth.OAUTH_CLIENT_ID, CLIENT_ID, OAuth.OAUTH_REDIRECT_URI, REDIRECT_URI,
+        OAuth.OAUTH_SCOPE, INVALID_SCOPE));
+    requests.add(request("GET", "/oauth/authorize", null, OAuth.OAUTH_RESPONSE_TYPE, "token",
+        OAuth.OAUTH_CLIENT_ID, CLIENT_ID));
+    requests.add(request("GET", "/oauth/authorize", null, OAuth.OAUTH_CLIENT_ID, CLIENT_ID));
+    return run("authorize", filter, requests, iterations);
+  }
+
+  /**
+   * warm up the resource filter, the token signer of the source filter is
+   * used, a signed token is verified if the signer present
+   * 
+   * @param source
+   *          the filter to warm up
+   * @param iterations
+   *          times of sending the synthetic requests
+   * @return elapsed time in millisecond
+   */
+  static long warmUp(ResourceFilter source, int iterations) {
+    ResourceFilter filter = new ResourceFilter();
+    filter.setoAuthService(new NoopOAuthService());
+    TokenSigner tokenSigner = source.getTokenSigner();
+    filter.setTokenSigner(tokenSigner);
+    List<HttpServletRequest> requests = new ArrayList<HttpServletRequest>();
+    requests.add(request("GET", "/resource", "Bearer " + ACCESS_TOKEN));
+    if (tokenSigner != null) {
+      String signed = tokenSigner.sign(CLIENT_ID, Collections.singleton("read"));
+      requests.add(request("GET", "/resource", "Bearer " + signed));
+    }
+    // error responses
+    requests.add(request("GET", "/resource", "Bearer invalid"));
+    requests.add(request("GET", "/resource", null));
+    return run("resource", filter, requests, iterations);
+  }
+
+  /**
+   * send the requests through the filter as an authenticated subject without
+   * session, the filter has no metrics, so the error responses are not counted
+   */
+  private static long run(String name, final AdviceFilter filter,
+      final List<HttpServletRequest> requests, final int iterations) {
+    long start = System.nanoTime();
+    final HttpServletResponse response = response();
+    Subject subject = new DelegatingSubject(new SimplePrincipalCollection(CLIENT_ID, name), true,
+        null, null, false, new DefaultSecurityManager());
+    try {
+      subject.execute(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int i = 0; i < iterations; i++) {
+            for (HttpServletRequest request : requests)
+              filter.doFilter(request, response, NO_CHAIN);
+          }
+          return null;
+        }
+      });
+    } catch (Exception ex) {
+      log.warn(name + " filter warm up failed", ex);
+    } finally {
+      filter.destroy();
+    }
+    long elapsed = (System.nanoTime() - start) / 1000000L;
+    log.info("{} filter warmed up in {} ms with {} requests", name, elapsed,
+        iterations * requests.size());
+    return elapsed;
+  }
+
+  private static HttpServletRequest tokenRequest(String authorization, String... parameters) {
+    return request("POST", "/oauth/token", authorization, parameters);
+  }
+
+  /**
+   * create a request with parameters in name and value pairs, the attributes
+   * are kept in the request, other methods return null, false or 0
+   */
+  private static HttpServletRequest request(final String method, final String uri,
+      final String authorization, String... parameters) {
+    final Map<String, String[]> parameterMap = new HashMap<String, String[]>();
+    for (int i = 0; i < parameters.length; i += 2)
+      parameterMap.put(parameters[i], new String[] { parameters[i + 1] });
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    return proxy(HttpServletRequest.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) {
+        switch (m.getName()) {
+        case "getMethod":
+          return method;
+        case "getParameter":
+          String[] values = parameterMap.get(args[0]);
+          return values == null ? null : values[0];
+        case "getParameterValues":
+          return parameterMap.get(args[0]);
+        case "getParameterMap":
+          return parameterMap;
+        case "getParameterNames":
+          return Collections.enumeration(parameterMap.keySet());
+        case "getHeader":
+          return header((String) args[0]);
+        case "getHeaders":
+          String header = header((String) args[0]);
+          return Collections.enumeration(header == null ? Collections.<String> emptyList()
+              : Collections.singletonList(header));
+        case "getContentType":
+          return header(OAuth.HeaderType.CONTENT_TYPE);
+        case "getAttribute":
+          return attributes.get(args[0]);
+        case "setAttribute":
+          attributes.put((String) args[0], args[1]);
+          return null;
+        case "removeAttribute":
+          attributes.remove(args[0]);
+          return null;
+        case "getLocale":
+          return Locale.getDefault();
+        case "getCharacterEncoding":
+          return "UTF-8";
+        case "getRequestURI":
+        case "getServletPath":
+          return uri;
+        case "getRequestURL":
+          return new StringBuffer("http://localhost").append(uri);
+        case "getContextPath":
+          return "";
+        case "getRemoteHost":
+        case "getRemoteAddr":
+          return "127.0.0.1";
+        default:
+          return defaultValue(proxy, m, args);
+        }
+      }
+
+      private String header(String name) {
+        if (OAuth.HeaderType.AUTHORIZATION.equalsIgnoreCase(name))
+          return authorization;
+        if (OAuth.HeaderType.CONTENT_TYPE.equalsIgnoreCase(name))
+          return method.equals("POST") ? FORM : null;
+        return null;
+      }
+    });
+  }
+
+  /**
+   * create a response discards everything written
+   */
+  private static HttpServletResponse response() {
+    final ServletOutputStream output = new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    };
+    return proxy(HttpServletResponse.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) {
+        switch (m.getName()) {
+        case "getOutputStream":
+          return output;
+        case "encodeRedirectURL":
+        case "encodeURL":
+          return args[0];
+        default:
+          return defaultValue(proxy, m, args);
+        }
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(FilterWarmer.class.getClassLoader(),
+        new Class<?>[] { type }, handler);
+  }
+
+  private static Object defaultValue(Object proxy, Method m, Object[] args) {
+    if (m.getName().equals("equals"))
+      return proxy == args[0];
+    if (m.getName().equals("hashCode"))
+      return System.identityHashCode(proxy);
+    if (m.getName().equals("toString"))
+      return "warm up " + m.getDeclaringClass().getSimpleName();
+    Class<?> type = m.getReturnType();
+    if (type == boolean.class)
+      return false;
+    if (type == int.class)
+      return 0;
+    if (type == long.class)
+      return 0L;
+    return null;
+  }
+
+  /**
+   * OAuthService accepts only the warm up client, codes and tokens, and stores
+   * nothing
+   */
+  private static final class NoopOAuthService implements OAuthService {
+    @Override
+    public boolean checkClient(String clientId) {
+      return CLIENT_ID.equals(clientId);
+    }
+
+    @Override
+    public boolean checkClient(String clientId, String secret) {
+      return CLIENT_ID.equals(clientId) && CLIENT_SECRET.equals(secret);
+    }
+
+    @Override
+    public boolean scopeRequired(String clientId) {
+      return false;
+    }
+
+    @Override
+    public boolean checkScope(String clientId, String scope) {
+      return !INVALID_SCOPE.equals(scope);
+    }
+
+    @Override
+    public String confirmationURI(String clientId, Set<String> scopes) {
+      return null;
+    }
+
+    @Override
+    public void addAuthCode(String authCode, String clientId, Set<String> scopes) {
+    }
+
+    @Override
+    public boolean checkAuthCode(String authCode, String clientId) {
+      return AUTH_CODE.equals(authCode);
+    }
+
+    @Override
+    public void addAcessToken(String accessToken, String authCode) {
+    }
+
+    @Override
+    public void addClientToken(String accessToken, String clientId, Set<String> scopes) {
+    }
+
+    @Override
+    public long getExpireIn(String accessToken) {
+      return 3600000L;
+    }
+
+    @Override
+    public boolean refreshTokenSupported() {
+      return true;
+    }
+
+    @Override
+    public void addRefreshToken(String refreshToken, String accessToken) {
+    }
+
+    @Override
+    public boolean checkRefreshToken(String refreshToken, String clientId) {
+      return REFRESH_TOKEN.equals(refreshToken);
+    }
+
+    @Override
+    public void refreshAccessToken(String accessToken, String refreshToken) {
+    }
+
+    @Override
+    public boolean checkAccessToken(String accessToken, HttpServletRequest request) {
+      return ACCESS_TOKEN.equals(accessToken);
+    }
+  }
+}
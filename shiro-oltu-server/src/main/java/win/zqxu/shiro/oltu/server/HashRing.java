@@ -0,0 +1,92 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable consistent hash ring of partition nodes, for internal use. Each
+ * node is placed on the ring many times as virtual nodes, a token belongs to
+ * the first distinct nodes found clockwise from the hash of the token.
+ *
+ * @author zqxu
+ */
+final class HashRing {
+  private final long[] points;
+  private final String[] owners;
+  private final int nodeCount;
+
+  /**
+   * create ring of the nodes
+   *
+   * @param nodes
+   *          node names, duplicates are ignored
+   * @param virtualNodes
+   *          virtual nodes of each node
+   */
+  public HashRing(List<String> nodes, int virtualNodes) {
+    List<String> distinct = new ArrayList<String>();
+    for (String node : nodes)
+      if (!distinct.contains(node))
+        distinct.add(node);
+    nodeCount = distinct.size();
+    long[][] entries = new long[nodeCount * virtualNodes][];
+    int index = 0;
+    for (int n = 0; n < nodeCount; n++)
+      for (int v = 0; v < virtualNodes; v++)
+        entries[index++] = new long[] { hash(distinct.get(n) + '#' + v), n };
+    Arrays.sort(entries, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return Long.compare(a[0], b[0]);
+      }
+    });
+    points = new long[entries.length];
+    owners = new String[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      points[i] = entries[i][0];
+      owners[i] = distinct.get((int) entries[i][1]);
+    }
+  }
+
+  /**
+   * get owner nodes of the token, the first one is the primary
+   *
+   * @param token
+   *          the token
+   * @param count
+   *          wanted count of owners
+   * @return distinct owner nodes, at most count and at most all nodes
+   */
+  public List<String> owners(String token, int count) {
+    count = Math.min(count, nodeCount);
+    List<String> result = new ArrayList<String>(count);
+    if (count <= 0)
+      return result;
+    int index = Arrays.binarySearch(points, hash(token));
+    if (index < 0)
+      index = -index - 1;
+    for (int i = 0; result.size() < count && i < points.length; i++) {
+      String owner = owners[(index + i) % points.length];
+      if (!result.contains(owner))
+        result.add(owner);
+    }
+    return result;
+  }
+
+  /**
+   * 64 bit FNV-1a hash with a final avalanche mix
+   */
+  static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,75 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC-SHA256 key with a per-thread MAC instance, and the base64url encoding
+ * of signed tokens, for internal use.
+ *
+ * @author zqxu
+ */
+final class HmacKey {
+  static final int MIN_SECRET_LENGTH = 32;
+  static final int MAC_LENGTH = 32;
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+  private final SecretKeySpec secret;
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+  /**
+   * @throws IllegalArgumentException
+   *           if the secret shorter than 32 bytes
+   */
+  HmacKey(byte[] secret) {
+    if (secret.length < MIN_SECRET_LENGTH)
+      throw new IllegalArgumentException("secret must be at least 32 bytes");
+    this.secret = new SecretKeySpec(secret, ALGORITHM);
+  }
+
+  /**
+   * @return MAC of the parts concatenated
+   */
+  byte[] sign(byte[]... parts) {
+    Mac mac = macs.get();
+    try {
+      if (mac == null) {
+        mac = Mac.getInstance(ALGORITHM);
+        mac.init(secret);
+        macs.set(mac);
+      }
+      for (byte[] part : parts)
+        mac.update(part);
+      return mac.doFinal();
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * compare the signature with MAC of the parts in constant time
+   */
+  boolean verify(byte[] signature, byte[]... parts) {
+    return MessageDigest.isEqual(signature, sign(parts));
+  }
+
+  /**
+   * @return base64url without padding
+   */
+  static String encode(byte[] data) {
+    return ENCODER.encodeToString(data);
+  }
+
+  /**
+   * @throws IllegalArgumentException
+   *           if the text is not base64url
+   */
+  static byte[] decode(String text) {
+    return DECODER.decode(text);
+  }
+}
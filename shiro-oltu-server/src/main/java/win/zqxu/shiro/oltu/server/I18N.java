@@ -2,18 +2,94 @@ package win.zqxu.shiro.oltu.server;
 
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Localized messages, the resource bundle is resolved on the first message
+ * read and the messages are cached per resolved bundle locale, for internal
+ * use. The requested locales are kept in a bounded LRU cache, so rarely used
+ * locales are evicted instead of resolving the bundle on every request.
+ * 
+ * @author zqxu
+ */
 final class I18N {
   private static final String BASE_NAME = I18N.class.getName().toLowerCase();
-  private ResourceBundle bundle;
+  private static final int MAX_CACHED_LOCALES = 256;
+  private static final LruCache<I18N> requested = new LruCache<I18N>(MAX_CACHED_LOCALES);
+  private static final ConcurrentMap<Locale, I18N> resolved = //
+      new ConcurrentHashMap<Locale, I18N>();
+  private final Locale locale;
+  private final ConcurrentMap<String, String> messages;
+  private volatile I18N target;
 
-  public I18N(Locale locale) {
+  private I18N(Locale locale, ConcurrentMap<String, String> messages) {
+    this.locale = locale;
+    this.messages = messages;
+  }
+
+  /**
+   * get messages for the locale, this method does not load resource bundle
+   * 
+   * @param locale
+   *          the locale, null for default locale
+   * @return messages for the locale
+   */
+  public static I18N of(Locale locale) {
     if (locale == null)
       locale = Locale.getDefault();
-    bundle = ResourceBundle.getBundle(BASE_NAME, locale);
+    String key = locale.toString();
+    I18N i18n = requested.get(key);
+    if (i18n == null) {
+      i18n = new I18N(locale, null);
+      requested.put(key, i18n);
+    }
+    return i18n;
+  }
+
+  /**
+   * resolve resource bundles and load all messages for the locales
+   * 
+   * @param locales
+   *          locales separated by comma, such as en,zh_CN
+   */
+  public static void preload(String locales) {
+    for (String tag : locales.split(",")) {
+      tag = tag.trim();
+      if (tag.isEmpty())
+        continue;
+      I18N i18n = of(Locale.forLanguageTag(tag.replace('_', '-'))).resolve();
+      ResourceBundle bundle = ResourceBundle.getBundle(BASE_NAME, i18n.locale);
+      for (String key : bundle.keySet())
+        i18n.getString(key);
+    }
   }
 
   public String getString(String key) {
-    return bundle.getString(key);
+    I18N i18n = resolve();
+    String message = i18n.messages.get(key);
+    if (message == null) {
+      message = ResourceBundle.getBundle(BASE_NAME, i18n.locale).getString(key);
+      i18n.messages.putIfAbsent(key, message);
+    }
+    return message;
+  }
+
+  /**
+   * locales resolved to the same resource bundle share the message cache
+   */
+  private I18N resolve() {
+    I18N i18n = target;
+    if (i18n == null) {
+      Locale bundleLocale = ResourceBundle.getBundle(BASE_NAME, locale).getLocale();
+      i18n = resolved.get(bundleLocale);
+      if (i18n == null) {
+        resolved.putIfAbsent(bundleLocale,
+            new I18N(bundleLocale, new ConcurrentHashMap<String, String>()));
+        i18n = resolved.get(bundleLocale);
+      }
+      target = i18n;
+    }
+    return i18n;
   }
 }
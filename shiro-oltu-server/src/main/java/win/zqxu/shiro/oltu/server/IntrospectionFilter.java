@@ -0,0 +1,287 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Arrays;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.oltu.oauth2.common.OAuth;
+import org.apache.oltu.oauth2.common.error.OAuthError;
+import org.apache.oltu.oauth2.common.utils.OAuthUtils;
+import org.apache.shiro.web.servlet.AdviceFilter;
+
+/**
+ * <p>
+ * A SHIRO filter for OAuth2 token introspection (RFC 7662), so the resource
+ * server can validate access token without embedding OAuthService. This
+ * filter need a custom OAuthService object, set through oAuthService property.
+ * </p>
+ * <p>
+ * The resource server POST the access token in <b>token</b> parameter, and
+ * authenticate itself as a client through HTTP basic authorization or
+ * <b>client_id</b> and <b>client_secret</b> parameters. The response contains
+ * <b>active</b> and <b>exp</b>, and <b>client_id</b> and <b>scope</b> if the
+ * token is signed by the token signer or the OAuthService supports
+ * {@link OAuthService#getClientId(String)} and
+ * {@link OAuthService#getScopes(String)}.
+ * </p>
+ * <p>
+ * To validate many tokens in one call, POST multiple <b>token</b> parameters,
+ * the response is an object with a <b>tokens</b> array contains the result of
+ * each token in request order. The tokens need OAuthService check are passed
+ * to {@link OAuthService#introspectAccessTokens(String[], HttpServletRequest)}
+ * in one call.
+ * </p>
+ * <p>
+ * add this filter in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthService = &lt;custom oAuthService class&gt;<br>
+ * oIntrospectionFilter = win.zqxu.shiro.oltu.server.IntrospectionFilter<br>
+ * oIntrospectionFilter.oAuthService = $oAuthService<br>
+ * <br>
+ * [urls]<br>
+ * &#47;oauth&#47;introspect = oIntrospectionFilter
+ * </p>
+ * Note that the introspection filter should access by SHIRO anonymous, the
+ * HTTP request passed to OAuthService.checkAccessToken is the introspection
+ * request.
+ * 
+ * @author zqxu
+ */
+public class IntrospectionFilter extends AdviceFilter {
+  private static final String TOKEN = "token";
+  private OAuthService oAuthService;
+  private OAuthGrantService grantService;
+  private TokenSigner tokenSigner;
+  private boolean checkRevocation;
+  private RevocationList revocationList;
+  private int maxBatchSize = 100;
+  private String locales;
+
+  public OAuthService getoAuthService() {
+    return oAuthService;
+  }
+
+  public void setoAuthService(OAuthService oAuthService) {
+    this.oAuthService = oAuthService;
+    this.grantService = OAuthGrantServiceAdapter.adapt(oAuthService);
+  }
+
+  /**
+   * get access token signer
+   * 
+   * @return access token signer
+   */
+  public TokenSigner getTokenSigner() {
+    return tokenSigner;
+  }
+
+  /**
+   * set access token signer, if set, signed access tokens are verified locally
+   * and the response contains client id and scope of the token.
+   * 
+   * @param tokenSigner
+   *          access token signer
+   */
+  public void setTokenSigner(TokenSigner tokenSigner) {
+    this.tokenSigner = tokenSigner;
+  }
+
+  /**
+   * whether verified signed access token still checked by OAuthService
+   * 
+   * @return true if signed access token still checked by OAuthService
+   */
+  public boolean isCheckRevocation() {
+    return checkRevocation;
+  }
+
+  /**
+   * set whether verified signed access token still checked by OAuthService,
+   * default is false
+   * 
+   * @param checkRevocation
+   *          true if signed access token still checked by OAuthService
+   */
+  public void setCheckRevocation(boolean checkRevocation) {
+    this.checkRevocation = checkRevocation;
+  }
+
+  /**
+   * get revocation list
+   * 
+   * @return revocation list
+   */
+  public RevocationList getRevocationList() {
+    return revocationList;
+  }
+
+  /**
+   * set revocation list, if set, revoked tokens are reported
+   * as inactive
+   * 
+   * @param revocationList
+   *          revocation list
+   */
+  public void setRevocationList(RevocationList revocationList) {
+    this.revocationList = revocationList;
+  }
+
+  /**
+   * get maximum tokens in one request
+   * 
+   * @return maximum tokens in one request
+   */
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * set maximum tokens in one request, default is 100
+   * 
+   * @param maxBatchSize
+   *          maximum tokens in one request
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * get locales of messages preloaded at filter init
+   * 
+   * @return locales separated by comma
+   */
+  public String getLocales() {
+    return locales;
+  }
+
+  /**
+   * set locales of messages preloaded at filter init
+   * 
+   * @param locales
+   *          locales separated by comma, such as en,zh_CN
+   */
+  public void setLocales(String locales) {
+    this.locales = locales;
+  }
+
+  /**
+   * preload messages of the configured locales
+   */
+  @Override
+  protected void onFilterConfigSet() throws Exception {
+    if (!OAuthUtils.isEmpty(locales))
+      I18N.preload(locales);
+  }
+
+  @Override
+  protected boolean preHandle(ServletRequest request, ServletResponse response) throws Exception {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+    I18N i18n = I18N.of(request.getLocale());
+    if (!OAuth.HttpMethod.POST.equals(httpRequest.getMethod()))
+      return ResponseUtils.writeError(httpResponse, HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+          OAuthError.TokenResponse.INVALID_REQUEST, i18n.getString("POST_REQUIRED"));
+    // authenticate the resource server
+    ClientCredentials credentials = ClientCredentials.from(httpRequest);
+    if (credentials == null)
+      return ResponseUtils.writeUnauthClient(httpResponse, i18n.getString("INVALID_CLIENT_ID"));
+    switch (grantService.authenticateClient(credentials.clientId, credentials.secret)) {
+    case INVALID_CLIENT:
+      return ResponseUtils.writeUnauthClient(httpResponse, i18n.getString("INVALID_CLIENT_ID"));
+    case UNAUTHORIZED_CLIENT:
+      return ResponseUtils.writeUnauthClient(httpResponse,
+          i18n.getString("INVALID_CLIENT_SECRET"));
+    default:
+      break;
+    }
+    // introspect the tokens
+    String[] tokens = httpRequest.getParameterValues(TOKEN);
+    if (tokens == null || tokens.length == 0 || OAuthUtils.isEmpty(tokens[0]))
+      return ResponseUtils.writeError(httpResponse, HttpServletResponse.SC_BAD_REQUEST,
+          OAuthError.TokenResponse.INVALID_REQUEST, i18n.getString("TOKEN_REQUIRED"));
+    if (tokens.length > maxBatchSize)
+      return ResponseUtils.writeError(httpResponse, HttpServletResponse.SC_BAD_REQUEST,
+          OAuthError.TokenResponse.INVALID_REQUEST, i18n.getString("TOO_MANY_TOKENS"));
+    TokenInfo[] infos = introspect(httpRequest, tokens);
+    long now = System.currentTimeMillis();
+    JsonWriter writer = JsonWriter.get();
+    if (tokens.length == 1) {
+      writeResult(infos[0], now, writer);
+    } else {
+      writer.beginObject().beginArray("tokens");
+      for (TokenInfo info : infos)
+        writeResult(info, now, writer);
+      writer.endArray().endObject();
+    }
+    return ResponseUtils.writeJson(httpResponse, HttpServletResponse.SC_OK, writer);
+  }
+
+  /**
+   * introspect the tokens, the signed tokens are verified locally, the others
+   * and the signed ones need revocation check are checked by OAuthService in
+   * one call
+   * 
+   * @param request
+   *          HTTP request
+   * @param tokens
+   *          the tokens
+   * @return information of each token in order, the element is null if the
+   *         token is not active
+   */
+  protected TokenInfo[] introspect(HttpServletRequest request, String[] tokens) {
+    TokenInfo[] infos = new TokenInfo[tokens.length];
+    String[] checked = new String[tokens.length];
+    int[] positions = new int[tokens.length];
+    int count = 0;
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < tokens.length; i++) {
+      String token = tokens[i];
+      if (OAuthUtils.isEmpty(token)
+          || revocationList != null && revocationList.isRevoked(token))
+        continue;
+      if (tokenSigner != null && tokenSigner.isSigned(token)) {
+        SignedToken signed = tokenSigner.verify(token);
+        if (signed == null)
+          continue;
+        infos[i] = new TokenInfo(signed.getClientId(), signed.getScopes(),
+            signed.getExpireAt() - now);
+        if (!checkRevocation)
+          continue;
+      }
+      checked[count] = token;
+      positions[count++] = i;
+    }
+    if (count == 0)
+      return infos;
+    TokenInfo[] results = oAuthService.introspectAccessTokens(
+        count == tokens.length ? checked : Arrays.copyOf(checked, count), request);
+    for (int j = 0; j < count; j++) {
+      int i = positions[j];
+      if (results[j] == null)
+        infos[i] = null;
+      else if (infos[i] == null)
+        infos[i] = results[j];
+    }
+    return infos;
+  }
+
+  /**
+   * write introspection result of one token as JSON object
+   */
+  private void writeResult(TokenInfo info, long now, JsonWriter writer) {
+    writer.beginObject();
+    writer.field("active", info != null);
+    if (info != null) {
+      if (info.getClientId() != null)
+        writer.field(OAuth.OAUTH_CLIENT_ID, info.getClientId());
+      if (!info.getScopes().isEmpty())
+        writer.field(OAuth.OAUTH_SCOPE, OAuthUtils.encodeScopes(info.getScopes()));
+      writer.field("token_type", OAuth.OAUTH_HEADER_NAME);
+      writer.field("exp", (now + info.getExpireIn()) / 1000);
+    }
+    writer.endObject();
+  }
+}
@@ -0,0 +1,838 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.sql.DataSource;
+
+import org.apache.oltu.oauth2.common.utils.OAuthUtils;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * OAuthService implementation which keeps authorization codes, access tokens
+ * and refresh tokens in a database table. New tokens and removals are queued
+ * and written by a background thread in batches, one transaction per batch, so
+ * the token issuance is not limited by one database round trip per token.
+ * </p>
+ * <p>
+ * The tokens not written yet are kept in memory and checked before the
+ * database, so a token just issued is immediately visible on the same server.
+ * Authorization codes and refresh tokens already in the database are consumed
+ * by a conditional delete, so concurrent requests on different servers get
+ * only one grant.
+ * </p>
+ * <p>
+ * The table can be created like this:<br>
+ * CREATE TABLE oauth_token (token VARCHAR(255) NOT NULL, kind SMALLINT NOT
+ * NULL, client_id VARCHAR(255) NOT NULL, scopes VARCHAR(1000), access_token
+ * VARCHAR(255), expire_at BIGINT NOT NULL, PRIMARY KEY (token, kind))
+ * </p>
+ * <p>
+ * The application need to extends this class to provide client and scope
+ * verification, add this service in shiro.ini file like this:<br>
+ * [main]<br>
+ * dataSource = &lt;data source class&gt;<br>
+ * oAuthService = &lt;custom class extends JdbcOAuthService&gt;<br>
+ * oAuthService.dataSource = $dataSource<br>
+ * oTokenFilter.oAuthService = $oAuthService<br>
+ * </p>
+ * Note that the tokens queued but not written are lost if the application
+ * crashes, other servers see a new token after its batch committed, usually
+ * within a few milliseconds. A batch failed for database unavailable is retried
+ * until written, a batch refused for bad data (SQL state class 22 or 23, such
+ * as a value too long or a duplicated token) is written row by row, and the
+ * refused rows are logged and dropped.
+ *
+ * @author zqxu
+ */
+public abstract class JdbcOAuthService
+    implements OAuthService, OAuthGrantService, Initializable, Destroyable {
+  private static final Logger log = LoggerFactory.getLogger(JdbcOAuthService.class);
+  private static final int AUTH_CODE = 0;
+  private static final int ACCESS_TOKEN = 1;
+  private static final int REFRESH_TOKEN = 2;
+  private final ConcurrentMap<String, Row> pendingCodes = new ConcurrentHashMap<String, Row>();
+  private final ConcurrentMap<String, Row> pendingAccess = new ConcurrentHashMap<String, Row>();
+  private final ConcurrentMap<String, Row> pendingRefresh = new ConcurrentHashMap<String, Row>();
+  private DataSource dataSource;
+  private String tableName = "oauth_token";
+  private int queueSize = 10000;
+  private long queueTimeout = 5000L;
+  private int batchSize = 500;
+  private long retryDelay = 1000L;
+  private long cleanupInterval = 10 * 60 * 1000L;
+  private long authCodeExpireIn = 60 * 1000L;
+  private long accessTokenExpireIn = 60 * 60 * 1000L;
+  private long refreshTokenExpireIn = 30 * 24 * 60 * 60 * 1000L;
+  private boolean refreshTokenSupported = true;
+  private BlockingQueue<Row> queue;
+  private Thread writer;
+  private volatile boolean running;
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  public void setDataSource(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * get name of the token table
+   *
+   * @return table name
+   */
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   * set name of the token table, default is oauth_token
+   *
+   * @param tableName
+   *          table name
+   */
+  public void setTableName(String tableName) {
+    this.tableName = tableName;
+  }
+
+  /**
+   * get maximum writes waiting in queue
+   *
+   * @return queue size
+   */
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  /**
+   * set maximum writes waiting in queue, default is 10000, the token request
+   * waits up to queue timeout if the queue is full
+   *
+   * @param queueSize
+   *          queue size
+   */
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  /**
+   * get maximum writes in one batch
+   *
+   * @return batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * set maximum writes in one batch, default is 500
+   *
+   * @param batchSize
+   *          batch size
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * get maximum time a request waits for room in a full queue
+   *
+   * @return queue timeout in millisecond
+   */
+  public long getQueueTimeout() {
+    return queueTimeout;
+  }
+
+  /**
+   * set maximum time a request waits for room in a full queue, default is 5
+   * seconds. The queue fills up if the database is unavailable, the request
+   * then fails with IllegalStateException instead of holding its thread.
+   *
+   * @param queueTimeout
+   *          queue timeout in millisecond
+   */
+  public void setQueueTimeout(long queueTimeout) {
+    this.queueTimeout = queueTimeout;
+  }
+
+  /**
+   * get delay before a failed batch is written again
+   *
+   * @return retry delay in millisecond
+   */
+  public long getRetryDelay() {
+    return retryDelay;
+  }
+
+  /**
+   * set delay before a failed batch is written again, default is 1 second
+   *
+   * @param retryDelay
+   *          retry delay in millisecond
+   */
+  public void setRetryDelay(long retryDelay) {
+    this.retryDelay = retryDelay;
+  }
+
+  /**
+   * get interval between deletions of expired tokens
+   *
+   * @return cleanup interval in millisecond
+   */
+  public long getCleanupInterval() {
+    return cleanupInterval;
+  }
+
+  /**
+   * set interval between deletions of expired tokens, default is 10 minutes, 0
+   * to disable
+   *
+   * @param cleanupInterval
+   *          cleanup interval in millisecond
+   */
+  public void setCleanupInterval(long cleanupInterval) {
+    this.cleanupInterval = cleanupInterval;
+  }
+
+  /**
+   * get authorization code expire time
+   *
+   * @return authorization code expire time in millisecond
+   */
+  public long getAuthCodeExpireIn() {
+    return authCodeExpireIn;
+  }
+
+  /**
+   * set authorization code expire time, default is 1 minute
+   *
+   * @param authCodeExpireIn
+   *          authorization code expire time in millisecond
+   */
+  public void setAuthCodeExpireIn(long authCodeExpireIn) {
+    this.authCodeExpireIn = authCodeExpireIn;
+  }
+
+  /**
+   * get access token expire time
+   *
+   * @return access token expire time in millisecond
+   */
+  public long getAccessTokenExpireIn() {
+    return accessTokenExpireIn;
+  }
+
+  /**
+   * set access token expire time, default is 1 hour
+   *
+   * @param accessTokenExpireIn
+   *          access token expire time in millisecond
+   */
+  public void setAccessTokenExpireIn(long accessTokenExpireIn) {
+    this.accessTokenExpireIn = accessTokenExpireIn;
+  }
+
+  /**
+   * get refresh token expire time
+   *
+   * @return refresh token expire time in millisecond
+   */
+  public long getRefreshTokenExpireIn() {
+    return refreshTokenExpireIn;
+  }
+
+  /**
+   * set refresh token expire time, default is 30 days
+   *
+   * @param refreshTokenExpireIn
+   *          refresh token expire time in millisecond
+   */
+  public void setRefreshTokenExpireIn(long refreshTokenExpireIn) {
+    this.refreshTokenExpireIn = refreshTokenExpireIn;
+  }
+
+  /**
+   * set whether refresh token supported, default is true
+   *
+   * @param refreshTokenSupported
+   *          true if refresh token supported
+   */
+  public void setRefreshTokenSupported(boolean refreshTokenSupported) {
+    this.refreshTokenSupported = refreshTokenSupported;
+  }
+
+  /**
+   * get count of writes waiting in queue
+   *
+   * @return queued write count
+   */
+  public int getQueuedCount() {
+    BlockingQueue<Row> current = queue;
+    return current == null ? 0 : current.size();
+  }
+
+  /**
+   * get count of tokens and removals not committed yet, queued or being written
+   *
+   * @return pending write count
+   */
+  public int getPendingCount() {
+    return pendingCodes.size() + pendingAccess.size() + pendingRefresh.size();
+  }
+
+  /**
+   * start the background writer, called by SHIRO after the properties set
+   */
+  @Override
+  public synchronized void init() {
+    if (running)
+      return;
+    if (dataSource == null)
+      throw new IllegalStateException("dataSource of JdbcOAuthService not set");
+    queue = new ArrayBlockingQueue<Row>(queueSize);
+    running = true;
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "JdbcOAuthService-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * stop the background writer after the queued writes are written
+   */
+  @Override
+  public synchronized void destroy() {
+    if (!running)
+      return;
+    running = false;
+    writer.interrupt();
+    try {
+      writer.join(TimeUnit.MINUTES.toMillis(1));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public boolean refreshTokenSupported() {
+    return refreshTokenSupported;
+  }
+
+  @Override
+  public void addAuthCode(String authCode, String clientId, Set<String> scopes) {
+    insert(AUTH_CODE, authCode, clientId, scopes, null, authCodeExpireIn);
+  }
+
+  @Override
+  public boolean checkAuthCode(String authCode, String clientId) {
+    Row row = lookup(AUTH_CODE, authCode);
+    return row != null && row.clientId.equals(clientId);
+  }
+
+  /**
+   * the authorization code will be removed, it can not be used again.
+   *
+   * @throws IllegalStateException
+   *           if the authorization code already used or expired
+   */
+  @Override
+  public void addAcessToken(String accessToken, String authCode) {
+    Row code = lookup(AUTH_CODE, authCode);
+    if (code == null || !consume(code))
+      throw new IllegalStateException("authorization code already used or expired");
+    insert(ACCESS_TOKEN, accessToken, code.clientId, code.scopes, null, accessTokenExpireIn);
+  }
+
+  @Override
+  public boolean clientTokenSupported() {
+    return true;
+  }
+
+  @Override
+  public void addClientToken(String accessToken, String clientId, Set<String> scopes) {
+    insert(ACCESS_TOKEN, accessToken, clientId, scopes, null, accessTokenExpireIn);
+  }
+
+  /**
+   * returns the remaining time of the access token, or 0 if the access token
+   * does not exist or expired
+   */
+  @Override
+  public long getExpireIn(String accessToken) {
+    Row row = lookup(ACCESS_TOKEN, accessToken);
+    if (row == null)
+      return 0;
+    return Math.max(0, row.expireAt - System.currentTimeMillis());
+  }
+
+  @Override
+  public void addRefreshToken(String refreshToken, String accessToken) {
+    Row access = lookup(ACCESS_TOKEN, accessToken);
+    if (access == null)
+      throw new IllegalStateException("access token does not exist");
+    insert(REFRESH_TOKEN, refreshToken, access.clientId, access.scopes, accessToken,
+        refreshTokenExpireIn);
+  }
+
+  @Override
+  public boolean checkRefreshToken(String refreshToken, String clientId) {
+    Row row = lookup(REFRESH_TOKEN, refreshToken);
+    return row != null && row.clientId.equals(clientId);
+  }
+
+  /**
+   * the refresh token and the access token issued with it will be removed, the
+   * client will get new refresh token with the new access token.
+   *
+   * @throws IllegalStateException
+   *           if the refresh token already used or expired
+   */
+  @Override
+  public void refreshAccessToken(String accessToken, String refreshToken) {
+    Row refresh = lookup(REFRESH_TOKEN, refreshToken);
+    if (refresh == null || !consume(refresh))
+      throw new IllegalStateException("refresh token already used or expired");
+    remove(ACCESS_TOKEN, refresh.accessToken);
+    insert(ACCESS_TOKEN, accessToken, refresh.clientId, refresh.scopes, null,
+        accessTokenExpireIn);
+  }
+
+  @Override
+  public boolean checkAccessToken(String accessToken, HttpServletRequest request) {
+    return lookup(ACCESS_TOKEN, accessToken) != null;
+  }
+
+  /**
+   * the queued tokens are read from memory, the others by one query
+   */
+  @Override
+  public TokenInfo[] introspectAccessTokens(String[] accessTokens,
+      HttpServletRequest request) {
+    Row[] rows = new Row[accessTokens.length];
+    List<String> missed = new ArrayList<String>();
+    for (int i = 0; i < accessTokens.length; i++) {
+      if (accessTokens[i] == null)
+        continue;
+      rows[i] = pending(ACCESS_TOKEN).get(accessTokens[i]);
+      if (rows[i] == null)
+        missed.add(accessTokens[i]);
+    }
+    Map<String, Row> selected = select(ACCESS_TOKEN, missed);
+    long now = System.currentTimeMillis();
+    TokenInfo[] infos = new TokenInfo[accessTokens.length];
+    for (int i = 0; i < accessTokens.length; i++) {
+      Row row = rows[i] != null ? rows[i] : selected.get(accessTokens[i]);
+      if (row != null && !row.removed && row.expireAt > now)
+        infos[i] = new TokenInfo(row.clientId, row.scopes, row.expireAt - now);
+    }
+    return infos;
+  }
+
+  @Override
+  public String getClientId(String accessToken) {
+    Row row = lookup(ACCESS_TOKEN, accessToken);
+    return row == null ? null : row.clientId;
+  }
+
+  @Override
+  public Set<String> getScopes(String accessToken) {
+    Row row = lookup(ACCESS_TOKEN, accessToken);
+    if (row == null)
+      return null;
+    return row.scopes == null ? Collections.<String> emptySet() : row.scopes;
+  }
+
+  @Override
+  public Set<String> getAuthCodeScopes(String authCode, String clientId) {
+    return scopesOf(lookup(AUTH_CODE, authCode), clientId);
+  }
+
+  @Override
+  public Set<String> getRefreshTokenScopes(String refreshToken, String clientId) {
+    return scopesOf(lookup(REFRESH_TOKEN, refreshToken), clientId);
+  }
+
+  private static Set<String> scopesOf(Row row, String clientId) {
+    if (row == null || !row.clientId.equals(clientId))
+      return null;
+    return row.scopes;
+  }
+
+  @Override
+  public ClientStatus authenticateClient(String clientId, String secret) {
+    if (!checkClient(clientId))
+      return ClientStatus.INVALID_CLIENT;
+    if (!checkClient(clientId, secret))
+      return ClientStatus.UNAUTHORIZED_CLIENT;
+    return ClientStatus.VALID;
+  }
+
+  @Override
+  public OAuthGrant exchangeAuthCode(String clientId, String authCode, String accessToken,
+      String refreshToken) {
+    Row code = lookup(AUTH_CODE, authCode);
+    if (code == null || !code.clientId.equals(clientId) || !consume(code))
+      return null;
+    insert(ACCESS_TOKEN, accessToken, code.clientId, code.scopes, null, accessTokenExpireIn);
+    return issueRefreshToken(code.clientId, code.scopes, accessToken, refreshToken);
+  }
+
+  @Override
+  public OAuthGrant issueTokens(String authCode, String clientId, Set<String> scopes,
+      String accessToken, String refreshToken) {
+    insert(ACCESS_TOKEN, accessToken, clientId, scopes, null, accessTokenExpireIn);
+    return issueRefreshToken(clientId, scopes, accessToken, refreshToken);
+  }
+
+  @Override
+  public OAuthGrant issueClientToken(String clientId, Set<String> scopes, String accessToken) {
+    insert(ACCESS_TOKEN, accessToken, clientId, scopes, null, accessTokenExpireIn);
+    return new OAuthGrant(accessToken, null, accessTokenExpireIn);
+  }
+
+  @Override
+  public OAuthGrant exchangeRefreshToken(String clientId, String refreshToken,
+      String accessToken, String newRefreshToken) {
+    Row refresh = lookup(REFRESH_TOKEN, refreshToken);
+    if (refresh == null || !refresh.clientId.equals(clientId) || !consume(refresh))
+      return null;
+    remove(ACCESS_TOKEN, refresh.accessToken);
+    insert(ACCESS_TOKEN, accessToken, refresh.clientId, refresh.scopes, null,
+        accessTokenExpireIn);
+    return issueRefreshToken(refresh.clientId, refresh.scopes, accessToken, newRefreshToken);
+  }
+
+  private OAuthGrant issueRefreshToken(String clientId, Set<String> scopes, String accessToken,
+      String refreshToken) {
+    if (refreshTokenSupported)
+      insert(REFRESH_TOKEN, refreshToken, clientId, scopes, accessToken, refreshTokenExpireIn);
+    else
+      refreshToken = null;
+    return new OAuthGrant(accessToken, refreshToken, accessTokenExpireIn);
+  }
+
+  /**
+   * find the valid token, the queued writes first, then the database
+   */
+  private Row lookup(int kind, String token) {
+    if (token == null)
+      return null;
+    Row row = pending(kind).get(token);
+    if (row == null)
+      row = select(kind, token);
+    if (row == null || row.removed || row.expireAt <= System.currentTimeMillis())
+      return null;
+    return row;
+  }
+
+  /**
+   * get tokens queued but not written yet
+   */
+  private ConcurrentMap<String, Row> pending(int kind) {
+    return kind == AUTH_CODE ? pendingCodes : kind == ACCESS_TOKEN ? pendingAccess
+        : pendingRefresh;
+  }
+
+  private void insert(int kind, String token, String clientId, Set<String> scopes,
+      String accessToken, long expireIn) {
+    Row row = new Row(kind, token, clientId, scopes, accessToken,
+        System.currentTimeMillis() + expireIn, false);
+    enqueue(row, pending(kind).put(token, row));
+  }
+
+  private void remove(int kind, String token) {
+    if (token == null)
+      return;
+    Row row = new Row(kind, token, null, null, null, 0, true);
+    enqueue(row, pending(kind).put(token, row));
+  }
+
+  /**
+   * remove the token found by lookup, returns false if it was removed by
+   * another request. Queued token is only known by this server, so it is
+   * consumed in memory, otherwise it is consumed by a conditional delete.
+   */
+  private boolean consume(Row row) {
+    Row removed = new Row(row.kind, row.token, null, null, null, 0, true);
+    if (pending(row.kind).replace(row.token, row, removed)) {
+      enqueue(removed, row);
+      return true;
+    }
+    if (pending(row.kind).containsKey(row.token))
+      return false; // consumed by another request on this server
+    String sql = "DELETE FROM " + tableName
+        + " WHERE token = ? AND kind = ? AND client_id = ? AND expire_at > ?";
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql)) {
+      statement.setString(1, row.token);
+      statement.setInt(2, row.kind);
+      statement.setString(3, row.clientId);
+      statement.setLong(4, System.currentTimeMillis());
+      return statement.executeUpdate() == 1;
+    } catch (SQLException ex) {
+      throw new IllegalStateException("can not delete token", ex);
+    }
+  }
+
+  private Row select(int kind, String token) {
+    String sql = "SELECT client_id, scopes, access_token, expire_at FROM " + tableName
+        + " WHERE token = ? AND kind = ?";
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql)) {
+      statement.setString(1, token);
+      statement.setInt(2, kind);
+      try (ResultSet result = statement.executeQuery()) {
+        if (!result.next())
+          return null;
+        String scopes = result.getString(2);
+        return new Row(kind, token, result.getString(1),
+            scopes == null ? null : OAuthUtils.decodeScopes(scopes), result.getString(3),
+            result.getLong(4), false);
+      }
+    } catch (SQLException ex) {
+      throw new IllegalStateException("can not select token", ex);
+    }
+  }
+
+  /**
+   * select the tokens of the kind in one query
+   */
+  private Map<String, Row> select(int kind, List<String> tokens) {
+    Map<String, Row> rows = new HashMap<String, Row>();
+    if (tokens.isEmpty())
+      return rows;
+    StringBuilder sql = new StringBuilder("SELECT token, client_id, scopes, access_token,"
+        + " expire_at FROM ").append(tableName).append(" WHERE kind = ? AND token IN (?");
+    for (int i = 1; i < tokens.size(); i++)
+      sql.append(", ?");
+    sql.append(')');
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+      statement.setInt(1, kind);
+      for (int i = 0; i < tokens.size(); i++)
+        statement.setString(i + 2, tokens.get(i));
+      try (ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          String token = result.getString(1);
+          String scopes = result.getString(3);
+          rows.put(token, new Row(kind, token, result.getString(2),
+              scopes == null ? null : OAuthUtils.decodeScopes(scopes), result.getString(4),
+              result.getLong(5), false));
+        }
+      }
+    } catch (SQLException ex) {
+      throw new IllegalStateException("can not select tokens", ex);
+    }
+    return rows;
+  }
+
+  /**
+   * queue the row already put into pending tokens, if the queue stays full
+   * until timeout, the previous pending row is restored and the request fails
+   */
+  private void enqueue(Row row, Row previous) {
+    String message = "JdbcOAuthService not initialized";
+    Throwable cause = null;
+    try {
+      if (running && queue.offer(row, queueTimeout, TimeUnit.MILLISECONDS))
+        return;
+      if (running)
+        message = "token queue full, database may be unavailable";
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      message = "interrupted while queuing token";
+      cause = ex;
+    }
+    ConcurrentMap<String, Row> pending = pending(row.kind);
+    if (previous == null)
+      pending.remove(row.token, row);
+    else
+      pending.replace(row.token, row, previous);
+    throw new IllegalStateException(message, cause);
+  }
+
+  private void writeLoop() {
+    List<Row> batch = new ArrayList<Row>(batchSize);
+    long nextCleanup = System.currentTimeMillis() + cleanupInterval;
+    while (running || !queue.isEmpty() || !batch.isEmpty()) {
+      try {
+        if (batch.isEmpty()) {
+          Row first = running ? queue.poll(1, TimeUnit.SECONDS) : queue.poll();
+          if (first != null) {
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+          }
+        }
+        if (!batch.isEmpty()) {
+          try {
+            write(batch);
+          } catch (SQLException ex) {
+            if (!isRefused(ex))
+              throw ex;
+            writeEach(batch);
+          }
+          for (Row row : batch)
+            pending(row.kind).remove(row.token, row);
+          batch.clear();
+        }
+        if (cleanupInterval > 0 && System.currentTimeMillis() >= nextCleanup) {
+          cleanup();
+          nextCleanup = System.currentTimeMillis() + cleanupInterval;
+        }
+      } catch (InterruptedException ex) {
+        // destroy() called, write the rest then stop
+      } catch (SQLException ex) {
+        log.error("can not write {} tokens, retry later", batch.size(), ex);
+        if (!running) {
+          log.error("tokens lost because the service is destroyed");
+          return;
+        }
+        try {
+          Thread.sleep(retryDelay);
+        } catch (InterruptedException interrupted) {
+          // destroy() called, retry once more
+        }
+      }
+    }
+  }
+
+  /**
+   * write the rows refused as a batch one by one, drop the rows refused alone so
+   * they do not block the queue. The rows written or dropped are removed from
+   * the batch, the rest is retried if the database is not available.
+   */
+  private void writeEach(List<Row> batch) throws SQLException {
+    for (Iterator<Row> iterator = batch.iterator(); iterator.hasNext();) {
+      Row row = iterator.next();
+      try {
+        write(Collections.singletonList(row));
+      } catch (SQLException ex) {
+        if (!isRefused(ex))
+          throw ex;
+        log.error("drop token of kind {} for client {} refused by database", row.kind,
+            row.clientId, ex);
+      }
+      pending(row.kind).remove(row.token, row);
+      iterator.remove();
+    }
+  }
+
+  /**
+   * check whether the database refused the data (SQL state class 22 or 23), not
+   * failed to execute the statement, so retrying the same rows never succeeds
+   */
+  private static boolean isRefused(SQLException ex) {
+    String state = ex.getSQLState();
+    return ex instanceof SQLDataException
+        || ex instanceof SQLIntegrityConstraintViolationException
+        || state != null && (state.startsWith("22") || state.startsWith("23"));
+  }
+
+  /**
+   * write the batch in one transaction, inserts before deletes since a token is
+   * always removed after it was added
+   */
+  private void write(List<Row> batch) throws SQLException {
+    String insertSql = "INSERT INTO " + tableName
+        + " (token, kind, client_id, scopes, access_token, expire_at) VALUES (?, ?, ?, ?, ?, ?)";
+    String deleteSql = "DELETE FROM " + tableName + " WHERE token = ? AND kind = ?";
+    try (Connection connection = dataSource.getConnection()) {
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try (PreparedStatement insert = connection.prepareStatement(insertSql);
+          PreparedStatement delete = connection.prepareStatement(deleteSql)) {
+        int inserts = 0;
+        int deletes = 0;
+        for (Row row : batch) {
+          if (row.removed) {
+            delete.setString(1, row.token);
+            delete.setInt(2, row.kind);
+            delete.addBatch();
+            deletes++;
+          } else {
+            insert.setString(1, row.token);
+            insert.setInt(2, row.kind);
+            insert.setString(3, row.clientId);
+            insert.setString(4,
+                row.scopes.isEmpty() ? null : OAuthUtils.encodeScopes(row.scopes));
+            insert.setString(5, row.accessToken);
+            insert.setLong(6, row.expireAt);
+            insert.addBatch();
+            inserts++;
+          }
+        }
+        if (inserts > 0)
+          insert.executeBatch();
+        if (deletes > 0)
+          delete.executeBatch();
+        connection.commit();
+      } catch (SQLException ex) {
+        connection.rollback();
+        throw ex;
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+    }
+  }
+
+  private void cleanup() throws SQLException {
+    String sql = "DELETE FROM " + tableName + " WHERE expire_at <= ?";
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql)) {
+      statement.setLong(1, System.currentTimeMillis());
+      statement.executeUpdate();
+    }
+  }
+
+  /**
+   * Token row, or removal of the token if removed is true.
+   */
+  private static final class Row {
+    final int kind;
+    final String token;
+    final String clientId;
+    final Set<String> scopes;
+    final String accessToken;
+    final long expireAt;
+    final boolean removed;
+
+    Row(int kind, String token, String clientId, Set<String> scopes, String accessToken,
+        long expireAt, boolean removed) {
+      this.kind = kind;
+      this.token = token;
+      this.clientId = clientId;
+      this.scopes = scopes == null ? Collections.<String> emptySet()
+          : Collections.unmodifiableSet(new HashSet<String>(scopes));
+      this.accessToken = accessToken;
+      this.expireAt = expireAt;
+      this.removed = removed;
+    }
+  }
+}
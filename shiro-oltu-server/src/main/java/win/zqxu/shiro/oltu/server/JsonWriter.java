@@ -0,0 +1,178 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Arrays;
+
+/**
+ * Minimal JSON object writer encodes directly into a reusable UTF-8 byte
+ * buffer, for internal use. Each thread should use its own writer.
+ * 
+ * @author zqxu
+ */
+final class JsonWriter {
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private static final ThreadLocal<JsonWriter> WRITERS = new ThreadLocal<JsonWriter>() {
+    @Override
+    protected JsonWriter initialValue() {
+      return new JsonWriter();
+    }
+  };
+  private byte[] buffer = new byte[256];
+  private int length;
+  private int depth;
+  private boolean[] first = new boolean[8];
+  private boolean[] array = new boolean[8];
+
+  /**
+   * get the writer of current thread, reset for a new object
+   */
+  public static JsonWriter get() {
+    JsonWriter writer = WRITERS.get();
+    writer.length = 0;
+    writer.depth = 0;
+    return writer;
+  }
+
+  /**
+   * begin an object, at top level or as an element of current array
+   */
+  public JsonWriter beginObject() {
+    if (depth > 0 && array[depth - 1])
+      separate();
+    append((byte) '{');
+    push(false);
+    return this;
+  }
+
+  public JsonWriter endObject() {
+    append((byte) '}');
+    depth--;
+    return this;
+  }
+
+  /**
+   * begin an array field of current object
+   */
+  public JsonWriter beginArray(String name) {
+    name(name);
+    append((byte) '[');
+    push(true);
+    return this;
+  }
+
+  public JsonWriter endArray() {
+    append((byte) ']');
+    depth--;
+    return this;
+  }
+
+  /**
+   * write string field, null value is skipped
+   */
+  public JsonWriter field(String name, String value) {
+    if (value != null) {
+      name(name);
+      string(value);
+    }
+    return this;
+  }
+
+  public JsonWriter field(String name, long value) {
+    name(name);
+    ascii(Long.toString(value));
+    return this;
+  }
+
+  public JsonWriter field(String name, boolean value) {
+    name(name);
+    ascii(value ? "true" : "false");
+    return this;
+  }
+
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, length);
+  }
+
+  private void push(boolean isArray) {
+    if (depth == first.length) {
+      first = Arrays.copyOf(first, depth * 2);
+      array = Arrays.copyOf(array, depth * 2);
+    }
+    first[depth] = true;
+    array[depth] = isArray;
+    depth++;
+  }
+
+  private void separate() {
+    if (!first[depth - 1])
+      append((byte) ',');
+    first[depth - 1] = false;
+  }
+
+  private void name(String name) {
+    separate();
+    string(name);
+    append((byte) ':');
+  }
+
+  private void ascii(String value) {
+    ensure(value.length());
+    for (int i = 0; i < value.length(); i++)
+      buffer[length++] = (byte) value.charAt(i);
+  }
+
+  private void string(String value) {
+    ensure(value.length() * 6 + 2); // escaped control char takes 6 bytes
+    buffer[length++] = '"';
+    for (int i = 0; i < value.length(); i++) {
+      char ch = value.charAt(i);
+      if (ch == '"' || ch == '\\') {
+        buffer[length++] = '\\';
+        buffer[length++] = (byte) ch;
+      } else if (ch < 0x20) {
+        buffer[length++] = '\\';
+        buffer[length++] = 'u';
+        buffer[length++] = '0';
+        buffer[length++] = '0';
+        buffer[length++] = HEX[ch >> 4];
+        buffer[length++] = HEX[ch & 0xF];
+      } else if (ch < 0x80) {
+        buffer[length++] = (byte) ch;
+      } else if (ch < 0x800) {
+        buffer[length++] = (byte) (0xC0 | ch >> 6);
+        buffer[length++] = (byte) (0x80 | ch & 0x3F);
+      } else if (Character.isHighSurrogate(ch) && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int code = Character.toCodePoint(ch, value.charAt(++i));
+        buffer[length++] = (byte) (0xF0 | code >> 18);
+        buffer[length++] = (byte) (0x80 | code >> 12 & 0x3F);
+        buffer[length++] = (byte) (0x80 | code >> 6 & 0x3F);
+        buffer[length++] = (byte) (0x80 | code & 0x3F);
+      } else if (Character.isSurrogate(ch)) {
+        buffer[length++] = '?'; // unpaired surrogate
+      } else {
+        buffer[length++] = (byte) (0xE0 | ch >> 12);
+        buffer[length++] = (byte) (0x80 | ch >> 6 & 0x3F);
+        buffer[length++] = (byte) (0x80 | ch & 0x3F);
+      }
+    }
+    buffer[length++] = '"';
+  }
+
+  private void append(byte value) {
+    ensure(1);
+    buffer[length++] = value;
+  }
+
+  private void ensure(int count) {
+    if (length + count > buffer.length)
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+  }
+}
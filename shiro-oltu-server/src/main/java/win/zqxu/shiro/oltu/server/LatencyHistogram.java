@@ -0,0 +1,118 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets, for internal use. Recording only
+ * compares with the bucket bounds and increments striped counters, so it does
+ * not allocate after the counters warmed up.
+ * 
+ * @author zqxu
+ */
+final class LatencyHistogram {
+  /**
+   * histogram of disabled metrics, records nothing
+   */
+  static final LatencyHistogram DISABLED = new LatencyHistogram(null, null);
+  /**
+   * upper bounds of buckets in seconds, the last bucket is unbounded
+   */
+  static final double[] BOUNDS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+      0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+  private static final long[] NANO_BOUNDS = new long[BOUNDS.length];
+  static {
+    for (int i = 0; i < BOUNDS.length; i++)
+      NANO_BOUNDS[i] = (long) (BOUNDS[i] * 1000000000L);
+  }
+  final String name;
+  final String labels;
+  private final LongAdder[] counts;
+  private final LongAdder sum;
+
+  LatencyHistogram(String name, String labels) {
+    this.name = name;
+    this.labels = labels;
+    if (name == null) {
+      counts = null;
+      sum = null;
+    } else {
+      counts = new LongAdder[BOUNDS.length + 1];
+      for (int i = 0; i < counts.length; i++)
+        counts[i] = new LongAdder();
+      sum = new LongAdder();
+    }
+  }
+
+  /**
+   * get histogram of the filter phase, or the disabled histogram if no metrics
+   */
+  static LatencyHistogram phase(OAuthMetrics metrics, String filter, String phase) {
+    return metrics == null ? DISABLED : metrics.phase(filter, phase);
+  }
+
+  void record(long nanos) {
+    if (counts == null)
+      return;
+    int index = 0;
+    while (index < NANO_BOUNDS.length && nanos > NANO_BOUNDS[index])
+      index++;
+    counts[index].increment();
+    sum.add(nanos);
+  }
+
+  /**
+   * record the time elapsed since the start
+   * 
+   * @return current time in nanosecond, the start of next lap
+   */
+  long lap(long start) {
+    long now = System.nanoTime();
+    record(now - start);
+    return now;
+  }
+
+  /**
+   * snapshot of bucket counts, not cumulative
+   */
+  long[] counts() {
+    long[] snapshot = new long[BOUNDS.length + 1];
+    if (counts != null)
+      for (int i = 0; i < snapshot.length; i++)
+        snapshot[i] = counts[i].sum();
+    return snapshot;
+  }
+
+  long sumNanos() {
+    return sum == null ? 0 : sum.sum();
+  }
+
+  /**
+   * estimate the quantile by the upper bound of the bucket holding it
+   * 
+   * @return quantile in millisecond, NaN if nothing recorded
+   */
+  double quantileMillis(double quantile) {
+    long[] snapshot = counts();
+    long total = 0;
+    for (long count : snapshot)
+      total += count;
+    if (total == 0)
+      return Double.NaN;
+    long rank = (long) Math.ceil(total * quantile);
+    long seen = 0;
+    for (int i = 0; i < BOUNDS.length; i++) {
+      seen += snapshot[i];
+      if (seen >= rank)
+        return BOUNDS[i] * 1000;
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  void reset() {
+    if (counts == null)
+      return;
+    for (LongAdder count : counts)
+      count.reset();
+    sum.reset();
+  }
+}
@@ -0,0 +1,154 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache split into lock-striped segments, for internal use. Each
+ * segment is an access ordered LinkedHashMap guarded by its own lock, so
+ * threads working on different keys rarely contend.
+ *
+ * @author zqxu
+ *
+ * @param <V>
+ *          value type
+ */
+final class LruCache<V> {
+  private final Segment<V>[] segments;
+  private final int segmentMask;
+  private final LongAdder evictionCount = new LongAdder();
+
+  /**
+   * create cache with maximum size
+   *
+   * @param maxSize
+   *          maximum entries of the cache
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public LruCache(int maxSize) {
+    if (maxSize <= 0)
+      throw new IllegalArgumentException("maxSize must be positive");
+    int count = 1;
+    int wanted = Math.min(Runtime.getRuntime().availableProcessors() * 4, maxSize);
+    while (count < wanted)
+      count <<= 1;
+    segments = new Segment[count];
+    int segmentSize = Math.max(1, (maxSize + count - 1) / count);
+    for (int i = 0; i < count; i++)
+      segments[i] = new Segment<V>(segmentSize, evictionCount);
+    segmentMask = count - 1;
+  }
+
+  public V get(String key) {
+    Segment<V> segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.get(key);
+    }
+  }
+
+  public void put(String key, V value) {
+    Segment<V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.put(key, value);
+    }
+  }
+
+  /**
+   * get version of the key, it changes after the key removed
+   */
+  public long version(String key) {
+    Segment<V> segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.version;
+    }
+  }
+
+  /**
+   * put the entry only if the key not removed since the version got, the
+   * version is shared by keys of the same segment, so the entry may be skipped
+   * after removal of another key
+   *
+   * @return true if the entry put
+   */
+  public boolean put(String key, V value, long version) {
+    Segment<V> segment = segmentFor(key);
+    synchronized (segment) {
+      if (segment.version != version)
+        return false;
+      segment.put(key, value);
+      return true;
+    }
+  }
+
+  public V remove(String key) {
+    Segment<V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.version++;
+      return segment.remove(key);
+    }
+  }
+
+  /**
+   * remove the entry only if it is mapped to the value
+   */
+  public boolean remove(String key, V value) {
+    Segment<V> segment = segmentFor(key);
+    synchronized (segment) {
+      if (segment.get(key) != value)
+        return false;
+      segment.remove(key);
+      return true;
+    }
+  }
+
+  public void clear() {
+    for (Segment<V> segment : segments) {
+      synchronized (segment) {
+        segment.version++;
+        segment.clear();
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment<V> segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  private Segment<V> segmentFor(String key) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return segments[hash & segmentMask];
+  }
+
+  private static final class Segment<V> extends LinkedHashMap<String, V> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+    private final LongAdder evictionCount;
+    private long version;
+
+    Segment(int maxSize, LongAdder evictionCount) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+      this.evictionCount = evictionCount;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+      if (size() <= maxSize)
+        return false;
+      evictionCount.increment();
+      return true;
+    }
+  }
+}
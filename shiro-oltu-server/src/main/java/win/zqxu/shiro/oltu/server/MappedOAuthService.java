@@ -0,0 +1,327 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.oltu.oauth2.common.utils.OAuthUtils;
+import org.apache.shiro.util.Initializable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Persistent OAuthService implementation based on {@link MemoryOAuthService},
+ * the tokens are still checked in memory, and every change is appended to
+ * memory-mapped segment files, so the tokens survive application restarts.
+ * </p>
+ * <p>
+ * On {@link #init()} all segments are scanned in parallel to rebuild the
+ * tokens in memory. A background thread compacts the sealed segments
+ * periodically, dropping records of expired, used and replaced tokens.
+ * </p>
+ * <p>
+ * The application need to extends this class to provide client and scope
+ * verification, add this service in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthService = &lt;custom class extends MappedOAuthService&gt;<br>
+ * oAuthService.directory = /var/lib/oauth/tokens<br>
+ * oTokenFilter.oAuthService = $oAuthService<br>
+ * </p>
+ * Note that the records are written to the operating system page cache, they
+ * survive an application crash but may be lost on an operating system crash
+ * unless {@link #setForceOnWrite(boolean)} is enabled. The directory must not
+ * be shared by multiple services.
+ *
+ * @author zqxu
+ */
+public abstract class MappedOAuthService extends MemoryOAuthService implements Initializable {
+  private static final Logger log = LoggerFactory.getLogger(MappedOAuthService.class);
+  private String directory;
+  private int segmentSize = 64 * 1024 * 1024;
+  private long compactInterval = 10 * 60 * 1000L;
+  private double compactThreshold = 0.5;
+  private int loadThreads = Runtime.getRuntime().availableProcessors();
+  private boolean forceOnWrite;
+  private volatile SegmentLog segmentLog;
+  private ScheduledExecutorService compactor;
+
+  /**
+   * Constructor, the timing wheel ticks every second
+   */
+  public MappedOAuthService() {
+    super();
+  }
+
+  /**
+   * Constructor with the timing wheel tick duration
+   *
+   * @param tickMillis
+   *          tick duration in millisecond, expired token will be removed
+   *          within one tick
+   */
+  public MappedOAuthService(long tickMillis) {
+    super(tickMillis);
+  }
+
+  /**
+   * get directory of the segment files
+   *
+   * @return directory path
+   */
+  public String getDirectory() {
+    return directory;
+  }
+
+  /**
+   * set directory of the segment files, the directory is created if not exists
+   *
+   * @param directory
+   *          directory path
+   */
+  public void setDirectory(String directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * get size of each segment file
+   *
+   * @return segment size in byte
+   */
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * set size of each segment file, default is 64MB
+   *
+   * @param segmentSize
+   *          segment size in byte
+   */
+  public void setSegmentSize(int segmentSize) {
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * get interval between compactions
+   *
+   * @return compact interval in millisecond
+   */
+  public long getCompactInterval() {
+    return compactInterval;
+  }
+
+  /**
+   * set interval between compactions, default is 10 minutes, 0 to disable
+   * background compaction
+   *
+   * @param compactInterval
+   *          compact interval in millisecond
+   */
+  public void setCompactInterval(long compactInterval) {
+    this.compactInterval = compactInterval;
+  }
+
+  /**
+   * get live ratio under which a segment is compacted
+   *
+   * @return compact threshold between 0 and 1
+   */
+  public double getCompactThreshold() {
+    return compactThreshold;
+  }
+
+  /**
+   * set live ratio under which a segment is compacted, default is 0.5, means a
+   * segment is rewritten if no more than half of it is still live
+   *
+   * @param compactThreshold
+   *          compact threshold between 0 and 1
+   */
+  public void setCompactThreshold(double compactThreshold) {
+    this.compactThreshold = compactThreshold;
+  }
+
+  /**
+   * get count of threads scanning segments on init
+   *
+   * @return load thread count
+   */
+  public int getLoadThreads() {
+    return loadThreads;
+  }
+
+  /**
+   * set count of threads scanning segments on init, default is count of
+   * available processors
+   *
+   * @param loadThreads
+   *          load thread count
+   */
+  public void setLoadThreads(int loadThreads) {
+    this.loadThreads = loadThreads;
+  }
+
+  /**
+   * whether every change is flushed to the disk before returning
+   *
+   * @return true if every change flushed
+   */
+  public boolean isForceOnWrite() {
+    return forceOnWrite;
+  }
+
+  /**
+   * set whether every change is flushed to the disk before returning, default
+   * is false. Enable it only if tokens must survive an operating system crash,
+   * it makes every token request wait for the disk.
+   *
+   * @param forceOnWrite
+   *          true to flush every change
+   */
+  public void setForceOnWrite(boolean forceOnWrite) {
+    this.forceOnWrite = forceOnWrite;
+  }
+
+  /**
+   * load tokens from the segment files and start the background compaction,
+   * called by SHIRO after the properties set
+   *
+   * @throws IllegalStateException
+   *           if the directory not set or the segment files can not be read
+   */
+  @Override
+  public synchronized void init() {
+    if (segmentLog != null)
+      return;
+    if (OAuthUtils.isEmpty(directory))
+      throw new IllegalStateException("directory of MappedOAuthService not set");
+    long start = System.currentTimeMillis();
+    SegmentLog loading = new SegmentLog(new File(directory), segmentSize);
+    List<ConcurrentMap<String, SegmentLog.Record>> latest;
+    try {
+      latest = loading.load(3, loadThreads);
+    } catch (IOException ex) {
+      throw new IllegalStateException("can not load tokens from " + directory, ex);
+    }
+    long count = 0;
+    long now = System.currentTimeMillis();
+    for (ConcurrentMap<String, SegmentLog.Record> records : latest) {
+      for (SegmentLog.Record record : records.values()) {
+        if (record.op == SegmentLog.PUT && record.expireAt > now) {
+          restore(record.kind, record.token, record.clientId,
+              record.scope == null ? null : OAuthUtils.decodeScopes(record.scope),
+              record.accessToken, record.expireAt);
+          count++;
+        }
+      }
+    }
+    segmentLog = loading;
+    log.info("loaded {} tokens from {} in {} ms", count, directory,
+        System.currentTimeMillis() - start);
+    if (compactInterval > 0) {
+      compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "MappedOAuthService-compaction");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      compactor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            compact();
+          } catch (RuntimeException ex) {
+            log.error("token segment compaction failed", ex);
+          }
+        }
+      }, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * compact sealed segments now, dropping records of expired, used and
+   * replaced tokens
+   *
+   * @return count of records dropped
+   */
+  public int compact() {
+    SegmentLog current = segmentLog;
+    if (current == null)
+      return 0;
+    try {
+      return current.compact(new SegmentLog.RecordFilter() {
+        @Override
+        public boolean accept(SegmentLog.Record record) {
+          if (record.expireAt <= System.currentTimeMillis())
+            return false;
+          if (record.op == SegmentLog.REMOVE)
+            return true; // may still hide the put record in other segment
+          Grant grant = find(record.kind, record.token);
+          return grant != null && grant.expireAt == record.expireAt;
+        }
+      }, compactThreshold);
+    } catch (IOException ex) {
+      throw new IllegalStateException("can not compact tokens in " + directory, ex);
+    }
+  }
+
+  /**
+   * stop the background compaction and close the segment files
+   */
+  @Override
+  public synchronized void destroy() {
+    if (compactor != null) {
+      compactor.shutdown();
+      try {
+        compactor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      compactor = null;
+    }
+    SegmentLog current = segmentLog;
+    segmentLog = null;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException ex) {
+        log.error("can not close token segments", ex);
+      }
+    }
+    super.destroy();
+  }
+
+  @Override
+  void stored(int kind, Grant grant) {
+    String scope = grant.scopes.isEmpty() ? null : OAuthUtils.encodeScopes(grant.scopes);
+    append(SegmentLog.PUT, kind, grant.token, grant.clientId, scope, grant.accessToken,
+        grant.expireAt);
+  }
+
+  @Override
+  void removed(int kind, Grant grant) {
+    append(SegmentLog.REMOVE, kind, grant.token, null, null, null, grant.expireAt);
+  }
+
+  private void append(byte op, int kind, String token, String clientId, String scope,
+      String accessToken, long expireAt) {
+    SegmentLog current = segmentLog;
+    if (current == null)
+      throw new IllegalStateException("MappedOAuthService not initialized");
+    try {
+      current.append(op, kind, token, clientId, scope, accessToken, expireAt);
+      if (forceOnWrite)
+        current.force();
+    } catch (IOException ex) {
+      throw new IllegalStateException("can not write token to " + directory, ex);
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * In-memory {@link AuthCodeStore} in a fixed-size open addressing table. Each
+ * authorization code takes a free or expired slot near its hash, if all these
+ * slots are in use the one expires first is overwritten, so the memory never
+ * grows. The code is consumed by compare-and-set of its slot, so it can be
+ * used only once.
+ * </p>
+ * <p>
+ * add the store in shiro.ini file like this:<br>
+ * [main]<br>
+ * authCodeStore = win.zqxu.shiro.oltu.server.MemoryAuthCodeStore<br>
+ * authCodeStore.expireIn = 60000<br>
+ * oAuthorizeFilter.authCodeStore = $authCodeStore<br>
+ * oTokenFilter.authCodeStore = $authCodeStore<br>
+ * </p>
+ * Note that the codes are kept in this JVM only, so the authorize requests
+ * and token requests must be served by the same server.
+ * 
+ * @author zqxu
+ */
+public class MemoryAuthCodeStore implements AuthCodeStore {
+  private static final int PROBES = 8;
+  private final LongAdder overwriteCount = new LongAdder();
+  private volatile AtomicReferenceArray<Code> slots = new AtomicReferenceArray<Code>(65536);
+  private long expireIn = 60000L;
+
+  /**
+   * get authorization code expire time
+   * 
+   * @return expire time in millisecond
+   */
+  public long getExpireIn() {
+    return expireIn;
+  }
+
+  /**
+   * set authorization code expire time, default is 1 minute
+   * 
+   * @param expireIn
+   *          expire time in millisecond
+   */
+  public void setExpireIn(long expireIn) {
+    this.expireIn = expireIn;
+  }
+
+  /**
+   * get table capacity
+   * 
+   * @return table capacity
+   */
+  public int getCapacity() {
+    return slots.length();
+  }
+
+  /**
+   * set table capacity, rounded up to power of 2, default is 65536, should be
+   * several times of the codes issued in expire time, changing this value
+   * drops all codes
+   * 
+   * @param capacity
+   *          table capacity
+   */
+  public void setCapacity(int capacity) {
+    if (capacity < PROBES)
+      throw new IllegalArgumentException("capacity must be at least " + PROBES);
+    slots = new AtomicReferenceArray<Code>(Integer.highestOneBit(capacity - 1) << 1);
+  }
+
+  /**
+   * get count of unexpired codes overwritten because the table is full
+   * 
+   * @return overwritten count
+   */
+  public long getOverwriteCount() {
+    return overwriteCount.sum();
+  }
+
+  @Override
+  public void put(String authCode, String clientId, Set<String> scopes) {
+    AtomicReferenceArray<Code> slots = this.slots;
+    long now = System.currentTimeMillis();
+    Code code = new Code(authCode, clientId, scopes, now + expireIn);
+    int mask = slots.length() - 1;
+    int start = spread(authCode.hashCode());
+    while (true) {
+      int victim = -1;
+      Code oldest = null;
+      for (int i = 0; i < PROBES; i++) {
+        int index = (start + i) & mask;
+        Code current = slots.get(index);
+        if (current == null || current.expireAt <= now) {
+          if (slots.compareAndSet(index, current, code))
+            return;
+        } else if (oldest == null || current.expireAt < oldest.expireAt) {
+          oldest = current;
+          victim = index;
+        }
+      }
+      if (victim >= 0 && slots.compareAndSet(victim, oldest, code)) {
+        overwriteCount.increment();
+        return;
+      }
+    }
+  }
+
+  @Override
+  public Set<String> consume(String authCode, String clientId) {
+    if (authCode == null)
+      return null;
+    AtomicReferenceArray<Code> slots = this.slots;
+    int mask = slots.length() - 1;
+    int start = spread(authCode.hashCode());
+    for (int i = 0; i < PROBES; i++) {
+      int index = (start + i) & mask;
+      Code current = slots.get(index);
+      if (current == null || !current.authCode.equals(authCode))
+        continue;
+      if (!current.clientId.equals(clientId)
+          || current.expireAt <= System.currentTimeMillis()
+          || !slots.compareAndSet(index, current, null))
+        return null;
+      return current.scopes;
+    }
+    return null;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static final class Code {
+    private final String authCode;
+    private final String clientId;
+    private final Set<String> scopes;
+    private final long expireAt;
+
+    Code(String authCode, String clientId, Set<String> scopes, long expireAt) {
+      this.authCode = authCode;
+      this.clientId = clientId;
+      this.scopes = scopes == null ? Collections.<String> emptySet()
+          : Collections.unmodifiableSet(new HashSet<String>(scopes));
+      this.expireAt = expireAt;
+    }
+  }
+}
@@ -0,0 +1,440 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.shiro.util.Destroyable;
+
+/**
+ * <p>
+ * Reference OAuthService implementation which keeps authorization codes,
+ * access tokens and refresh tokens in memory. The tokens are kept in
+ * concurrent hash maps, so the token checking never locks, the expired tokens
+ * are removed by a hierarchical timing wheel instead of scanning.
+ * </p>
+ * <p>
+ * The application need to extends this class to provide client and scope
+ * verification, all tokens will be lost when the application restarts.
+ * </p>
+ * <p>
+ * The {@link OAuthGrantService} operations consume the authorization code or
+ * refresh token atomically, so concurrent requests with the same code or
+ * refresh token get only one grant.
+ * </p>
+ * <p>
+ * add this service in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthService = &lt;custom class extends MemoryOAuthService&gt;<br>
+ * oAuthService.accessTokenExpireIn = 3600000<br>
+ * oTokenFilter.oAuthService = $oAuthService<br>
+ * </p>
+ *
+ * @author zqxu
+ */
+public abstract class MemoryOAuthService
+    implements OAuthService, OAuthGrantService, Destroyable {
+  static final int AUTH_CODE = 0;
+  static final int ACCESS_TOKEN = 1;
+  static final int REFRESH_TOKEN = 2;
+  private final ConcurrentMap<String, Grant> authCodes = new ConcurrentHashMap<String, Grant>();
+  private final ConcurrentMap<String, Grant> accessTokens = new ConcurrentHashMap<String, Grant>();
+  private final ConcurrentMap<String, Grant> refreshTokens = new ConcurrentHashMap<String, Grant>();
+  private final TimingWheel timingWheel;
+  private long authCodeExpireIn = 60 * 1000L;
+  private long accessTokenExpireIn = 60 * 60 * 1000L;
+  private long refreshTokenExpireIn = 30 * 24 * 60 * 60 * 1000L;
+  private boolean refreshTokenSupported = true;
+
+  /**
+   * Constructor, the timing wheel ticks every second
+   */
+  public MemoryOAuthService() {
+    this(1000L);
+  }
+
+  /**
+   * Constructor with the timing wheel tick duration
+   *
+   * @param tickMillis
+   *          tick duration in millisecond, expired token will be removed
+   *          within one tick
+   */
+  public MemoryOAuthService(long tickMillis) {
+    timingWheel = new TimingWheel(tickMillis, "MemoryOAuthService-expiry");
+  }
+
+  /**
+   * get authorization code expire time
+   *
+   * @return authorization code expire time in millisecond
+   */
+  public long getAuthCodeExpireIn() {
+    return authCodeExpireIn;
+  }
+
+  /**
+   * set authorization code expire time, default is 1 minute
+   *
+   * @param authCodeExpireIn
+   *          authorization code expire time in millisecond
+   */
+  public void setAuthCodeExpireIn(long authCodeExpireIn) {
+    this.authCodeExpireIn = authCodeExpireIn;
+  }
+
+  /**
+   * get access token expire time
+   *
+   * @return access token expire time in millisecond
+   */
+  public long getAccessTokenExpireIn() {
+    return accessTokenExpireIn;
+  }
+
+  /**
+   * set access token expire time, default is 1 hour
+   *
+   * @param accessTokenExpireIn
+   *          access token expire time in millisecond
+   */
+  public void setAccessTokenExpireIn(long accessTokenExpireIn) {
+    this.accessTokenExpireIn = accessTokenExpireIn;
+  }
+
+  /**
+   * get refresh token expire time
+   *
+   * @return refresh token expire time in millisecond
+   */
+  public long getRefreshTokenExpireIn() {
+    return refreshTokenExpireIn;
+  }
+
+  /**
+   * set refresh token expire time, default is 30 days
+   *
+   * @param refreshTokenExpireIn
+   *          refresh token expire time in millisecond
+   */
+  public void setRefreshTokenExpireIn(long refreshTokenExpireIn) {
+    this.refreshTokenExpireIn = refreshTokenExpireIn;
+  }
+
+  /**
+   * set whether refresh token supported, default is true
+   *
+   * @param refreshTokenSupported
+   *          true if refresh token supported
+   */
+  public void setRefreshTokenSupported(boolean refreshTokenSupported) {
+    this.refreshTokenSupported = refreshTokenSupported;
+  }
+
+  @Override
+  public boolean refreshTokenSupported() {
+    return refreshTokenSupported;
+  }
+
+  @Override
+  public void addAuthCode(String authCode, String clientId, Set<String> scopes) {
+    store(authCodes, authCode, clientId, scopes, null, authCodeExpireIn);
+  }
+
+  @Override
+  public boolean checkAuthCode(String authCode, String clientId) {
+    return isValid(authCodes, authCode, clientId);
+  }
+
+  /**
+   * the authorization code will be removed, it can not be used again.
+   *
+   * @throws IllegalStateException
+   *           if the authorization code already used or expired
+   */
+  @Override
+  public void addAcessToken(String accessToken, String authCode) {
+    Grant code = remove(authCodes, authCode);
+    if (code == null || code.isExpired(System.currentTimeMillis()))
+      throw new IllegalStateException("authorization code already used or expired");
+    store(accessTokens, accessToken, code.clientId, code.scopes, null, accessTokenExpireIn);
+  }
+
+  @Override
+  public boolean clientTokenSupported() {
+    return true;
+  }
+
+  @Override
+  public void addClientToken(String accessToken, String clientId, Set<String> scopes) {
+    store(accessTokens, accessToken, clientId, scopes, null, accessTokenExpireIn);
+  }
+
+  /**
+   * returns the remaining time of the access token, or 0 if the access token
+   * does not exist or expired
+   */
+  @Override
+  public long getExpireIn(String accessToken) {
+    Grant grant = lookup(accessTokens, accessToken);
+    if (grant == null)
+      return 0;
+    return Math.max(0, grant.expireAt - System.currentTimeMillis());
+  }
+
+  @Override
+  public void addRefreshToken(String refreshToken, String accessToken) {
+    Grant access = lookup(accessTokens, accessToken);
+    if (access == null)
+      throw new IllegalStateException("access token does not exist");
+    store(refreshTokens, refreshToken, access.clientId, access.scopes, accessToken,
+        refreshTokenExpireIn);
+  }
+
+  @Override
+  public boolean checkRefreshToken(String refreshToken, String clientId) {
+    return isValid(refreshTokens, refreshToken, clientId);
+  }
+
+  /**
+   * the refresh token and the access token issued with it will be removed, the
+   * client will get new refresh token with the new access token.
+   *
+   * @throws IllegalStateException
+   *           if the refresh token already used or expired
+   */
+  @Override
+  public void refreshAccessToken(String accessToken, String refreshToken) {
+    Grant refresh = remove(refreshTokens, refreshToken);
+    if (refresh == null || refresh.isExpired(System.currentTimeMillis()))
+      throw new IllegalStateException("refresh token already used or expired");
+    remove(accessTokens, refresh.accessToken);
+    store(accessTokens, accessToken, refresh.clientId, refresh.scopes, null, accessTokenExpireIn);
+  }
+
+  @Override
+  public ClientStatus authenticateClient(String clientId, String secret) {
+    if (!checkClient(clientId))
+      return ClientStatus.INVALID_CLIENT;
+    if (!checkClient(clientId, secret))
+      return ClientStatus.UNAUTHORIZED_CLIENT;
+    return ClientStatus.VALID;
+  }
+
+  @Override
+  public OAuthGrant exchangeAuthCode(String clientId, String authCode, String accessToken,
+      String refreshToken) {
+    Grant code = consume(authCodes, authCode, clientId);
+    if (code == null)
+      return null;
+    store(accessTokens, accessToken, code.clientId, code.scopes, null, accessTokenExpireIn);
+    return issueRefreshToken(code.clientId, code.scopes, accessToken, refreshToken);
+  }
+
+  @Override
+  public OAuthGrant issueTokens(String authCode, String clientId, Set<String> scopes,
+      String accessToken, String refreshToken) {
+    store(accessTokens, accessToken, clientId, scopes, null, accessTokenExpireIn);
+    return issueRefreshToken(clientId, scopes, accessToken, refreshToken);
+  }
+
+  @Override
+  public OAuthGrant issueClientToken(String clientId, Set<String> scopes, String accessToken) {
+    store(accessTokens, accessToken, clientId, scopes, null, accessTokenExpireIn);
+    return new OAuthGrant(accessToken, null, accessTokenExpireIn);
+  }
+
+  @Override
+  public OAuthGrant exchangeRefreshToken(String clientId, String refreshToken,
+      String accessToken, String newRefreshToken) {
+    Grant refresh = consume(refreshTokens, refreshToken, clientId);
+    if (refresh == null)
+      return null;
+    remove(accessTokens, refresh.accessToken);
+    store(accessTokens, accessToken, refresh.clientId, refresh.scopes, null, accessTokenExpireIn);
+    return issueRefreshToken(refresh.clientId, refresh.scopes, accessToken, newRefreshToken);
+  }
+
+  @Override
+  public boolean checkAccessToken(String accessToken, HttpServletRequest request) {
+    return lookup(accessTokens, accessToken) != null;
+  }
+
+  @Override
+  public String getClientId(String accessToken) {
+    Grant grant = lookup(accessTokens, accessToken);
+    if (grant == null)
+      return null;
+    return grant.clientId;
+  }
+
+  @Override
+  public Set<String> getScopes(String accessToken) {
+    Grant grant = lookup(accessTokens, accessToken);
+    if (grant == null)
+      return null;
+    return grant.scopes;
+  }
+
+  @Override
+  public Set<String> getAuthCodeScopes(String authCode, String clientId) {
+    Grant grant = lookup(authCodes, authCode);
+    if (grant == null || !grant.clientId.equals(clientId))
+      return null;
+    return grant.scopes;
+  }
+
+  @Override
+  public Set<String> getRefreshTokenScopes(String refreshToken, String clientId) {
+    Grant grant = lookup(refreshTokens, refreshToken);
+    if (grant == null || !grant.clientId.equals(clientId))
+      return null;
+    return grant.scopes;
+  }
+
+  /**
+   * stop the expiration timer, should be called when the service is no longer
+   * used
+   */
+  @Override
+  public void destroy() {
+    timingWheel.stop();
+  }
+
+  /**
+   * called before the grant is put into memory, for persistent subclass
+   */
+  void stored(int kind, Grant grant) {
+  }
+
+  /**
+   * called after the grant is removed from memory, not called on expire, for
+   * persistent subclass
+   */
+  void removed(int kind, Grant grant) {
+  }
+
+  /**
+   * put the grant loaded by persistent subclass into memory without calling
+   * {@link #stored(int, Grant)}
+   */
+  void restore(int kind, String token, String clientId, Set<String> scopes, String accessToken,
+      long expireAt) {
+    if (expireAt > System.currentTimeMillis())
+      put(tokens(kind), new Grant(tokens(kind), token, clientId, scopes, accessToken, expireAt));
+  }
+
+  /**
+   * find the valid grant in memory, for persistent subclass
+   */
+  Grant find(int kind, String token) {
+    return lookup(tokens(kind), token);
+  }
+
+  private ConcurrentMap<String, Grant> tokens(int kind) {
+    return kind == AUTH_CODE ? authCodes : kind == ACCESS_TOKEN ? accessTokens : refreshTokens;
+  }
+
+  private int kind(ConcurrentMap<String, Grant> tokens) {
+    return tokens == authCodes ? AUTH_CODE : tokens == accessTokens ? ACCESS_TOKEN : REFRESH_TOKEN;
+  }
+
+  private void store(ConcurrentMap<String, Grant> tokens, String token, String clientId,
+      Set<String> scopes, String accessToken, long expireIn) {
+    Grant grant = new Grant(tokens, token, clientId, scopes, accessToken,
+        System.currentTimeMillis() + expireIn);
+    stored(kind(tokens), grant);
+    put(tokens, grant);
+  }
+
+  private void put(ConcurrentMap<String, Grant> tokens, Grant grant) {
+    Grant replaced = tokens.put(grant.token, grant);
+    if (replaced != null)
+      timingWheel.cancel(replaced);
+    timingWheel.schedule(grant, grant.expireAt);
+  }
+
+  private OAuthGrant issueRefreshToken(String clientId, Set<String> scopes, String accessToken,
+      String refreshToken) {
+    if (refreshTokenSupported)
+      store(refreshTokens, refreshToken, clientId, scopes, accessToken, refreshTokenExpireIn);
+    else
+      refreshToken = null;
+    return new OAuthGrant(accessToken, refreshToken, accessTokenExpireIn);
+  }
+
+  /**
+   * remove the token if it belongs to the client and not expired
+   */
+  private Grant consume(ConcurrentMap<String, Grant> tokens, String token, String clientId) {
+    Grant grant = lookup(tokens, token);
+    if (grant == null || !grant.clientId.equals(clientId) || !tokens.remove(token, grant))
+      return null;
+    timingWheel.cancel(grant);
+    removed(kind(tokens), grant);
+    return grant;
+  }
+
+  private Grant remove(ConcurrentMap<String, Grant> tokens, String token) {
+    if (token == null)
+      return null;
+    Grant grant = tokens.remove(token);
+    if (grant != null) {
+      timingWheel.cancel(grant);
+      removed(kind(tokens), grant);
+    }
+    return grant;
+  }
+
+  private boolean isValid(ConcurrentMap<String, Grant> tokens, String token, String clientId) {
+    Grant grant = lookup(tokens, token);
+    return grant != null && grant.clientId.equals(clientId);
+  }
+
+  private Grant lookup(ConcurrentMap<String, Grant> tokens, String token) {
+    if (token == null)
+      return null;
+    Grant grant = tokens.get(token);
+    if (grant == null || grant.isExpired(System.currentTimeMillis()))
+      return null;
+    return grant;
+  }
+
+  /**
+   * Token grant information, removes itself from the owner map on expire.
+   *
+   * @author zqxu
+   */
+  static final class Grant extends TimingWheel.Entry {
+    final ConcurrentMap<String, Grant> owner;
+    final String token;
+    final String clientId;
+    final Set<String> scopes;
+    final String accessToken;
+    final long expireAt;
+
+    Grant(ConcurrentMap<String, Grant> owner, String token, String clientId, Set<String> scopes,
+        String accessToken, long expireAt) {
+      this.owner = owner;
+      this.token = token;
+      this.clientId = clientId;
+      this.scopes = scopes == null ? Collections.<String> emptySet()
+          : Collections.unmodifiableSet(new HashSet<String>(scopes));
+      this.accessToken = accessToken;
+      this.expireAt = expireAt;
+    }
+
+    boolean isExpired(long now) {
+      return now >= expireAt;
+    }
+
+    @Override
+    protected void expire() {
+      owner.remove(token, this);
+    }
+  }
+}
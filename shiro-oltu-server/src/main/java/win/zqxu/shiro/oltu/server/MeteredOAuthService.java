@@ -0,0 +1,408 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>
+ * OAuthService decorator which records the latency of each method of the
+ * backing OAuthService into {@link OAuthMetrics}. The composite operations of
+ * {@link OAuthGrantService} are passed to the backing OAuthService if it
+ * implements OAuthGrantService, otherwise to the
+ * {@link OAuthGrantServiceAdapter}, and recorded as a whole.
+ * </p>
+ * <p>
+ * add this service in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthService = &lt;custom oAuthService class&gt;<br>
+ * meteredService = win.zqxu.shiro.oltu.server.MeteredOAuthService<br>
+ * meteredService.oAuthService = $oAuthService<br>
+ * meteredService.metrics = $oAuthMetrics<br>
+ * oTokenFilter.oAuthService = $meteredService<br>
+ * </p>
+ * 
+ * @author zqxu
+ */
+public class MeteredOAuthService implements OAuthService, OAuthGrantService {
+  private OAuthService oAuthService;
+  private OAuthGrantService grantService;
+  private OAuthMetrics metrics;
+  private LatencyHistogram checkClientTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram checkSecretTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram scopeRequiredTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram checkScopeTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram checkScopesTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram confirmationTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram addAuthCodeTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram checkAuthCodeTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram addAccessTokenTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram addClientTokenTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram getExpireInTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram addRefreshTokenTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram checkRefreshTokenTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram refreshAccessTokenTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram checkAccessTokenTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram getClientIdTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram getScopesTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram introspectTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram authenticateClientTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram exchangeAuthCodeTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram exchangeRefreshTokenTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram issueTokensTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram issueClientTokenTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram getAuthCodeScopesTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram getRefreshTokenScopesTime = LatencyHistogram.DISABLED;
+
+  /**
+   * Constructor, the backing OAuthService and metrics must be set before use
+   */
+  public MeteredOAuthService() {
+  }
+
+  /**
+   * Constructor with the backing OAuthService and metrics
+   * 
+   * @param oAuthService
+   *          the backing OAuthService
+   * @param metrics
+   *          metrics to record into
+   */
+  public MeteredOAuthService(OAuthService oAuthService, OAuthMetrics metrics) {
+    setoAuthService(oAuthService);
+    setMetrics(metrics);
+  }
+
+  /**
+   * get the backing OAuthService
+   * 
+   * @return the backing OAuthService
+   */
+  public OAuthService getoAuthService() {
+    return oAuthService;
+  }
+
+  /**
+   * set the backing OAuthService
+   * 
+   * @param oAuthService
+   *          the backing OAuthService
+   */
+  public void setoAuthService(OAuthService oAuthService) {
+    this.oAuthService = oAuthService;
+    this.grantService = OAuthGrantServiceAdapter.adapt(oAuthService);
+  }
+
+  /**
+   * get metrics
+   * 
+   * @return metrics
+   */
+  public OAuthMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * set metrics to record into
+   * 
+   * @param metrics
+   *          metrics
+   */
+  public void setMetrics(OAuthMetrics metrics) {
+    this.metrics = metrics;
+    checkClientTime = histogram(metrics, "checkClient");
+    checkSecretTime = histogram(metrics, "checkClientSecret");
+    scopeRequiredTime = histogram(metrics, "scopeRequired");
+    checkScopeTime = histogram(metrics, "checkScope");
+    checkScopesTime = histogram(metrics, "checkScopes");
+    confirmationTime = histogram(metrics, "confirmationURI");
+    addAuthCodeTime = histogram(metrics, "addAuthCode");
+    checkAuthCodeTime = histogram(metrics, "checkAuthCode");
+    addAccessTokenTime = histogram(metrics, "addAccessToken");
+    addClientTokenTime = histogram(metrics, "addClientToken");
+    getExpireInTime = histogram(metrics, "getExpireIn");
+    addRefreshTokenTime = histogram(metrics, "addRefreshToken");
+    checkRefreshTokenTime = histogram(metrics, "checkRefreshToken");
+    refreshAccessTokenTime = histogram(metrics, "refreshAccessToken");
+    checkAccessTokenTime = histogram(metrics, "checkAccessToken");
+    getClientIdTime = histogram(metrics, "getClientId");
+    getScopesTime = histogram(metrics, "getScopes");
+    introspectTime = histogram(metrics, "introspectAccessTokens");
+    authenticateClientTime = histogram(metrics, "authenticateClient");
+    exchangeAuthCodeTime = histogram(metrics, "exchangeAuthCode");
+    exchangeRefreshTokenTime = histogram(metrics, "exchangeRefreshToken");
+    issueTokensTime = histogram(metrics, "issueTokens");
+    issueClientTokenTime = histogram(metrics, "issueClientToken");
+    getAuthCodeScopesTime = histogram(metrics, "getAuthCodeScopes");
+    getRefreshTokenScopesTime = histogram(metrics, "getRefreshTokenScopes");
+  }
+
+  private static LatencyHistogram histogram(OAuthMetrics metrics, String method) {
+    return metrics == null ? LatencyHistogram.DISABLED : metrics.service(method);
+  }
+
+  @Override
+  public boolean checkClient(String clientId) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.checkClient(clientId);
+    } finally {
+      checkClientTime.lap(start);
+    }
+  }
+
+  @Override
+  public boolean checkClient(String clientId, String secret) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.checkClient(clientId, secret);
+    } finally {
+      checkSecretTime.lap(start);
+    }
+  }
+
+  @Override
+  public boolean scopeRequired(String clientId) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.scopeRequired(clientId);
+    } finally {
+      scopeRequiredTime.lap(start);
+    }
+  }
+
+  @Override
+  public boolean checkScope(String clientId, String scope) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.checkScope(clientId, scope);
+    } finally {
+      checkScopeTime.lap(start);
+    }
+  }
+
+  @Override
+  public String checkScopes(String clientId, Set<String> scopes) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.checkScopes(clientId, scopes);
+    } finally {
+      checkScopesTime.lap(start);
+    }
+  }
+
+  @Override
+  public String confirmationURI(String clientId, Set<String> scopes) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.confirmationURI(clientId, scopes);
+    } finally {
+      confirmationTime.lap(start);
+    }
+  }
+
+  @Override
+  public void addAuthCode(String authCode, String clientId, Set<String> scopes) {
+    long start = System.nanoTime();
+    try {
+      oAuthService.addAuthCode(authCode, clientId, scopes);
+    } finally {
+      addAuthCodeTime.lap(start);
+    }
+  }
+
+  @Override
+  public boolean checkAuthCode(String authCode, String clientId) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.checkAuthCode(authCode, clientId);
+    } finally {
+      checkAuthCodeTime.lap(start);
+    }
+  }
+
+  @Override
+  public void addAcessToken(String accessToken, String authCode) {
+    long start = System.nanoTime();
+    try {
+      oAuthService.addAcessToken(accessToken, authCode);
+    } finally {
+      addAccessTokenTime.lap(start);
+    }
+  }
+
+  @Override
+  public boolean clientTokenSupported() {
+    return oAuthService.clientTokenSupported();
+  }
+
+  @Override
+  public void addClientToken(String accessToken, String clientId, Set<String> scopes) {
+    long start = System.nanoTime();
+    try {
+      oAuthService.addClientToken(accessToken, clientId, scopes);
+    } finally {
+      addClientTokenTime.lap(start);
+    }
+  }
+
+  @Override
+  public long getExpireIn(String accessToken) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.getExpireIn(accessToken);
+    } finally {
+      getExpireInTime.lap(start);
+    }
+  }
+
+  @Override
+  public boolean refreshTokenSupported() {
+    return oAuthService.refreshTokenSupported();
+  }
+
+  @Override
+  public void addRefreshToken(String refreshToken, String accessToken) {
+    long start = System.nanoTime();
+    try {
+      oAuthService.addRefreshToken(refreshToken, accessToken);
+    } finally {
+      addRefreshTokenTime.lap(start);
+    }
+  }
+
+  @Override
+  public boolean checkRefreshToken(String refreshToken, String clientId) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.checkRefreshToken(refreshToken, clientId);
+    } finally {
+      checkRefreshTokenTime.lap(start);
+    }
+  }
+
+  @Override
+  public void refreshAccessToken(String accessToken, String refreshToken) {
+    long start = System.nanoTime();
+    try {
+      oAuthService.refreshAccessToken(accessToken, refreshToken);
+    } finally {
+      refreshAccessTokenTime.lap(start);
+    }
+  }
+
+  @Override
+  public boolean checkAccessToken(String accessToken, HttpServletRequest request) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.checkAccessToken(accessToken, request);
+    } finally {
+      checkAccessTokenTime.lap(start);
+    }
+  }
+
+  @Override
+  public String getClientId(String accessToken) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.getClientId(accessToken);
+    } finally {
+      getClientIdTime.lap(start);
+    }
+  }
+
+  @Override
+  public Set<String> getScopes(String accessToken) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.getScopes(accessToken);
+    } finally {
+      getScopesTime.lap(start);
+    }
+  }
+
+  @Override
+  public TokenInfo[] introspectAccessTokens(String[] accessTokens,
+      HttpServletRequest request) {
+    long start = System.nanoTime();
+    try {
+      return oAuthService.introspectAccessTokens(accessTokens, request);
+    } finally {
+      introspectTime.lap(start);
+    }
+  }
+
+  @Override
+  public ClientStatus authenticateClient(String clientId, String secret) {
+    long start = System.nanoTime();
+    try {
+      return grantService.authenticateClient(clientId, secret);
+    } finally {
+      authenticateClientTime.lap(start);
+    }
+  }
+
+  @Override
+  public OAuthGrant exchangeAuthCode(String clientId, String authCode, String accessToken,
+      String refreshToken) {
+    long start = System.nanoTime();
+    try {
+      return grantService.exchangeAuthCode(clientId, authCode, accessToken, refreshToken);
+    } finally {
+      exchangeAuthCodeTime.lap(start);
+    }
+  }
+
+  @Override
+  public OAuthGrant exchangeRefreshToken(String clientId, String refreshToken,
+      String accessToken, String newRefreshToken) {
+    long start = System.nanoTime();
+    try {
+      return grantService.exchangeRefreshToken(clientId, refreshToken, accessToken,
+          newRefreshToken);
+    } finally {
+      exchangeRefreshTokenTime.lap(start);
+    }
+  }
+
+  @Override
+  public OAuthGrant issueTokens(String authCode, String clientId, Set<String> scopes,
+      String accessToken, String refreshToken) {
+    long start = System.nanoTime();
+    try {
+      return grantService.issueTokens(authCode, clientId, scopes, accessToken, refreshToken);
+    } finally {
+      issueTokensTime.lap(start);
+    }
+  }
+
+  @Override
+  public OAuthGrant issueClientToken(String clientId, Set<String> scopes, String accessToken) {
+    long start = System.nanoTime();
+    try {
+      return grantService.issueClientToken(clientId, scopes, accessToken);
+    } finally {
+      issueClientTokenTime.lap(start);
+    }
+  }
+
+  @Override
+  public Set<String> getAuthCodeScopes(String authCode, String clientId) {
+    long start = System.nanoTime();
+    try {
+      return grantService.getAuthCodeScopes(authCode, clientId);
+    } finally {
+      getAuthCodeScopesTime.lap(start);
+    }
+  }
+
+  @Override
+  public Set<String> getRefreshTokenScopes(String refreshToken, String clientId) {
+    long start = System.nanoTime();
+    try {
+      return grantService.getRefreshTokenScopes(refreshToken, clientId);
+    } finally {
+      getRefreshTokenScopesTime.lap(start);
+    }
+  }
+}
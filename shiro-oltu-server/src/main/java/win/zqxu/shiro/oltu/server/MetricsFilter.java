@@ -0,0 +1,66 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.web.servlet.AdviceFilter;
+
+/**
+ * A SHIRO filter for scraping {@link OAuthMetrics} in Prometheus text format.
+ * 
+ * <p>
+ * add this filter in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthMetrics = win.zqxu.shiro.oltu.server.OAuthMetrics<br>
+ * oMetricsFilter = win.zqxu.shiro.oltu.server.MetricsFilter<br>
+ * oMetricsFilter.metrics = $oAuthMetrics<br>
+ * <br>
+ * [urls]<br>
+ * &#47;oauth&#47;metrics = oMetricsFilter
+ * </p>
+ * Note that the metrics filter should be protected or only reachable from the
+ * monitoring network
+ * 
+ * @author zqxu
+ */
+public class MetricsFilter extends AdviceFilter {
+  private static final String CONTENT_TYPE = "text/plain;version=0.0.4;charset=UTF-8";
+  private OAuthMetrics metrics;
+
+  /**
+   * get metrics
+   * 
+   * @return metrics
+   */
+  public OAuthMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * set metrics to export
+   * 
+   * @param metrics
+   *          metrics
+   */
+  public void setMetrics(OAuthMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  protected boolean preHandle(ServletRequest request, ServletResponse response) throws Exception {
+    StringBuilder out = new StringBuilder(8192);
+    if (metrics != null)
+      metrics.writePrometheus(out);
+    byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+    httpResponse.setStatus(HttpServletResponse.SC_OK);
+    httpResponse.setContentType(CONTENT_TYPE);
+    httpResponse.setContentLength(body.length);
+    httpResponse.setHeader("Cache-Control", "no-store");
+    httpResponse.getOutputStream().write(body);
+    return false;
+  }
+}
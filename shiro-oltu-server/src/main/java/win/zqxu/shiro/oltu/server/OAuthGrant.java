@@ -0,0 +1,56 @@
+package win.zqxu.shiro.oltu.server;
+
+/**
+ * Result of a token issuance through {@link OAuthGrantService}, carries
+ * everything the token response needs.
+ * 
+ * @author zqxu
+ */
+public class OAuthGrant {
+  private final String accessToken;
+  private final String refreshToken;
+  private final long expireIn;
+
+  /**
+   * Constructor
+   * 
+   * @param accessToken
+   *          the issued access token
+   * @param refreshToken
+   *          the issued refresh token, or null if refresh token not supported
+   * @param expireIn
+   *          access token expire time in millisecond
+   */
+  public OAuthGrant(String accessToken, String refreshToken, long expireIn) {
+    this.accessToken = accessToken;
+    this.refreshToken = refreshToken;
+    this.expireIn = expireIn;
+  }
+
+  /**
+   * get the issued access token
+   * 
+   * @return access token
+   */
+  public String getAccessToken() {
+    return accessToken;
+  }
+
+  /**
+   * get the issued refresh token
+   * 
+   * @return refresh token, or null if refresh token not supported
+   */
+  public String getRefreshToken() {
+    return refreshToken;
+  }
+
+  /**
+   * get access token expire time
+   * 
+   * @return access token expire time in millisecond
+   */
+  public long getExpireIn() {
+    return expireIn;
+  }
+}
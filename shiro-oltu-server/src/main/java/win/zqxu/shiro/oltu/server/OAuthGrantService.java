@@ -0,0 +1,196 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Set;
+
+/**
+ * <p>
+ * Extended SPI for token issuance with composite operations, each token
+ * request needs at most two calls, one to authenticate the client and one to
+ * exchange the grant. Implement this interface together with
+ * {@link OAuthService} if each OAuthService call is a round trip to a remote
+ * backing store.
+ * </p>
+ * <p>
+ * {@link TokenFilter} uses this interface directly if the OAuthService object
+ * implements it, otherwise wraps the OAuthService object by
+ * {@link OAuthGrantServiceAdapter}.
+ * </p>
+ * <p>
+ * Note that the implementation may need to handling synchronization problems.
+ * </p>
+ * 
+ * @author zqxu
+ *
+ */
+public interface OAuthGrantService {
+  /**
+   * Client authentication result
+   */
+  enum ClientStatus {
+    /**
+     * client id and secret are valid
+     */
+    VALID,
+    /**
+     * client id is invalid
+     */
+    INVALID_CLIENT,
+    /**
+     * client id is valid but secret is invalid
+     */
+    UNAUTHORIZED_CLIENT
+  }
+
+  /**
+   * Authenticate client by client id and secret
+   * 
+   * @param clientId
+   *          client id
+   * @param secret
+   *          client secret
+   * @return client authentication result
+   */
+  ClientStatus authenticateClient(String clientId, String secret);
+
+  /**
+   * Determine whether the implementation class supported refresh token, this
+   * method should not need a round trip.
+   * 
+   * @return true if the implementation class supported refresh token
+   */
+  boolean refreshTokenSupported();
+
+  /**
+   * Check the authorization code and exchange it for access token and
+   * refresh token in one call.
+   * 
+   * @param clientId
+   *          authenticated client id
+   * @param authCode
+   *          authorization code
+   * @param accessToken
+   *          new access token
+   * @param refreshToken
+   *          new refresh token, should be ignored if refresh token not
+   *          supported
+   * @return the grant, or null if the authorization code is invalid
+   */
+  OAuthGrant exchangeAuthCode(String clientId, String authCode, String accessToken,
+      String refreshToken);
+
+  /**
+   * Issue access token and refresh token for an authorization code already
+   * consumed from the {@link AuthCodeStore}, the authorization code itself was
+   * never added to this service. The default implementation throws
+   * UnsupportedOperationException, the token filter then answers
+   * unsupported_grant_type, override this method if the token filter uses an
+   * authorization code store.
+   * 
+   * @param authCode
+   *          the consumed authorization code
+   * @param clientId
+   *          authenticated client id
+   * @param scopes
+   *          scopes of the authorization code
+   * @param accessToken
+   *          new access token
+   * @param refreshToken
+   *          new refresh token, should be ignored if refresh token not
+   *          supported
+   * @return the grant
+   * @throws UnsupportedOperationException
+   *           if the implementation can not issue tokens without
+   *           authorization code
+   */
+  default OAuthGrant issueTokens(String authCode, String clientId, Set<String> scopes,
+      String accessToken, String refreshToken) {
+    throw new UnsupportedOperationException("authorization code store not supported");
+  }
+
+  /**
+   * Issue access token to the authenticated client by client credentials grant,
+   * no refresh token is issued with it. The default implementation throws
+   * UnsupportedOperationException, the token filter then answers
+   * unsupported_grant_type, override this method if the token filter enables
+   * client credentials grant.
+   * 
+   * @param clientId
+   *          authenticated client id
+   * @param scopes
+   *          requested scopes, can be empty
+   * @param accessToken
+   *          new access token
+   * @return the grant without refresh token
+   * @throws UnsupportedOperationException
+   *           if client credentials grant not supported
+   */
+  default OAuthGrant issueClientToken(String clientId, Set<String> scopes,
+      String accessToken) {
+    throw new UnsupportedOperationException("client credentials grant not supported");
+  }
+
+  /**
+   * Check the scopes requested by client credentials grant, {@link TokenFilter}
+   * calls it only if the grant service is not an {@link OAuthService}, which
+   * checks the scopes itself. The default implementation refuses any scope, so
+   * only tokens without scope are issued.
+   * 
+   * @param clientId
+   *          authenticated client id
+   * @param scopes
+   *          requested scopes, can be empty
+   * @return the first invalid scope, or null if all scopes are valid
+   */
+  default String checkClientScopes(String clientId, Set<String> scopes) {
+    return scopes.isEmpty() ? null : scopes.iterator().next();
+  }
+
+  /**
+   * Check the refresh token and exchange it for new access token and refresh
+   * token in one call.
+   * 
+   * @param clientId
+   *          authenticated client id
+   * @param refreshToken
+   *          the refresh token used to request access token
+   * @param accessToken
+   *          new access token
+   * @param newRefreshToken
+   *          new refresh token
+   * @return the grant, or null if the refresh token is invalid
+   */
+  OAuthGrant exchangeRefreshToken(String clientId, String refreshToken, String accessToken,
+      String newRefreshToken);
+
+  /**
+   * get scopes granted by the authorization code before it is exchanged,
+   * {@link TokenFilter} calls it only if a token signer is set or the token
+   * request has scope parameter. The default implementation returns null.
+   * 
+   * @param authCode
+   *          authorization code
+   * @param clientId
+   *          authenticated client id
+   * @return scopes, or null if the authorization code is not valid for the
+   *         client or not supported
+   */
+  default Set<String> getAuthCodeScopes(String authCode, String clientId) {
+    return null;
+  }
+
+  /**
+   * get scopes granted by the refresh token before it is exchanged,
+   * {@link TokenFilter} calls it only if a token signer is set or the token
+   * request has scope parameter. The default implementation returns null.
+   * 
+   * @param refreshToken
+   *          refresh token
+   * @param clientId
+   *          authenticated client id
+   * @return scopes, or null if the refresh token is not valid for the client
+   *         or not supported
+   */
+  default Set<String> getRefreshTokenScopes(String refreshToken, String clientId) {
+    return null;
+  }
+}
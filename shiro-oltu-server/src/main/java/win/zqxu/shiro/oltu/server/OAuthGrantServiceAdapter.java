@@ -0,0 +1,118 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Set;
+
+/**
+ * Adapt {@link OAuthService} to {@link OAuthGrantService}, each composite
+ * operation calls the OAuthService methods in the same order as the token
+ * filter used to. A plain OAuthService can not issue tokens without
+ * authorization code, so {@link #issueTokens} keeps the default and the token
+ * filter answers unsupported_grant_type if it uses an authorization code store.
+ * 
+ * @author zqxu
+ */
+public class OAuthGrantServiceAdapter implements OAuthGrantService {
+  private final OAuthService oAuthService;
+
+  /**
+   * Constructor
+   * 
+   * @param oAuthService
+   *          the adapted OAuthService
+   */
+  public OAuthGrantServiceAdapter(OAuthService oAuthService) {
+    this.oAuthService = oAuthService;
+  }
+
+  /**
+   * returns the OAuthService itself if it implements OAuthGrantService,
+   * otherwise wraps it by an adapter
+   * 
+   * @param oAuthService
+   *          the OAuthService
+   * @return the grant service, or null if oAuthService is null
+   */
+  public static OAuthGrantService adapt(OAuthService oAuthService) {
+    if (oAuthService == null)
+      return null;
+    if (oAuthService instanceof OAuthGrantService)
+      return (OAuthGrantService) oAuthService;
+    return new OAuthGrantServiceAdapter(oAuthService);
+  }
+
+  /**
+   * get the adapted OAuthService
+   * 
+   * @return the adapted OAuthService
+   */
+  public OAuthService getoAuthService() {
+    return oAuthService;
+  }
+
+  @Override
+  public ClientStatus authenticateClient(String clientId, String secret) {
+    if (!oAuthService.checkClient(clientId))
+      return ClientStatus.INVALID_CLIENT;
+    if (!oAuthService.checkClient(clientId, secret))
+      return ClientStatus.UNAUTHORIZED_CLIENT;
+    return ClientStatus.VALID;
+  }
+
+  @Override
+  public boolean refreshTokenSupported() {
+    return oAuthService.refreshTokenSupported();
+  }
+
+  @Override
+  public OAuthGrant exchangeAuthCode(String clientId, String authCode, String accessToken,
+      String refreshToken) {
+    if (!oAuthService.checkAuthCode(authCode, clientId))
+      return null;
+    oAuthService.addAcessToken(accessToken, authCode);
+    return issueRefreshToken(accessToken, refreshToken);
+  }
+
+  /**
+   * @throws UnsupportedOperationException
+   *           if the OAuthService does not support client tokens
+   */
+  @Override
+  public OAuthGrant issueClientToken(String clientId, Set<String> scopes, String accessToken) {
+    if (!oAuthService.clientTokenSupported())
+      throw new UnsupportedOperationException("client credentials grant not supported");
+    oAuthService.addClientToken(accessToken, clientId, scopes);
+    return new OAuthGrant(accessToken, null, oAuthService.getExpireIn(accessToken));
+  }
+
+  @Override
+  public String checkClientScopes(String clientId, Set<String> scopes) {
+    return oAuthService.checkScopes(clientId, scopes);
+  }
+
+  @Override
+  public OAuthGrant exchangeRefreshToken(String clientId, String refreshToken,
+      String accessToken, String newRefreshToken) {
+    if (!oAuthService.checkRefreshToken(refreshToken, clientId))
+      return null;
+    oAuthService.refreshAccessToken(accessToken, refreshToken);
+    return issueRefreshToken(accessToken, newRefreshToken);
+  }
+
+  @Override
+  public Set<String> getAuthCodeScopes(String authCode, String clientId) {
+    return oAuthService.getAuthCodeScopes(authCode, clientId);
+  }
+
+  @Override
+  public Set<String> getRefreshTokenScopes(String refreshToken, String clientId) {
+    return oAuthService.getRefreshTokenScopes(refreshToken, clientId);
+  }
+
+  private OAuthGrant issueRefreshToken(String accessToken, String refreshToken) {
+    if (oAuthService.refreshTokenSupported())
+      oAuthService.addRefreshToken(refreshToken, accessToken);
+    else
+      refreshToken = null;
+    return new OAuthGrant(accessToken, refreshToken, oAuthService.getExpireIn(accessToken));
+  }
+}
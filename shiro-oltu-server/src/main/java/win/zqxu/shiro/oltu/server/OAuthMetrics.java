@@ -0,0 +1,240 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Latency histograms and error counters of the filters. Each filter phase and
+ * each OAuthService method called through {@link MeteredOAuthService} has a
+ * histogram, the error responses are counted by OAuth error code. Recording
+ * does not allocate, the metrics are exported by JMX when initialized and by
+ * {@link MetricsFilter} in Prometheus text format.
+ * </p>
+ * <p>
+ * add the metrics in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthMetrics = win.zqxu.shiro.oltu.server.OAuthMetrics<br>
+ * meteredService = win.zqxu.shiro.oltu.server.MeteredOAuthService<br>
+ * meteredService.oAuthService = $oAuthService<br>
+ * meteredService.metrics = $oAuthMetrics<br>
+ * oAuthorizeFilter.metrics = $oAuthMetrics<br>
+ * oTokenFilter.metrics = $oAuthMetrics<br>
+ * oResourceFilter.metrics = $oAuthMetrics<br>
+ * oMetricsFilter = win.zqxu.shiro.oltu.server.MetricsFilter<br>
+ * oMetricsFilter.metrics = $oAuthMetrics<br>
+ * </p>
+ * Note that the error responses are counted into the metrics of the filter
+ * writing them, the filters without metrics set do not count errors.
+ * 
+ * @author zqxu
+ */
+public class OAuthMetrics implements OAuthMetricsMXBean, Initializable, Destroyable {
+  static final String PHASE_METRIC = "oauth_filter_phase_seconds";
+  static final String SERVICE_METRIC = "oauth_service_seconds";
+  static final String ERROR_METRIC = "oauth_errors_total";
+  private static final Logger log = LoggerFactory.getLogger(OAuthMetrics.class);
+  private final ConcurrentMap<String, LatencyHistogram> histograms = //
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private final ConcurrentMap<String, LongAdder> errors = //
+      new ConcurrentHashMap<String, LongAdder>();
+  private String objectName = "win.zqxu.shiro.oltu:type=OAuthMetrics";
+  private ObjectName registeredName;
+
+  /**
+   * get JMX object name
+   * 
+   * @return JMX object name
+   */
+  public String getObjectName() {
+    return objectName;
+  }
+
+  /**
+   * set JMX object name, default is win.zqxu.shiro.oltu:type=OAuthMetrics,
+   * empty to disable JMX
+   * 
+   * @param objectName
+   *          JMX object name
+   */
+  public void setObjectName(String objectName) {
+    this.objectName = objectName;
+  }
+
+  /**
+   * register the metrics to the platform MBean server
+   */
+  @Override
+  public synchronized void init() {
+    if (objectName == null || objectName.isEmpty() || registeredName != null)
+      return;
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(objectName);
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+      server.registerMBean(this, name);
+      registeredName = name;
+    } catch (JMException ex) {
+      log.warn("can not register OAuth metrics to JMX", ex);
+    }
+  }
+
+  /**
+   * unregister the metrics from the platform MBean server
+   */
+  @Override
+  public synchronized void destroy() {
+    if (registeredName == null)
+      return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+    } catch (JMException ex) {
+      log.warn("can not unregister OAuth metrics from JMX", ex);
+    }
+    registeredName = null;
+  }
+
+  /**
+   * get histogram of the filter phase
+   */
+  LatencyHistogram phase(String filter, String phase) {
+    return histogram(filter + "." + phase, PHASE_METRIC,
+        "filter=\"" + filter + "\",phase=\"" + phase + "\"");
+  }
+
+  /**
+   * get histogram of the OAuthService method
+   */
+  LatencyHistogram service(String method) {
+    return histogram("service." + method, SERVICE_METRIC, "method=\"" + method + "\"");
+  }
+
+  /**
+   * count an error response
+   */
+  void error(String error) {
+    LongAdder count = errors.get(error);
+    if (count == null) {
+      errors.putIfAbsent(error, new LongAdder());
+      count = errors.get(error);
+    }
+    count.increment();
+  }
+
+  private LatencyHistogram histogram(String key, String name, String labels) {
+    LatencyHistogram histogram = histograms.get(key);
+    if (histogram == null) {
+      histograms.putIfAbsent(key, new LatencyHistogram(name, labels));
+      histogram = histograms.get(key);
+    }
+    return histogram;
+  }
+
+  /**
+   * write all metrics in Prometheus text format
+   * 
+   * @param out
+   *          the output
+   */
+  public void writePrometheus(StringBuilder out) {
+    Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(histograms);
+    writeHistograms(out, PHASE_METRIC, "latency of OAuth filter phases", sorted);
+    writeHistograms(out, SERVICE_METRIC, "latency of OAuthService methods", sorted);
+    out.append("# HELP ").append(ERROR_METRIC).append(" OAuth error responses\n");
+    out.append("# TYPE ").append(ERROR_METRIC).append(" counter\n");
+    for (Map.Entry<String, Long> entry : getErrorCounts().entrySet()) {
+      out.append(ERROR_METRIC).append("{error=\"").append(entry.getKey()).append("\"} ");
+      out.append(entry.getValue()).append('\n');
+    }
+  }
+
+  private static void writeHistograms(StringBuilder out, String name, String help,
+      Map<String, LatencyHistogram> histograms) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" histogram\n");
+    for (LatencyHistogram histogram : histograms.values()) {
+      if (!histogram.name.equals(name))
+        continue;
+      long[] counts = histogram.counts();
+      long cumulative = 0;
+      for (int i = 0; i < counts.length; i++) {
+        cumulative += counts[i];
+        out.append(name).append("_bucket{").append(histogram.labels).append(",le=\"");
+        if (i < LatencyHistogram.BOUNDS.length)
+          out.append(LatencyHistogram.BOUNDS[i]);
+        else
+          out.append("+Inf");
+        out.append("\"} ").append(cumulative).append('\n');
+      }
+      out.append(name).append("_sum{").append(histogram.labels).append("} ");
+      out.append(histogram.sumNanos() / 1e9).append('\n');
+      out.append(name).append("_count{").append(histogram.labels).append("} ");
+      out.append(cumulative).append('\n');
+    }
+  }
+
+  @Override
+  public Map<String, Long> getCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      long total = 0;
+      for (long count : entry.getValue().counts())
+        total += count;
+      result.put(entry.getKey(), total);
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Double> getMeanMillis() {
+    Map<String, Double> result = new TreeMap<String, Double>();
+    Map<String, Long> counts = getCounts();
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      Long count = counts.get(entry.getKey());
+      if (count != null && count > 0)
+        result.put(entry.getKey(), entry.getValue().sumNanos() / 1e6 / count);
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Double> getP99Millis() {
+    Map<String, Double> result = new TreeMap<String, Double>();
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      double p99 = entry.getValue().quantileMillis(0.99);
+      if (!Double.isNaN(p99))
+        result.put(entry.getKey(), p99);
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getErrorCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, LongAdder> entry : errors.entrySet())
+      result.put(entry.getKey(), entry.getValue().sum());
+    return result;
+  }
+
+  @Override
+  public void reset() {
+    for (LatencyHistogram histogram : histograms.values())
+      histogram.reset();
+    for (LongAdder count : errors.values())
+      count.reset();
+  }
+}
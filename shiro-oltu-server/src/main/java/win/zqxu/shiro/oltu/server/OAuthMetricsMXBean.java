@@ -0,0 +1,45 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link OAuthMetrics}, the timer names are filter.phase for
+ * filter phases and service.method for OAuthService methods.
+ * 
+ * @author zqxu
+ *
+ */
+public interface OAuthMetricsMXBean {
+  /**
+   * get count of recorded calls of each timer
+   * 
+   * @return call count by timer name
+   */
+  Map<String, Long> getCounts();
+
+  /**
+   * get mean latency of each timer
+   * 
+   * @return mean latency in millisecond by timer name
+   */
+  Map<String, Double> getMeanMillis();
+
+  /**
+   * get estimated 99th percentile latency of each timer
+   * 
+   * @return 99th percentile latency in millisecond by timer name
+   */
+  Map<String, Double> getP99Millis();
+
+  /**
+   * get count of error responses by OAuth error code
+   * 
+   * @return error count by error code
+   */
+  Map<String, Long> getErrorCounts();
+
+  /**
+   * reset all timers and error counters
+   */
+  void reset();
+}
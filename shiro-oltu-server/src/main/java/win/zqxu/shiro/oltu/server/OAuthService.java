@@ -63,6 +63,25 @@ public interface OAuthService {
    */
   boolean checkScope(String clientId, String scope);
 
+  /**
+   * Check all scopes in one call, the default implementation calls
+   * {@link #checkScope(String, String)} for each scope, override this method
+   * if each call is a round trip to a remote backing store
+   * 
+   * @param clientId
+   *          client id
+   * @param scopes
+   *          scopes
+   * @return the first invalid scope, or null if all scopes are valid
+   */
+  default String checkScopes(String clientId, Set<String> scopes) {
+    for (String scope : scopes) {
+      if (!checkScope(clientId, scope))
+        return scope;
+    }
+    return null;
+  }
+
   /**
    * confirmation URI for authorization code requisition, if not null, the
    * LIBRARY will redirect to this URI with <b>confirm_key</b> and
@@ -116,6 +135,37 @@ public interface OAuthService {
    */
   void addAcessToken(String accessToken, String authCode);
 
+  /**
+   * Determine whether the implementation class supported access tokens issued
+   * by client credentials grant, the default implementation returns false, so
+   * the token filter answers unsupported_grant_type without calling
+   * {@link #addClientToken(String, String, Set)}
+   * 
+   * @return true if the implementation class supported client tokens
+   */
+  default boolean clientTokenSupported() {
+    return false;
+  }
+
+  /**
+   * Client requested an access token by client credentials grant, the access
+   * token is issued to the client itself without authorization code. Called
+   * only if {@link #clientTokenSupported()} returns true.
+   * 
+   * @param accessToken
+   *          access token
+   * @param clientId
+   *          authenticated client id
+   * @param scopes
+   *          requested scopes, can be empty
+   * @throws UnsupportedOperationException
+   *           the default implementation always throws, services returning
+   *           true from {@link #clientTokenSupported()} must override it
+   */
+  default void addClientToken(String accessToken, String clientId, Set<String> scopes) {
+    throw new UnsupportedOperationException("client credentials grant not supported");
+  }
+
   /**
    * access token expire time in millisecond, the client should request new
    * access token after the access token expires.
@@ -176,4 +226,86 @@ public interface OAuthService {
    * @return true if the access token is valid
    */
   boolean checkAccessToken(String accessToken, HttpServletRequest request);
+
+  /**
+   * Check access tokens in one call, used by {@link IntrospectionFilter}. The
+   * default implementation checks each token by
+   * {@link #checkAccessToken(String, HttpServletRequest)}, then reads expire
+   * time, client id and scopes of the valid ones, override it if the tokens
+   * can be read from the backing store in one round trip.
+   * 
+   * @param accessTokens
+   *          access tokens
+   * @param request
+   *          HTTP request
+   * @return information of each access token in order, the element is null if
+   *         the access token is not valid
+   */
+  default TokenInfo[] introspectAccessTokens(String[] accessTokens,
+      HttpServletRequest request) {
+    TokenInfo[] infos = new TokenInfo[accessTokens.length];
+    for (int i = 0; i < accessTokens.length; i++) {
+      String token = accessTokens[i];
+      if (token != null && !token.isEmpty() && checkAccessToken(token, request))
+        infos[i] = new TokenInfo(getClientId(token), getScopes(token), getExpireIn(token));
+    }
+    return infos;
+  }
+
+  /**
+   * get client id of the access token, used by {@link BearerTokenRealm}. The
+   * default implementation returns null.
+   * 
+   * @param accessToken
+   *          access token
+   * @return client id, or null if the access token is not valid or not
+   *         supported
+   */
+  default String getClientId(String accessToken) {
+    return null;
+  }
+
+  /**
+   * get scopes of the access token, used by {@link BearerTokenRealm} as
+   * permissions of the subject. The default implementation returns null.
+   * 
+   * @param accessToken
+   *          access token
+   * @return scopes, or null if the access token is not valid or not supported
+   */
+  default Set<String> getScopes(String accessToken) {
+    return null;
+  }
+
+  /**
+   * get scopes granted by the authorization code before it is exchanged, used
+   * by {@link TokenFilter} to sign self-contained access tokens with the
+   * granted scopes. The default implementation returns null.
+   * 
+   * @param authCode
+   *          authorization code
+   * @param clientId
+   *          client id
+   * @return scopes, or null if the authorization code is not valid for the
+   *         client or not supported
+   */
+  default Set<String> getAuthCodeScopes(String authCode, String clientId) {
+    return null;
+  }
+
+  /**
+   * get scopes granted by the refresh token before it is exchanged, used by
+   * {@link TokenFilter} to sign self-contained access tokens with the granted
+   * scopes. The default implementation returns null.
+   * 
+   * @param refreshToken
+   *          refresh token
+   * @param clientId
+   *          client id
+   * @return scopes, or null if the refresh token is not valid for the client
+   *         or not supported
+   */
+  default Set<String> getRefreshTokenScopes(String refreshToken, String clientId) {
+    return null;
+  }
 }
@@ -0,0 +1,160 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Calls the partition store of a remote node, for internal use. Connections
+ * are pooled, each connection serves one call at a time, a connection failed
+ * in a call is closed and not reused, a connection idle for half of the server
+ * idle timeout is closed instead of reused since the server may close it.
+ *
+ * @author zqxu
+ */
+final class PartitionClient {
+  private final InetSocketAddress address;
+  private final HmacKey key;
+  private final int timeout;
+  private final long maxIdle;
+  private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+  private volatile boolean closed;
+
+  PartitionClient(InetSocketAddress address, HmacKey key, int timeout, int idleTimeout) {
+    this.address = address;
+    this.key = key;
+    this.timeout = timeout;
+    this.maxIdle = idleTimeout / 2;
+  }
+
+  void put(PartitionStore.Record record) throws IOException {
+    Connection connection = borrow();
+    try {
+      connection.out.writeByte(PartitionServer.OP_PUT);
+      record.write(connection.out);
+      connection.out.flush();
+      connection.in.readByte();
+      release(connection);
+    } catch (IOException ex) {
+      connection.close();
+      throw ex;
+    }
+  }
+
+  PartitionStore.Record get(int kind, String token) throws IOException {
+    Connection connection = borrow();
+    try {
+      connection.out.writeByte(PartitionServer.OP_GET);
+      connection.out.writeByte(kind);
+      connection.out.writeUTF(token);
+      connection.out.flush();
+      PartitionStore.Record record = readRecord(connection.in);
+      release(connection);
+      return record;
+    } catch (IOException ex) {
+      connection.close();
+      throw ex;
+    }
+  }
+
+  boolean remove(int kind, String token) throws IOException {
+    Connection connection = borrow();
+    try {
+      connection.out.writeByte(PartitionServer.OP_REMOVE);
+      connection.out.writeByte(kind);
+      connection.out.writeUTF(token);
+      connection.out.flush();
+      boolean removed = connection.in.readByte() == PartitionServer.STATUS_OK;
+      release(connection);
+      return removed;
+    } catch (IOException ex) {
+      connection.close();
+      throw ex;
+    }
+  }
+
+  PartitionStore.Record consume(int kind, String token, String clientId) throws IOException {
+    Connection connection = borrow();
+    try {
+      connection.out.writeByte(PartitionServer.OP_CONSUME);
+      connection.out.writeByte(kind);
+      connection.out.writeUTF(token);
+      connection.out.writeUTF(clientId);
+      connection.out.flush();
+      PartitionStore.Record record = readRecord(connection.in);
+      release(connection);
+      return record;
+    } catch (IOException ex) {
+      connection.close();
+      throw ex;
+    }
+  }
+
+  void close() {
+    closed = true;
+    Connection connection;
+    while ((connection = idle.poll()) != null)
+      connection.close();
+  }
+
+  private static PartitionStore.Record readRecord(DataInputStream in) throws IOException {
+    if (in.readByte() != PartitionServer.STATUS_OK)
+      return null;
+    return PartitionStore.Record.read(in);
+  }
+
+  private Connection borrow() throws IOException {
+    if (closed)
+      throw new IOException("partition client closed");
+    long now = System.currentTimeMillis();
+    Connection connection;
+    while ((connection = idle.poll()) != null) {
+      if (now - connection.releasedAt < maxIdle)
+        return connection;
+      connection.close();
+    }
+    return new Connection(address, key, timeout);
+  }
+
+  private void release(Connection connection) {
+    connection.releasedAt = System.currentTimeMillis();
+    idle.offer(connection);
+    if (closed)
+      close();
+  }
+
+  private static final class Connection {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private long releasedAt;
+
+    Connection(InetSocketAddress address, HmacKey key, int timeout) throws IOException {
+      socket = new Socket();
+      try {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(timeout);
+        socket.connect(address, timeout);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        PartitionServer.handshake(key, in, out);
+      } catch (IOException ex) {
+        socket.close();
+        throw ex;
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException ex) {
+        // ignore
+      }
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the local partition store to other nodes over TCP, for internal use.
+ * Each request is one operation byte followed by its arguments, each response
+ * is one status byte optionally followed by a record, connections are kept
+ * open and reused by {@link PartitionClient}.
+ * <p>
+ * Every connection starts with a mutual challenge-response handshake over the
+ * shared secret of the nodes, see {@link #authenticate}. Each connection is
+ * served by its own thread, at most maxConnections connections are served, the
+ * others are closed at once, and connections idle longer than idleTimeout are
+ * closed.
+ * </p>
+ *
+ * @author zqxu
+ */
+final class PartitionServer {
+  static final int OP_PUT = 1;
+  static final int OP_GET = 2;
+  static final int OP_REMOVE = 3;
+  static final int OP_CONSUME = 4;
+  static final int STATUS_MISSING = 0;
+  static final int STATUS_OK = 1;
+  static final int NONCE_LENGTH = 16;
+  private static final byte[] CLIENT_PROOF = { 'C' };
+  private static final byte[] SERVER_PROOF = { 'S' };
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private static final Logger log = LoggerFactory.getLogger(PartitionServer.class);
+  private final PartitionStore store;
+  private final InetSocketAddress address;
+  private final HmacKey key;
+  private final int maxConnections;
+  private final int timeout;
+  private final int idleTimeout;
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  private ServerSocket serverSocket;
+  private ThreadPoolExecutor executor;
+
+  /**
+   * @param key
+   *          shared secret of the nodes
+   * @param maxConnections
+   *          maximum connections served at the same time
+   * @param timeout
+   *          handshake timeout in millisecond
+   * @param idleTimeout
+   *          idle connection timeout in millisecond
+   */
+  PartitionServer(PartitionStore store, InetSocketAddress address, HmacKey key,
+      int maxConnections, int timeout, int idleTimeout) {
+    this.store = store;
+    this.address = address;
+    this.key = key;
+    this.maxConnections = maxConnections;
+    this.timeout = timeout;
+    this.idleTimeout = idleTimeout;
+  }
+
+  void start() throws IOException {
+    serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(address);
+    final AtomicInteger count = new AtomicInteger();
+    executor = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PartitionServer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    }, "PartitionServer-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  void stop() {
+    try {
+      if (serverSocket != null)
+        serverSocket.close();
+    } catch (IOException ex) {
+      log.warn("can not close partition server socket", ex);
+    }
+    for (Socket socket : connections)
+      closeQuietly(socket);
+    if (executor != null)
+      executor.shutdown();
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        final Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(timeout);
+        connections.add(socket);
+        try {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              serve(socket);
+            }
+          });
+        } catch (RejectedExecutionException ex) {
+          log.warn("partition server reached {} connections, refused {}", maxConnections,
+              socket.getRemoteSocketAddress());
+          connections.remove(socket);
+          closeQuietly(socket);
+        }
+      } catch (IOException ex) {
+        if (!serverSocket.isClosed())
+          log.warn("partition server accept failed", ex);
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      if (!authenticate(in, out)) {
+        log.warn("partition peer {} failed authentication", socket.getRemoteSocketAddress());
+        return;
+      }
+      socket.setSoTimeout(idleTimeout);
+      while (true) {
+        int op = in.read();
+        if (op < 0)
+          break;
+        handle(op, in, out);
+        out.flush();
+      }
+    } catch (EOFException | SocketException | SocketTimeoutException ex) {
+      // connection closed by peer or by stop(), or idle too long
+    } catch (IOException ex) {
+      log.warn("partition connection failed", ex);
+    } finally {
+      connections.remove(socket);
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * the server sends a nonce, the client answers with its own nonce and the MAC
+   * of both, the server proves itself with the MAC of both in reverse order
+   *
+   * @return true if the client knows the secret
+   */
+  private boolean authenticate(DataInputStream in, DataOutputStream out) throws IOException {
+    byte[] serverNonce = nonce();
+    out.write(serverNonce);
+    out.flush();
+    byte[] clientNonce = new byte[NONCE_LENGTH];
+    byte[] clientProof = new byte[HmacKey.MAC_LENGTH];
+    in.readFully(clientNonce);
+    in.readFully(clientProof);
+    if (!key.verify(clientProof, CLIENT_PROOF, serverNonce, clientNonce))
+      return false;
+    out.write(key.sign(SERVER_PROOF, clientNonce, serverNonce));
+    out.flush();
+    return true;
+  }
+
+  /**
+   * client side of {@link #authenticate}
+   *
+   * @throws IOException
+   *           if the server does not know the secret
+   */
+  static void handshake(HmacKey key, DataInputStream in, DataOutputStream out)
+      throws IOException {
+    byte[] serverNonce = new byte[NONCE_LENGTH];
+    in.readFully(serverNonce);
+    byte[] clientNonce = nonce();
+    out.write(clientNonce);
+    out.write(key.sign(CLIENT_PROOF, serverNonce, clientNonce));
+    out.flush();
+    byte[] serverProof = new byte[HmacKey.MAC_LENGTH];
+    in.readFully(serverProof);
+    if (!key.verify(serverProof, SERVER_PROOF, clientNonce, serverNonce))
+      throw new IOException("partition node failed authentication");
+  }
+
+  private static byte[] nonce() {
+    byte[] nonce = new byte[NONCE_LENGTH];
+    RANDOM.nextBytes(nonce);
+    return nonce;
+  }
+
+  private void handle(int op, DataInputStream in, DataOutputStream out) throws IOException {
+    switch (op) {
+    case OP_PUT:
+      store.put(PartitionStore.Record.read(in));
+      out.writeByte(STATUS_OK);
+      break;
+    case OP_GET:
+      writeRecord(out, store.get(readKind(in), in.readUTF()));
+      break;
+    case OP_REMOVE:
+      boolean removed = store.remove(readKind(in), in.readUTF());
+      out.writeByte(removed ? STATUS_OK : STATUS_MISSING);
+      break;
+    case OP_CONSUME:
+      writeRecord(out, store.consume(readKind(in), in.readUTF(), in.readUTF()));
+      break;
+    default:
+      throw new IOException("unknown partition operation " + op);
+    }
+  }
+
+  private static int readKind(DataInputStream in) throws IOException {
+    int kind = in.readByte();
+    if (kind < 0 || kind >= PartitionStore.KINDS)
+      throw new IOException("invalid token kind " + kind);
+    return kind;
+  }
+
+  private static void writeRecord(DataOutputStream out, PartitionStore.Record record)
+      throws IOException {
+    if (record == null) {
+      out.writeByte(STATUS_MISSING);
+    } else {
+      out.writeByte(STATUS_OK);
+      record.write(out);
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local token store of one partition node, for internal use. Records are kept
+ * in concurrent hash maps by kind and removed by a timing wheel on expire.
+ *
+ * @author zqxu
+ */
+final class PartitionStore {
+  static final int KINDS = 3;
+  private final List<ConcurrentMap<String, Stored>> maps = //
+      new ArrayList<ConcurrentMap<String, Stored>>();
+  private final TimingWheel timingWheel;
+
+  PartitionStore(String name) {
+    for (int i = 0; i < KINDS; i++)
+      maps.add(new ConcurrentHashMap<String, Stored>());
+    timingWheel = new TimingWheel(1000L, name + "-expiry");
+  }
+
+  void put(Record record) {
+    if (record.expireAt <= System.currentTimeMillis())
+      return;
+    ConcurrentMap<String, Stored> map = maps.get(record.kind);
+    Stored stored = new Stored(map, record);
+    Stored replaced = map.put(record.token, stored);
+    if (replaced != null)
+      timingWheel.cancel(replaced);
+    timingWheel.schedule(stored, record.expireAt);
+  }
+
+  Record get(int kind, String token) {
+    Stored stored = maps.get(kind).get(token);
+    if (stored == null || stored.record.expireAt <= System.currentTimeMillis())
+      return null;
+    return stored.record;
+  }
+
+  boolean remove(int kind, String token) {
+    Stored stored = maps.get(kind).remove(token);
+    if (stored == null)
+      return false;
+    timingWheel.cancel(stored);
+    return true;
+  }
+
+  /**
+   * remove the token atomically if it belongs to the client and not expired
+   */
+  Record consume(int kind, String token, String clientId) {
+    ConcurrentMap<String, Stored> map = maps.get(kind);
+    Stored stored = map.get(token);
+    if (stored == null || stored.record.expireAt <= System.currentTimeMillis()
+        || !stored.record.clientId.equals(clientId) || !map.remove(token, stored))
+      return null;
+    timingWheel.cancel(stored);
+    return stored.record;
+  }
+
+  /**
+   * snapshot of all records, for rebalancing
+   */
+  List<Record> records() {
+    List<Record> records = new ArrayList<Record>();
+    for (ConcurrentMap<String, Stored> map : maps)
+      for (Stored stored : map.values())
+        records.add(stored.record);
+    return records;
+  }
+
+  int size() {
+    int size = 0;
+    for (ConcurrentMap<String, Stored> map : maps)
+      size += map.size();
+    return size;
+  }
+
+  void stop() {
+    timingWheel.stop();
+  }
+
+  /**
+   * Token record exchanged between partition nodes.
+   */
+  static final class Record {
+    final int kind;
+    final String token;
+    final String clientId;
+    final String scope;
+    final String accessToken;
+    final long expireAt;
+
+    Record(int kind, String token, String clientId, String scope, String accessToken,
+        long expireAt) {
+      this.kind = kind;
+      this.token = token;
+      this.clientId = clientId;
+      this.scope = scope;
+      this.accessToken = accessToken;
+      this.expireAt = expireAt;
+    }
+
+    void write(DataOutput out) throws IOException {
+      out.writeByte(kind);
+      out.writeUTF(token);
+      out.writeUTF(clientId);
+      out.writeUTF(scope == null ? "" : scope);
+      out.writeUTF(accessToken == null ? "" : accessToken);
+      out.writeLong(expireAt);
+    }
+
+    static Record read(DataInput in) throws IOException {
+      int kind = in.readByte();
+      if (kind < 0 || kind >= KINDS)
+        throw new IOException("invalid token kind " + kind);
+      String token = in.readUTF();
+      String clientId = in.readUTF();
+      String scope = in.readUTF();
+      String accessToken = in.readUTF();
+      return new Record(kind, token, clientId, scope.isEmpty() ? null : scope,
+          accessToken.isEmpty() ? null : accessToken, in.readLong());
+    }
+  }
+
+  private static final class Stored extends TimingWheel.Entry {
+    private final ConcurrentMap<String, Stored> owner;
+    private final Record record;
+
+    Stored(ConcurrentMap<String, Stored> owner, Record record) {
+      this.owner = owner;
+      this.record = record;
+    }
+
+    @Override
+    protected void expire() {
+      owner.remove(record.token, this);
+    }
+  }
+}
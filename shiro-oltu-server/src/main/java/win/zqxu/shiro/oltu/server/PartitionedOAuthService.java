@@ -0,0 +1,848 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.oltu.oauth2.common.utils.OAuthUtils;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * OAuthService implementation which partitions authorization codes, access
+ * tokens and refresh tokens across several authorization server nodes. Each
+ * token is routed by consistent hashing of the token value to its owner nodes,
+ * the primary owner and {@link #getReplicas()} - 1 replicas, every node keeps
+ * its own tokens in memory and serves them to other nodes over a compact
+ * binary TCP protocol.
+ * </p>
+ * <p>
+ * Reads go to the primary owner and fall back to the replicas if the primary
+ * can not be reached or does not keep the token, so the tokens of a restarted
+ * primary stay readable. Authorization codes and refresh tokens are consumed
+ * atomically on the primary owner only, then removed from the replicas, so a
+ * token can not be consumed twice, while the primary is down its tokens can
+ * not be consumed until the node list changed. Removals failed on unreachable
+ * nodes are retried every {@link #getRetryInterval()} and by
+ * {@link #rebalance()}.
+ * </p>
+ * <p>
+ * When nodes join or leave, set the new node list on every node, each node
+ * then pushes its tokens to their new owners and drops the tokens it no
+ * longer owns, see {@link #rebalance()}. The node list and the connections to
+ * the nodes are published together, so a call never mixes two node lists.
+ * After a node restarted, call {@link #rebalance()} on the other nodes to push
+ * its tokens back, until then the tokens it owned can be read but not
+ * consumed.
+ * </p>
+ * <p>
+ * The application need to extends this class to provide client and scope
+ * verification, add this service in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthService = &lt;custom class extends PartitionedOAuthService&gt;<br>
+ * oAuthService.localNode = 10.0.0.1:7100<br>
+ * oAuthService.nodes = 10.0.0.1:7100, 10.0.0.2:7100, 10.0.0.3:7100<br>
+ * oAuthService.secret = &lt;base64 secret&gt;<br>
+ * oTokenFilter.oAuthService = $oAuthService<br>
+ * </p>
+ * Note that the nodes authenticate each other by the shared secret, but the
+ * tokens are not encrypted on the wire, the partition port should only be
+ * reachable from other authorization server nodes, and the node clocks should
+ * be synchronized since expire times are exchanged as absolute times.
+ *
+ * @author zqxu
+ */
+public abstract class PartitionedOAuthService
+    implements OAuthService, OAuthGrantService, Initializable, Destroyable {
+  private static final Logger log = LoggerFactory.getLogger(PartitionedOAuthService.class);
+  private static final int AUTH_CODE = 0;
+  private static final int ACCESS_TOKEN = 1;
+  private static final int REFRESH_TOKEN = 2;
+  private String localNode;
+  private String nodes;
+  private int replicas = 2;
+  private int virtualNodes = 128;
+  private int timeout = 1000;
+  private int idleTimeout = 60 * 1000;
+  private int maxConnections = 64;
+  private long retryInterval = 10 * 1000L;
+  private HmacKey key;
+  private long authCodeExpireIn = 60 * 1000L;
+  private long accessTokenExpireIn = 60 * 60 * 1000L;
+  private long refreshTokenExpireIn = 30 * 24 * 60 * 60 * 1000L;
+  private boolean refreshTokenSupported = true;
+  private volatile Topology topology;
+  private PartitionStore store;
+  private PartitionServer server;
+  private ScheduledExecutorService retrier;
+  private final ConcurrentLinkedQueue<Removal> removals = new ConcurrentLinkedQueue<Removal>();
+
+  /**
+   * get address of this node
+   *
+   * @return address in host:port format
+   */
+  public String getLocalNode() {
+    return localNode;
+  }
+
+  /**
+   * set address of this node, the partition server listens on it, must be one
+   * of the nodes
+   *
+   * @param localNode
+   *          address in host:port format
+   */
+  public void setLocalNode(String localNode) {
+    this.localNode = localNode.trim();
+  }
+
+  /**
+   * get addresses of all nodes
+   *
+   * @return addresses separated by comma
+   */
+  public String getNodes() {
+    return nodes;
+  }
+
+  /**
+   * set addresses of all nodes including this node, after init the tokens are
+   * rebalanced to the new nodes
+   *
+   * @param nodes
+   *          addresses in host:port format separated by comma
+   */
+  public synchronized void setNodes(String nodes) {
+    this.nodes = nodes;
+    Topology previous = topology;
+    if (previous != null) {
+      topology = new Topology(parseNodes(), previous);
+      for (Map.Entry<String, PartitionClient> entry : previous.clients.entrySet())
+        if (topology.clients.get(entry.getKey()) != entry.getValue())
+          entry.getValue().close();
+      rebalance();
+    }
+  }
+
+  /**
+   * get count of nodes keeping each token
+   *
+   * @return replica count
+   */
+  public int getReplicas() {
+    return replicas;
+  }
+
+  /**
+   * set count of nodes keeping each token, including the primary, default is 2
+   *
+   * @param replicas
+   *          replica count
+   */
+  public void setReplicas(int replicas) {
+    this.replicas = replicas;
+  }
+
+  /**
+   * get virtual nodes of each node on the hash ring
+   *
+   * @return virtual node count
+   */
+  public int getVirtualNodes() {
+    return virtualNodes;
+  }
+
+  /**
+   * set virtual nodes of each node on the hash ring, default is 128, more
+   * virtual nodes spread tokens more evenly, must be same on all nodes
+   *
+   * @param virtualNodes
+   *          virtual node count
+   */
+  public void setVirtualNodes(int virtualNodes) {
+    this.virtualNodes = virtualNodes;
+  }
+
+  /**
+   * get connect and read timeout of calls to other nodes
+   *
+   * @return timeout in millisecond
+   */
+  public int getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * set connect and read timeout of calls to other nodes, default is 1 second
+   *
+   * @param timeout
+   *          timeout in millisecond
+   */
+  public void setTimeout(int timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * get timeout of idle connections between nodes
+   *
+   * @return timeout in millisecond
+   */
+  public int getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * set timeout of idle connections between nodes, default is 1 minute, the
+   * partition server closes connections idle longer than it, must be same on
+   * all nodes
+   *
+   * @param idleTimeout
+   *          timeout in millisecond
+   */
+  public void setIdleTimeout(int idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * get maximum connections served by the partition server of this node
+   *
+   * @return maximum connection count
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * set maximum connections served by the partition server of this node,
+   * default is 64, each connection is served by one thread, more connections
+   * are refused
+   *
+   * @param maxConnections
+   *          maximum connection count
+   */
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  /**
+   * get interval between retries of removals failed on unreachable nodes
+   *
+   * @return retry interval in millisecond
+   */
+  public long getRetryInterval() {
+    return retryInterval;
+  }
+
+  /**
+   * set interval between retries of removals failed on unreachable nodes,
+   * default is 10 seconds, 0 to retry only by {@link #rebalance()}
+   *
+   * @param retryInterval
+   *          retry interval in millisecond
+   */
+  public void setRetryInterval(long retryInterval) {
+    this.retryInterval = retryInterval;
+  }
+
+  /**
+   * set secret shared by all nodes, nodes authenticate each other by it before
+   * exchanging tokens, required
+   *
+   * @param secret
+   *          base64 secret, at least 32 bytes
+   */
+  public void setSecret(String secret) {
+    this.key = new HmacKey(Base64.getDecoder().decode(secret.trim()));
+  }
+
+  /**
+   * get authorization code expire time
+   *
+   * @return authorization code expire time in millisecond
+   */
+  public long getAuthCodeExpireIn() {
+    return authCodeExpireIn;
+  }
+
+  /**
+   * set authorization code expire time, default is 1 minute
+   *
+   * @param authCodeExpireIn
+   *          authorization code expire time in millisecond
+   */
+  public void setAuthCodeExpireIn(long authCodeExpireIn) {
+    this.authCodeExpireIn = authCodeExpireIn;
+  }
+
+  /**
+   * get access token expire time
+   *
+   * @return access token expire time in millisecond
+   */
+  public long getAccessTokenExpireIn() {
+    return accessTokenExpireIn;
+  }
+
+  /**
+   * set access token expire time, default is 1 hour
+   *
+   * @param accessTokenExpireIn
+   *          access token expire time in millisecond
+   */
+  public void setAccessTokenExpireIn(long accessTokenExpireIn) {
+    this.accessTokenExpireIn = accessTokenExpireIn;
+  }
+
+  /**
+   * get refresh token expire time
+   *
+   * @return refresh token expire time in millisecond
+   */
+  public long getRefreshTokenExpireIn() {
+    return refreshTokenExpireIn;
+  }
+
+  /**
+   * set refresh token expire time, default is 30 days
+   *
+   * @param refreshTokenExpireIn
+   *          refresh token expire time in millisecond
+   */
+  public void setRefreshTokenExpireIn(long refreshTokenExpireIn) {
+    this.refreshTokenExpireIn = refreshTokenExpireIn;
+  }
+
+  /**
+   * set whether refresh token supported, default is true
+   *
+   * @param refreshTokenSupported
+   *          true if refresh token supported
+   */
+  public void setRefreshTokenSupported(boolean refreshTokenSupported) {
+    this.refreshTokenSupported = refreshTokenSupported;
+  }
+
+  /**
+   * get count of tokens kept by this node
+   *
+   * @return local token count
+   */
+  public int getLocalSize() {
+    PartitionStore current = store;
+    return current == null ? 0 : current.size();
+  }
+
+  /**
+   * start the partition server of this node, called by SHIRO after the
+   * properties set
+   *
+   * @throws IllegalStateException
+   *           if the nodes or the secret not set or the partition server can
+   *           not start
+   */
+  @Override
+  public synchronized void init() {
+    if (topology != null)
+      return;
+    if (OAuthUtils.isEmpty(localNode) || OAuthUtils.isEmpty(nodes))
+      throw new IllegalStateException("localNode and nodes of PartitionedOAuthService not set");
+    if (key == null)
+      throw new IllegalStateException("secret of PartitionedOAuthService not set");
+    List<String> nodeList = parseNodes();
+    if (!nodeList.contains(localNode))
+      throw new IllegalStateException("localNode " + localNode + " not in nodes");
+    store = new PartitionStore("PartitionedOAuthService");
+    server = new PartitionServer(store, address(localNode), key, maxConnections, timeout,
+        idleTimeout);
+    try {
+      server.start();
+    } catch (IOException ex) {
+      store.stop();
+      throw new IllegalStateException("can not start partition server on " + localNode, ex);
+    }
+    topology = new Topology(nodeList, null);
+    if (retryInterval > 0) {
+      retrier = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "PartitionedOAuthService-retry");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      retrier.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Topology current = topology;
+            if (current != null)
+              retryRemovals(current);
+          } catch (RuntimeException ex) {
+            log.error("retry of token removals failed", ex);
+          }
+        }
+      }, retryInterval, retryInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * stop the partition server and close connections to other nodes, the tokens
+   * kept by this node are lost unless replicated
+   */
+  @Override
+  public synchronized void destroy() {
+    Topology previous = topology;
+    if (previous == null)
+      return;
+    topology = null;
+    if (retrier != null) {
+      retrier.shutdownNow();
+      retrier = null;
+    }
+    server.stop();
+    store.stop();
+    for (PartitionClient client : previous.clients.values())
+      client.close();
+    removals.clear();
+  }
+
+  /**
+   * retry the removals of consumed tokens failed on unreachable nodes, push the
+   * tokens kept by this node to their current owners, and drop the tokens this
+   * node no longer owns. Called automatically when nodes changed after init.
+   *
+   * @return count of tokens dropped by this node
+   */
+  public int rebalance() {
+    Topology current = topology;
+    if (current == null)
+      return 0;
+    retryRemovals(current);
+    int dropped = 0;
+    for (PartitionStore.Record record : store.records()) {
+      List<String> owners = current.ring.owners(record.token, replicas);
+      boolean pushed = true;
+      for (String owner : owners) {
+        if (owner.equals(localNode))
+          continue;
+        try {
+          current.clients.get(owner).put(record);
+        } catch (IOException ex) {
+          pushed = false;
+          log.warn("can not push token to {}", owner, ex);
+        }
+      }
+      if (!owners.contains(localNode) && pushed) {
+        store.remove(record.kind, record.token);
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * remove the consumed tokens from the nodes failed before and from their
+   * current owners, in case other nodes pushed stale copies to them
+   */
+  private void retryRemovals(Topology current) {
+    List<Removal> retries = new ArrayList<Removal>();
+    Removal removal;
+    while ((removal = removals.poll()) != null)
+      retries.add(removal);
+    long now = System.currentTimeMillis();
+    for (Removal retry : retries) {
+      if (retry.expireAt <= now)
+        continue;
+      Set<String> nodes = new LinkedHashSet<String>(retry.nodes);
+      nodes.addAll(current.ring.owners(retry.token, replicas));
+      Set<String> failed = new LinkedHashSet<String>();
+      for (String node : nodes)
+        if (!removeFrom(current, node, retry.kind, retry.token))
+          failed.add(node);
+      if (!failed.isEmpty())
+        removals.offer(new Removal(retry.kind, retry.token, retry.expireAt, failed));
+    }
+  }
+
+  @Override
+  public boolean refreshTokenSupported() {
+    return refreshTokenSupported;
+  }
+
+  @Override
+  public void addAuthCode(String authCode, String clientId, Set<String> scopes) {
+    insert(AUTH_CODE, authCode, clientId, encode(scopes), null, authCodeExpireIn);
+  }
+
+  @Override
+  public boolean checkAuthCode(String authCode, String clientId) {
+    PartitionStore.Record record = lookup(AUTH_CODE, authCode);
+    return record != null && record.clientId.equals(clientId);
+  }
+
+  /**
+   * the authorization code will be removed, it can not be used again.
+   *
+   * @throws IllegalStateException
+   *           if the authorization code already used or expired
+   */
+  @Override
+  public void addAcessToken(String accessToken, String authCode) {
+    PartitionStore.Record code = lookup(AUTH_CODE, authCode);
+    if (code == null || consume(AUTH_CODE, authCode, code.clientId) == null)
+      throw new IllegalStateException("authorization code already used or expired");
+    insert(ACCESS_TOKEN, accessToken, code.clientId, code.scope, null, accessTokenExpireIn);
+  }
+
+  @Override
+  public boolean clientTokenSupported() {
+    return true;
+  }
+
+  @Override
+  public void addClientToken(String accessToken, String clientId, Set<String> scopes) {
+    insert(ACCESS_TOKEN, accessToken, clientId, encode(scopes), null, accessTokenExpireIn);
+  }
+
+  /**
+   * returns the remaining time of the access token, or 0 if the access token
+   * does not exist or expired
+   */
+  @Override
+  public long getExpireIn(String accessToken) {
+    PartitionStore.Record record = lookup(ACCESS_TOKEN, accessToken);
+    if (record == null)
+      return 0;
+    return Math.max(0, record.expireAt - System.currentTimeMillis());
+  }
+
+  @Override
+  public void addRefreshToken(String refreshToken, String accessToken) {
+    PartitionStore.Record access = lookup(ACCESS_TOKEN, accessToken);
+    if (access == null)
+      throw new IllegalStateException("access token does not exist");
+    insert(REFRESH_TOKEN, refreshToken, access.clientId, access.scope, accessToken,
+        refreshTokenExpireIn);
+  }
+
+  @Override
+  public boolean checkRefreshToken(String refreshToken, String clientId) {
+    PartitionStore.Record record = lookup(REFRESH_TOKEN, refreshToken);
+    return record != null && record.clientId.equals(clientId);
+  }
+
+  /**
+   * the refresh token and the access token issued with it will be removed, the
+   * client will get new refresh token with the new access token.
+   *
+   * @throws IllegalStateException
+   *           if the refresh token already used or expired
+   */
+  @Override
+  public void refreshAccessToken(String accessToken, String refreshToken) {
+    PartitionStore.Record refresh = lookup(REFRESH_TOKEN, refreshToken);
+    if (refresh == null || consume(REFRESH_TOKEN, refreshToken, refresh.clientId) == null)
+      throw new IllegalStateException("refresh token already used or expired");
+    remove(ACCESS_TOKEN, refresh.accessToken, accessTokenExpireIn);
+    insert(ACCESS_TOKEN, accessToken, refresh.clientId, refresh.scope, null,
+        accessTokenExpireIn);
+  }
+
+  @Override
+  public boolean checkAccessToken(String accessToken, HttpServletRequest request) {
+    return lookup(ACCESS_TOKEN, accessToken) != null;
+  }
+
+  @Override
+  public String getClientId(String accessToken) {
+    PartitionStore.Record record = lookup(ACCESS_TOKEN, accessToken);
+    return record == null ? null : record.clientId;
+  }
+
+  @Override
+  public Set<String> getScopes(String accessToken) {
+    PartitionStore.Record record = lookup(ACCESS_TOKEN, accessToken);
+    if (record == null)
+      return null;
+    return record.scope == null ? Collections.<String> emptySet()
+        : OAuthUtils.decodeScopes(record.scope);
+  }
+
+  @Override
+  public Set<String> getAuthCodeScopes(String authCode, String clientId) {
+    return scopesOf(lookup(AUTH_CODE, authCode), clientId);
+  }
+
+  @Override
+  public Set<String> getRefreshTokenScopes(String refreshToken, String clientId) {
+    return scopesOf(lookup(REFRESH_TOKEN, refreshToken), clientId);
+  }
+
+  private static Set<String> scopesOf(PartitionStore.Record record, String clientId) {
+    if (record == null || !record.clientId.equals(clientId))
+      return null;
+    return record.scope == null ? Collections.<String> emptySet()
+        : OAuthUtils.decodeScopes(record.scope);
+  }
+
+  @Override
+  public ClientStatus authenticateClient(String clientId, String secret) {
+    if (!checkClient(clientId))
+      return ClientStatus.INVALID_CLIENT;
+    if (!checkClient(clientId, secret))
+      return ClientStatus.UNAUTHORIZED_CLIENT;
+    return ClientStatus.VALID;
+  }
+
+  @Override
+  public OAuthGrant exchangeAuthCode(String clientId, String authCode, String accessToken,
+      String refreshToken) {
+    PartitionStore.Record code = consume(AUTH_CODE, authCode, clientId);
+    if (code == null)
+      return null;
+    insert(ACCESS_TOKEN, accessToken, code.clientId, code.scope, null, accessTokenExpireIn);
+    return issueRefreshToken(code.clientId, code.scope, accessToken, refreshToken);
+  }
+
+  @Override
+  public OAuthGrant issueTokens(String authCode, String clientId, Set<String> scopes,
+      String accessToken, String refreshToken) {
+    String scope = encode(scopes);
+    insert(ACCESS_TOKEN, accessToken, clientId, scope, null, accessTokenExpireIn);
+    return issueRefreshToken(clientId, scope, accessToken, refreshToken);
+  }
+
+  @Override
+  public OAuthGrant issueClientToken(String clientId, Set<String> scopes, String accessToken) {
+    insert(ACCESS_TOKEN, accessToken, clientId, encode(scopes), null, accessTokenExpireIn);
+    return new OAuthGrant(accessToken, null, accessTokenExpireIn);
+  }
+
+  @Override
+  public OAuthGrant exchangeRefreshToken(String clientId, String refreshToken,
+      String accessToken, String newRefreshToken) {
+    PartitionStore.Record refresh = consume(REFRESH_TOKEN, refreshToken, clientId);
+    if (refresh == null)
+      return null;
+    remove(ACCESS_TOKEN, refresh.accessToken, accessTokenExpireIn);
+    insert(ACCESS_TOKEN, accessToken, refresh.clientId, refresh.scope, null,
+        accessTokenExpireIn);
+    return issueRefreshToken(refresh.clientId, refresh.scope, accessToken, newRefreshToken);
+  }
+
+  private OAuthGrant issueRefreshToken(String clientId, String scope, String accessToken,
+      String refreshToken) {
+    if (refreshTokenSupported)
+      insert(REFRESH_TOKEN, refreshToken, clientId, scope, accessToken, refreshTokenExpireIn);
+    else
+      refreshToken = null;
+    return new OAuthGrant(accessToken, refreshToken, accessTokenExpireIn);
+  }
+
+  /**
+   * read the token from the owners in order until one keeps it, a restarted
+   * owner answers no token while its replicas still keep it
+   */
+  private PartitionStore.Record lookup(int kind, String token) {
+    if (token == null)
+      return null;
+    Topology current = topology();
+    IOException failure = null;
+    boolean answered = false;
+    for (String owner : current.ring.owners(token, replicas)) {
+      try {
+        PartitionStore.Record record = owner.equals(localNode) ? store.get(kind, token)
+            : current.clients.get(owner).get(kind, token);
+        if (record != null)
+          return record;
+        answered = true;
+      } catch (IOException ex) {
+        failure = ex;
+      }
+    }
+    if (!answered)
+      throw new IllegalStateException("no owner of the token reachable", failure);
+    return null;
+  }
+
+  /**
+   * write the token to all reachable owners
+   */
+  private void insert(int kind, String token, String clientId, String scope,
+      String accessToken, long expireIn) {
+    PartitionStore.Record record = new PartitionStore.Record(kind, token, clientId, scope,
+        accessToken, System.currentTimeMillis() + expireIn);
+    Topology current = topology();
+    IOException failure = null;
+    int written = 0;
+    for (String owner : current.ring.owners(token, replicas)) {
+      try {
+        if (owner.equals(localNode))
+          store.put(record);
+        else
+          current.clients.get(owner).put(record);
+        written++;
+      } catch (IOException ex) {
+        failure = ex;
+        log.warn("can not write token to {}", owner, ex);
+      }
+    }
+    if (written == 0)
+      throw new IllegalStateException("no owner of the token reachable", failure);
+  }
+
+  /**
+   * remove the token from all owners, the removals failed are retried until
+   * the token expires
+   */
+  private void remove(int kind, String token, long expireIn) {
+    if (token == null)
+      return;
+    Topology current = topology();
+    Set<String> failed = new LinkedHashSet<String>();
+    for (String owner : current.ring.owners(token, replicas))
+      if (!removeFrom(current, owner, kind, token))
+        failed.add(owner);
+    if (!failed.isEmpty())
+      removals.offer(new Removal(kind, token, System.currentTimeMillis() + expireIn, failed));
+  }
+
+  /**
+   * remove the token from the node, a node left the cluster keeps nothing
+   *
+   * @return false if the node not reachable
+   */
+  private boolean removeFrom(Topology current, String node, int kind, String token) {
+    try {
+      if (node.equals(localNode)) {
+        store.remove(kind, token);
+      } else {
+        PartitionClient client = current.clients.get(node);
+        if (client != null)
+          client.remove(kind, token);
+      }
+      return true;
+    } catch (IOException ex) {
+      log.warn("can not remove token from {}", node, ex);
+      return false;
+    }
+  }
+
+  /**
+   * consume the token atomically on the primary owner, then remove it from the
+   * replicas, the removals failed are retried until the token expires
+   */
+  private PartitionStore.Record consume(int kind, String token, String clientId) {
+    if (token == null || clientId == null)
+      return null;
+    Topology current = topology();
+    List<String> owners = current.ring.owners(token, replicas);
+    String primary = owners.get(0);
+    PartitionStore.Record record;
+    try {
+      if (primary.equals(localNode))
+        record = store.consume(kind, token, clientId);
+      else
+        record = current.clients.get(primary).consume(kind, token, clientId);
+    } catch (IOException ex) {
+      throw new IllegalStateException("primary owner of the token not reachable", ex);
+    }
+    if (record == null)
+      return null;
+    Set<String> failed = new LinkedHashSet<String>();
+    for (String owner : owners.subList(1, owners.size()))
+      if (!removeFrom(current, owner, kind, token))
+        failed.add(owner);
+    if (!failed.isEmpty())
+      removals.offer(new Removal(kind, token, record.expireAt, failed));
+    return record;
+  }
+
+  private Topology topology() {
+    Topology current = topology;
+    if (current == null)
+      throw new IllegalStateException("PartitionedOAuthService not initialized");
+    return current;
+  }
+
+  private List<String> parseNodes() {
+    List<String> nodeList = new ArrayList<String>();
+    for (String node : nodes.split(","))
+      if (!node.trim().isEmpty())
+        nodeList.add(node.trim());
+    return nodeList;
+  }
+
+  private static InetSocketAddress address(String node) {
+    int index = node.lastIndexOf(':');
+    if (index <= 0)
+      throw new IllegalArgumentException("node must be in format host:port");
+    return new InetSocketAddress(node.substring(0, index),
+        Integer.parseInt(node.substring(index + 1)));
+  }
+
+  private static String encode(Set<String> scopes) {
+    return scopes == null || scopes.isEmpty() ? null : OAuthUtils.encodeScopes(scopes);
+  }
+
+  /**
+   * immutable snapshot of the hash ring and the clients of the other nodes on
+   * it, replaced as a whole when the nodes changed
+   */
+  private final class Topology {
+    private final HashRing ring;
+    private final Map<String, PartitionClient> clients;
+
+    /**
+     * reuse the clients of the previous topology for the nodes still present
+     */
+    Topology(List<String> nodeList, Topology previous) {
+      Map<String, PartitionClient> map = new HashMap<String, PartitionClient>();
+      for (String node : nodeList) {
+        if (node.equals(localNode) || map.containsKey(node))
+          continue;
+        PartitionClient client = previous == null ? null : previous.clients.get(node);
+        if (client == null)
+          client = new PartitionClient(address(node), key, timeout, idleTimeout);
+        map.put(node, client);
+      }
+      this.ring = new HashRing(nodeList, virtualNodes);
+      this.clients = Collections.unmodifiableMap(map);
+    }
+  }
+
+  /**
+   * removal of a consumed token failed on some nodes
+   */
+  private static final class Removal {
+    private final int kind;
+    private final String token;
+    private final long expireAt;
+    private final Set<String> nodes;
+
+    Removal(int kind, String token, long expireAt, Set<String> nodes) {
+      this.kind = kind;
+      this.token = token;
+      this.expireAt = expireAt;
+      this.nodes = nodes;
+    }
+  }
+}
@@ -0,0 +1,384 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Per client request rate limiter for {@link TokenFilter} and
+ * {@link AuthorizeFilter}, each client has a token bucket refilled at
+ * {@link #getRate()} requests per second and holding at most
+ * {@link #getBurst()} requests, an optional global bucket limits all clients
+ * together. The client bucket is charged after the client is authenticated,
+ * so a caller can not exhaust the limit of another client by claiming its
+ * client id.
+ * </p>
+ * <p>
+ * The requests failed before that, such as bad client secret, unknown or
+ * missing client id, are charged to a bucket of the source address refilled at
+ * {@link #getFailureRate()} per second, the requests from a source address
+ * whose failure bucket is empty are rejected before any OAuthService call.
+ * </p>
+ * <p>
+ * The buckets are lock-free, each one is a single atomic theoretical arrival
+ * time updated by compare-and-set. At most {@link #getMaxClients()} buckets are
+ * kept, full buckets of idle clients are evicted first.
+ * </p>
+ * <p>
+ * add the rate limiter in shiro.ini file like this:<br>
+ * [main]<br>
+ * rateLimiter = win.zqxu.shiro.oltu.server.RateLimiter<br>
+ * rateLimiter.rate = 10<br>
+ * rateLimiter.burst = 20<br>
+ * rateLimiter.clientLimits = bigClient:100:200, slowClient:1<br>
+ * oTokenFilter.rateLimiter = $rateLimiter<br>
+ * oAuthorizeFilter.rateLimiter = $rateLimiter<br>
+ * </p>
+ * 
+ * @author zqxu
+ */
+public class RateLimiter {
+  private final ConcurrentHashMap<String, Bucket> buckets = //
+      new ConcurrentHashMap<String, Bucket>();
+  private final ConcurrentHashMap<String, Bucket> failureBuckets = //
+      new ConcurrentHashMap<String, Bucket>();
+  private final LongAdder rejectedCount = new LongAdder();
+  private volatile Limit defaultLimit = new Limit(10, 20);
+  private volatile Limit failureLimit = new Limit(1, 10);
+  private volatile Map<String, Limit> clientLimits = Collections.emptyMap();
+  private volatile Bucket globalBucket;
+  private double globalRate;
+  private int globalBurst;
+  private int maxClients = 10000;
+
+  /**
+   * get default requests per second of each client
+   * 
+   * @return requests per second
+   */
+  public double getRate() {
+    return defaultLimit.rate;
+  }
+
+  /**
+   * set default requests per second of each client, default is 10
+   * 
+   * @param rate
+   *          requests per second
+   */
+  public synchronized void setRate(double rate) {
+    defaultLimit = new Limit(rate, defaultLimit.burst);
+    buckets.clear();
+  }
+
+  /**
+   * get default maximum requests of each client in a burst
+   * 
+   * @return burst size
+   */
+  public int getBurst() {
+    return defaultLimit.burst;
+  }
+
+  /**
+   * set default maximum requests of each client in a burst, default is 20
+   * 
+   * @param burst
+   *          burst size
+   */
+  public synchronized void setBurst(int burst) {
+    defaultLimit = new Limit(defaultLimit.rate, burst);
+    buckets.clear();
+  }
+
+  /**
+   * set limits of specified clients, in format clientId:rate[:burst],
+   * separated by comma, the burst is same as the rate if not specified
+   * 
+   * @param clientLimits
+   *          client limits
+   */
+  public synchronized void setClientLimits(String clientLimits) {
+    Map<String, Limit> parsed = new HashMap<String, Limit>();
+    for (String item : clientLimits.split(",")) {
+      item = item.trim();
+      if (item.isEmpty())
+        continue;
+      String[] parts = item.split(":");
+      if (parts.length < 2 || parts.length > 3)
+        throw new IllegalArgumentException("client limit must be in format clientId:rate[:burst]");
+      double rate = Double.parseDouble(parts[1].trim());
+      int burst = parts.length == 3 ? Integer.parseInt(parts[2].trim())
+          : (int) Math.max(1, Math.ceil(rate));
+      parsed.put(parts[0].trim(), new Limit(rate, burst));
+    }
+    this.clientLimits = Collections.unmodifiableMap(parsed);
+    buckets.clear();
+  }
+
+  /**
+   * get requests per second of all clients together
+   * 
+   * @return requests per second, 0 if not limited
+   */
+  public double getGlobalRate() {
+    return globalRate;
+  }
+
+  /**
+   * set requests per second of all clients together, default is 0 means not
+   * limited
+   * 
+   * @param globalRate
+   *          requests per second
+   */
+  public synchronized void setGlobalRate(double globalRate) {
+    this.globalRate = globalRate;
+    updateGlobalBucket();
+  }
+
+  /**
+   * get maximum requests of all clients together in a burst
+   * 
+   * @return burst size
+   */
+  public int getGlobalBurst() {
+    return globalBurst;
+  }
+
+  /**
+   * set maximum requests of all clients together in a burst, default is same
+   * as the global rate
+   * 
+   * @param globalBurst
+   *          burst size
+   */
+  public synchronized void setGlobalBurst(int globalBurst) {
+    this.globalBurst = globalBurst;
+    updateGlobalBucket();
+  }
+
+  /**
+   * get failed requests per second allowed from each source address
+   * 
+   * @return failed requests per second
+   */
+  public double getFailureRate() {
+    return failureLimit.rate;
+  }
+
+  /**
+   * set failed requests per second allowed from each source address, default
+   * is 1
+   * 
+   * @param failureRate
+   *          failed requests per second
+   */
+  public synchronized void setFailureRate(double failureRate) {
+    failureLimit = new Limit(failureRate, failureLimit.burst);
+    failureBuckets.clear();
+  }
+
+  /**
+   * get maximum failed requests from each source address in a burst
+   * 
+   * @return burst size
+   */
+  public int getFailureBurst() {
+    return failureLimit.burst;
+  }
+
+  /**
+   * set maximum failed requests from each source address in a burst, default
+   * is 10
+   * 
+   * @param failureBurst
+   *          burst size
+   */
+  public synchronized void setFailureBurst(int failureBurst) {
+    failureLimit = new Limit(failureLimit.rate, failureBurst);
+    failureBuckets.clear();
+  }
+
+  /**
+   * get maximum count of client buckets and of source address buckets kept
+   * 
+   * @return maximum client count
+   */
+  public int getMaxClients() {
+    return maxClients;
+  }
+
+  /**
+   * set maximum count of client buckets and of source address buckets kept,
+   * default is 10000
+   * 
+   * @param maxClients
+   *          maximum client count
+   */
+  public void setMaxClients(int maxClients) {
+    this.maxClients = maxClients;
+  }
+
+  /**
+   * get count of rejected requests
+   * 
+   * @return rejected request count
+   */
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  /**
+   * check whether the source address has too many failed requests, call it
+   * before the client is authenticated
+   * 
+   * @param source
+   *          source address of the request
+   * @return true if the request should be rejected
+   */
+  public boolean isBlocked(String source) {
+    if (source == null)
+      return false;
+    Bucket bucket = failureBuckets.get(source);
+    if (bucket == null || bucket.hasRoom(System.nanoTime()))
+      return false;
+    rejectedCount.increment();
+    return true;
+  }
+
+  /**
+   * charge a failed request, such as failed client authentication, to the
+   * bucket of the source address
+   * 
+   * @param source
+   *          source address of the request
+   */
+  public void recordFailure(String source) {
+    if (source == null)
+      return;
+    long now = System.nanoTime();
+    bucket(failureBuckets, source, failureLimit, now).tryAcquire(now);
+  }
+
+  /**
+   * take one request from the bucket of the client and the global bucket, call
+   * it after the client is authenticated
+   * 
+   * @param clientId
+   *          authenticated client id
+   * @return true if the request is allowed, false if it should be rejected
+   */
+  public boolean tryAcquire(String clientId) {
+    long now = System.nanoTime();
+    if (clientId != null && !clientBucket(clientId, now).tryAcquire(now)) {
+      rejectedCount.increment();
+      return false;
+    }
+    Bucket global = globalBucket;
+    if (global != null && !global.tryAcquire(now)) {
+      rejectedCount.increment();
+      return false;
+    }
+    return true;
+  }
+
+  private Bucket clientBucket(String clientId, long now) {
+    Bucket bucket = buckets.get(clientId);
+    if (bucket != null)
+      return bucket;
+    Limit limit = clientLimits.get(clientId);
+    return bucket(buckets, clientId, limit == null ? defaultLimit : limit, now);
+  }
+
+  private Bucket bucket(ConcurrentHashMap<String, Bucket> buckets, String key, Limit limit,
+      long now) {
+    Bucket bucket = buckets.get(key);
+    if (bucket == null) {
+      if (buckets.size() >= maxClients)
+        evict(buckets, now);
+      Bucket created = new Bucket(limit);
+      bucket = buckets.putIfAbsent(key, created);
+      if (bucket == null)
+        bucket = created;
+    }
+    return bucket;
+  }
+
+  /**
+   * remove full buckets, they are same as new buckets, if still too many
+   * buckets remove some arbitrary ones
+   */
+  private void evict(ConcurrentHashMap<String, Bucket> buckets, long now) {
+    for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();)
+      if (it.next().isFull(now))
+        it.remove();
+    int excess = buckets.size() - maxClients * 9 / 10;
+    for (Iterator<Bucket> it = buckets.values().iterator(); excess > 0 && it.hasNext(); excess--) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private void updateGlobalBucket() {
+    if (globalRate <= 0)
+      globalBucket = null;
+    else
+      globalBucket = new Bucket(new Limit(globalRate,
+          globalBurst > 0 ? globalBurst : (int) Math.max(1, Math.ceil(globalRate))));
+  }
+
+  private static final class Limit {
+    private final double rate;
+    private final int burst;
+    private final long interval;
+    private final long capacity;
+
+    Limit(double rate, int burst) {
+      if (rate <= 0 || burst <= 0)
+        throw new IllegalArgumentException("rate and burst must be positive");
+      this.rate = rate;
+      this.burst = burst;
+      this.interval = Math.max(1, (long) (1000000000L / rate));
+      this.capacity = interval * burst;
+    }
+  }
+
+  /**
+   * Token bucket in generic cell rate algorithm form, the bucket is empty when
+   * the theoretical arrival time is capacity ahead of now.
+   */
+  private static final class Bucket {
+    private final Limit limit;
+    private final AtomicLong arrival;
+
+    Bucket(Limit limit) {
+      this.limit = limit;
+      this.arrival = new AtomicLong(System.nanoTime());
+    }
+
+    boolean tryAcquire(long now) {
+      while (true) {
+        long current = arrival.get();
+        long next = Math.max(current, now) + limit.interval;
+        if (next - now > limit.capacity)
+          return false;
+        if (arrival.compareAndSet(current, next))
+          return true;
+      }
+    }
+
+    boolean hasRoom(long now) {
+      return Math.max(arrival.get(), now) + limit.interval - now <= limit.capacity;
+    }
+
+    boolean isFull(long now) {
+      return arrival.get() - now <= 0;
+    }
+  }
+}
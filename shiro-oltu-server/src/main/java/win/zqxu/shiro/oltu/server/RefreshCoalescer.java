@@ -0,0 +1,132 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Coalesces concurrent exchanges of the same refresh token into one call of
+ * the grant service, for internal use. The first request does the exchange,
+ * the concurrent requests of the same client wait and receive the same grant,
+ * instead of failing with invalid grant because the refresh token was already
+ * rotated.
+ * </p>
+ * <p>
+ * If grace period is set, the grant is kept after the exchange, a request with
+ * the rotated refresh token within the grace period receives the same grant
+ * again, the expire in of the grant is not reduced.
+ * </p>
+ * 
+ * @author zqxu
+ */
+final class RefreshCoalescer {
+  private final ConcurrentHashMap<String, Flight> flights = //
+      new ConcurrentHashMap<String, Flight>();
+  private volatile long gracePeriod;
+  private TimingWheel timingWheel;
+
+  /**
+   * Exchange of the refresh token, called once for concurrent requests
+   */
+  interface Exchange {
+    OAuthGrant exchange();
+  }
+
+  public long getGracePeriod() {
+    return gracePeriod;
+  }
+
+  public void setGracePeriod(long gracePeriod) {
+    this.gracePeriod = gracePeriod;
+  }
+
+  /**
+   * exchange the refresh token, or wait the exchange of the same refresh token
+   * in progress or finished within the grace period
+   * 
+   * @param clientId
+   *          authenticated client id
+   * @param refreshToken
+   *          the refresh token
+   * @param exchange
+   *          the exchange
+   * @return the grant, or null if the refresh token is invalid or belongs to
+   *         another client
+   */
+  OAuthGrant exchange(String clientId, String refreshToken, Exchange exchange) {
+    Flight flight = new Flight(refreshToken, clientId);
+    while (true) {
+      Flight current = flights.putIfAbsent(refreshToken, flight);
+      if (current == null)
+        break;
+      if (!current.isExpired(System.currentTimeMillis()))
+        return current.clientId.equals(clientId) ? current.await() : null;
+      flights.remove(refreshToken, current);
+    }
+    OAuthGrant grant;
+    try {
+      grant = exchange.exchange();
+    } catch (RuntimeException ex) {
+      flights.remove(refreshToken, flight);
+      flight.future.completeExceptionally(ex);
+      throw ex;
+    }
+    long period = gracePeriod;
+    if (grant != null && period > 0) {
+      flight.expireAt = System.currentTimeMillis() + period;
+      timingWheel().schedule(flight, flight.expireAt);
+    } else {
+      flights.remove(refreshToken, flight);
+    }
+    flight.future.complete(grant);
+    return grant;
+  }
+
+  /**
+   * stop the timing wheel, the coalescer can still be used
+   */
+  synchronized void shutdown() {
+    if (timingWheel != null)
+      timingWheel.stop();
+    timingWheel = null;
+    flights.clear();
+  }
+
+  private synchronized TimingWheel timingWheel() {
+    if (timingWheel == null)
+      timingWheel = new TimingWheel(1000L, "RefreshCoalescer-expiry");
+    return timingWheel;
+  }
+
+  private final class Flight extends TimingWheel.Entry {
+    private final String refreshToken;
+    private final String clientId;
+    private final CompletableFuture<OAuthGrant> future = new CompletableFuture<OAuthGrant>();
+    private volatile long expireAt = Long.MAX_VALUE;
+
+    Flight(String refreshToken, String clientId) {
+      this.refreshToken = refreshToken;
+      this.clientId = clientId;
+    }
+
+    boolean isExpired(long now) {
+      return now >= expireAt;
+    }
+
+    OAuthGrant await() {
+      try {
+        return future.join();
+      } catch (CompletionException ex) {
+        if (ex.getCause() instanceof RuntimeException)
+          throw (RuntimeException) ex.getCause();
+        throw ex;
+      }
+    }
+
+    @Override
+    protected void expire() {
+      flights.remove(refreshToken, this);
+    }
+  }
+}
@@ -1,7 +1,10 @@
 package win.zqxu.shiro.oltu.server;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
@@ -11,8 +14,16 @@ import org.apache.oltu.oauth2.common.exception.OAuthProblemException;
 import org.apache.oltu.oauth2.common.exception.OAuthSystemException;
 import org.apache.oltu.oauth2.common.utils.OAuthUtils;
 import org.apache.oltu.oauth2.rs.request.OAuthAccessResourceRequest;
-import org.apache.oltu.oauth2.rs.response.OAuthRSResponse;
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.mgt.SecurityManager;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.apache.shiro.subject.support.SubjectThreadState;
+import org.apache.shiro.util.ThreadState;
 import org.apache.shiro.web.servlet.AdviceFilter;
+import org.apache.shiro.web.subject.WebSubject;
 
 /**
  * <p>
@@ -41,7 +52,21 @@ import org.apache.shiro.web.servlet.AdviceFilter;
  * @author zqxu
  */
 public class ResourceFilter extends AdviceFilter {
+  private static final String THREAD_STATE = ResourceFilter.class.getName() + ".THREAD_STATE";
+  private static final String CHECKED_TOKEN = ResourceFilter.class.getName() + ".CHECKED_TOKEN";
   private OAuthService oAuthService;
+  private String locales;
+  private int warmupIterations;
+  private long warmupTime;
+  private final AsyncProcessor asyncProcessor = new AsyncProcessor();
+  private TokenSigner tokenSigner;
+  private boolean checkRevocation;
+  private RevocationList revocationList;
+  private boolean bindSubject;
+  private OAuthMetrics metrics;
+  private LatencyHistogram totalTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram parseTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram verifyTime = LatencyHistogram.DISABLED;
 
   public OAuthService getoAuthService() {
     return oAuthService;
@@ -51,28 +76,469 @@ public class ResourceFilter extends AdviceFilter {
     this.oAuthService = oAuthService;
   }
 
+  /**
+   * get access token signer
+   * 
+   * @return access token signer
+   */
+  public TokenSigner getTokenSigner() {
+    return tokenSigner;
+  }
+
+  /**
+   * set access token signer, if set, signed access tokens are verified locally
+   * without OAuthService, the verified token is put into request attribute
+   * {@link SignedToken#REQUEST_ATTRIBUTE}. Tokens not in signed format are
+   * still checked by OAuthService.
+   * 
+   * @param tokenSigner
+   *          access token signer
+   */
+  public void setTokenSigner(TokenSigner tokenSigner) {
+    this.tokenSigner = tokenSigner;
+  }
+
+  /**
+   * whether verified signed access token still checked by OAuthService
+   * 
+   * @return true if signed access token still checked by OAuthService
+   */
+  public boolean isCheckRevocation() {
+    return checkRevocation;
+  }
+
+  /**
+   * set whether verified signed access token still checked by OAuthService to
+   * find out revoked token, default is false
+   * 
+   * @param checkRevocation
+   *          true if signed access token still checked by OAuthService
+   */
+  public void setCheckRevocation(boolean checkRevocation) {
+    this.checkRevocation = checkRevocation;
+  }
+
+  /**
+   * get revocation list
+   * 
+   * @return revocation list
+   */
+  public RevocationList getRevocationList() {
+    return revocationList;
+  }
+
+  /**
+   * set revocation list, if set, revoked access tokens are
+   * rejected before checked by OAuthService or the token signer
+   * 
+   * @param revocationList
+   *          revocation list
+   */
+  public void setRevocationList(RevocationList revocationList) {
+    this.revocationList = revocationList;
+  }
+
+  /**
+   * get metrics
+   * 
+   * @return metrics
+   */
+  public OAuthMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * set metrics to record latency of the filter phases: parse and verify, and
+   * count error responses
+   * 
+   * @param metrics
+   *          metrics
+   */
+  public void setMetrics(OAuthMetrics metrics) {
+    this.metrics = metrics;
+    totalTime = LatencyHistogram.phase(metrics, "resource", "total");
+    parseTime = LatencyHistogram.phase(metrics, "resource", "parse");
+    verifyTime = LatencyHistogram.phase(metrics, "resource", "verify");
+  }
+
+  /**
+   * whether bind a subject for the bearer request
+   * 
+   * @return true if bind subject
+   */
+  public boolean isBindSubject() {
+    return bindSubject;
+  }
+
+  /**
+   * set whether bind a subject for the bearer request, default is false. If
+   * true, the valid access token is authenticated by the security manager as a
+   * {@link BearerToken}, and the subject is bound to the thread while the rest
+   * of the filter chain runs, so SecurityUtils.getSubject() returns the client
+   * with the scopes as permissions. The security manager must have a
+   * {@link BearerTokenRealm}, session creation is disabled for the request.
+   * 
+   * @param bindSubject
+   *          true to bind subject
+   */
+  public void setBindSubject(boolean bindSubject) {
+    this.bindSubject = bindSubject;
+  }
+
+  /**
+   * whether the filter processes requests asynchronously
+   * 
+   * @return true if async mode enabled
+   */
+  public boolean isAsync() {
+    return asyncProcessor.isEnabled();
+  }
+
+  /**
+   * set whether the filter processes requests asynchronously, default is
+   * false. In async mode the filter starts an AsyncContext and checks the
+   * access token on an executor, so the container request thread is released
+   * while OAuthService is working, then dispatches the request back to the
+   * container to run the rest of the filter chain on a container thread. The
+   * shiro filter must be declared with async-supported and mapped with both
+   * REQUEST and ASYNC dispatchers in web.xml, otherwise requests are processed
+   * synchronously.
+   * 
+   * @param async
+   *          true to enable async mode
+   */
+  public void setAsync(boolean async) {
+    asyncProcessor.setEnabled(async);
+  }
+
+  /**
+   * get thread count of the async executor created by the filter
+   * 
+   * @return thread count
+   */
+  public int getAsyncThreads() {
+    return asyncProcessor.getThreads();
+  }
+
+  /**
+   * set thread count of the async executor created by the filter, default is 8
+   * times of available processors, ignored if executor set or virtual threads
+   * used
+   * 
+   * @param asyncThreads
+   *          thread count
+   */
+  public void setAsyncThreads(int asyncThreads) {
+    asyncProcessor.setThreads(asyncThreads);
+  }
+
+  /**
+   * whether the async executor created by the filter uses virtual threads
+   * 
+   * @return true if use virtual threads
+   */
+  public boolean isVirtualThreads() {
+    return asyncProcessor.isVirtualThreads();
+  }
+
+  /**
+   * set whether the async executor created by the filter uses virtual threads,
+   * default is false, virtual threads need JDK 21 or later, otherwise platform
+   * threads are used
+   * 
+   * @param virtualThreads
+   *          true to use virtual threads
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    asyncProcessor.setVirtualThreads(virtualThreads);
+  }
+
+  /**
+   * get queue size of the async executor created by the filter
+   * 
+   * @return queue size
+   */
+  public int getAsyncQueueSize() {
+    return asyncProcessor.getQueueSize();
+  }
+
+  /**
+   * set queue size of the async executor created by the filter, default is
+   * 1024, requests beyond the busy threads and the full queue are rejected
+   * with status 503, ignored if executor set or virtual threads used
+   * 
+   * @param asyncQueueSize
+   *          queue size
+   */
+  public void setAsyncQueueSize(int asyncQueueSize) {
+    asyncProcessor.setQueueSize(asyncQueueSize);
+  }
+
+  /**
+   * get async context timeout
+   * 
+   * @return async context timeout in millisecond
+   */
+  public long getAsyncTimeout() {
+    return asyncProcessor.getTimeout();
+  }
+
+  /**
+   * set async context timeout, default is 0 to use container default timeout
+   * 
+   * @param asyncTimeout
+   *          async context timeout in millisecond
+   */
+  public void setAsyncTimeout(long asyncTimeout) {
+    asyncProcessor.setTimeout(asyncTimeout);
+  }
+
+  /**
+   * get executor for async mode
+   * 
+   * @return executor set through executor property
+   */
+  public Executor getExecutor() {
+    return asyncProcessor.getExecutor();
+  }
+
+  /**
+   * set executor for async mode, if not set, the filter creates its own
+   * executor
+   * 
+   * @param executor
+   *          executor for async mode
+   */
+  public void setExecutor(Executor executor) {
+    asyncProcessor.setExecutor(executor);
+  }
+
+  /**
+   * get locales of messages preloaded at filter init
+   * 
+   * @return locales separated by comma
+   */
+  public String getLocales() {
+    return locales;
+  }
+
+  /**
+   * set locales of messages preloaded at filter init, so the first request in
+   * these locales does not need to resolve resource bundle
+   * 
+   * @param locales
+   *          locales separated by comma, such as en,zh_CN
+   */
+  public void setLocales(String locales) {
+    this.locales = locales;
+  }
+
+  /**
+   * get times of sending the synthetic requests at filter init
+   * 
+   * @return warm up iterations
+   */
+  public int getWarmupIterations() {
+    return warmupIterations;
+  }
+
+  /**
+   * set times of sending the synthetic requests at filter init, default is 0
+   * means no warm up. If set, a copy of this filter with a no-op OAuthService
+   * processes synthetic valid and invalid access token requests at filter init,
+   * so class loading, resource bundles and JIT compilation are done before the
+   * first real request, and the shiro filter is not ready until warmed up.
+   * Hundreds of iterations are usually enough.
+   * 
+   * @param warmupIterations
+   *          warm up iterations
+   */
+  public void setWarmupIterations(int warmupIterations) {
+    this.warmupIterations = warmupIterations;
+  }
+
+  /**
+   * get elapsed time of the warm up at filter init
+   * 
+   * @return elapsed time in millisecond, 0 if not warmed up
+   */
+  public long getWarmupTime() {
+    return warmupTime;
+  }
+
+  /**
+   * preload messages of the configured locales and warm up the filter
+   */
+  @Override
+  protected void onFilterConfigSet() throws Exception {
+    if (!OAuthUtils.isEmpty(locales))
+      I18N.preload(locales);
+    if (warmupIterations > 0)
+      warmupTime = FilterWarmer.warmUp(this, warmupIterations);
+  }
+
+  /**
+   * check the access token in async mode if enabled and supported, the valid
+   * request is dispatched back to the container and continues synchronously
+   */
+  @Override
+  public void doFilterInternal(ServletRequest request, ServletResponse response,
+      final FilterChain chain) throws ServletException, IOException {
+    if (request.getAttribute(CHECKED_TOKEN) != null || !asyncProcessor.accept(request)) {
+      super.doFilterInternal(request, response, chain);
+      return;
+    }
+    asyncProcessor.execute(request, response, new AsyncProcessor.Work() {
+      @Override
+      public boolean run(ServletRequest request, ServletResponse response) throws Exception {
+        OAuthMetrics previous = ResponseUtils.bindMetrics(metrics);
+        try {
+          String accessToken = verifyAccessToken((HttpServletRequest) request,
+              (HttpServletResponse) response);
+          if (accessToken == null)
+            return false;
+          request.setAttribute(CHECKED_TOKEN, accessToken);
+          return true;
+        } finally {
+          ResponseUtils.bindMetrics(previous);
+        }
+      }
+    });
+  }
+
+  /**
+   * shutdown the async executor created by the filter
+   */
+  @Override
+  public void destroy() {
+    asyncProcessor.shutdown();
+    super.destroy();
+  }
+
   @Override
   protected boolean preHandle(ServletRequest request, ServletResponse response) throws Exception {
-    return CheckAccessToken((HttpServletRequest) request, (HttpServletResponse) response);
+    long start = System.nanoTime();
+    OAuthMetrics previous = ResponseUtils.bindMetrics(metrics);
+    try {
+      return CheckAccessToken((HttpServletRequest) request, (HttpServletResponse) response);
+    } finally {
+      ResponseUtils.bindMetrics(previous);
+      totalTime.lap(start);
+    }
   }
 
   protected boolean CheckAccessToken(HttpServletRequest request, HttpServletResponse response)
       throws IOException, OAuthSystemException {
+    String accessToken = (String) request.getAttribute(CHECKED_TOKEN);
+    if (accessToken != null)
+      request.removeAttribute(CHECKED_TOKEN); // checked on the async executor
+    else if ((accessToken = verifyAccessToken(request, response)) == null)
+      return false;
+    if (bindSubject && !bindSubject(accessToken, request, response))
+      return writeInvalidToken(request, response);
+    return true;
+  }
+
+  /**
+   * parse and check the access token, send back error if the access token is
+   * invalid
+   * 
+   * @return the valid access token, or null if error sent
+   */
+  private String verifyAccessToken(HttpServletRequest request, HttpServletResponse response)
+      throws IOException, OAuthSystemException {
     try {
+      long start = System.nanoTime();
       String accessToken = new OAuthAccessResourceRequest(request).getAccessToken();
-      if (oAuthService.checkAccessToken(accessToken, request))
-        return true;
-      // because OLTU client not process error in response header
-      // so still send JSON data back, the client need process this error
-      I18N i18n = new I18N(request.getLocale());
-      return ResponseUtils.processResponse(response, null,
-          ResponseUtils.responseInvalidToken(i18n.getString("INVALID_TOKEN")));
+      long mark = parseTime.lap(start);
+      boolean valid = checkToken(accessToken, request);
+      verifyTime.lap(mark);
+      if (valid)
+        return accessToken;
+      writeInvalidToken(request, response);
     } catch (OAuthProblemException ex) {
-      if (OAuthUtils.isEmpty(ex.getError()))
-        return ResponseUtils.processResponse(response, null,
-            ResponseUtils.responseInvalidRequest(ex.getDescription()));
-      return ResponseUtils.processResponse(response, null,
-          OAuthRSResponse.errorResponse(HttpServletResponse.SC_UNAUTHORIZED).error(ex));
+      ResponseUtils.writeProblem(response, HttpServletResponse.SC_UNAUTHORIZED, ex);
+    }
+    return null;
+  }
+
+  private static boolean writeInvalidToken(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    // because OLTU client not process error in response header
+    // so still send JSON data back, the client need process this error
+    I18N i18n = I18N.of(request.getLocale());
+    return ResponseUtils.writeInvalidToken(response, i18n.getString("INVALID_TOKEN"));
+  }
+
+  /**
+   * authenticate the access token and bind the subject to the thread, the
+   * subject is unbound in {@link #afterCompletion}
+   * 
+   * @param accessToken
+   *          the valid access token
+   * @param request
+   *          HTTP request
+   * @param response
+   *          HTTP response
+   * @return false if the access token can not be authenticated
+   */
+  protected boolean bindSubject(String accessToken, HttpServletRequest request,
+      HttpServletResponse response) {
+    SecurityManager securityManager = SecurityUtils.getSecurityManager();
+    BearerToken token = new BearerToken(accessToken, request.getRemoteHost(),
+        (SignedToken) request.getAttribute(SignedToken.REQUEST_ATTRIBUTE));
+    AuthenticationInfo info;
+    try {
+      info = securityManager.authenticate(token);
+    } catch (AuthenticationException ex) {
+      return false;
+    }
+    // same as noSessionCreation filter, so the subject is not saved to session
+    request.setAttribute(DefaultSubjectContext.SESSION_CREATION_ENABLED, Boolean.FALSE);
+    Subject subject = new WebSubject.Builder(securityManager, request, response)
+        .principals(info.getPrincipals()).authenticated(true).host(token.getHost())
+        .sessionCreationEnabled(false).buildSubject();
+    ThreadState threadState = new SubjectThreadState(subject);
+    threadState.bind();
+    request.setAttribute(THREAD_STATE, threadState);
+    return true;
+  }
+
+  /**
+   * restore the thread state if a subject was bound
+   */
+  @Override
+  public void afterCompletion(ServletRequest request, ServletResponse response,
+      Exception exception) throws Exception {
+    ThreadState threadState = (ThreadState) request.getAttribute(THREAD_STATE);
+    if (threadState != null) {
+      request.removeAttribute(THREAD_STATE);
+      threadState.restore();
     }
   }
+
+  /**
+   * check access token, reject revoked access token if revocation list
+   * present, verify signed access token by the token signer if present,
+   * otherwise check by OAuthService
+   * 
+   * @param accessToken
+   *          access token
+   * @param request
+   *          HTTP request
+   * @return true if the access token is valid
+   */
+  protected boolean checkToken(String accessToken, HttpServletRequest request) {
+    if (revocationList != null && revocationList.isRevoked(accessToken))
+      return false;
+    if (tokenSigner == null || !tokenSigner.isSigned(accessToken))
+      return oAuthService.checkAccessToken(accessToken, request);
+    SignedToken signedToken = tokenSigner.verify(accessToken);
+    if (signedToken == null)
+      return false;
+    if (checkRevocation && !oAuthService.checkAccessToken(accessToken, request))
+      return false;
+    request.setAttribute(SignedToken.REQUEST_ATTRIBUTE, signedToken);
+    return true;
+  }
 }
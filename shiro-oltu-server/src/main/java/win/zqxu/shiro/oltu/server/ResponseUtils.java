@@ -1,6 +1,9 @@
 package win.zqxu.shiro.oltu.server;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
@@ -22,6 +25,13 @@ import org.apache.oltu.oauth2.rs.response.OAuthRSResponse;
  * @author zqxu
  */
 class ResponseUtils {
+  private static final String CONTENT_TYPE = "application/json;charset=UTF-8";
+  private static final int MAX_CACHED_ERRORS = 1024;
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static final ThreadLocal<OAuthMetrics> boundMetrics = new ThreadLocal<OAuthMetrics>();
+  private static final ConcurrentMap<String, ConcurrentMap<String, byte[]>> cachedErrors = //
+      new ConcurrentHashMap<String, ConcurrentMap<String, byte[]>>();
+
   /**
    * create invalid client response builder
    * 
@@ -30,8 +40,8 @@ class ResponseUtils {
    * @return response builder
    */
   public static OAuthResponseBuilder responseInvalidClient(String description) {
-    return OAuthResponse.errorResponse(HttpServletResponse.SC_BAD_REQUEST)
-        .setError(OAuthError.TokenResponse.INVALID_CLIENT).setErrorDescription(description);
+    return errorResponse(HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.TokenResponse.INVALID_CLIENT, description);
   }
 
   /**
@@ -42,8 +52,8 @@ class ResponseUtils {
    * @return response builder
    */
   public static OAuthResponseBuilder responseUnauthClient(String description) {
-    return OAuthResponse.errorResponse(HttpServletResponse.SC_UNAUTHORIZED)
-        .setError(OAuthError.TokenResponse.UNAUTHORIZED_CLIENT).setErrorDescription(description);
+    return errorResponse(HttpServletResponse.SC_UNAUTHORIZED,
+        OAuthError.TokenResponse.UNAUTHORIZED_CLIENT, description);
   }
 
   /**
@@ -54,8 +64,8 @@ class ResponseUtils {
    * @return response builder
    */
   public static OAuthResponseBuilder responseAccessDenied(String description) {
-    return OAuthResponse.errorResponse(HttpServletResponse.SC_BAD_REQUEST)
-        .setError(OAuthError.CodeResponse.ACCESS_DENIED).setErrorDescription(description);
+    return errorResponse(HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.CodeResponse.ACCESS_DENIED, description);
   }
 
   /**
@@ -66,8 +76,8 @@ class ResponseUtils {
    * @return response builder
    */
   public static OAuthResponseBuilder responseInvalidRequest(String description) {
-    return OAuthResponse.errorResponse(HttpServletResponse.SC_BAD_REQUEST)
-        .setError(OAuthError.TokenResponse.INVALID_REQUEST).setErrorDescription(description);
+    return errorResponse(HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.TokenResponse.INVALID_REQUEST, description);
   }
 
   /**
@@ -78,8 +88,8 @@ class ResponseUtils {
    * @return response builder
    */
   public static OAuthResponseBuilder responseInvalidScope(String description) {
-    return OAuthResponse.errorResponse(HttpServletResponse.SC_BAD_REQUEST)
-        .setError(OAuthError.CodeResponse.INVALID_SCOPE).setErrorDescription(description);
+    return errorResponse(HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.CodeResponse.INVALID_SCOPE, description);
   }
 
   /**
@@ -90,8 +100,8 @@ class ResponseUtils {
    * @return response builder
    */
   public static OAuthResponseBuilder responseInvalidGrant(String description) {
-    return OAuthResponse.errorResponse(HttpServletResponse.SC_BAD_REQUEST)
-        .setError(OAuthError.TokenResponse.INVALID_GRANT).setErrorDescription(description);
+    return errorResponse(HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.TokenResponse.INVALID_GRANT, description);
   }
 
   /**
@@ -102,8 +112,37 @@ class ResponseUtils {
    * @return response builder
    */
   public static OAuthResponseBuilder responseUnsuppGrant(String description) {
-    return OAuthResponse.errorResponse(HttpServletResponse.SC_BAD_REQUEST)
-        .setError(OAuthError.TokenResponse.UNSUPPORTED_GRANT_TYPE).setErrorDescription(description);
+    return errorResponse(HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.TokenResponse.UNSUPPORTED_GRANT_TYPE, description);
+  }
+
+  /**
+   * bind metrics of the filter handling the request to current thread, the
+   * error responses created on the thread are counted into it
+   * 
+   * @param metrics
+   *          metrics of the filter, null to stop counting
+   * @return metrics bound before, should be bound again after the request
+   */
+  static OAuthMetrics bindMetrics(OAuthMetrics metrics) {
+    OAuthMetrics previous = boundMetrics.get();
+    if (metrics == null)
+      boundMetrics.remove();
+    else
+      boundMetrics.set(metrics);
+    return previous;
+  }
+
+  private static void countError(String error) {
+    OAuthMetrics metrics = boundMetrics.get();
+    if (metrics != null)
+      metrics.error(OAuthUtils.isEmpty(error) ? OAuthError.TokenResponse.INVALID_REQUEST : error);
+  }
+
+  private static OAuthResponseBuilder errorResponse(int status, String error,
+      String description) {
+    countError(error);
+    return OAuthResponse.errorResponse(status).setError(error).setErrorDescription(description);
   }
 
   /**
@@ -114,6 +153,7 @@ class ResponseUtils {
    * @return response builder
    */
   public static OAuthResponseBuilder responseBadRequest(OAuthProblemException ex) {
+    countError(ex.getError());
     return OAuthASResponse.errorResponse(HttpServletResponse.SC_BAD_REQUEST).error(ex);
   }
 
@@ -163,6 +203,7 @@ class ResponseUtils {
    * @return response builder
    */
   public static OAuthResponseBuilder responseInvalidToken(String description) {
+    countError(OAuthError.ResourceResponse.INVALID_TOKEN);
     return OAuthRSResponse.errorResponse(HttpServletResponse.SC_UNAUTHORIZED)
         .setError(OAuthError.ResourceResponse.INVALID_TOKEN).setErrorDescription(description);
   }
@@ -186,8 +227,8 @@ class ResponseUtils {
       OAuthResponseBuilder builder) throws IOException, OAuthSystemException {
     if (OAuthUtils.isEmpty(redirectURI)) {
       OAuthResponse oAuthResponse = builder.buildJSONMessage();
-      response.setStatus(oAuthResponse.getResponseStatus());
-      response.getWriter().print(oAuthResponse.getBody());
+      byte[] body = oAuthResponse.getBody().getBytes(StandardCharsets.UTF_8);
+      writeBody(response, oAuthResponse.getResponseStatus(), body, body.length);
     } else {
       builder.location(redirectURI);
       OAuthResponse oAuthResponse = builder.buildQueryMessage();
@@ -197,6 +238,272 @@ class ResponseUtils {
     return false; // this method must return false to break filter chain
   }
 
+  /**
+   * write access token response directly into the response stream
+   * 
+   * @param response
+   *          HTTP response
+   * @param accessToken
+   *          access token
+   * @param expireIn
+   *          access token expire in
+   * @param refreshToken
+   *          refresh token, can be null
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeAccessToken(HttpServletResponse response, String accessToken,
+      long expireIn, String refreshToken) throws IOException {
+    JsonWriter writer = JsonWriter.get().beginObject();
+    writer.field(OAuth.OAUTH_ACCESS_TOKEN, accessToken);
+    writer.field(OAuth.OAUTH_EXPIRES_IN, expireIn);
+    writer.field(OAuth.OAUTH_REFRESH_TOKEN, refreshToken);
+    writer.endObject();
+    writeBody(response, HttpServletResponse.SC_OK, writer.buffer(), writer.length());
+    return false;
+  }
+
+  /**
+   * write invalid client response directly into the response stream
+   * 
+   * @param response
+   *          HTTP response
+   * @param description
+   *          error description, should be a constant message
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeInvalidClient(HttpServletResponse response, String description)
+      throws IOException {
+    return writeError(response, HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.TokenResponse.INVALID_CLIENT, description);
+  }
+
+  /**
+   * write unauthorized client response directly into the response stream
+   * 
+   * @param response
+   *          HTTP response
+   * @param description
+   *          error description, should be a constant message
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeUnauthClient(HttpServletResponse response, String description)
+      throws IOException {
+    return writeError(response, HttpServletResponse.SC_UNAUTHORIZED,
+        OAuthError.TokenResponse.UNAUTHORIZED_CLIENT, description);
+  }
+
+  /**
+   * write invalid grant response directly into the response stream
+   * 
+   * @param response
+   *          HTTP response
+   * @param description
+   *          error description, should be a constant message
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeInvalidGrant(HttpServletResponse response, String description)
+      throws IOException {
+    return writeError(response, HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.TokenResponse.INVALID_GRANT, description);
+  }
+
+  /**
+   * write unsupported grant type response directly into the response stream
+   * 
+   * @param response
+   *          HTTP response
+   * @param description
+   *          error description, should be a constant message
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeUnsuppGrant(HttpServletResponse response, String description)
+      throws IOException {
+    return writeError(response, HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.TokenResponse.UNSUPPORTED_GRANT_TYPE, description);
+  }
+
+  /**
+   * write invalid scope response directly into the response stream
+   * 
+   * @param response
+   *          HTTP response
+   * @param description
+   *          error description, should be a constant message
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeInvalidScope(HttpServletResponse response, String description)
+      throws IOException {
+    return writeError(response, HttpServletResponse.SC_BAD_REQUEST,
+        OAuthError.TokenResponse.INVALID_SCOPE, description);
+  }
+
+  /**
+   * write invalid token response directly into the response stream
+   * 
+   * @param response
+   *          HTTP response
+   * @param description
+   *          error description, should be a constant message
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeInvalidToken(HttpServletResponse response, String description)
+      throws IOException {
+    return writeError(response, HttpServletResponse.SC_UNAUTHORIZED,
+        OAuthError.ResourceResponse.INVALID_TOKEN, description);
+  }
+
+  /**
+   * write too many requests response directly into the response stream, with
+   * Retry-After header of one second, the body is cached like
+   * {@link #writeError(HttpServletResponse, int, String, String)}
+   * 
+   * @param response
+   *          HTTP response
+   * @param description
+   *          error description, should be a constant message
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeTooManyRequests(HttpServletResponse response, String description)
+      throws IOException {
+    response.setHeader("Retry-After", "1");
+    return writeError(response, SC_TOO_MANY_REQUESTS,
+        OAuthError.CodeResponse.TEMPORARILY_UNAVAILABLE, description);
+  }
+
+  /**
+   * write OAuth problem response directly into the response stream, if the
+   * problem has no error code, invalid request error is written
+   * 
+   * @param response
+   *          HTTP response
+   * @param status
+   *          HTTP status
+   * @param ex
+   *          OAuth exception object
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeProblem(HttpServletResponse response, int status,
+      OAuthProblemException ex) throws IOException {
+    countError(ex.getError());
+    JsonWriter writer = JsonWriter.get().beginObject();
+    if (OAuthUtils.isEmpty(ex.getError())) {
+      status = HttpServletResponse.SC_BAD_REQUEST;
+      writer.field(OAuthError.OAUTH_ERROR, OAuthError.TokenResponse.INVALID_REQUEST);
+    } else {
+      writer.field(OAuthError.OAUTH_ERROR, ex.getError());
+    }
+    writer.field(OAuthError.OAUTH_ERROR_DESCRIPTION, ex.getDescription());
+    writer.field(OAuthError.OAUTH_ERROR_URI, ex.getUri());
+    writer.field(OAuth.OAUTH_STATE, ex.getState());
+    writer.endObject();
+    writeBody(response, status, writer.buffer(), writer.length());
+    return false;
+  }
+
+  /**
+   * write error response directly into the response stream, the encoded body
+   * is cached and reused for the same error and description
+   * 
+   * @param response
+   *          HTTP response
+   * @param status
+   *          HTTP status
+   * @param error
+   *          OAuth error code
+   * @param description
+   *          error description, should be a constant message
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeError(HttpServletResponse response, int status, String error,
+      String description) throws IOException {
+    countError(error);
+    ConcurrentMap<String, byte[]> bodies = cachedErrors.get(error);
+    if (bodies == null) {
+      cachedErrors.putIfAbsent(error, new ConcurrentHashMap<String, byte[]>());
+      bodies = cachedErrors.get(error);
+    }
+    byte[] body = description == null ? null : bodies.get(description);
+    if (body == null) {
+      JsonWriter writer = JsonWriter.get().beginObject();
+      writer.field(OAuthError.OAUTH_ERROR, error);
+      writer.field(OAuthError.OAUTH_ERROR_DESCRIPTION, description);
+      body = writer.endObject().toByteArray();
+      if (description != null && bodies.size() < MAX_CACHED_ERRORS)
+        bodies.putIfAbsent(description, body);
+    }
+    writeBody(response, status, body, body.length);
+    return false;
+  }
+
+  /**
+   * write JSON content of the writer directly into the response stream
+   * 
+   * @param response
+   *          HTTP response
+   * @param status
+   *          HTTP status
+   * @param writer
+   *          JSON writer
+   * @return always return false
+   * @throws IOException
+   *           If an input or output exception occurs
+   */
+  public static boolean writeJson(HttpServletResponse response, int status, JsonWriter writer)
+      throws IOException {
+    writeBody(response, status, writer.buffer(), writer.length());
+    return false;
+  }
+
+  /**
+   * write response without body, with no cache headers
+   * 
+   * @param response
+   *          HTTP response
+   * @param status
+   *          HTTP status
+   * @return always return false
+   */
+  public static boolean writeEmpty(HttpServletResponse response, int status) {
+    response.setStatus(status);
+    response.setContentLength(0);
+    response.setHeader("Cache-Control", "no-store");
+    response.setHeader("Pragma", "no-cache");
+    return false;
+  }
+
+  /**
+   * write JSON body with content type, content length and no cache headers
+   */
+  private static void writeBody(HttpServletResponse response, int status, byte[] body,
+      int length) throws IOException {
+    response.setStatus(status);
+    response.setContentType(CONTENT_TYPE);
+    response.setContentLength(length);
+    response.setHeader("Cache-Control", "no-store");
+    response.setHeader("Pragma", "no-cache");
+    response.getOutputStream().write(body, 0, length);
+  }
+
   private static class ReplaceStateRequest extends HttpServletRequestWrapper {
     private String state;
 
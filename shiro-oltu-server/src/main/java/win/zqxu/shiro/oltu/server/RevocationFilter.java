@@ -0,0 +1,218 @@
+package win.zqxu.shiro.oltu.server;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.oltu.oauth2.common.OAuth;
+import org.apache.oltu.oauth2.common.error.OAuthError;
+import org.apache.oltu.oauth2.common.utils.OAuthUtils;
+import org.apache.shiro.web.servlet.AdviceFilter;
+
+/**
+ * <p>
+ * A SHIRO filter for OAuth2 token revocation (RFC 7009), the client POST the
+ * access token or refresh token in <b>token</b> parameter, and authenticate
+ * itself through HTTP basic authorization or <b>client_id</b> and
+ * <b>client_secret</b> parameters. The revoked token is put into the
+ * {@link RevocationList}, which is checked by other filters sharing the same
+ * list.
+ * </p>
+ * <p>
+ * This filter need a custom OAuthService object and a revocation list, set
+ * through oAuthService and revocationList property. The token signer should be
+ * set if access tokens are signed. Tokens owned by other clients are refused,
+ * the owner of tokens not signed is checked through
+ * {@link OAuthService#getClientId(String)} and
+ * {@link OAuthService#checkRefreshToken(String, String)}, tokens unknown to
+ * OAuthService are not put into the revocation list.
+ * </p>
+ * <p>
+ * add this filter in shiro.ini file like this:<br>
+ * [main]<br>
+ * oAuthService = &lt;custom oAuthService class&gt;<br>
+ * revocationList = win.zqxu.shiro.oltu.server.RevocationList<br>
+ * oRevocationFilter = win.zqxu.shiro.oltu.server.RevocationFilter<br>
+ * oRevocationFilter.oAuthService = $oAuthService<br>
+ * oRevocationFilter.revocationList = $revocationList<br>
+ * <br>
+ * [urls]<br>
+ * &#47;oauth&#47;revoke = oRevocationFilter
+ * </p>
+ * Note that the revocation filter should access by SHIRO anonymous.
+ * 
+ * @author zqxu
+ */
+public class RevocationFilter extends AdviceFilter {
+  private static final String TOKEN = "token";
+  private static final String TOKEN_TYPE_HINT = "token_type_hint";
+  private OAuthService oAuthService;
+  private OAuthGrantService grantService;
+  private TokenSigner tokenSigner;
+  private RevocationList revocationList;
+  private String locales;
+
+  public OAuthService getoAuthService() {
+    return oAuthService;
+  }
+
+  public void setoAuthService(OAuthService oAuthService) {
+    this.oAuthService = oAuthService;
+    this.grantService = OAuthGrantServiceAdapter.adapt(oAuthService);
+  }
+
+  /**
+   * get access token signer
+   * 
+   * @return access token signer
+   */
+  public TokenSigner getTokenSigner() {
+    return tokenSigner;
+  }
+
+  /**
+   * set access token signer, if set, signed access tokens are verified locally
+   * and revoked until their own expire time.
+   * 
+   * @param tokenSigner
+   *          access token signer
+   */
+  public void setTokenSigner(TokenSigner tokenSigner) {
+    this.tokenSigner = tokenSigner;
+  }
+
+  /**
+   * get revocation list
+   * 
+   * @return revocation list
+   */
+  public RevocationList getRevocationList() {
+    return revocationList;
+  }
+
+  /**
+   * set revocation list which holds the revoked tokens
+   * 
+   * @param revocationList
+   *          revocation list
+   */
+  public void setRevocationList(RevocationList revocationList) {
+    this.revocationList = revocationList;
+  }
+
+  /**
+   * get locales of messages preloaded at filter init
+   * 
+   * @return locales separated by comma
+   */
+  public String getLocales() {
+    return locales;
+  }
+
+  /**
+   * set locales of messages preloaded at filter init
+   * 
+   * @param locales
+   *          locales separated by comma, such as en,zh_CN
+   */
+  public void setLocales(String locales) {
+    this.locales = locales;
+  }
+
+  /**
+   * preload messages of the configured locales
+   */
+  @Override
+  protected void onFilterConfigSet() throws Exception {
+    if (!OAuthUtils.isEmpty(locales))
+      I18N.preload(locales);
+  }
+
+  @Override
+  protected boolean preHandle(ServletRequest request, ServletResponse response) throws Exception {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+    I18N i18n = I18N.of(request.getLocale());
+    if (!OAuth.HttpMethod.POST.equals(httpRequest.getMethod()))
+      return ResponseUtils.writeError(httpResponse, HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+          OAuthError.TokenResponse.INVALID_REQUEST, i18n.getString("POST_REQUIRED"));
+    // authenticate the client
+    ClientCredentials credentials = ClientCredentials.from(httpRequest);
+    if (credentials == null)
+      return ResponseUtils.writeUnauthClient(httpResponse, i18n.getString("INVALID_CLIENT_ID"));
+    switch (grantService.authenticateClient(credentials.clientId, credentials.secret)) {
+    case INVALID_CLIENT:
+      return ResponseUtils.writeUnauthClient(httpResponse, i18n.getString("INVALID_CLIENT_ID"));
+    case UNAUTHORIZED_CLIENT:
+      return ResponseUtils.writeUnauthClient(httpResponse,
+          i18n.getString("INVALID_CLIENT_SECRET"));
+    default:
+      break;
+    }
+    String token = httpRequest.getParameter(TOKEN);
+    if (OAuthUtils.isEmpty(token))
+      return ResponseUtils.writeError(httpResponse, HttpServletResponse.SC_BAD_REQUEST,
+          OAuthError.TokenResponse.INVALID_REQUEST, i18n.getString("TOKEN_REQUIRED"));
+    // revoke the token, invalid token is not an error in RFC 7009
+    if (tokenSigner != null && tokenSigner.isSigned(token)) {
+      SignedToken signedToken = tokenSigner.verify(token);
+      if (signedToken != null) {
+        if (!signedToken.getClientId().equals(credentials.clientId))
+          return ResponseUtils.writeUnauthClient(httpResponse, i18n.getString("TOKEN_NOT_OWNED"));
+        revocationList.revoke(token, signedToken.getExpireAt());
+      }
+    } else {
+      String tokenTypeHint = httpRequest.getParameter(TOKEN_TYPE_HINT);
+      Boolean owned = checkOwner(token, credentials.clientId, tokenTypeHint);
+      if (Boolean.FALSE.equals(owned))
+        return ResponseUtils.writeUnauthClient(httpResponse, i18n.getString("TOKEN_NOT_OWNED"));
+      if (owned != null)
+        revocationList.revoke(token, getExpireAt(token, tokenTypeHint));
+    }
+    return ResponseUtils.writeEmpty(httpResponse, HttpServletResponse.SC_OK);
+  }
+
+  /**
+   * check owner of the token not signed, the hinted token type is checked
+   * first
+   * 
+   * @param token
+   *          access token or refresh token
+   * @param clientId
+   *          the authenticated client
+   * @param tokenTypeHint
+   *          token type hint from client, can be null
+   * @return true if the token issued to the client, false if issued to other
+   *         client, null if the token unknown
+   */
+  private Boolean checkOwner(String token, String clientId, String tokenTypeHint) {
+    boolean refreshFirst = OAuth.OAUTH_REFRESH_TOKEN.equals(tokenTypeHint);
+    if (refreshFirst && oAuthService.checkRefreshToken(token, clientId))
+      return Boolean.TRUE;
+    String owner = oAuthService.getClientId(token);
+    if (owner != null)
+      return owner.equals(clientId);
+    if (!refreshFirst && oAuthService.checkRefreshToken(token, clientId))
+      return Boolean.TRUE;
+    return null;
+  }
+
+  /**
+   * get expire time of the token not signed, the default implementation asks
+   * OAuthService for access token, returns 0 for refresh token or unknown
+   * token so the token stays in the revocation list for the default time
+   * 
+   * @param token
+   *          access token or refresh token
+   * @param tokenTypeHint
+   *          token type hint from client, can be null
+   * @return expire time in millisecond, 0 if unknown
+   */
+  protected long getExpireAt(String token, String tokenTypeHint) {
+    if (OAuth.OAUTH_REFRESH_TOKEN.equals(tokenTypeHint))
+      return 0;
+    long expireIn = oAuthService.getExpireIn(token);
+    return expireIn <= 0 ? 0 : System.currentTimeMillis() + expireIn;
+  }
+}
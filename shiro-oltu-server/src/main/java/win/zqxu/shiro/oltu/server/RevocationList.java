@@ -0,0 +1,295 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Set of revoked access tokens and refresh tokens, checked by
+ * {@link ResourceFilter}, {@link TokenFilter} and {@link IntrospectionFilter}
+ * before the token is checked by OAuthService, filled by
+ * {@link RevocationFilter}.
+ * </p>
+ * <p>
+ * Revoked tokens are partitioned into generations by expire time, each
+ * generation has a Bloom filter sized by {@link #getExpectedTokens()} in front
+ * of the exact token set, so checking a token which was not revoked mostly
+ * costs a few bit tests per generation without lock. A whole generation is
+ * dropped once all its tokens expired, so the set only holds tokens that would
+ * still be accepted otherwise. The generation span is widened if needed, so
+ * tokens revoked for the default expire time spread over at most
+ * {@link #getMaxGenerations()} generations.
+ * </p>
+ * <p>
+ * add the revocation list in shiro.ini file like this:<br>
+ * [main]<br>
+ * revocationList = win.zqxu.shiro.oltu.server.RevocationList<br>
+ * oRevocationFilter.revocationList = $revocationList<br>
+ * oTokenFilter.revocationList = $revocationList<br>
+ * oResourceFilter.revocationList = $revocationList<br>
+ * </p>
+ * Note that the revocation list lives in memory of one server, share the same
+ * instance between the filters of that server.
+ * 
+ * @author zqxu
+ */
+public class RevocationList {
+  private static final int BLOOM_BITS_PER_TOKEN = 10;
+  private static final int BLOOM_HASHES = 3;
+  private final ConcurrentSkipListMap<Long, Generation> generations = //
+      new ConcurrentSkipListMap<Long, Generation>();
+  private long generationSpan = 10 * 60 * 1000L;
+  private long defaultExpireIn = 30 * 24 * 60 * 60 * 1000L;
+  private int maxGenerations = 64;
+  private int expectedTokens = 1024;
+  private volatile long purgeAt = Long.MAX_VALUE;
+
+  /**
+   * get time span of expire time covered by one generation
+   * 
+   * @return generation span in millisecond
+   */
+  public long getGenerationSpan() {
+    return generationSpan;
+  }
+
+  /**
+   * set time span of expire time covered by one generation, default is 10
+   * minutes. revoked tokens stay in the list at most this span longer than
+   * their expire time. The span actually used is not less than default expire
+   * time divided by max generations.
+   * 
+   * @param generationSpan
+   *          generation span in millisecond
+   */
+  public void setGenerationSpan(long generationSpan) {
+    if (generationSpan <= 0)
+      throw new IllegalArgumentException("generationSpan must be positive");
+    this.generationSpan = generationSpan;
+  }
+
+  /**
+   * get time a revoked token stays in the list if its expire time is unknown
+   * 
+   * @return default expire time in millisecond
+   */
+  public long getDefaultExpireIn() {
+    return defaultExpireIn;
+  }
+
+  /**
+   * set time a revoked token stays in the list if its expire time is unknown,
+   * default is 30 days, should not be less than refresh token lifetime.
+   * 
+   * @param defaultExpireIn
+   *          default expire time in millisecond
+   */
+  public void setDefaultExpireIn(long defaultExpireIn) {
+    this.defaultExpireIn = defaultExpireIn;
+  }
+
+  /**
+   * get maximum count of generations covering the default expire time
+   * 
+   * @return maximum generation count
+   */
+  public int getMaxGenerations() {
+    return maxGenerations;
+  }
+
+  /**
+   * set maximum count of generations covering the default expire time, default
+   * is 64, each check of a token not revoked tests the Bloom filter of every
+   * generation
+   * 
+   * @param maxGenerations
+   *          maximum generation count
+   */
+  public void setMaxGenerations(int maxGenerations) {
+    if (maxGenerations <= 0)
+      throw new IllegalArgumentException("maxGenerations must be positive");
+    this.maxGenerations = maxGenerations;
+  }
+
+  /**
+   * get expected count of revoked tokens in one generation
+   * 
+   * @return expected token count
+   */
+  public int getExpectedTokens() {
+    return expectedTokens;
+  }
+
+  /**
+   * set expected count of revoked tokens in one generation, default is 1024,
+   * the Bloom filter of each generation is sized for it, more tokens make the
+   * Bloom filter less effective but the list still exact
+   * 
+   * @param expectedTokens
+   *          expected token count
+   */
+  public void setExpectedTokens(int expectedTokens) {
+    if (expectedTokens <= 0)
+      throw new IllegalArgumentException("expectedTokens must be positive");
+    this.expectedTokens = expectedTokens;
+  }
+
+  /**
+   * revoke the token whose expire time is unknown, the token stays in the list
+   * for {@link #getDefaultExpireIn()}
+   * 
+   * @param token
+   *          access token or refresh token
+   */
+  public void revoke(String token) {
+    revoke(token, 0);
+  }
+
+  /**
+   * revoke the token, the token stays in the list until it expires
+   * 
+   * @param token
+   *          access token or refresh token
+   * @param expireAt
+   *          expire time of the token in millisecond, 0 if unknown
+   */
+  public void revoke(String token, long expireAt) {
+    long now = System.currentTimeMillis();
+    if (expireAt <= 0)
+      expireAt = now + defaultExpireIn;
+    if (token == null || expireAt <= now)
+      return; // expired token is rejected anyway
+    generation(expireAt).add(token);
+  }
+
+  /**
+   * revoke the token if it was not revoked with the same expire time, for
+   * internal use
+   *
+   * @return false if the token already revoked or expired
+   */
+  boolean revokeOnce(String token, long expireAt) {
+    long now = System.currentTimeMillis();
+    if (expireAt <= now)
+      return false;
+    if (now >= purgeAt)
+      purge(now);
+    return generation(expireAt).add(token);
+  }
+
+  private Generation generation(long expireAt) {
+    long span = Math.max(generationSpan, (defaultExpireIn + maxGenerations - 1) / maxGenerations);
+    Long endAt = (expireAt / span + 1) * span;
+    Generation generation = generations.get(endAt);
+    if (generation == null) {
+      Generation created = new Generation(expectedTokens);
+      generation = generations.putIfAbsent(endAt, created);
+      if (generation == null)
+        generation = created;
+      if (endAt < purgeAt)
+        purgeAt = endAt;
+    }
+    return generation;
+  }
+
+  /**
+   * Determine whether the token was revoked
+   * 
+   * @param token
+   *          access token or refresh token
+   * @return true if the token was revoked and not expired yet
+   */
+  public boolean isRevoked(String token) {
+    if (token == null || generations.isEmpty())
+      return false;
+    long now = System.currentTimeMillis();
+    if (now >= purgeAt)
+      purge(now);
+    int hash = token.hashCode();
+    int step = mix(hash);
+    for (Generation generation : generations.values()) {
+      if (generation.mightContain(hash, step) && generation.tokens.contains(token))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * get count of revoked tokens in the list, including expired ones in the
+   * generation not dropped yet
+   * 
+   * @return revoked token count
+   */
+  public int size() {
+    purge(System.currentTimeMillis());
+    int size = 0;
+    for (Generation generation : generations.values())
+      size += generation.tokens.size();
+    return size;
+  }
+
+  /**
+   * remove all revoked tokens
+   */
+  public void clear() {
+    generations.clear();
+  }
+
+  /**
+   * drop the expired generations, then schedule the next purge at the end of
+   * the first generation left
+   */
+  private void purge(long now) {
+    Map.Entry<Long, Generation> first;
+    while ((first = generations.firstEntry()) != null && first.getKey() <= now)
+      generations.remove(first.getKey(), first.getValue());
+    purgeAt = first == null ? Long.MAX_VALUE : first.getKey();
+  }
+
+  private static int mix(int hash) {
+    hash *= 0x9E3779B9;
+    hash ^= hash >>> 15;
+    return hash | 1;
+  }
+
+  private static final class Generation {
+    private final AtomicLongArray bloom;
+    private final int bloomMask;
+    private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+
+    Generation(int expectedTokens) {
+      long bits = Math.max(64, (long) expectedTokens * BLOOM_BITS_PER_TOKEN);
+      int size = (int) Math.min(1 << 30, Long.highestOneBit(bits - 1) << 1);
+      bloom = new AtomicLongArray(size / 64);
+      bloomMask = size - 1;
+    }
+
+    boolean add(String token) {
+      if (!tokens.add(token))
+        return false;
+      int hash = token.hashCode();
+      int step = mix(hash);
+      for (int i = 0; i < BLOOM_HASHES; i++, hash += step) {
+        int bit = hash & bloomMask;
+        long mask = 1L << bit;
+        long word;
+        do {
+          word = bloom.get(bit >>> 6);
+        } while ((word & mask) == 0 && !bloom.compareAndSet(bit >>> 6, word, word | mask));
+      }
+      return true;
+    }
+
+    boolean mightContain(int hash, int step) {
+      for (int i = 0; i < BLOOM_HASHES; i++, hash += step) {
+        int bit = hash & bloomMask;
+        if ((bloom.get(bit >>> 6) & (1L << bit)) == 0)
+          return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Registry of allowed scopes of each client for {@link AuthorizeFilter}. Scope
+ * names are interned to integer ids once, and the allowed scopes of each client
+ * are precomputed as a bitset, so all scopes of an authorization request are
+ * checked by one containment test without calling OAuthService.
+ * </p>
+ * <p>
+ * add the registry in shiro.ini file like this:<br>
+ * [main]<br>
+ * scopeRegistry = win.zqxu.shiro.oltu.server.ScopeRegistry<br>
+ * scopeRegistry.clientScopes = client1:read write; client2:read<br>
+ * oAuthorizeFilter.scopeRegistry = $scopeRegistry<br>
+ * </p>
+ * The application may also call {@link #setClientScopes(String, Collection)}
+ * and {@link #removeClient(String)} when the scopes of a client changed. Each
+ * change publishes a new copy of the client map, so a concurrent check sees
+ * either all clients before the change or all clients after it.
+ * 
+ * @author zqxu
+ */
+public class ScopeRegistry {
+  private final ConcurrentMap<String, Integer> scopeIds = //
+      new ConcurrentHashMap<String, Integer>();
+  private volatile Map<String, long[]> clientScopes = Collections.emptyMap();
+
+  /**
+   * set allowed scopes of clients, in format clientId:scope1 scope2, clients
+   * separated by semicolon, replace all clients registered before
+   * 
+   * @param clientScopes
+   *          allowed scopes of clients
+   */
+  public synchronized void setClientScopes(String clientScopes) {
+    Map<String, long[]> clients = new HashMap<String, long[]>();
+    for (String item : clientScopes.split(";")) {
+      item = item.trim();
+      if (item.isEmpty())
+        continue;
+      int index = item.indexOf(':');
+      if (index <= 0)
+        throw new IllegalArgumentException(
+            "client scopes must be in format clientId:scope1 scope2");
+      String scopes = item.substring(index + 1).trim();
+      clients.put(item.substring(0, index).trim(),
+          bits(scopes.isEmpty() ? null : Arrays.asList(scopes.split("\\s+"))));
+    }
+    this.clientScopes = clients;
+  }
+
+  /**
+   * set allowed scopes of the client, replace the scopes registered before
+   * 
+   * @param clientId
+   *          client id
+   * @param scopes
+   *          allowed scopes, null or empty if no scope allowed
+   */
+  public synchronized void setClientScopes(String clientId, Collection<String> scopes) {
+    Map<String, long[]> clients = new HashMap<String, long[]>(clientScopes);
+    clients.put(clientId, bits(scopes));
+    clientScopes = clients;
+  }
+
+  /**
+   * remove the client from the registry
+   * 
+   * @param clientId
+   *          client id
+   */
+  public synchronized void removeClient(String clientId) {
+    if (!clientScopes.containsKey(clientId))
+      return;
+    Map<String, long[]> clients = new HashMap<String, long[]>(clientScopes);
+    clients.remove(clientId);
+    clientScopes = clients;
+  }
+
+  private long[] bits(Collection<String> scopes) {
+    long[] bits = new long[0];
+    if (scopes != null) {
+      for (String scope : scopes) {
+        int id = intern(scope);
+        if ((id >>> 6) >= bits.length)
+          bits = Arrays.copyOf(bits, (id >>> 6) + 1);
+        bits[id >>> 6] |= 1L << id;
+      }
+    }
+    return bits;
+  }
+
+  /**
+   * whether the client is registered
+   * 
+   * @param clientId
+   *          client id
+   * @return true if the client is registered
+   */
+  public boolean isRegistered(String clientId) {
+    return clientScopes.containsKey(clientId);
+  }
+
+  /**
+   * check all scopes of the client in one containment test
+   * 
+   * @param clientId
+   *          client id
+   * @param scopes
+   *          requested scopes
+   * @return the first invalid scope, or null if all scopes are valid, all
+   *         scopes are invalid if the client not registered
+   */
+  public String checkScopes(String clientId, Set<String> scopes) {
+    if (scopes.isEmpty())
+      return null;
+    long[] allowed = clientScopes.get(clientId);
+    if (allowed == null)
+      return scopes.iterator().next();
+    long[] requested = new long[allowed.length];
+    for (String scope : scopes) {
+      Integer id = scopeIds.get(scope);
+      if (id == null || (id >>> 6) >= allowed.length)
+        return scope; // never allowed to this client
+      requested[id >>> 6] |= 1L << id;
+    }
+    for (int i = 0; i < allowed.length; i++) {
+      if ((requested[i] & ~allowed[i]) != 0)
+        return firstMissing(scopes, allowed);
+    }
+    return null;
+  }
+
+  private String firstMissing(Set<String> scopes, long[] allowed) {
+    for (String scope : scopes) {
+      int id = scopeIds.get(scope);
+      if ((allowed[id >>> 6] & (1L << id)) == 0)
+        return scope;
+    }
+    return null;
+  }
+
+  private int intern(String scope) {
+    Integer id = scopeIds.get(scope);
+    if (id == null) {
+      synchronized (scopeIds) {
+        id = scopeIds.get(scope);
+        if (id == null) {
+          id = scopeIds.size();
+          scopeIds.put(scope, id);
+        }
+      }
+    }
+    return id;
+  }
+}
@@ -0,0 +1,100 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * Default token generator, draws random bytes from a small pool of shared
+ * SecureRandom instances and encodes them in base64url without padding. The
+ * pool is seeded once per class, so short-lived and virtual threads never pay
+ * a fresh seeding, and each call picks a random instance of the pool, so
+ * concurrent calls rarely contend on the same lock.
+ * </p>
+ * <p>
+ * The pooled SecureRandom is DRBG if the JVM provides it, otherwise the JVM
+ * default algorithm, both are thread-safe and never block after seeded.
+ * </p>
+ * 
+ * @author zqxu
+ */
+public class SecureTokenGenerator implements TokenGenerator {
+  private static final int MIN_BYTE_LENGTH = 16;
+  private static final char[] ALPHABET = ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+      + "0123456789-_").toCharArray();
+  private static final SecureRandom[] RANDOMS = newRandoms();
+  private int byteLength = MIN_BYTE_LENGTH;
+
+  /**
+   * get random bytes per token
+   * 
+   * @return random bytes per token
+   */
+  public int getByteLength() {
+    return byteLength;
+  }
+
+  /**
+   * set random bytes per token, default and minimum is 16 (128 bits)
+   * 
+   * @param byteLength
+   *          random bytes per token
+   */
+  public void setByteLength(int byteLength) {
+    if (byteLength < MIN_BYTE_LENGTH)
+      throw new IllegalArgumentException("byteLength must be at least " + MIN_BYTE_LENGTH);
+    this.byteLength = byteLength;
+  }
+
+  @Override
+  public String generate() {
+    byte[] bytes = new byte[byteLength];
+    RANDOMS[ThreadLocalRandom.current().nextInt(RANDOMS.length)].nextBytes(bytes);
+    return encode(bytes);
+  }
+
+  /**
+   * one instance per processor, at most 16
+   */
+  private static SecureRandom[] newRandoms() {
+    int count = Math.min(16, Runtime.getRuntime().availableProcessors());
+    SecureRandom[] randoms = new SecureRandom[Math.max(1, count)];
+    for (int i = 0; i < randoms.length; i++) {
+      try {
+        randoms[i] = SecureRandom.getInstance("DRBG");
+      } catch (NoSuchAlgorithmException ex) {
+        randoms[i] = new SecureRandom();
+      }
+    }
+    return randoms;
+  }
+
+  /**
+   * encode bytes in base64url without padding directly into the result chars
+   */
+  static String encode(byte[] bytes) {
+    int length = bytes.length;
+    char[] chars = new char[(length * 4 + 2) / 3];
+    int index = 0;
+    int offset = 0;
+    for (; offset + 3 <= length; offset += 3) {
+      int bits = (bytes[offset] & 0xFF) << 16 | (bytes[offset + 1] & 0xFF) << 8
+          | (bytes[offset + 2] & 0xFF);
+      chars[index++] = ALPHABET[bits >>> 18];
+      chars[index++] = ALPHABET[(bits >>> 12) & 0x3F];
+      chars[index++] = ALPHABET[(bits >>> 6) & 0x3F];
+      chars[index++] = ALPHABET[bits & 0x3F];
+    }
+    if (offset < length) {
+      int bits = (bytes[offset] & 0xFF) << 16;
+      if (offset + 1 < length)
+        bits |= (bytes[offset + 1] & 0xFF) << 8;
+      chars[index++] = ALPHABET[bits >>> 18];
+      chars[index++] = ALPHABET[(bits >>> 12) & 0x3F];
+      if (offset + 1 < length)
+        chars[index++] = ALPHABET[(bits >>> 6) & 0x3F];
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,452 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of token records in memory-mapped segment files, for
+ * internal use. Each record carries a sequence number, the record with the
+ * highest sequence number wins when the same token appears more than once, so
+ * segments can be scanned in parallel and rewritten by compaction in any
+ * order. The mapped buffers are released as soon as a segment is closed, read
+ * or sealed, instead of waiting for garbage collection, so the space of
+ * compacted segments is freed when they are deleted. If the JVM does not allow
+ * it, the mapping is released by garbage collection.
+ *
+ * @author zqxu
+ */
+final class SegmentLog {
+  static final byte PUT = 1;
+  static final byte REMOVE = 2;
+  private static final String SUFFIX = ".log";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int HEADER_SIZE = 8;
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+  private static final BiFunction<Record, Record, Record> LATEST = //
+      new BiFunction<Record, Record, Record>() {
+        @Override
+        public Record apply(Record a, Record b) {
+          return a.sequence >= b.sequence ? a : b;
+        }
+      };
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      invokeCleaner = null; // before Java 9, see unmap
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  private final File directory;
+  private final int segmentSize;
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong nextSegmentId = new AtomicLong();
+  private final List<File> sealed = new CopyOnWriteArrayList<File>();
+  private final Object writeLock = new Object();
+  private File activeFile;
+  private FileChannel activeChannel;
+  private MappedByteBuffer active;
+
+  /**
+   * create log in the directory, existing segments are not read until
+   * {@link #load(int, int)} called
+   */
+  SegmentLog(File directory, int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * scan all segments in parallel, returns the latest record of each token
+   * grouped by kind, including REMOVE records. New records are appended to the
+   * last full-size segment if it has room, otherwise to a new segment.
+   */
+  List<ConcurrentMap<String, Record>> load(int kinds, int threads) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("can not create directory " + directory);
+    final List<ConcurrentMap<String, Record>> latest = //
+        new ArrayList<ConcurrentMap<String, Record>>();
+    for (int i = 0; i < kinds; i++)
+      latest.add(new ConcurrentHashMap<String, Record>());
+    File[] files = directory.listFiles();
+    Map<File, Future<long[]>> scans = new HashMap<File, Future<long[]>>();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      for (final File file : files) {
+        String name = file.getName();
+        if (name.endsWith(TEMP_SUFFIX)) {
+          Files.delete(file.toPath()); // interrupted compaction
+        } else if (name.endsWith(SUFFIX)) {
+          long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+          nextSegmentId.set(Math.max(nextSegmentId.get(), id + 1));
+          sealed.add(file);
+          scans.put(file, executor.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() throws IOException {
+              long end = 0;
+              long maxSequence = 0;
+              for (Record record : read(file)) {
+                end += record.size;
+                if (record.kind < 0 || record.kind >= latest.size())
+                  continue;
+                maxSequence = Math.max(maxSequence, record.sequence);
+                latest.get(record.kind).merge(record.token, record, LATEST);
+              }
+              return new long[] { maxSequence, end };
+            }
+          }));
+        }
+      }
+      File tail = null;
+      long tailEnd = 0;
+      for (Map.Entry<File, Future<long[]>> entry : scans.entrySet()) {
+        long[] scan = entry.getValue().get();
+        sequence.set(Math.max(sequence.get(), scan[0]));
+        File file = entry.getKey();
+        if (file.length() == segmentSize && (tail == null || file.compareTo(tail) > 0)) {
+          tail = file;
+          tailEnd = scan[1];
+        }
+      }
+      synchronized (writeLock) {
+        if (tail != null && segmentSize - tailEnd > HEADER_SIZE)
+          reopen(tail, (int) tailEnd);
+        else
+          roll();
+      }
+    } catch (Exception ex) {
+      throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
+    } finally {
+      executor.shutdown();
+    }
+    return latest;
+  }
+
+  /**
+   * append a record, the sequence number is assigned by the log
+   */
+  void append(byte op, int kind, String token, String clientId, String scope,
+      String accessToken, long expireAt) throws IOException {
+    synchronized (writeLock) {
+      if (active == null)
+        throw new IllegalStateException("log not loaded or already closed");
+      byte[] payload = encode(op, kind, sequence.incrementAndGet(), token, clientId, scope,
+          accessToken, expireAt);
+      if (active.remaining() < HEADER_SIZE + payload.length) {
+        if (HEADER_SIZE + payload.length > segmentSize)
+          throw new IllegalArgumentException("record larger than segment size");
+        roll();
+      }
+      writeRecord(active, payload);
+    }
+  }
+
+  /**
+   * flush written records of the active segment to the disk
+   */
+  void force() {
+    synchronized (writeLock) {
+      if (active != null)
+        active.force();
+    }
+  }
+
+  /**
+   * rewrite sealed segments keeping only the records accepted by the filter,
+   * a segment is rewritten only if its live records take no more than the
+   * threshold of its space, the live records of several segments are packed
+   * into one new segment.
+   *
+   * @return count of records dropped
+   */
+  int compact(RecordFilter filter, double threshold) throws IOException {
+    ByteBuffer buffer = null;
+    List<File> rewritten = new ArrayList<File>();
+    int dropped = 0;
+    for (File file : new ArrayList<File>(sealed)) {
+      List<Record> records = read(file);
+      List<byte[]> live = new ArrayList<byte[]>();
+      long usedBytes = 0;
+      long liveBytes = 0;
+      for (Record record : records) {
+        usedBytes += record.size;
+        if (filter.accept(record)) {
+          live.add(encode(record.op, record.kind, record.sequence, record.token,
+              record.clientId, record.scope, record.accessToken, record.expireAt));
+          liveBytes += record.size;
+        }
+      }
+      if (live.size() == records.size() || liveBytes > usedBytes * threshold)
+        continue;
+      if (buffer == null)
+        buffer = ByteBuffer.allocate(segmentSize);
+      for (byte[] payload : live) {
+        if (buffer.remaining() < HEADER_SIZE + payload.length)
+          replace(buffer, rewritten);
+        writeRecord(buffer, payload);
+      }
+      rewritten.add(file);
+      dropped += records.size() - live.size();
+    }
+    if (buffer != null)
+      replace(buffer, rewritten);
+    return dropped;
+  }
+
+  /**
+   * get count of sealed segments, not including the active segment
+   */
+  int getSealedCount() {
+    return sealed.size();
+  }
+
+  /**
+   * flush and close the active segment
+   */
+  void close() throws IOException {
+    synchronized (writeLock) {
+      if (active == null)
+        return;
+      active.force();
+      activeChannel.close();
+      unmap(active);
+      active = null;
+      activeChannel = null;
+    }
+  }
+
+  /**
+   * continue appending to the segment after its last record, must hold the
+   * write lock
+   */
+  private void reopen(File file, int end) throws IOException {
+    sealed.remove(file);
+    activeFile = file;
+    activeChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    active = activeChannel.map(MapMode.READ_WRITE, 0, segmentSize);
+    active.position(end);
+  }
+
+  /**
+   * seal the active segment and map a new one, must hold the write lock
+   */
+  private void roll() throws IOException {
+    if (active != null) {
+      active.force();
+      activeChannel.close();
+      unmap(active);
+      active = null;
+      sealed.add(activeFile);
+    }
+    activeFile = segmentFile(nextSegmentId.getAndIncrement(), SUFFIX);
+    activeChannel = FileChannel.open(activeFile.toPath(), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    active = activeChannel.map(MapMode.READ_WRITE, 0, segmentSize);
+  }
+
+  /**
+   * write the buffer as a new sealed segment, then delete the rewritten
+   * segments whose live records are all written
+   */
+  private void replace(ByteBuffer buffer, List<File> rewritten) throws IOException {
+    if (buffer.position() > 0)
+      sealed.add(writeSegment(buffer));
+    sealed.removeAll(rewritten);
+    for (File file : rewritten)
+      Files.deleteIfExists(file.toPath());
+    rewritten.clear();
+  }
+
+  private File writeSegment(ByteBuffer buffer) throws IOException {
+    long id = nextSegmentId.getAndIncrement();
+    File temp = segmentFile(id, TEMP_SUFFIX);
+    buffer.flip();
+    try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE)) {
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+      channel.force(true);
+    }
+    buffer.clear();
+    File file = segmentFile(id, SUFFIX);
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    return file;
+  }
+
+  private File segmentFile(long id, String suffix) {
+    return new File(directory, String.format("%016x%s", id, suffix));
+  }
+
+  private static void writeRecord(ByteBuffer buffer, byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+  }
+
+  /**
+   * read records of the segment until the end or the first torn record
+   */
+  private static List<Record> read(File file) throws IOException {
+    List<Record> records = new ArrayList<Record>();
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      CRC32 crc = new CRC32();
+      while (buffer.remaining() > HEADER_SIZE) {
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining())
+          break;
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum)
+          break;
+        Record record = decode(payload);
+        record.size = HEADER_SIZE + length;
+        records.add(record);
+      }
+    } finally {
+      unmap(buffer);
+    }
+    return records;
+  }
+
+  /**
+   * release the mapping of the buffer now, the buffer must not be used after.
+   * Uses Unsafe.invokeCleaner since Java 9 and the buffer cleaner before, does
+   * nothing if neither is accessible.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null)
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      // released by garbage collection
+    }
+  }
+
+  private static byte[] encode(byte op, int kind, long sequence, String token, String clientId,
+      String scope, String accessToken, long expireAt) {
+    byte[] tokenBytes = bytes(token);
+    byte[] clientBytes = bytes(clientId);
+    byte[] scopeBytes = bytes(scope);
+    byte[] accessBytes = bytes(accessToken);
+    ByteBuffer buffer = ByteBuffer.allocate(18 + length(tokenBytes) + length(clientBytes)
+        + length(scopeBytes) + length(accessBytes));
+    buffer.put(op).put((byte) kind).putLong(sequence).putLong(expireAt);
+    putBytes(buffer, tokenBytes);
+    putBytes(buffer, clientBytes);
+    putBytes(buffer, scopeBytes);
+    putBytes(buffer, accessBytes);
+    return buffer.array();
+  }
+
+  private static Record decode(byte[] payload) {
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    Record record = new Record();
+    record.op = buffer.get();
+    record.kind = buffer.get();
+    record.sequence = buffer.getLong();
+    record.expireAt = buffer.getLong();
+    record.token = getString(buffer);
+    record.clientId = getString(buffer);
+    record.scope = getString(buffer);
+    record.accessToken = getString(buffer);
+    return record;
+  }
+
+  private static byte[] bytes(String value) {
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int length(byte[] bytes) {
+    return bytes == null ? 2 : 2 + bytes.length;
+  }
+
+  private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+    if (bytes == null) {
+      buffer.putShort((short) -1);
+    } else {
+      if (bytes.length > Short.MAX_VALUE)
+        throw new IllegalArgumentException("token field too long");
+      buffer.putShort((short) bytes.length).put(bytes);
+    }
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getShort();
+    if (length < 0)
+      return null;
+    String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * token record read from the log
+   */
+  static final class Record {
+    byte op;
+    int kind;
+    long sequence;
+    long expireAt;
+    String token;
+    String clientId;
+    String scope;
+    String accessToken;
+    int size;
+  }
+
+  /**
+   * decide which records survive compaction
+   */
+  interface RecordFilter {
+    boolean accept(Record record);
+  }
+}
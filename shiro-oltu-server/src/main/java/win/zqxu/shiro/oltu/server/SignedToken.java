@@ -0,0 +1,85 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Set;
+
+/**
+ * Content of an access token signed by {@link TokenSigner}, the resource
+ * filter puts verified signed token into request attribute
+ * {@link #REQUEST_ATTRIBUTE}.
+ *
+ * @author zqxu
+ */
+public class SignedToken {
+  /**
+   * request attribute key for the verified signed token
+   */
+  public static final String REQUEST_ATTRIBUTE = SignedToken.class.getName();
+  private final String keyId;
+  private final String clientId;
+  private final Set<String> scopes;
+  private final long expireAt;
+
+  /**
+   * Constructor
+   *
+   * @param keyId
+   *          id of the key used to sign the token
+   * @param clientId
+   *          client id
+   * @param scopes
+   *          scopes
+   * @param expireAt
+   *          expire time in millisecond
+   */
+  public SignedToken(String keyId, String clientId, Set<String> scopes, long expireAt) {
+    this.keyId = keyId;
+    this.clientId = clientId;
+    this.scopes = scopes;
+    this.expireAt = expireAt;
+  }
+
+  /**
+   * get id of the key used to sign the token
+   *
+   * @return key id
+   */
+  public String getKeyId() {
+    return keyId;
+  }
+
+  /**
+   * get client id
+   *
+   * @return client id
+   */
+  public String getClientId() {
+    return clientId;
+  }
+
+  /**
+   * get scopes
+   *
+   * @return scopes, never null
+   */
+  public Set<String> getScopes() {
+    return scopes;
+  }
+
+  /**
+   * get expire time
+   *
+   * @return expire time in millisecond
+   */
+  public long getExpireAt() {
+    return expireAt;
+  }
+
+  /**
+   * get remaining time before the token expires
+   *
+   * @return remaining time in millisecond, 0 if expired
+   */
+  public long getExpireIn() {
+    return Math.max(0, expireAt - System.currentTimeMillis());
+  }
+}
@@ -0,0 +1,278 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ * Hierarchical timing wheel used to expire tokens without scanning, for
+ * internal use.
+ * </p>
+ * <p>
+ * Request threads never touch the wheel slots, they only push entries onto
+ * lock-free stacks, the single ticker thread drains those stacks and moves
+ * entries between slots, so scheduling and cancellation are O(1) and never
+ * block.
+ * </p>
+ *
+ * @author zqxu
+ */
+final class TimingWheel {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOT_COUNT = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOT_COUNT - 1;
+  private static final int LEVELS = 4;
+
+  private final long tickMillis;
+  private final long startTime;
+  private final Entry[][] slots = new Entry[LEVELS][SLOT_COUNT];
+  private final AtomicReference<Entry> pending = new AtomicReference<Entry>();
+  private final AtomicReference<Entry> cancelled = new AtomicReference<Entry>();
+  private final ScheduledExecutorService ticker;
+  private long currentTick;
+
+  /**
+   * create timing wheel and start ticker thread
+   *
+   * @param tickMillis
+   *          tick duration in millisecond
+   * @param name
+   *          ticker thread name
+   */
+  public TimingWheel(long tickMillis, final String name) {
+    if (tickMillis <= 0)
+      throw new IllegalArgumentException("tickMillis must be positive");
+    this.tickMillis = tickMillis;
+    this.startTime = System.currentTimeMillis();
+    for (int level = 0; level < LEVELS; level++) {
+      for (int index = 0; index < SLOT_COUNT; index++)
+        slots[level][index] = new Sentinel();
+    }
+    ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    ticker.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        advance();
+      }
+    }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * schedule the entry to expire at the deadline
+   *
+   * @param entry
+   *          the entry, can only be scheduled once
+   * @param deadline
+   *          expire time in millisecond
+   */
+  public void schedule(Entry entry, long deadline) {
+    entry.deadlineTick = (deadline - startTime + tickMillis - 1) / tickMillis;
+    push(pending, entry);
+  }
+
+  /**
+   * cancel the scheduled entry, the entry will not expire any more
+   *
+   * @param entry
+   *          the entry
+   */
+  public void cancel(Entry entry) {
+    while (true) {
+      int state = entry.state;
+      if (state == Entry.EXPIRED || state == Entry.CANCELLED)
+        return;
+      if (Entry.STATE.compareAndSet(entry, state, Entry.CANCELLED)) {
+        // pending entry will be dropped while drain, only unlink placed one
+        if (state == Entry.PLACED)
+          pushCancelled(entry);
+        return;
+      }
+    }
+  }
+
+  /**
+   * stop the ticker thread, entries not expired yet will never expire
+   */
+  public void stop() {
+    ticker.shutdownNow();
+  }
+
+  private void push(AtomicReference<Entry> stack, Entry entry) {
+    Entry head;
+    do {
+      head = stack.get();
+      entry.nextPending = head;
+    } while (!stack.compareAndSet(head, entry));
+  }
+
+  private void pushCancelled(Entry entry) {
+    Entry head;
+    do {
+      head = cancelled.get();
+      entry.nextCancelled = head;
+    } while (!cancelled.compareAndSet(head, entry));
+  }
+
+  private void advance() {
+    long targetTick = (System.currentTimeMillis() - startTime) / tickMillis;
+    drainCancelled();
+    drainPending();
+    while (currentTick < targetTick) {
+      currentTick++;
+      for (int level = 1; level < LEVELS; level++) {
+        if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+          break;
+        cascade(level);
+      }
+      expire();
+    }
+  }
+
+  private void drainCancelled() {
+    Entry entry = cancelled.getAndSet(null);
+    while (entry != null) {
+      Entry next = entry.nextCancelled;
+      entry.nextCancelled = null;
+      unlink(entry);
+      entry = next;
+    }
+  }
+
+  private void drainPending() {
+    Entry entry = pending.getAndSet(null);
+    while (entry != null) {
+      Entry next = entry.nextPending;
+      entry.nextPending = null;
+      if (Entry.STATE.compareAndSet(entry, Entry.NEW, Entry.PLACED))
+        place(entry);
+      entry = next;
+    }
+  }
+
+  private void place(Entry entry) {
+    long delta = entry.deadlineTick - currentTick;
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1))))
+      level++;
+    int index;
+    if (delta >= (1L << (SLOT_BITS * LEVELS))) {
+      // beyond the wheel span, park in the farthest slot and re-place later
+      index = (int) ((currentTick >>> (SLOT_BITS * level)) - 1) & SLOT_MASK;
+    } else {
+      long tick = Math.max(entry.deadlineTick, currentTick + 1);
+      index = (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+    }
+    link(slots[level][index], entry);
+  }
+
+  private void cascade(int level) {
+    int index = (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+    Entry head = detach(slots[level][index]);
+    while (head != null) {
+      Entry next = head.next;
+      head.next = null;
+      if (head.state == Entry.PLACED)
+        place(head);
+      head = next;
+    }
+  }
+
+  private void expire() {
+    int index = (int) currentTick & SLOT_MASK;
+    Entry head = detach(slots[0][index]);
+    while (head != null) {
+      Entry next = head.next;
+      head.next = null;
+      if (head.deadlineTick > currentTick) {
+        if (head.state == Entry.PLACED)
+          place(head);
+      } else if (Entry.STATE.compareAndSet(head, Entry.PLACED, Entry.EXPIRED)) {
+        try {
+          head.expire();
+        } catch (RuntimeException ex) {
+          // one failed entry must not stop the others from expiring
+        }
+      }
+      head = next;
+    }
+  }
+
+  private void link(Entry sentinel, Entry entry) {
+    entry.prev = sentinel.prev;
+    entry.next = sentinel;
+    sentinel.prev.next = entry;
+    sentinel.prev = entry;
+  }
+
+  private void unlink(Entry entry) {
+    if (entry.prev == null)
+      return; // already detached by cascade or expire
+    entry.prev.next = entry.next;
+    entry.next.prev = entry.prev;
+    entry.prev = null;
+    entry.next = null;
+  }
+
+  /**
+   * detach all entries from the slot, returns a singly linked list
+   */
+  private Entry detach(Entry sentinel) {
+    if (sentinel.next == sentinel)
+      return null;
+    Entry head = sentinel.next;
+    sentinel.prev.next = null;
+    sentinel.next = sentinel;
+    sentinel.prev = sentinel;
+    for (Entry entry = head; entry != null; entry = entry.next)
+      entry.prev = null;
+    return head;
+  }
+
+  /**
+   * Entry of the timing wheel, sub-class implements the expire action.
+   *
+   * @author zqxu
+   */
+  abstract static class Entry {
+    static final int NEW = 0;
+    static final int PLACED = 1;
+    static final int CANCELLED = 2;
+    static final int EXPIRED = 3;
+    static final AtomicIntegerFieldUpdater<Entry> STATE = AtomicIntegerFieldUpdater
+        .newUpdater(Entry.class, "state");
+
+    volatile int state;
+    long deadlineTick;
+    Entry prev;
+    Entry next;
+    Entry nextPending;
+    Entry nextCancelled;
+
+    /**
+     * called in the ticker thread when the entry expires
+     */
+    protected abstract void expire();
+  }
+
+  private static final class Sentinel extends Entry {
+    Sentinel() {
+      prev = this;
+      next = this;
+    }
+
+    @Override
+    protected void expire() {
+    }
+  }
+}
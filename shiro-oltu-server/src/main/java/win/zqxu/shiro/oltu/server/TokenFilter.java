@@ -1,15 +1,20 @@
 package win.zqxu.shiro.oltu.server;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.oltu.oauth2.as.issuer.MD5Generator;
-import org.apache.oltu.oauth2.as.issuer.OAuthIssuerImpl;
 import org.apache.oltu.oauth2.as.request.OAuthTokenRequest;
-import org.apache.oltu.oauth2.as.response.OAuthASResponse;
 import org.apache.oltu.oauth2.common.exception.OAuthProblemException;
+import org.apache.oltu.oauth2.common.exception.OAuthSystemException;
 import org.apache.oltu.oauth2.common.message.types.GrantType;
 import org.apache.oltu.oauth2.common.utils.OAuthUtils;
 import org.apache.shiro.web.servlet.AdviceFilter;
@@ -34,6 +39,26 @@ import org.apache.shiro.web.servlet.AdviceFilter;
  */
 public class TokenFilter extends AdviceFilter {
   private OAuthService oAuthService;
+  private String locales;
+  private int warmupIterations;
+  private long warmupTime;
+  private final AsyncProcessor asyncProcessor = new AsyncProcessor();
+  private TokenSigner tokenSigner;
+  private RevocationList revocationList;
+  private RateLimiter rateLimiter;
+  private ClientAuthCache clientAuthCache;
+  private AuthCodeStore authCodeStore;
+  private boolean clientCredentials;
+  private final RefreshCoalescer refreshCoalescer = new RefreshCoalescer();
+  private OAuthMetrics metrics;
+  private LatencyHistogram totalTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram parseTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram authenticateTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram grantTime = LatencyHistogram.DISABLED;
+  private LatencyHistogram responseTime = LatencyHistogram.DISABLED;
+  private TokenGenerator tokenGenerator = new SecureTokenGenerator();
+  private OAuthGrantService grantService;
+  private OAuthGrantService adaptedService;
 
   public OAuthService getoAuthService() {
     return oAuthService;
@@ -41,65 +66,641 @@ public class TokenFilter extends AdviceFilter {
 
   public void setoAuthService(OAuthService oAuthService) {
     this.oAuthService = oAuthService;
+    this.adaptedService = OAuthGrantServiceAdapter.adapt(oAuthService);
+  }
+
+  /**
+   * get grant service used to issue tokens
+   * 
+   * @return the grant service set through grantService property, or the
+   *         OAuthService adapted by {@link OAuthGrantServiceAdapter#adapt}
+   */
+  public OAuthGrantService getGrantService() {
+    return grantService != null ? grantService : adaptedService;
+  }
+
+  /**
+   * set grant service used to issue tokens, if not set, the OAuthService
+   * object is used
+   * 
+   * @param grantService
+   *          grant service
+   */
+  public void setGrantService(OAuthGrantService grantService) {
+    this.grantService = grantService;
+  }
+
+  /**
+   * get token generator
+   * 
+   * @return token generator
+   */
+  public TokenGenerator getTokenGenerator() {
+    return tokenGenerator;
+  }
+
+  /**
+   * set token generator for access token and refresh token, default is
+   * {@link SecureTokenGenerator}
+   * 
+   * @param tokenGenerator
+   *          token generator
+   */
+  public void setTokenGenerator(TokenGenerator tokenGenerator) {
+    this.tokenGenerator = tokenGenerator;
+  }
+
+  /**
+   * get access token signer
+   * 
+   * @return access token signer
+   */
+  public TokenSigner getTokenSigner() {
+    return tokenSigner;
+  }
+
+  /**
+   * set access token signer, if set, the filter issues self-contained signed
+   * access tokens carry client id, granted scopes and expire time, the tokens
+   * are still added to OAuthService for refresh and revocation. The granted
+   * scopes are taken from the authorization code store or
+   * {@link OAuthGrantService#getAuthCodeScopes} and
+   * {@link OAuthGrantService#getRefreshTokenScopes}, the scope parameter of
+   * the token request can only narrow them. If the grant service can not
+   * tell the scopes, the signed access token carries no scopes.
+   * 
+   * @param tokenSigner
+   *          access token signer
+   */
+  public void setTokenSigner(TokenSigner tokenSigner) {
+    this.tokenSigner = tokenSigner;
+  }
+
+  /**
+   * get revocation list
+   * 
+   * @return revocation list
+   */
+  public RevocationList getRevocationList() {
+    return revocationList;
+  }
+
+  /**
+   * set revocation list, if set, revoked refresh tokens are
+   * rejected before exchanged by OAuthService
+   * 
+   * @param revocationList
+   *          revocation list
+   */
+  public void setRevocationList(RevocationList revocationList) {
+    this.revocationList = revocationList;
+  }
+
+  /**
+   * get request rate limiter
+   * 
+   * @return request rate limiter
+   */
+  public RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * set request rate limiter, if set, requests over the limit of the
+   * authenticated client, or from a source address with too many failed
+   * requests, are rejected with HTTP 429
+   * 
+   * @param rateLimiter
+   *          request rate limiter
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * get client authentication cache
+   * 
+   * @return client authentication cache
+   */
+  public ClientAuthCache getClientAuthCache() {
+    return clientAuthCache;
+  }
+
+  /**
+   * set client authentication cache, if set, repeat requests of an
+   * authenticated client with the same secret are not authenticated by
+   * OAuthService again until the cache entry expires
+   * 
+   * @param clientAuthCache
+   *          client authentication cache
+   */
+  public void setClientAuthCache(ClientAuthCache clientAuthCache) {
+    this.clientAuthCache = clientAuthCache;
+  }
+
+  /**
+   * get authorization code store
+   * 
+   * @return authorization code store
+   */
+  public AuthCodeStore getAuthCodeStore() {
+    return authCodeStore;
+  }
+
+  /**
+   * set authorization code store, if set, authorization codes are consumed
+   * from the store and the tokens are issued by
+   * {@link OAuthGrantService#issueTokens}, the authorize filter must use the
+   * same store. If the grant service does not support issueTokens, the filter
+   * answers unsupported_grant_type.
+   * 
+   * @param authCodeStore
+   *          authorization code store
+   */
+  public void setAuthCodeStore(AuthCodeStore authCodeStore) {
+    this.authCodeStore = authCodeStore;
+  }
+
+  /**
+   * whether client credentials grant enabled
+   * 
+   * @return true if client credentials grant enabled
+   */
+  public boolean isClientCredentials() {
+    return clientCredentials;
+  }
+
+  /**
+   * set whether client credentials grant enabled, default is false. If
+   * enabled, a client authenticated by its secret can request access token for
+   * itself with grant_type=client_credentials and optional scope, the token is
+   * issued by {@link OAuthGrantService#issueClientToken} without refresh token.
+   * The scopes are checked by the OAuthService if it is set, otherwise by
+   * {@link OAuthGrantService#checkClientScopes}. If the service does not
+   * support client tokens, the filter answers unsupported_grant_type.
+   * 
+   * @param clientCredentials
+   *          true to enable client credentials grant
+   */
+  public void setClientCredentials(boolean clientCredentials) {
+    this.clientCredentials = clientCredentials;
+  }
+
+  /**
+   * get grace period of rotated refresh token
+   * 
+   * @return grace period in millisecond
+   */
+  public long getRefreshGracePeriod() {
+    return refreshCoalescer.getGracePeriod();
+  }
+
+  /**
+   * set grace period of rotated refresh token, default is 0. Concurrent
+   * requests with the same refresh token are always exchanged once and all
+   * receive the same tokens, if grace period set, a request with the rotated
+   * refresh token within the grace period also receives the same tokens
+   * instead of invalid grant, so a client retrying a lost response is not
+   * logged out. Keep it short, such as a few seconds.
+   * 
+   * @param refreshGracePeriod
+   *          grace period in millisecond
+   */
+  public void setRefreshGracePeriod(long refreshGracePeriod) {
+    refreshCoalescer.setGracePeriod(refreshGracePeriod);
+  }
+
+  /**
+   * get metrics
+   * 
+   * @return metrics
+   */
+  public OAuthMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * set metrics to record latency of the filter phases: parse, authenticate, grant
+   * and response and count error responses
+   * 
+   * @param metrics
+   *          metrics
+   */
+  public void setMetrics(OAuthMetrics metrics) {
+    this.metrics = metrics;
+    totalTime = LatencyHistogram.phase(metrics, "token", "total");
+    parseTime = LatencyHistogram.phase(metrics, "token", "parse");
+    authenticateTime = LatencyHistogram.phase(metrics, "token", "authenticate");
+    grantTime = LatencyHistogram.phase(metrics, "token", "grant");
+    responseTime = LatencyHistogram.phase(metrics, "token", "response");
+  }
+
+  /**
+   * whether the filter processes requests asynchronously
+   * 
+   * @return true if async mode enabled
+   */
+  public boolean isAsync() {
+    return asyncProcessor.isEnabled();
+  }
+
+  /**
+   * set whether the filter processes requests asynchronously, default is
+   * false. In async mode the filter starts an AsyncContext and calls
+   * OAuthService on an executor, so the container request thread is released
+   * while OAuthService is working. The shiro filter must be declared with
+   * async-supported in web.xml, otherwise requests are processed synchronously.
+   * 
+   * @param async
+   *          true to enable async mode
+   */
+  public void setAsync(boolean async) {
+    asyncProcessor.setEnabled(async);
+  }
+
+  /**
+   * get thread count of the async executor created by the filter
+   * 
+   * @return thread count
+   */
+  public int getAsyncThreads() {
+    return asyncProcessor.getThreads();
+  }
+
+  /**
+   * set thread count of the async executor created by the filter, default is 8
+   * times of available processors, ignored if executor set or virtual threads
+   * used
+   * 
+   * @param asyncThreads
+   *          thread count
+   */
+  public void setAsyncThreads(int asyncThreads) {
+    asyncProcessor.setThreads(asyncThreads);
+  }
+
+  /**
+   * whether the async executor created by the filter uses virtual threads
+   * 
+   * @return true if use virtual threads
+   */
+  public boolean isVirtualThreads() {
+    return asyncProcessor.isVirtualThreads();
+  }
+
+  /**
+   * set whether the async executor created by the filter uses virtual threads,
+   * default is false, virtual threads need JDK 21 or later, otherwise platform
+   * threads are used
+   * 
+   * @param virtualThreads
+   *          true to use virtual threads
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    asyncProcessor.setVirtualThreads(virtualThreads);
+  }
+
+  /**
+   * get queue size of the async executor created by the filter
+   * 
+   * @return queue size
+   */
+  public int getAsyncQueueSize() {
+    return asyncProcessor.getQueueSize();
+  }
+
+  /**
+   * set queue size of the async executor created by the filter, default is
+   * 1024, requests beyond the busy threads and the full queue are rejected
+   * with status 503, ignored if executor set or virtual threads used
+   * 
+   * @param asyncQueueSize
+   *          queue size
+   */
+  public void setAsyncQueueSize(int asyncQueueSize) {
+    asyncProcessor.setQueueSize(asyncQueueSize);
+  }
+
+  /**
+   * get async context timeout
+   * 
+   * @return async context timeout in millisecond
+   */
+  public long getAsyncTimeout() {
+    return asyncProcessor.getTimeout();
+  }
+
+  /**
+   * set async context timeout, default is 0 to use container default timeout
+   * 
+   * @param asyncTimeout
+   *          async context timeout in millisecond
+   */
+  public void setAsyncTimeout(long asyncTimeout) {
+    asyncProcessor.setTimeout(asyncTimeout);
+  }
+
+  /**
+   * get executor for async mode
+   * 
+   * @return executor set through executor property
+   */
+  public Executor getExecutor() {
+    return asyncProcessor.getExecutor();
+  }
+
+  /**
+   * set executor for async mode, if not set, the filter creates its own
+   * executor
+   * 
+   * @param executor
+   *          executor for async mode
+   */
+  public void setExecutor(Executor executor) {
+    asyncProcessor.setExecutor(executor);
+  }
+
+  /**
+   * get locales of messages preloaded at filter init
+   * 
+   * @return locales separated by comma
+   */
+  public String getLocales() {
+    return locales;
+  }
+
+  /**
+   * set locales of messages preloaded at filter init, so the first request in
+   * these locales does not need to resolve resource bundle
+   * 
+   * @param locales
+   *          locales separated by comma, such as en,zh_CN
+   */
+  public void setLocales(String locales) {
+    this.locales = locales;
+  }
+
+  /**
+   * get times of sending the synthetic requests at filter init
+   * 
+   * @return warm up iterations
+   */
+  public int getWarmupIterations() {
+    return warmupIterations;
+  }
+
+  /**
+   * set times of sending the synthetic requests at filter init, default is 0
+   * means no warm up. If set, a copy of this filter with a no-op OAuthService
+   * processes synthetic success and error token requests at filter init, so
+   * class loading, resource bundles and JIT compilation are done before the
+   * first real request, and the shiro filter is not ready until warmed up.
+   * Hundreds of iterations are usually enough.
+   * 
+   * @param warmupIterations
+   *          warm up iterations
+   */
+  public void setWarmupIterations(int warmupIterations) {
+    this.warmupIterations = warmupIterations;
+  }
+
+  /**
+   * get elapsed time of the warm up at filter init
+   * 
+   * @return elapsed time in millisecond, 0 if not warmed up
+   */
+  public long getWarmupTime() {
+    return warmupTime;
+  }
+
+  /**
+   * preload messages of the configured locales and warm up the filter
+   */
+  @Override
+  protected void onFilterConfigSet() throws Exception {
+    if (!OAuthUtils.isEmpty(locales))
+      I18N.preload(locales);
+    if (warmupIterations > 0)
+      warmupTime = FilterWarmer.warmUp(this, warmupIterations);
+  }
+
+  /**
+   * process the request in async mode if enabled and supported
+   */
+  @Override
+  public void doFilterInternal(ServletRequest request, ServletResponse response,
+      final FilterChain chain) throws ServletException, IOException {
+    if (!asyncProcessor.accept(request)) {
+      super.doFilterInternal(request, response, chain);
+      return;
+    }
+    asyncProcessor.execute(request, response, new AsyncProcessor.Work() {
+      @Override
+      public boolean run(ServletRequest request, ServletResponse response) throws Exception {
+        TokenFilter.super.doFilterInternal(request, response, chain);
+        return false;
+      }
+    });
+  }
+
+  /**
+   * shutdown the async executor created by the filter and the expiry timer of
+   * the refresh grace period
+   */
+  @Override
+  public void destroy() {
+    asyncProcessor.shutdown();
+    refreshCoalescer.shutdown();
+    super.destroy();
   }
 
   @Override
   protected boolean preHandle(ServletRequest request, ServletResponse response) throws Exception {
-    HttpServletRequest httpRequest = (HttpServletRequest) request;
-    HttpServletResponse httpResponse = (HttpServletResponse) response;
-    I18N i18n = new I18N(request.getLocale());
+    long start = System.nanoTime();
+    OAuthMetrics previous = ResponseUtils.bindMetrics(metrics);
+    try {
+      return processTokenRequest((HttpServletRequest) request, (HttpServletResponse) response,
+          start);
+    } finally {
+      ResponseUtils.bindMetrics(previous);
+      totalTime.lap(start);
+    }
+  }
+
+  private boolean processTokenRequest(HttpServletRequest httpRequest,
+      HttpServletResponse httpResponse, long start) throws IOException, OAuthSystemException {
+    I18N i18n = I18N.of(httpRequest.getLocale());
+    String source = httpRequest.getRemoteAddr();
+    if (rateLimiter != null && rateLimiter.isBlocked(source))
+      return ResponseUtils.writeTooManyRequests(httpResponse, i18n.getString("TOO_MANY_REQUESTS"));
     try {
       OAuthTokenRequest oAuthRequest = new OAuthTokenRequest(httpRequest);
-      String clientId = oAuthRequest.getClientId();
-      // Check client id
-      if (!oAuthService.checkClient(clientId))
-        return ResponseUtils.processResponse(httpResponse, null,
-            ResponseUtils.responseInvalidClient(i18n.getString("INVALID_CLIENT_ID")));
-      // Check client secret
-      if (!oAuthService.checkClient(clientId, oAuthRequest.getClientSecret()))
-        return ResponseUtils.processResponse(httpResponse, null,
-            ResponseUtils.responseUnauthClient(i18n.getString("INVALID_CLIENT_SECRET")));
-      // Check grant data according to grant type
+      long mark = parseTime.lap(start);
+      final String clientId = oAuthRequest.getClientId();
+      final OAuthGrantService grantService = getGrantService();
+      // Check client id and secret
+      String secret = oAuthRequest.getClientSecret();
+      OAuthGrantService.ClientStatus status = clientAuthCache == null
+          ? grantService.authenticateClient(clientId, secret)
+          : clientAuthCache.authenticate(grantService, clientId, secret);
+      mark = authenticateTime.lap(mark);
+      if (rateLimiter != null && status != OAuthGrantService.ClientStatus.VALID)
+        rateLimiter.recordFailure(source);
+      switch (status) {
+      case INVALID_CLIENT:
+        return ResponseUtils.writeInvalidClient(httpResponse, i18n.getString("INVALID_CLIENT_ID"));
+      case UNAUTHORIZED_CLIENT:
+        return ResponseUtils.writeUnauthClient(httpResponse, i18n.getString("INVALID_CLIENT_SECRET"));
+      default:
+        break;
+      }
+      if (rateLimiter != null && !rateLimiter.tryAcquire(clientId))
+        return ResponseUtils.writeTooManyRequests(httpResponse,
+            i18n.getString("TOO_MANY_REQUESTS"));
+      // Check grant type
       String grantType = oAuthRequest.getGrantType();
-      String authCode = oAuthRequest.getCode();
-      String refreshToken = oAuthRequest.getRefreshToken();
-      if (GrantType.AUTHORIZATION_CODE.toString().equals(grantType)) {
-        if (!oAuthService.checkAuthCode(authCode, clientId))
-          return ResponseUtils.processResponse(httpResponse, null,
-              ResponseUtils.responseInvalidGrant(i18n.getString("INVALID_AUTH_CODE")));
-      } else if (oAuthService.refreshTokenSupported()
-          && GrantType.REFRESH_TOKEN.toString().equals(grantType)) {
-        if (!oAuthService.checkRefreshToken(refreshToken, clientId))
-          return ResponseUtils.processResponse(httpResponse, null,
-              ResponseUtils.responseInvalidGrant(i18n.getString("INVALID_REFRESH_CODE")));
+      boolean authCodeGrant = GrantType.AUTHORIZATION_CODE.toString().equals(grantType);
+      if (clientCredentials && GrantType.CLIENT_CREDENTIALS.toString().equals(grantType))
+        return processClientCredentials(httpResponse, oAuthRequest, clientId, i18n, mark);
+      if (!authCodeGrant && !(grantService.refreshTokenSupported()
+          && GrantType.REFRESH_TOKEN.toString().equals(grantType)))
+        return ResponseUtils.writeUnsuppGrant(httpResponse, i18n.getString("UNSUPPORT_GRANT_TYPE"));
+      // Exchange grant data according to grant type
+      Set<String> requestScopes = oAuthRequest.getScopes();
+      boolean needScopes = tokenSigner != null || !requestScopes.isEmpty();
+      OAuthGrant grant;
+      if (authCodeGrant) {
+        String authCode = oAuthRequest.getCode();
+        Set<String> granted = null;
+        if (authCodeStore != null) {
+          granted = authCodeStore.consume(authCode, clientId);
+          if (granted == null)
+            return ResponseUtils.writeInvalidGrant(httpResponse,
+                i18n.getString("INVALID_AUTH_CODE"));
+        } else if (needScopes) {
+          granted = grantService.getAuthCodeScopes(authCode, clientId);
+        }
+        String invalidScope = notGranted(granted, requestScopes);
+        if (invalidScope != null)
+          return ResponseUtils.writeInvalidScope(httpResponse,
+              i18n.getString("INVALID_SCOPE") + " " + invalidScope);
+        Set<String> scopes = narrowScopes(granted, requestScopes);
+        String accessToken = newAccessToken(clientId, scopes);
+        String refreshToken = tokenGenerator.generate();
+        if (authCodeStore == null) {
+          grant = grantService.exchangeAuthCode(clientId, authCode, accessToken, refreshToken);
+        } else {
+          try {
+            grant = grantService.issueTokens(authCode, clientId, scopes, accessToken,
+                refreshToken);
+          } catch (UnsupportedOperationException ex) {
+            return ResponseUtils.writeUnsuppGrant(httpResponse,
+                i18n.getString("UNSUPPORT_GRANT_TYPE"));
+          }
+        }
+        if (grant == null)
+          return ResponseUtils.writeInvalidGrant(httpResponse, i18n.getString("INVALID_AUTH_CODE"));
       } else {
-        return ResponseUtils.processResponse(httpResponse, null,
-            ResponseUtils.responseUnsuppGrant(i18n.getString("UNSUPPORT_GRANT_TYPE")));
-      }
-      // generate access token
-      OAuthIssuerImpl oAuthIssuer = new OAuthIssuerImpl(new MD5Generator());
-      String accessToken = oAuthIssuer.accessToken();
-      if (GrantType.AUTHORIZATION_CODE.toString().equals(grantType))
-        oAuthService.addAcessToken(accessToken, authCode);
-      else
-        oAuthService.refreshAccessToken(accessToken, refreshToken);
-      // generate refresh token
-      refreshToken = null;
-      if (oAuthService.refreshTokenSupported()) {
-        refreshToken = oAuthIssuer.refreshToken();
-        oAuthService.addRefreshToken(refreshToken, accessToken);
+        final String oldRefreshToken = oAuthRequest.getRefreshToken();
+        if (revocationList != null && revocationList.isRevoked(oldRefreshToken)) {
+          grant = null;
+        } else {
+          Set<String> granted = null;
+          if (needScopes)
+            granted = grantService.getRefreshTokenScopes(oldRefreshToken, clientId);
+          String invalidScope = notGranted(granted, requestScopes);
+          if (invalidScope != null)
+            return ResponseUtils.writeInvalidScope(httpResponse,
+                i18n.getString("INVALID_SCOPE") + " " + invalidScope);
+          final Set<String> scopes = narrowScopes(granted, requestScopes);
+          grant = refreshCoalescer.exchange(clientId, oldRefreshToken,
+              new RefreshCoalescer.Exchange() {
+                @Override
+                public OAuthGrant exchange() {
+                  return grantService.exchangeRefreshToken(clientId, oldRefreshToken,
+                      newAccessToken(clientId, scopes), tokenGenerator.generate());
+                }
+              });
+        }
+        if (grant == null)
+          return ResponseUtils.writeInvalidGrant(httpResponse, i18n.getString("INVALID_REFRESH_CODE"));
       }
+      mark = grantTime.lap(mark);
       // generate page content
-      String expireIn = String.valueOf(oAuthService.getExpireIn(accessToken));
-      return ResponseUtils.processResponse(httpResponse, null,
-          OAuthASResponse.tokenResponse(HttpServletResponse.SC_OK).setExpiresIn(expireIn)
-              .setAccessToken(accessToken).setRefreshToken(refreshToken));
+      long expireIn = grant.getExpireIn();
+      if (tokenSigner != null)
+        expireIn = Math.min(expireIn, tokenSigner.getExpireIn());
+      ResponseUtils.writeAccessToken(httpResponse, grant.getAccessToken(), expireIn,
+          grant.getRefreshToken());
+      responseTime.lap(mark);
+      return false;
     } catch (OAuthProblemException ex) {
-      if (OAuthUtils.isEmpty(ex.getError()))
-        return ResponseUtils.processResponse(httpResponse, null,
-            ResponseUtils.responseInvalidRequest(ex.getDescription()));
-      return ResponseUtils.processResponse(httpResponse, null,
-          ResponseUtils.responseBadRequest(ex));
+      if (rateLimiter != null)
+        rateLimiter.recordFailure(source);
+      return ResponseUtils.writeProblem(httpResponse, HttpServletResponse.SC_BAD_REQUEST, ex);
+    }
+  }
+
+  private boolean processClientCredentials(HttpServletResponse httpResponse,
+      OAuthTokenRequest oAuthRequest, String clientId, I18N i18n, long mark) throws IOException {
+    Set<String> scopes = oAuthRequest.getScopes();
+    OAuthGrantService grantService = getGrantService();
+    OAuthService scopeService = oAuthService != null ? oAuthService
+        : grantService instanceof OAuthService ? (OAuthService) grantService : null;
+    String invalidScope;
+    if (scopeService != null) {
+      if (scopes.isEmpty() && scopeService.scopeRequired(clientId))
+        return ResponseUtils.writeInvalidScope(httpResponse, i18n.getString("SCOPE_REQUIRED"));
+      invalidScope = scopeService.checkScopes(clientId, scopes);
+    } else {
+      invalidScope = grantService.checkClientScopes(clientId, scopes);
     }
+    if (invalidScope != null)
+      return ResponseUtils.writeInvalidScope(httpResponse,
+          i18n.getString("INVALID_SCOPE") + " " + invalidScope);
+    String accessToken = newAccessToken(clientId, scopes);
+    OAuthGrant grant;
+    try {
+      grant = grantService.issueClientToken(clientId, scopes, accessToken);
+    } catch (UnsupportedOperationException ex) {
+      return ResponseUtils.writeUnsuppGrant(httpResponse, i18n.getString("UNSUPPORT_GRANT_TYPE"));
+    }
+    mark = grantTime.lap(mark);
+    long expireIn = grant.getExpireIn();
+    if (tokenSigner != null)
+      expireIn = Math.min(expireIn, tokenSigner.getExpireIn());
+    ResponseUtils.writeAccessToken(httpResponse, grant.getAccessToken(), expireIn, null);
+    responseTime.lap(mark);
+    return false;
+  }
+
+  /**
+   * the first requested scope not granted, or null if all granted or the
+   * granted scopes unknown
+   */
+  private static String notGranted(Set<String> granted, Set<String> requested) {
+    if (granted == null)
+      return null;
+    for (String scope : requested) {
+      if (!granted.contains(scope))
+        return scope;
+    }
+    return null;
+  }
+
+  /**
+   * scopes of the new access token, the requested scopes narrow the granted
+   * scopes, no scopes if the granted scopes unknown
+   */
+  private static Set<String> narrowScopes(Set<String> granted, Set<String> requested) {
+    if (granted == null)
+      return Collections.emptySet();
+    return requested.isEmpty() ? granted : requested;
+  }
+
+  private String newAccessToken(String clientId, Set<String> scopes) {
+    if (tokenSigner == null)
+      return tokenGenerator.generate();
+    return tokenSigner.sign(clientId, scopes);
   }
 }
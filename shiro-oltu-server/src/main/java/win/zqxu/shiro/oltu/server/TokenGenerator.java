@@ -0,0 +1,23 @@
+package win.zqxu.shiro.oltu.server;
+
+/**
+ * <p>
+ * Generates authorization codes, access tokens and refresh tokens for
+ * {@link AuthorizeFilter} and {@link TokenFilter}.
+ * </p>
+ * <p>
+ * Note that the implementation is shared by all requests, so it must be
+ * thread safe.
+ * </p>
+ * 
+ * @author zqxu
+ *
+ */
+public interface TokenGenerator {
+  /**
+   * generate a new unpredictable token value
+   * 
+   * @return token value, must be URL safe
+   */
+  String generate();
+}
@@ -0,0 +1,60 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Information of a valid access token returned by
+ * {@link OAuthService#introspectAccessTokens(String[], javax.servlet.http.HttpServletRequest)},
+ * carries everything the introspection response needs.
+ *
+ * @author zqxu
+ */
+public class TokenInfo {
+  private final String clientId;
+  private final Set<String> scopes;
+  private final long expireIn;
+
+  /**
+   * Constructor
+   *
+   * @param clientId
+   *          client id of the access token, or null if not supported
+   * @param scopes
+   *          scopes of the access token, or null if not supported
+   * @param expireIn
+   *          remaining time of the access token in millisecond
+   */
+  public TokenInfo(String clientId, Set<String> scopes, long expireIn) {
+    this.clientId = clientId;
+    this.scopes = scopes == null ? Collections.<String> emptySet() : scopes;
+    this.expireIn = expireIn;
+  }
+
+  /**
+   * get client id of the access token
+   *
+   * @return client id, or null if not supported
+   */
+  public String getClientId() {
+    return clientId;
+  }
+
+  /**
+   * get scopes of the access token
+   *
+   * @return scopes, empty if no scope or not supported
+   */
+  public Set<String> getScopes() {
+    return scopes;
+  }
+
+  /**
+   * get remaining time of the access token
+   *
+   * @return remaining time in millisecond
+   */
+  public long getExpireIn() {
+    return expireIn;
+  }
+}
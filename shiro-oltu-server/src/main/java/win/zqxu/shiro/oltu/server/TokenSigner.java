@@ -0,0 +1,246 @@
+package win.zqxu.shiro.oltu.server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.oltu.oauth2.common.utils.OAuthUtils;
+
+/**
+ * <p>
+ * Create and verify self-contained access tokens, the token carries client id,
+ * scopes and expire time under a HMAC-SHA256 signature, so the resource server
+ * can verify the token using only CPU without looking up the token store.
+ * </p>
+ * <p>
+ * Multiple keys can be configured to support key rotation, the current key is
+ * used to sign new tokens and all keys are used to verify tokens. To rotate
+ * the key, add the new key, make it current after all resource servers know
+ * it, and remove the old key after all tokens signed by it expired.
+ * </p>
+ * <p>
+ * add the signer in shiro.ini file like this:<br>
+ * [main]<br>
+ * tokenSigner = win.zqxu.shiro.oltu.server.TokenSigner<br>
+ * tokenSigner.keys = k1:&lt;base64 secret&gt;, k2:&lt;base64 secret&gt;<br>
+ * tokenSigner.currentKeyId = k2<br>
+ * oTokenFilter.tokenSigner = $tokenSigner<br>
+ * oResourceFilter.tokenSigner = $tokenSigner<br>
+ * </p>
+ *
+ * @author zqxu
+ */
+public class TokenSigner {
+  private static final byte VERSION = 1;
+  private volatile Map<String, SigningKey> keys = Collections.emptyMap();
+  private volatile String currentKeyId;
+  private long expireIn = 60 * 60 * 1000L;
+
+  /**
+   * set signing keys, in format keyId:base64Secret, separated by comma, the
+   * secret must be at least 32 bytes. if current key id not set, the last key
+   * will be used to sign new tokens.
+   *
+   * @param keys
+   *          signing keys
+   */
+  public synchronized void setKeys(String keys) {
+    Map<String, SigningKey> parsed = new LinkedHashMap<String, SigningKey>();
+    String lastKeyId = null;
+    for (String item : keys.split(",")) {
+      item = item.trim();
+      if (item.isEmpty())
+        continue;
+      int index = item.indexOf(':');
+      if (index <= 0)
+        throw new IllegalArgumentException("key must be in format keyId:base64Secret");
+      lastKeyId = item.substring(0, index).trim();
+      byte[] secret = Base64.getDecoder().decode(item.substring(index + 1).trim());
+      parsed.put(lastKeyId, new SigningKey(lastKeyId, secret));
+    }
+    this.keys = Collections.unmodifiableMap(parsed);
+    if (currentKeyId == null || !parsed.containsKey(currentKeyId))
+      currentKeyId = lastKeyId;
+  }
+
+  /**
+   * add a signing key, the existing key with same key id will be replaced
+   *
+   * @param keyId
+   *          key id, at most 255 bytes in UTF-8
+   * @param secret
+   *          key secret, at least 32 bytes
+   */
+  public synchronized void addKey(String keyId, byte[] secret) {
+    Map<String, SigningKey> updated = new LinkedHashMap<String, SigningKey>(keys);
+    updated.put(keyId, new SigningKey(keyId, secret.clone()));
+    keys = Collections.unmodifiableMap(updated);
+    if (currentKeyId == null)
+      currentKeyId = keyId;
+  }
+
+  /**
+   * remove a signing key, tokens signed by the key become invalid
+   *
+   * @param keyId
+   *          key id
+   */
+  public synchronized void removeKey(String keyId) {
+    Map<String, SigningKey> updated = new LinkedHashMap<String, SigningKey>(keys);
+    updated.remove(keyId);
+    keys = Collections.unmodifiableMap(updated);
+    if (keyId.equals(currentKeyId))
+      currentKeyId = null;
+  }
+
+  /**
+   * get id of the key used to sign new tokens
+   *
+   * @return current key id
+   */
+  public String getCurrentKeyId() {
+    return currentKeyId;
+  }
+
+  /**
+   * set id of the key used to sign new tokens
+   *
+   * @param currentKeyId
+   *          current key id
+   */
+  public void setCurrentKeyId(String currentKeyId) {
+    this.currentKeyId = currentKeyId;
+  }
+
+  /**
+   * get signed access token expire time
+   *
+   * @return expire time in millisecond
+   */
+  public long getExpireIn() {
+    return expireIn;
+  }
+
+  /**
+   * set signed access token expire time, default is 1 hour
+   *
+   * @param expireIn
+   *          expire time in millisecond
+   */
+  public void setExpireIn(long expireIn) {
+    this.expireIn = expireIn;
+  }
+
+  /**
+   * sign a new access token using current key, expires after
+   * {@link #getExpireIn()}
+   *
+   * @param clientId
+   *          client id
+   * @param scopes
+   *          scopes, can be null
+   * @return signed access token
+   */
+  public String sign(String clientId, Set<String> scopes) {
+    return sign(clientId, scopes, System.currentTimeMillis() + expireIn);
+  }
+
+  /**
+   * sign a new access token using current key
+   *
+   * @param clientId
+   *          client id
+   * @param scopes
+   *          scopes, can be null
+   * @param expireAt
+   *          expire time in millisecond
+   * @return signed access token
+   */
+  public String sign(String clientId, Set<String> scopes, long expireAt) {
+    String keyId = currentKeyId;
+    SigningKey key = keyId == null ? null : keys.get(keyId);
+    if (key == null)
+      throw new IllegalStateException("no current signing key");
+    byte[] client = clientId.getBytes(StandardCharsets.UTF_8);
+    byte[] scope = scopes == null || scopes.isEmpty() ? new byte[0]
+        : OAuthUtils.encodeScopes(scopes).getBytes(StandardCharsets.UTF_8);
+    ByteBuffer payload = ByteBuffer
+        .allocate(2 + key.id.length + 16 + 2 + client.length + scope.length);
+    payload.put(VERSION).put((byte) key.id.length).put(key.id);
+    payload.putLong(expireAt).putLong(ThreadLocalRandom.current().nextLong());
+    payload.putShort((short) client.length).put(client).put(scope);
+    byte[] content = payload.array();
+    return HmacKey.encode(content) + '.' + HmacKey.encode(key.hmac.sign(content));
+  }
+
+  /**
+   * Determine whether the token looks like a signed token, the token may still
+   * be invalid even this method returns true
+   *
+   * @param token
+   *          access token
+   * @return true if the token is in signed token format
+   */
+  public boolean isSigned(String token) {
+    return token != null && token.indexOf('.') > 0;
+  }
+
+  /**
+   * verify the signed token
+   *
+   * @param token
+   *          access token
+   * @return signed token content, or null if the token is invalid or expired
+   */
+  public SignedToken verify(String token) {
+    if (!isSigned(token))
+      return null;
+    int index = token.indexOf('.');
+    try {
+      byte[] content = HmacKey.decode(token.substring(0, index));
+      byte[] signature = HmacKey.decode(token.substring(index + 1));
+      ByteBuffer payload = ByteBuffer.wrap(content);
+      if (payload.get() != VERSION)
+        return null;
+      byte[] keyId = new byte[payload.get() & 0xFF];
+      payload.get(keyId);
+      SigningKey key = keys.get(new String(keyId, StandardCharsets.UTF_8));
+      if (key == null || !key.hmac.verify(signature, content))
+        return null;
+      long expireAt = payload.getLong();
+      if (System.currentTimeMillis() >= expireAt)
+        return null;
+      payload.getLong(); // skip nonce
+      byte[] client = new byte[payload.getShort() & 0xFFFF];
+      payload.get(client);
+      String scope = new String(content, payload.position(), payload.remaining(),
+          StandardCharsets.UTF_8);
+      return new SignedToken(key.name, new String(client, StandardCharsets.UTF_8),
+          Collections.unmodifiableSet(OAuthUtils.decodeScopes(scope)), expireAt);
+    } catch (IllegalArgumentException | BufferUnderflowException ex) {
+      return null; // malformed token
+    }
+  }
+
+  private static class SigningKey {
+    private final String name;
+    private final byte[] id;
+    private final HmacKey hmac;
+
+    SigningKey(String name, byte[] secret) {
+      if (secret.length < HmacKey.MIN_SECRET_LENGTH)
+        throw new IllegalArgumentException("key secret must be at least 32 bytes");
+      this.name = name;
+      this.id = name.getBytes(StandardCharsets.UTF_8);
+      if (id.length == 0 || id.length > 255)
+        throw new IllegalArgumentException("key id must be 1 to 255 bytes");
+      this.hmac = new HmacKey(secret);
+    }
+  }
+}
@@ -14,6 +14,33 @@
  * use {@link win.zqxu.shiro.oltu.server.ResourceFilter} to provide resource
  * access control
  * </p>
+ * <p>
+ * use {@link win.zqxu.shiro.oltu.server.BearerTokenRealm} with the resource
+ * filter to bind a subject for bearer requests, with the scopes of the access
+ * token as permissions
+ * </p>
+ * <p>
+ * use {@link win.zqxu.shiro.oltu.server.IntrospectionFilter} to provide OAuth2
+ * token introspection for remote resource servers, and
+ * {@link win.zqxu.shiro.oltu.server.RevocationFilter} to provide OAuth2 token
+ * revocation
+ * </p>
+ * <p>
+ * use {@link win.zqxu.shiro.oltu.server.OAuthMetrics} to record latency and
+ * errors of the filters, exported by JMX and
+ * {@link win.zqxu.shiro.oltu.server.MetricsFilter}
+ * </p>
+ * <p>
+ * extends {@link win.zqxu.shiro.oltu.server.MemoryOAuthService} to provide an
+ * in-memory OAuthService, or
+ * {@link win.zqxu.shiro.oltu.server.MappedOAuthService} to keep the tokens in
+ * memory-mapped files across restarts, or
+ * {@link win.zqxu.shiro.oltu.server.JdbcOAuthService} to keep the tokens in a
+ * database table, or
+ * {@link win.zqxu.shiro.oltu.server.PartitionedOAuthService} to partition the
+ * tokens across several nodes, or implement
+ * {@link win.zqxu.shiro.oltu.server.OAuthService} directly
+ * </p>
  * 
  * @author zqxu
  */
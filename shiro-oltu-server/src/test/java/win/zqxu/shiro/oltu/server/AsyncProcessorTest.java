@@ -0,0 +1,132 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class AsyncProcessorTest {
+  private final AsyncProcessor processor = new AsyncProcessor();
+
+  @Before
+  public void setUp() {
+    SecurityUtils.setSecurityManager(new DefaultSecurityManager());
+    processor.setEnabled(true);
+    processor.setThreads(1);
+    processor.setQueueSize(1);
+  }
+
+  @After
+  public void tearDown() {
+    processor.shutdown();
+    SecurityUtils.setSecurityManager(null);
+  }
+
+  @Test
+  public void dispatchesOrCompletesByWorkResult() throws Exception {
+    Exchange dispatched = execute(result(true));
+    Exchange completed = execute(result(false));
+    assertEquals("dispatch", dispatched.ended());
+    assertEquals("complete", completed.ended());
+  }
+
+  @Test
+  public void rejectsWhenSaturated() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Exchange running = execute(blocking(release));
+    Exchange queued = execute(blocking(release));
+    Exchange rejected = execute(result(true));
+    assertEquals("complete", rejected.ended());
+    assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, rejected.status);
+    release.countDown();
+    assertEquals("complete", running.ended());
+    assertEquals("complete", queued.ended());
+    assertEquals(0, running.status);
+  }
+
+  private Exchange execute(AsyncProcessor.Work work) {
+    Exchange exchange = new Exchange();
+    assertTrue(processor.accept(exchange.request));
+    processor.execute(exchange.request, exchange.response, work);
+    return exchange;
+  }
+
+  private static AsyncProcessor.Work result(final boolean dispatch) {
+    return new AsyncProcessor.Work() {
+      @Override
+      public boolean run(ServletRequest request, ServletResponse response) {
+        return dispatch;
+      }
+    };
+  }
+
+  private static AsyncProcessor.Work blocking(final CountDownLatch release) {
+    return new AsyncProcessor.Work() {
+      @Override
+      public boolean run(ServletRequest request, ServletResponse response) throws Exception {
+        release.await();
+        return false;
+      }
+    };
+  }
+
+  /**
+   * request, response and async context recording how the exchange ended
+   */
+  private static class Exchange implements InvocationHandler {
+    private final BlockingQueue<String> ends = new LinkedBlockingQueue<String>();
+    private final ServletRequest request = proxy(ServletRequest.class);
+    private final HttpServletResponse response = proxy(HttpServletResponse.class);
+    private final AsyncContext context = proxy(AsyncContext.class);
+    private volatile int status;
+
+    String ended() throws InterruptedException {
+      return ends.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if (name.equals("isAsyncSupported"))
+        return true;
+      if (name.equals("startAsync"))
+        return context;
+      if (name.equals("getRequest"))
+        return request;
+      if (name.equals("getResponse"))
+        return response;
+      if (name.equals("isCommitted"))
+        return false;
+      if (name.equals("setStatus"))
+        status = (Integer) args[0];
+      if (name.equals("dispatch") || name.equals("complete"))
+        ends.add(name);
+      return null;
+    }
+
+    private <T> T proxy(Class<T> type) {
+      return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { type }, this));
+    }
+  }
+}
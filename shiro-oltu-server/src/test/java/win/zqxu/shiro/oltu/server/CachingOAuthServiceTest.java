@@ -0,0 +1,93 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class CachingOAuthServiceTest {
+  private final Backing backing = new Backing();
+  private final CachingOAuthService caching = new CachingOAuthService(backing);
+
+  @After
+  public void tearDown() {
+    backing.destroy();
+  }
+
+  @Test
+  public void removesTokenReplacedByGrantService() {
+    backing.addAuthCode("code", "client", Collections.singleton("read"));
+    assertNotNull(caching.exchangeAuthCode("client", "code", "access", "refresh"));
+    assertTrue(caching.checkAccessToken("access", null));
+    assertTrue(caching.checkAccessToken("access", null));
+    assertEquals(1, caching.getHitCount());
+    assertNotNull(caching.exchangeRefreshToken("client", "refresh", "access2", "refresh2"));
+    assertFalse(caching.checkAccessToken("access", null));
+    assertTrue(caching.checkAccessToken("access2", null));
+  }
+
+  @Test
+  public void skipsResultOfTokenInvalidatedDuringCheck() {
+    backing.addClientToken("access", "client", Collections.<String> emptySet());
+    backing.duringCheck = new Runnable() {
+      @Override
+      public void run() {
+        caching.invalidate("access");
+      }
+    };
+    assertTrue(caching.checkAccessToken("access", null));
+    assertEquals(0, caching.getSize());
+    backing.duringCheck = null;
+    assertTrue(caching.checkAccessToken("access", null));
+    assertEquals(1, caching.getSize());
+  }
+
+  private static class Backing extends MemoryOAuthService {
+    private volatile Runnable duringCheck;
+
+    @Override
+    public boolean checkAccessToken(String accessToken, HttpServletRequest request) {
+      boolean valid = super.checkAccessToken(accessToken, request);
+      Runnable hook = duringCheck;
+      if (hook != null)
+        hook.run();
+      return valid;
+    }
+
+    @Override
+    public boolean checkClient(String clientId) {
+      return true;
+    }
+
+    @Override
+    public boolean checkClient(String clientId, String secret) {
+      return true;
+    }
+
+    @Override
+    public boolean scopeRequired(String clientId) {
+      return false;
+    }
+
+    @Override
+    public boolean checkScope(String clientId, String scope) {
+      return true;
+    }
+
+    @Override
+    public String confirmationURI(String clientId, Set<String> scopes) {
+      return null;
+    }
+  }
+}
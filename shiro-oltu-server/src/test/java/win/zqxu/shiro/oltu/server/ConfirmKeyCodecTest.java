@@ -0,0 +1,62 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class ConfirmKeyCodecTest {
+  private final ConfirmKeyCodec codec = new ConfirmKeyCodec(new byte[32], 60 * 1000L);
+
+  @Test
+  public void decodesKeyOnce() {
+    String key = codec.encode("alice", request());
+    AuthorizeFilter.SavedOAuthRequest decoded = codec.decode("alice", key);
+    assertNotNull(decoded);
+    assertEquals("client", decoded.clientId);
+    assertEquals("state", decoded.state);
+    assertEquals(Collections.singleton("read"), decoded.scopes);
+    assertEquals("http://client/callback", decoded.redirectURI);
+    assertNull(codec.decode("alice", key));
+  }
+
+  @Test
+  public void refusesOtherPrincipalAndTamperedKey() {
+    String key = codec.encode("alice", request());
+    assertNull(codec.decode("bob", key));
+    String tampered = (key.charAt(0) == 'A' ? 'B' : 'A') + key.substring(1);
+    assertNull(codec.decode("alice", tampered));
+    assertNotNull(codec.decode("alice", key));
+  }
+
+  @Test
+  public void refusesKeyShiftedIntoShorterPrincipal() {
+    String key = codec.encode("malice", request());
+    int index = key.indexOf('.');
+    byte[] content = HmacKey.decode(key.substring(0, index));
+    byte[] shifted = Arrays.copyOf(content, content.length + 1);
+    shifted[content.length] = 'm';
+    String forged = HmacKey.encode(shifted) + key.substring(index);
+    assertNull(codec.decode("alice", forged));
+    assertNull(codec.decode("alice", key));
+    assertNotNull(codec.decode("malice", key));
+  }
+
+  @Test
+  public void refusesExpiredKey() {
+    ConfirmKeyCodec expired = new ConfirmKeyCodec(new byte[32], -1);
+    assertNull(expired.decode("alice", expired.encode("alice", request())));
+  }
+
+  private static AuthorizeFilter.SavedOAuthRequest request() {
+    return new AuthorizeFilter.SavedOAuthRequest(null, "client", "state",
+        Collections.singleton("read"), "http://client/callback");
+  }
+}
@@ -0,0 +1,241 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class JdbcOAuthServiceTest {
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+  private static final Set<String> SCOPES = new HashSet<String>(Arrays.asList("read", "write"));
+  private final List<Server> servers = new ArrayList<Server>();
+  private JdbcDataSource dataSource;
+
+  @Before
+  public void setUp() throws SQLException {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:oauth" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+    execute("CREATE TABLE oauth_token (token VARCHAR(255) NOT NULL, kind SMALLINT NOT"
+        + " NULL, client_id VARCHAR(255) NOT NULL, scopes VARCHAR(1000), access_token"
+        + " VARCHAR(255), expire_at BIGINT NOT NULL, PRIMARY KEY (token, kind))");
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    for (Server server : servers)
+      server.destroy();
+    execute("SHUTDOWN");
+  }
+
+  @Test
+  public void readsOwnWritesBeforeCommitted() throws Exception {
+    Server server = server(1000);
+    server.addAuthCode("code", "client", SCOPES);
+    assertTrue(server.checkAuthCode("code", "client"));
+    assertEquals(SCOPES, server.getAuthCodeScopes("code", "client"));
+    OAuthGrant grant = server.exchangeAuthCode("client", "code", "access", "refresh");
+    assertNotNull(grant);
+    assertEquals("client", server.getClientId("access"));
+    assertEquals(SCOPES, server.getScopes("access"));
+    assertTrue(server.checkRefreshToken("refresh", "client"));
+    assertNull(server.exchangeAuthCode("client", "code", "access2", "refresh2"));
+    flush(server);
+    assertEquals(2, count());
+    assertFalse(server.checkAuthCode("code", "client"));
+  }
+
+  @Test
+  public void writesTokensInBatches() throws Exception {
+    Server writer = server(100);
+    for (int i = 0; i < 1000; i++)
+      writer.issueClientToken("client", SCOPES, "token-" + i);
+    flush(writer);
+    assertEquals(1000, count());
+    Server reader = server(100);
+    for (int i = 0; i < 1000; i += 97)
+      assertEquals(SCOPES, reader.getScopes("token-" + i));
+  }
+
+  @Test
+  public void grantsOnceAcrossServers() throws Exception {
+    Server first = server(100);
+    Server second = server(100);
+    for (int i = 0; i < 20; i++)
+      first.addAuthCode("code-" + i, "client", SCOPES);
+    flush(first);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (int i = 0; i < 20; i++) {
+        CountDownLatch start = new CountDownLatch(1);
+        Future<OAuthGrant> one = executor.submit(exchange(first, start, i, "a"));
+        Future<OAuthGrant> two = executor.submit(exchange(second, start, i, "b"));
+        start.countDown();
+        assertTrue((one.get() == null) != (two.get() == null));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void introspectsQueuedAndCommittedTokens() throws Exception {
+    Server server = server(100);
+    server.issueClientToken("client", SCOPES, "committed");
+    flush(server);
+    server.issueClientToken("other", null, "queued");
+    TokenInfo[] infos = server.introspectAccessTokens(
+        new String[] { "committed", "unknown", "queued", null }, null);
+    assertEquals("client", infos[0].getClientId());
+    assertEquals(SCOPES, infos[0].getScopes());
+    assertTrue(infos[0].getExpireIn() > 0);
+    assertNull(infos[1]);
+    assertEquals("other", infos[2].getClientId());
+    assertTrue(infos[2].getScopes().isEmpty());
+    assertNull(infos[3]);
+  }
+
+  @Test
+  public void dropsRowRefusedByDatabase() throws Exception {
+    Server server = server(100);
+    char[] longId = new char[300];
+    Arrays.fill(longId, 'c');
+    server.issueClientToken("client", SCOPES, "before");
+    server.issueClientToken(new String(longId), SCOPES, "poison");
+    server.issueClientToken("client", SCOPES, "after");
+    flush(server);
+    assertEquals(2, count());
+    assertEquals("client", server.getClientId("before"));
+    assertEquals("client", server.getClientId("after"));
+    assertNull(server.getClientId("poison"));
+  }
+
+  @Test
+  public void failsWhenQueueStaysFull() throws Exception {
+    JdbcDataSource missing = new JdbcDataSource();
+    missing.setURL("jdbc:h2:mem:missing" + DATABASES.incrementAndGet());
+    Server server = new Server();
+    server.setDataSource(missing);
+    server.setQueueSize(1);
+    server.setQueueTimeout(50);
+    server.setRetryDelay(10);
+    server.init();
+    servers.add(server);
+    server.issueClientToken("client", SCOPES, "written");
+    long deadline = System.currentTimeMillis() + 5000;
+    while (server.getQueuedCount() > 0) {
+      assertTrue("batch not taken", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    server.issueClientToken("client", SCOPES, "queued");
+    try {
+      server.issueClientToken("client", SCOPES, "refused");
+      fail("request not failed");
+    } catch (IllegalStateException ex) {
+      // table missing, the writer keeps retrying the first batch
+    }
+    assertEquals("client", server.getClientId("queued"));
+    assertEquals(2, server.getPendingCount());
+  }
+
+  private Server server(int batchSize) {
+    Server server = new Server();
+    server.setDataSource(dataSource);
+    server.setBatchSize(batchSize);
+    server.setRetryDelay(10);
+    server.init();
+    servers.add(server);
+    return server;
+  }
+
+  private static Callable<OAuthGrant> exchange(final Server server, final CountDownLatch start,
+      final int index, final String suffix) {
+    return new Callable<OAuthGrant>() {
+      @Override
+      public OAuthGrant call() throws Exception {
+        start.await();
+        return server.exchangeAuthCode("client", "code-" + index, "access-" + index + suffix,
+            "refresh-" + index + suffix);
+      }
+    };
+  }
+
+  /**
+   * wait until the queued writes committed
+   */
+  private static void flush(Server server) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (server.getPendingCount() > 0) {
+      assertTrue("writes not flushed", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private int count() throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM oauth_token")) {
+      result.next();
+      return result.getInt(1);
+    }
+  }
+
+  private void execute(String sql) throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute(sql);
+    }
+  }
+
+  private static class Server extends JdbcOAuthService {
+    @Override
+    public boolean checkClient(String clientId) {
+      return true;
+    }
+
+    @Override
+    public boolean checkClient(String clientId, String secret) {
+      return true;
+    }
+
+    @Override
+    public boolean scopeRequired(String clientId) {
+      return false;
+    }
+
+    @Override
+    public boolean checkScope(String clientId, String scope) {
+      return true;
+    }
+
+    @Override
+    public String confirmationURI(String clientId, Set<String> scopes) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class MemoryAuthCodeStoreTest {
+  private static final Set<String> SCOPES = Collections.singleton("read");
+
+  @Test
+  public void consumesCodeOnceByItsClient() {
+    MemoryAuthCodeStore store = new MemoryAuthCodeStore();
+    store.put("code", "client", SCOPES);
+    assertNull(store.consume("code", "other"));
+    assertEquals(SCOPES, store.consume("code", "client"));
+    assertNull(store.consume("code", "client"));
+    assertNull(store.consume(null, "client"));
+  }
+
+  @Test
+  public void overwritesCodeExpiringFirstWhenProbesFull() {
+    MemoryAuthCodeStore store = new MemoryAuthCodeStore();
+    store.setCapacity(8);
+    for (int i = 0; i < 8; i++) {
+      store.setExpireIn(60 * 1000L + i);
+      store.put("code-" + i, "client", SCOPES);
+    }
+    assertEquals(0, store.getOverwriteCount());
+    store.setExpireIn(120 * 1000L);
+    store.put("code-8", "client", SCOPES);
+    assertEquals(1, store.getOverwriteCount());
+    assertNull(store.consume("code-0", "client"));
+    for (int i = 1; i <= 8; i++)
+      assertEquals(SCOPES, store.consume("code-" + i, "client"));
+  }
+
+  @Test
+  public void reusesExpiredSlots() {
+    MemoryAuthCodeStore store = new MemoryAuthCodeStore();
+    store.setCapacity(8);
+    store.setExpireIn(-1);
+    for (int i = 0; i < 8; i++)
+      store.put("expired-" + i, "client", SCOPES);
+    assertNull(store.consume("expired-0", "client"));
+    store.setExpireIn(60 * 1000L);
+    for (int i = 0; i < 8; i++)
+      store.put("code-" + i, "client", SCOPES);
+    assertEquals(0, store.getOverwriteCount());
+    for (int i = 0; i < 8; i++)
+      assertEquals(SCOPES, store.consume("code-" + i, "client"));
+  }
+}
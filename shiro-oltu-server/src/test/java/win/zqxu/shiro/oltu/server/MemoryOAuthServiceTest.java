@@ -0,0 +1,102 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class MemoryOAuthServiceTest {
+  private static final Set<String> SCOPES = new HashSet<String>(Arrays.asList("read", "write"));
+  private final Service service = new Service();
+
+  @After
+  public void tearDown() {
+    service.destroy();
+  }
+
+  @Test
+  public void exchangesCodeOnceByItsClient() {
+    service.addAuthCode("code", "client", SCOPES);
+    assertTrue(service.checkAuthCode("code", "client"));
+    assertFalse(service.checkAuthCode("code", "other"));
+    assertNull(service.getAuthCodeScopes("code", "other"));
+    assertNull(service.exchangeAuthCode("other", "code", "access", "refresh"));
+    OAuthGrant grant = service.exchangeAuthCode("client", "code", "access", "refresh");
+    assertNotNull(grant);
+    assertEquals("refresh", grant.getRefreshToken());
+    assertEquals("client", service.getClientId("access"));
+    assertEquals(SCOPES, service.getScopes("access"));
+    assertEquals(SCOPES, service.getRefreshTokenScopes("refresh", "client"));
+    assertNull(service.exchangeAuthCode("client", "code", "access2", "refresh2"));
+    assertFalse(service.checkAuthCode("code", "client"));
+  }
+
+  @Test
+  public void replacesAccessTokenOnRefresh() {
+    service.addAuthCode("code", "client", SCOPES);
+    service.exchangeAuthCode("client", "code", "access", "refresh");
+    assertNull(service.exchangeRefreshToken("other", "refresh", "access2", "refresh2"));
+    assertNotNull(service.exchangeRefreshToken("client", "refresh", "access2", "refresh2"));
+    assertFalse(service.checkAccessToken("access", null));
+    assertTrue(service.checkAccessToken("access2", null));
+    assertFalse(service.checkRefreshToken("refresh", "client"));
+    assertTrue(service.checkRefreshToken("refresh2", "client"));
+    assertNull(service.exchangeRefreshToken("client", "refresh", "access3", "refresh3"));
+  }
+
+  @Test
+  public void expiresTokens() throws InterruptedException {
+    service.setAuthCodeExpireIn(50);
+    service.setAccessTokenExpireIn(50);
+    service.addAuthCode("code", "client", SCOPES);
+    service.issueClientToken("client", SCOPES, "access");
+    assertTrue(service.getExpireIn("access") > 0);
+    Thread.sleep(100);
+    assertFalse(service.checkAuthCode("code", "client"));
+    assertNull(service.exchangeAuthCode("client", "code", "access2", "refresh2"));
+    assertFalse(service.checkAccessToken("access", null));
+    assertEquals(0, service.getExpireIn("access"));
+  }
+
+  private static class Service extends MemoryOAuthService {
+    Service() {
+      super(10);
+    }
+
+    @Override
+    public boolean checkClient(String clientId) {
+      return true;
+    }
+
+    @Override
+    public boolean checkClient(String clientId, String secret) {
+      return true;
+    }
+
+    @Override
+    public boolean scopeRequired(String clientId) {
+      return false;
+    }
+
+    @Override
+    public boolean checkScope(String clientId, String scope) {
+      return true;
+    }
+
+    @Override
+    public String confirmationURI(String clientId, Set<String> scopes) {
+      return null;
+    }
+  }
+}
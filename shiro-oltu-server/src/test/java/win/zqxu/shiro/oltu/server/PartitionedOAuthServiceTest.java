@@ -0,0 +1,244 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs three partition nodes on the loopback interface.
+ *
+ * @author zqxu
+ */
+public class PartitionedOAuthServiceTest {
+  private static final String SECRET = Base64.getEncoder().encodeToString(new byte[32]);
+  private static final HmacKey KEY = new HmacKey(new byte[32]);
+  private static final int AUTH_CODE = 0;
+  private static final int ACCESS_TOKEN = 1;
+  private static final Set<String> SCOPES = Collections.singleton("read");
+  private final List<String> nodes = new ArrayList<String>();
+  private final List<Node> services = new ArrayList<Node>();
+
+  @Before
+  public void setUp() throws IOException {
+    for (int i = 0; i < 3; i++)
+      nodes.add("127.0.0.1:" + freePort());
+    for (String node : nodes)
+      services.add(start(node, join(nodes), SECRET));
+  }
+
+  @After
+  public void tearDown() {
+    for (Node service : services)
+      service.destroy();
+  }
+
+  @Test
+  public void routesTokensToTheirOwners() throws IOException {
+    for (int i = 0; i < 30; i++)
+      services.get(i % 3).addAuthCode("code-" + i, "client", SCOPES);
+    int total = 0;
+    for (Node service : services)
+      total += service.getLocalSize();
+    assertEquals(30 * 2, total);
+    HashRing ring = new HashRing(nodes, 128);
+    for (int i = 0; i < 30; i++) {
+      List<String> owners = ring.owners("code-" + i, 2);
+      for (int n = 0; n < 3; n++) {
+        Node service = services.get(n);
+        assertTrue(service.checkAuthCode("code-" + i, "client"));
+        assertEquals(owners.contains(nodes.get(n)), keeps(nodes.get(n), AUTH_CODE, "code-" + i));
+      }
+    }
+  }
+
+  @Test
+  public void consumesAuthCodeOnce() throws IOException {
+    services.get(0).addAuthCode("code", "client", SCOPES);
+    assertNull(services.get(1).exchangeAuthCode("other", "code", "at0", "rt0"));
+    OAuthGrant grant = services.get(1).exchangeAuthCode("client", "code", "at1", "rt1");
+    assertNotNull(grant);
+    assertNull(services.get(2).exchangeAuthCode("client", "code", "at2", "rt2"));
+    for (int n = 0; n < 3; n++) {
+      assertFalse(services.get(n).checkAuthCode("code", "client"));
+      assertFalse(keeps(nodes.get(n), AUTH_CODE, "code"));
+      assertEquals(SCOPES, services.get(n).getScopes("at1"));
+    }
+  }
+
+  @Test
+  public void failsOverReadsButNotConsumes() {
+    String code = tokenWithPrimary("code-", 0);
+    services.get(1).addAuthCode(code, "client", SCOPES);
+    services.get(0).destroy();
+    Node survivor = services.get(1);
+    assertTrue(survivor.checkAuthCode(code, "client"));
+    try {
+      survivor.exchangeAuthCode("client", code, "at1", "rt1");
+      fail("consumed without the primary owner");
+    } catch (IllegalStateException ex) {
+      // expected
+    }
+    String remaining = join(nodes.subList(1, 3));
+    services.get(1).setNodes(remaining);
+    services.get(2).setNodes(remaining);
+    assertNotNull(survivor.exchangeAuthCode("client", code, "at1", "rt1"));
+    assertNull(services.get(2).exchangeAuthCode("client", code, "at2", "rt2"));
+  }
+
+  @Test
+  public void readsTokensOfRestartedPrimaryFromReplicas() throws IOException {
+    String code = tokenWithPrimary("code-", 0);
+    services.get(1).addAuthCode(code, "client", SCOPES);
+    services.get(0).destroy();
+    services.set(0, start(nodes.get(0), join(nodes), SECRET));
+    assertFalse(keeps(nodes.get(0), AUTH_CODE, code));
+    for (Node service : services)
+      assertTrue(service.checkAuthCode(code, "client"));
+    services.get(1).rebalance();
+    services.get(2).rebalance();
+    assertTrue(keeps(nodes.get(0), AUTH_CODE, code));
+    assertNotNull(services.get(2).exchangeAuthCode("client", code, "at1", "rt1"));
+    assertFalse(services.get(1).checkAuthCode(code, "client"));
+  }
+
+  @Test
+  public void rebalancesTokensToNewNodes() throws IOException {
+    String oldNodes = join(nodes.subList(0, 2));
+    services.get(2).destroy();
+    services.get(0).setNodes(oldNodes);
+    services.get(1).setNodes(oldNodes);
+    for (int i = 0; i < 30; i++)
+      services.get(0).addAccessToken("token-" + i);
+    assertEquals(30, services.get(0).getLocalSize());
+    assertEquals(30, services.get(1).getLocalSize());
+    String node = "127.0.0.1:" + freePort();
+    nodes.set(2, node);
+    services.set(2, start(node, join(nodes), SECRET));
+    services.get(0).setNodes(join(nodes));
+    services.get(1).setNodes(join(nodes));
+    HashRing ring = new HashRing(nodes, 128);
+    int moved = 0;
+    for (int i = 0; i < 30; i++) {
+      List<String> owners = ring.owners("token-" + i, 2);
+      for (int n = 0; n < 3; n++) {
+        boolean kept = keeps(nodes.get(n), ACCESS_TOKEN, "token-" + i);
+        assertEquals(owners.contains(nodes.get(n)), kept);
+      }
+      if (owners.contains(node))
+        moved++;
+    }
+    assertTrue(moved > 0);
+    assertEquals(moved, services.get(2).getLocalSize());
+  }
+
+  @Test
+  public void refusesNodesWithoutTheSecret() throws IOException {
+    byte[] other = new byte[32];
+    Arrays.fill(other, (byte) 1);
+    PartitionClient client = new PartitionClient(address(nodes.get(0)), new HmacKey(other), 500,
+        60000);
+    try {
+      client.get(0, "code");
+      fail("called without the secret");
+    } catch (IOException ex) {
+      // expected
+    } finally {
+      client.close();
+    }
+  }
+
+  /**
+   * whether the node keeps the token in its own store
+   */
+  private static boolean keeps(String node, int kind, String token) throws IOException {
+    PartitionClient client = new PartitionClient(address(node), KEY, 500, 60000);
+    try {
+      return client.get(kind, token) != null;
+    } finally {
+      client.close();
+    }
+  }
+
+  private String tokenWithPrimary(String prefix, int node) {
+    HashRing ring = new HashRing(nodes, 128);
+    for (int i = 0;; i++)
+      if (ring.owners(prefix + i, 2).get(0).equals(nodes.get(node)))
+        return prefix + i;
+  }
+
+  private static Node start(String node, String nodes, String secret) {
+    Node service = new Node();
+    service.setLocalNode(node);
+    service.setNodes(nodes);
+    service.setSecret(secret);
+    service.setTimeout(500);
+    service.init();
+    return service;
+  }
+
+  private static String join(List<String> nodes) {
+    StringBuilder builder = new StringBuilder();
+    for (String node : nodes)
+      builder.append(builder.length() == 0 ? "" : ",").append(node);
+    return builder.toString();
+  }
+
+  private static InetSocketAddress address(String node) {
+    String[] parts = node.split(":");
+    return new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static class Node extends PartitionedOAuthService {
+    void addAccessToken(String token) {
+      addClientToken(token, "client", SCOPES);
+    }
+
+    @Override
+    public boolean checkClient(String clientId) {
+      return true;
+    }
+
+    @Override
+    public boolean checkClient(String clientId, String secret) {
+      return true;
+    }
+
+    @Override
+    public boolean scopeRequired(String clientId) {
+      return false;
+    }
+
+    @Override
+    public boolean checkScope(String clientId, String scope) {
+      return true;
+    }
+
+    @Override
+    public String confirmationURI(String clientId, Set<String> scopes) {
+      return null;
+    }
+  }
+}
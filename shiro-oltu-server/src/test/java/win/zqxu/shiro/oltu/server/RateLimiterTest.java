@@ -0,0 +1,42 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class RateLimiterTest {
+  @Test
+  public void limitsEachClientByItsOwnBucket() {
+    RateLimiter limiter = new RateLimiter();
+    limiter.setRate(0.001);
+    limiter.setBurst(2);
+    limiter.setClientLimits("big:0.001:5");
+    for (int i = 0; i < 2; i++)
+      assertTrue(limiter.tryAcquire("small"));
+    assertFalse(limiter.tryAcquire("small"));
+    for (int i = 0; i < 5; i++)
+      assertTrue(limiter.tryAcquire("big"));
+    assertFalse(limiter.tryAcquire("big"));
+    assertEquals(2, limiter.getRejectedCount());
+  }
+
+  @Test
+  public void blocksSourceAfterFailures() {
+    RateLimiter limiter = new RateLimiter();
+    limiter.setFailureRate(0.001);
+    limiter.setFailureBurst(3);
+    for (int i = 0; i < 3; i++) {
+      assertFalse(limiter.isBlocked("10.0.0.1"));
+      limiter.recordFailure("10.0.0.1");
+    }
+    assertTrue(limiter.isBlocked("10.0.0.1"));
+    assertFalse(limiter.isBlocked("10.0.0.2"));
+    assertTrue(limiter.tryAcquire("client"));
+    assertFalse(limiter.isBlocked(null));
+  }
+}
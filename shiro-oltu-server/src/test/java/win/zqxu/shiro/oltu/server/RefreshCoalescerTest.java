@@ -0,0 +1,129 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class RefreshCoalescerTest {
+  private final RefreshCoalescer coalescer = new RefreshCoalescer();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    coalescer.shutdown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void sharesGrantOfConcurrentExchange() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Counter counter = new Counter(started, release);
+    Future<OAuthGrant> first = submit("client", counter);
+    started.await();
+    Future<OAuthGrant> second = submit("client", counter);
+    Future<OAuthGrant> other = submit("other", counter);
+    assertNull(other.get(5, TimeUnit.SECONDS));
+    Thread.sleep(50);
+    release.countDown();
+    OAuthGrant grant = first.get(5, TimeUnit.SECONDS);
+    assertSame(grant, second.get(5, TimeUnit.SECONDS));
+    assertEquals(1, counter.calls.get());
+    assertNotSame(grant, coalescer.exchange("client", "refresh", counter));
+    assertEquals(2, counter.calls.get());
+  }
+
+  @Test
+  public void repeatsGrantWithinGracePeriod() {
+    coalescer.setGracePeriod(60 * 1000L);
+    Counter counter = new Counter(null, null);
+    OAuthGrant grant = coalescer.exchange("client", "refresh", counter);
+    assertSame(grant, coalescer.exchange("client", "refresh", counter));
+    assertNull(coalescer.exchange("other", "refresh", counter));
+    assertEquals(1, counter.calls.get());
+  }
+
+  @Test
+  public void passesFailureToWaiters() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    RefreshCoalescer.Exchange failing = new RefreshCoalescer.Exchange() {
+      @Override
+      public OAuthGrant exchange() {
+        started.countDown();
+        await(release);
+        throw new IllegalStateException("backing store down");
+      }
+    };
+    Future<OAuthGrant> first = submit("client", failing);
+    started.await();
+    Future<OAuthGrant> second = submit("client", failing);
+    Thread.sleep(50);
+    release.countDown();
+    for (Future<OAuthGrant> future : Arrays.asList(first, second)) {
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("failure not passed");
+      } catch (ExecutionException ex) {
+        assertEquals(IllegalStateException.class, ex.getCause().getClass());
+      }
+    }
+  }
+
+  private Future<OAuthGrant> submit(final String clientId,
+      final RefreshCoalescer.Exchange exchange) {
+    return executor.submit(new Callable<OAuthGrant>() {
+      @Override
+      public OAuthGrant call() {
+        return coalescer.exchange(clientId, "refresh", exchange);
+      }
+    });
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class Counter implements RefreshCoalescer.Exchange {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch started;
+    private final CountDownLatch release;
+
+    Counter(CountDownLatch started, CountDownLatch release) {
+      this.started = started;
+      this.release = release;
+    }
+
+    @Override
+    public OAuthGrant exchange() {
+      int call = calls.incrementAndGet();
+      if (started != null) {
+        started.countDown();
+        await(release);
+      }
+      return new OAuthGrant("access-" + call, "refresh-" + call, 3600 * 1000L);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class RevocationListTest {
+  @Test
+  public void keepsTokensBeyondExpectedCount() {
+    RevocationList list = new RevocationList();
+    list.setExpectedTokens(8);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++)
+      list.revoke("token-" + i, now + 60 * 1000L + i * 60 * 60 * 1000L);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(list.isRevoked("token-" + i));
+      assertFalse(list.isRevoked("other-" + i));
+    }
+    assertEquals(1000, list.size());
+  }
+
+  @Test
+  public void ignoresExpiredTokens() throws InterruptedException {
+    RevocationList list = new RevocationList();
+    list.setGenerationSpan(50);
+    list.setDefaultExpireIn(500);
+    list.revoke("expired", System.currentTimeMillis() - 1);
+    list.revoke("short", System.currentTimeMillis() + 500);
+    list.revoke("unknown");
+    assertFalse(list.isRevoked("expired"));
+    assertTrue(list.isRevoked("short"));
+    assertTrue(list.isRevoked("unknown"));
+    Thread.sleep(700);
+    assertFalse(list.isRevoked("short"));
+    assertEquals(0, list.size());
+  }
+}
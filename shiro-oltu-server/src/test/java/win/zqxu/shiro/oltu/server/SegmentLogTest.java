@@ -0,0 +1,93 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author zqxu
+ */
+public class SegmentLogTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void compactsDeadRecordsAndReloadsLatest() throws IOException {
+    File directory = folder.newFolder("log");
+    long expireAt = System.currentTimeMillis() + 60 * 1000L;
+    SegmentLog log = new SegmentLog(directory, 1024);
+    log.load(1, 2);
+    for (int i = 0; i < 100; i++)
+      log.append(SegmentLog.PUT, 0, "token-" + i, "client", "read", null, expireAt);
+    for (int i = 0; i < 80; i++)
+      log.append(SegmentLog.REMOVE, 0, "token-" + i, null, null, null, 0);
+    log.close();
+
+    log = new SegmentLog(directory, 1024);
+    assertEquals(100, log.load(1, 2).get(0).size());
+    int before = log.getSealedCount();
+    final Set<String> live = new HashSet<String>();
+    for (int i = 80; i < 100; i++)
+      live.add("token-" + i);
+    int dropped = log.compact(new SegmentLog.RecordFilter() {
+      @Override
+      public boolean accept(SegmentLog.Record record) {
+        return record.op == SegmentLog.PUT && live.contains(record.token);
+      }
+    }, 1.0);
+    // the dead records of the reused last segment are not compacted yet
+    assertTrue(dropped > 100 && dropped <= 160);
+    assertTrue(log.getSealedCount() < before);
+    log.append(SegmentLog.REMOVE, 0, "token-80", null, null, null, 0);
+    log.close();
+
+    log = new SegmentLog(directory, 1024);
+    List<ConcurrentMap<String, SegmentLog.Record>> latest = log.load(1, 2);
+    log.close();
+    ConcurrentMap<String, SegmentLog.Record> records = latest.get(0);
+    Set<String> stored = new HashSet<String>();
+    for (SegmentLog.Record record : records.values())
+      if (record.op == SegmentLog.PUT)
+        stored.add(record.token);
+    live.remove("token-80");
+    assertEquals(live, stored);
+    assertEquals(SegmentLog.REMOVE, records.get("token-80").op);
+    for (int i = 81; i < 100; i++) {
+      SegmentLog.Record record = records.get("token-" + i);
+      assertEquals(SegmentLog.PUT, record.op);
+      assertEquals("client", record.clientId);
+      assertEquals("read", record.scope);
+      assertEquals(expireAt, record.expireAt);
+    }
+  }
+
+  @Test
+  public void appendsToLastSegmentAfterRestart() throws IOException {
+    File directory = folder.newFolder("tail");
+    SegmentLog log = new SegmentLog(directory, 1024);
+    log.load(1, 1);
+    log.append(SegmentLog.PUT, 0, "token-1", "client", null, null, Long.MAX_VALUE);
+    log.close();
+    log = new SegmentLog(directory, 1024);
+    log.load(1, 1);
+    assertEquals(0, log.getSealedCount());
+    log.append(SegmentLog.PUT, 0, "token-2", "client", null, null, Long.MAX_VALUE);
+    log.close();
+    assertEquals(1, directory.listFiles().length);
+    log = new SegmentLog(directory, 1024);
+    ConcurrentMap<String, SegmentLog.Record> records = log.load(1, 1).get(0);
+    log.close();
+    assertEquals(2, records.size());
+    assertTrue(records.get("token-2").sequence > records.get("token-1").sequence);
+  }
+}
@@ -0,0 +1,71 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class TimingWheelTest {
+  private final TimingWheel wheel = new TimingWheel(1, "TimingWheelTest");
+
+  @After
+  public void tearDown() {
+    wheel.stop();
+  }
+
+  /**
+   * 64 ticks per slot of level 1 and 4096 of level 2, so the later entries
+   * expire only after cascading down the levels
+   */
+  @Test
+  public void expiresEntriesOfAllLevelsOnTime() throws InterruptedException {
+    long now = System.currentTimeMillis();
+    long[] delays = { 10, 300, 4200 };
+    Recorder[] entries = new Recorder[delays.length];
+    for (int i = 0; i < delays.length; i++) {
+      entries[i] = new Recorder();
+      wheel.schedule(entries[i], now + delays[i]);
+    }
+    for (int i = 0; i < delays.length; i++) {
+      assertTrue(entries[i].expired.await(10, TimeUnit.SECONDS));
+      long late = entries[i].expiredAt - (now + delays[i]);
+      assertTrue("expired " + late + " ms late", late >= 0 && late < 500);
+    }
+  }
+
+  @Test
+  public void neverExpiresCancelledEntries() throws InterruptedException {
+    long now = System.currentTimeMillis();
+    Recorder pending = new Recorder();
+    Recorder placed = new Recorder();
+    Recorder kept = new Recorder();
+    wheel.schedule(pending, now + 100);
+    wheel.schedule(placed, now + 100);
+    wheel.schedule(kept, now + 100);
+    wheel.cancel(pending);
+    Thread.sleep(20);
+    wheel.cancel(placed);
+    assertTrue(kept.expired.await(5, TimeUnit.SECONDS));
+    Thread.sleep(50);
+    assertEquals(1, pending.expired.getCount());
+    assertEquals(1, placed.expired.getCount());
+  }
+
+  private static class Recorder extends TimingWheel.Entry {
+    private final CountDownLatch expired = new CountDownLatch(1);
+    private volatile long expiredAt;
+
+    @Override
+    protected void expire() {
+      expiredAt = System.currentTimeMillis();
+      expired.countDown();
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package win.zqxu.shiro.oltu.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author zqxu
+ */
+public class TokenSignerTest {
+  @Test
+  public void verifiesTokensOfAllKeys() {
+    TokenSigner signer = new TokenSigner();
+    signer.setKeys("k1:" + secret(1) + ", k2:" + secret(2));
+    Set<String> scopes = new HashSet<String>(Arrays.asList("read", "write"));
+    String token = signer.sign("client", scopes);
+    assertTrue(signer.isSigned(token));
+    SignedToken signed = signer.verify(token);
+    assertNotNull(signed);
+    assertEquals("k2", signed.getKeyId());
+    assertEquals("client", signed.getClientId());
+    assertEquals(scopes, signed.getScopes());
+    signer.setCurrentKeyId("k1");
+    assertEquals("k1", signer.verify(signer.sign("client", null)).getKeyId());
+    assertNotNull(signer.verify(token));
+    signer.removeKey("k2");
+    assertNull(signer.verify(token));
+  }
+
+  @Test
+  public void refusesTamperedAndExpiredTokens() {
+    TokenSigner signer = new TokenSigner();
+    signer.setKeys("k1:" + secret(1));
+    String token = signer.sign("client", null);
+    String tampered = token.substring(0, 8) + (token.charAt(8) == 'A' ? 'B' : 'A')
+        + token.substring(9);
+    assertNull(signer.verify(tampered));
+    assertNull(signer.verify(signer.sign("client", null, System.currentTimeMillis() - 1)));
+    assertNull(signer.verify("not.a-token"));
+  }
+
+  private static String secret(int seed) {
+    byte[] secret = new byte[32];
+    Arrays.fill(secret, (byte) seed);
+    return Base64.getEncoder().encodeToString(secret);
+  }
+}